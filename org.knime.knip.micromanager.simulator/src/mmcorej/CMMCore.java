@@ -0,0 +1,1207 @@
+package mmcorej;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pure-Java simulation of Micro-Manager's core.
+ * <p>
+ * This class stands in for the native <i>CMMCore</i> of <i>MMCoreJ.jar</i>,
+ * so that the gateway, the acquisition engines and their benchmarks can run
+ * without Micro-Manager and without hardware. It implements the part of the
+ * core's API that the gateway and its benchmarks use, with the same signatures;
+ * the other methods of the {@link org.knime.knip.mm.CoreBinding} throw an
+ * {@link UnsupportedOperationException}. It simulates
+ * </p>
+ * <ul>
+ * <li>a camera with a configurable frame size, pixel type and maximal frame
+ * rate, whose sequence acquisitions run on a producer thread per camera and
+ * fill a circular buffer of configurable size, which overflows like the real
+ * one when it is not drained fast enough,</li>
+ * <li>devices that are busy for a configurable time after each property
+ * change, shutter change or stage move,</li>
+ * <li>hardware sequencing of configurable properties and stages, which are
+ * advanced with every frame of a sequence acquisition.</li>
+ * </ul>
+ * <p>
+ * The simulated core comes up with a camera (<i>Camera</i>), a focus stage
+ * (<i>Z</i>), an XY stage (<i>XY</i>) and a shutter (<i>Shutter</i>) loaded;
+ * like any other devices, they stay loaded until they are unloaded, e.g.
+ * before loading a system configuration. See {@link Simulation} for the
+ * settings.
+ * </p>
+ */
+public class CMMCore {
+
+	private final static String CORE = "Core";
+
+	private final static String EXPOSURE = "Exposure";
+
+	private final static String STATE = "State";
+
+	private final static String LABEL = "Label";
+
+	private final Simulation simulation = Simulation.load();
+
+	private final Map<String, Device> devices = new ConcurrentHashMap<String, Device>();
+
+	/** The names of the configuration groups; their presets are not simulated. */
+	private final Set<String> configGroups = new ConcurrentSkipListSet<String>();
+
+	/** The settings of each preset, by group and preset name. */
+	private final Map<List<String>, List<String[]>> configs = new ConcurrentHashMap<List<String>, List<String[]>>();
+
+	private final Map<String, CameraSequence> sequences = new ConcurrentHashMap<String, CameraSequence>();
+
+	private final ArrayDeque<Frame> buffer = new ArrayDeque<Frame>();
+	private int bufferCapacity;
+	private boolean bufferOverflowed;
+	private long bufferSizeMB = (long) Math.ceil(simulation.bufferSizeMB);
+
+	private int width, height;
+	private Object template, blurred;
+	private long snapCount, snapped = -1;
+	private double snappedSharpness = 1;
+	private final long startTime = System.nanoTime();
+
+	public CMMCore() {
+		loadDefaultDevices();
+		applyROI(0, 0, simulation.width, simulation.height);
+	}
+
+	// devices
+
+	public StrVector getDeviceAdapterNames() throws Exception {
+		final StrVector names = new StrVector();
+		names.add("DemoCamera");
+		names.add("Simulator");
+		return names;
+	}
+
+	public void loadDevice(final String label, final String library, final String adapterName) throws Exception {
+		final Device existing = devices.get(label);
+		if (existing != null) {
+			if (existing.library.equals(library) && existing.adapter.equals(adapterName)) return;
+			throw new Exception("The specified device label " + label + " is already in use");
+		}
+		final Device device = new Device(label, library, adapterName);
+		devices.put(label, device);
+		assignDefaultRole(device);
+	}
+
+	public void initializeAllDevices() throws Exception {
+		for (final Device device : devices.values()) {
+			if (device.label.equals(CORE)) continue;
+			pause(simulation.initializeLatency);
+		}
+	}
+
+	public void initializeDevice(final String label) throws Exception {
+		if (getDevice(label).label.equals(CORE)) return;
+		pause(simulation.initializeLatency);
+	}
+
+	public void unloadDevice(final String label) throws Exception {
+		final Device device = getDevice(label);
+		if (device.label.equals(CORE)) {
+			throw new Exception("Cannot unload the core");
+		}
+		if (sequences.containsKey(label)) {
+			stopSequenceAcquisition(label);
+		}
+		devices.remove(label);
+		// the roles the device had become vacant
+		for (final Map.Entry<String, String> entry : devices.get(CORE).properties.entrySet()) {
+			if (entry.getValue().equals(label)) entry.setValue("");
+		}
+	}
+
+	public void unloadAllDevices() throws Exception {
+		stopSequenceAcquisition();
+		devices.clear();
+		devices.put(CORE, newCoreDevice());
+	}
+
+	public StrVector getLoadedDevices() throws Exception {
+		final StrVector labels = new StrVector();
+		for (final String label : devices.keySet()) {
+			labels.add(label);
+		}
+		return labels;
+	}
+
+	public String getDeviceLibrary(final String label) throws Exception {
+		return getDevice(label).library;
+	}
+
+	public String getDeviceName(final String label) throws Exception {
+		return getDevice(label).adapter;
+	}
+
+	public void setParentLabel(final String label, final String parentLabel) throws Exception {
+		final Device device = getDevice(label);
+		if (!parentLabel.isEmpty()) getDevice(parentLabel);
+		device.parent = parentLabel;
+	}
+
+	public String getParentLabel(final String label) throws Exception {
+		return getDevice(label).parent;
+	}
+
+	public void setDeviceDelayMs(final String label, final double delayMs) throws Exception {
+		getDevice(label).delayMs = delayMs;
+	}
+
+	public double getDeviceDelayMs(final String label) throws Exception {
+		return getDevice(label).delayMs;
+	}
+
+	public void setFocusDirection(final String label, final int sign) throws Exception {
+		getDevice(label).focusDirection = sign;
+	}
+
+	public int getFocusDirection(final String label) throws Exception {
+		return getDevice(label).focusDirection;
+	}
+
+	/**
+	 * Executes a system configuration on top of the loaded devices, like the
+	 * real core does; unload the devices first to replace them.
+	 */
+	public void loadSystemConfiguration(final String fileName) throws Exception {
+		stopSequenceAcquisition();
+		final BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			int lineNumber = 0;
+			for (String line; (line = reader.readLine()) != null;) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				final String[] tokens = line.split(",", -1);
+				if (tokens[0].equals("Device") && tokens.length == 4) {
+					loadDevice(tokens[1], tokens[2], tokens[3]);
+				}
+				else if (tokens[0].equals("Property") && tokens.length == 4 && tokens[1].equals(CORE) &&
+					tokens[2].equals("Initialize"))
+				{
+					if (!tokens[3].equals("0")) initializeAllDevices();
+				}
+				else if (tokens[0].equals("Property") && tokens.length == 4) {
+					setProperty(tokens[1], tokens[2], tokens[3]);
+				}
+				else if (tokens[0].equals("Device") || tokens[0].equals("Property")) {
+					throw new Exception("Line " + lineNumber + " of " + fileName + " is invalid: " + line);
+				}
+				else if (tokens[0].equals("Parent") && tokens.length == 3) {
+					setParentLabel(tokens[1], tokens[2]);
+				}
+				else if (tokens[0].equals("Label") && tokens.length == 4) {
+					defineStateLabel(tokens[1], Integer.parseInt(tokens[2]), tokens[3]);
+				}
+				else if (tokens[0].equals("ConfigGroup") && tokens.length == 6) {
+					defineConfig(tokens[1], tokens[2], tokens[3], tokens[4], tokens[5]);
+				}
+				else if (tokens[0].equals("ConfigGroup") && tokens.length > 1) {
+					configGroups.add(tokens[1]);
+				}
+				// other commands (delays, pixel sizes, ...) are not simulated
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public StrVector getAvailableConfigGroups() throws Exception {
+		final StrVector names = new StrVector();
+		for (final String name : configGroups) {
+			names.add(name);
+		}
+		return names;
+	}
+
+	public void defineConfigGroup(final String group) throws Exception {
+		if (!configGroups.add(group)) {
+			throw new Exception("Configuration group \"" + group + "\" already exists");
+		}
+	}
+
+	public void defineConfig(final String group, final String configName) throws Exception {
+		configGroups.add(group);
+	}
+
+	public void defineConfig(final String group, final String configName, final String label, final String propName,
+		final String value) throws Exception
+	{
+		getDevice(label);
+		configGroups.add(group);
+		final List<String> key = Arrays.asList(group, configName);
+		List<String[]> settings = configs.get(key);
+		if (settings == null) {
+			settings = new CopyOnWriteArrayList<String[]>();
+			configs.put(key, settings);
+		}
+		settings.add(new String[] { label, propName, value });
+	}
+
+	public void setConfig(final String group, final String configName) throws Exception {
+		final List<String[]> settings = configs.get(Arrays.asList(group, configName));
+		if (settings == null) {
+			throw new Exception("Preset \"" + configName + "\" of group \"" + group + "\" does not exist");
+		}
+		for (final String[] setting : settings) {
+			setProperty(setting[0], setting[1], setting[2]);
+		}
+	}
+
+	public void deleteConfigGroup(final String group) throws Exception {
+		if (!configGroups.remove(group)) {
+			throw new Exception("Configuration group \"" + group + "\" does not exist");
+		}
+	}
+
+	public String getCameraDevice() throws Exception {
+		return getRole("Camera");
+	}
+
+	public String getShutterDevice() throws Exception {
+		return getRole("Shutter");
+	}
+
+	public String getFocusDevice() throws Exception {
+		return getRole("Focus");
+	}
+
+	public String getXYStageDevice() throws Exception {
+		return getRole("XYStage");
+	}
+
+	public String getAutoFocusDevice() throws Exception {
+		return getRole("AutoFocus");
+	}
+
+	public String getImageProcessorDevice() throws Exception {
+		return getRole("ImageProcessor");
+	}
+
+	public String getSLMDevice() throws Exception {
+		return getRole("SLM");
+	}
+
+	public String getGalvoDevice() throws Exception {
+		return getRole("Galvo");
+	}
+
+	// properties
+
+	public void setProperty(final String label, final String propName, final String propValue) throws Exception {
+		final Device device = getDevice(label);
+		if (device.label.equals(CORE)) {
+			if (!propValue.isEmpty() && !propName.equals("AutoShutter") && !devices.containsKey(propValue)) {
+				throw new Exception("No device with label \"" + propValue + "\"");
+			}
+		}
+		else if (propName.equals(EXPOSURE)) {
+			Double.parseDouble(propValue);
+		}
+		else if (!device.stateLabels.isEmpty() && (propName.equals(STATE) || propName.equals(LABEL))) {
+			// state devices keep their state and its label in sync
+			final Integer state = propName.equals(STATE) ? Integer.valueOf(propValue) : stateOf(device, propValue);
+			final String stateLabel = device.stateLabels.get(state);
+			device.properties.put(STATE, state.toString());
+			if (stateLabel != null) device.properties.put(LABEL, stateLabel);
+			else device.properties.remove(LABEL);
+			device.busyFor(simulation.propertyLatency);
+			return;
+		}
+		device.properties.put(propName, propValue);
+		device.busyFor(simulation.propertyLatency);
+	}
+
+	public void setProperty(final String label, final String propName, final boolean propValue) throws Exception {
+		setProperty(label, propName, propValue ? "1" : "0");
+	}
+
+	public void setProperty(final String label, final String propName, final int propValue) throws Exception {
+		setProperty(label, propName, Integer.toString(propValue));
+	}
+
+	public void setProperty(final String label, final String propName, final float propValue) throws Exception {
+		setProperty(label, propName, String.format(Locale.US, "%.4f", propValue));
+	}
+
+	public void setProperty(final String label, final String propName, final double propValue) throws Exception {
+		setProperty(label, propName, String.format(Locale.US, "%.4f", propValue));
+	}
+
+	public String getProperty(final String label, final String propName) throws Exception {
+		final String value = getDevice(label).properties.get(propName);
+		if (value == null) {
+			throw new Exception("Property \"" + propName + "\" not defined for device \"" + label + "\"");
+		}
+		return value;
+	}
+
+	public void defineStateLabel(final String label, final int state, final String stateLabel) throws Exception {
+		final Device device = getDevice(label);
+		device.stateLabels.put(state, stateLabel);
+		if (!device.properties.containsKey(STATE)) device.properties.put(STATE, "0");
+		if (Integer.toString(state).equals(device.properties.get(STATE))) device.properties.put(LABEL, stateLabel);
+	}
+
+	public boolean isPropertySequenceable(final String label, final String propName) throws Exception {
+		getDevice(label);
+		return simulation.isPropertySequenceable(label, propName);
+	}
+
+	public int getPropertySequenceMaxLength(final String label, final String propName) throws Exception {
+		return isPropertySequenceable(label, propName) ? simulation.sequenceMaxLength : 0;
+	}
+
+	public void loadPropertySequence(final String label, final String propName, final StrVector eventSequence) throws Exception {
+		if (!isPropertySequenceable(label, propName)) {
+			throw new Exception("Property " + propName + " of " + label + " is not sequenceable");
+		}
+		checkSequenceLength(eventSequence.size());
+		final List<String> values = new ArrayList<String>();
+		for (final String value : eventSequence) {
+			values.add(value);
+		}
+		final Device device = getDevice(label);
+		synchronized (device) {
+			device.propertySequences.put(propName, values.toArray(new String[values.size()]));
+		}
+	}
+
+	public void startPropertySequence(final String label, final String propName) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			final String[] values = device.propertySequences.get(propName);
+			if (values == null) {
+				throw new Exception("No sequence loaded for property " + propName + " of " + label);
+			}
+			device.runningProperties.put(propName, 0);
+			device.properties.put(propName, values[0]);
+		}
+	}
+
+	public void stopPropertySequence(final String label, final String propName) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			device.runningProperties.remove(propName);
+		}
+	}
+
+	// stages
+
+	public void setPosition(final String label, final double position) throws Exception {
+		final Device device = getDevice(label);
+		final double distance;
+		synchronized (device) {
+			distance = Math.abs(position - device.position);
+			device.position = position;
+		}
+		device.busyFor(simulation.stageSettle + distance * simulation.stagePerUm);
+	}
+
+	public double getPosition(final String label) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			return device.position;
+		}
+	}
+
+	public void setXYPosition(final String label, final double x, final double y) throws Exception {
+		final Device device = getDevice(label);
+		final double distance;
+		synchronized (device) {
+			// both axes travel at the same time
+			distance = Math.max(Math.abs(x - device.position), Math.abs(y - device.y));
+			device.position = x;
+			device.y = y;
+		}
+		device.busyFor(simulation.stageSettle + distance * simulation.stagePerUm);
+	}
+
+	public double getXPosition(final String label) throws Exception {
+		return getPosition(label);
+	}
+
+	public double getYPosition(final String label) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			return device.y;
+		}
+	}
+
+	public double getPixelSizeUm() throws Exception {
+		return simulation.pixelSizeUm;
+	}
+
+	// pixel size presets are accepted, but the simulated pixel size is fixed
+
+	public void definePixelSizeConfig(final String resolutionID, final String label, final String propName,
+		final String value) throws Exception
+	{
+		getDevice(label);
+	}
+
+	public void setPixelSizeUm(final String resolutionID, final double pixSize) throws Exception {
+		// not simulated
+	}
+
+	public void setPixelSizeAffine(final String resolutionID, final DoubleVector affine) throws Exception {
+		if (affine.size() != 6) {
+			throw new Exception("Affine transforms have 6 values, got " + affine.size());
+		}
+	}
+
+	public boolean isStageSequenceable(final String label) throws Exception {
+		getDevice(label);
+		return simulation.isStageSequenceable(label);
+	}
+
+	public int getStageSequenceMaxLength(final String label) throws Exception {
+		return isStageSequenceable(label) ? simulation.sequenceMaxLength : 0;
+	}
+
+	public void loadStageSequence(final String label, final DoubleVector positionSequence) throws Exception {
+		if (!isStageSequenceable(label)) {
+			throw new Exception("Stage " + label + " is not sequenceable");
+		}
+		checkSequenceLength(positionSequence.size());
+		final double[] positions = new double[(int) positionSequence.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = positionSequence.get(i);
+		}
+		final Device device = getDevice(label);
+		synchronized (device) {
+			device.stageSequence = positions;
+		}
+	}
+
+	public void startStageSequence(final String label) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			if (device.stageSequence == null) {
+				throw new Exception("No sequence loaded for stage " + label);
+			}
+			device.stageIndex = 0;
+			device.position = device.stageSequence[0];
+		}
+	}
+
+	public void stopStageSequence(final String label) throws Exception {
+		final Device device = getDevice(label);
+		synchronized (device) {
+			device.stageIndex = -1;
+		}
+	}
+
+	// synchronization
+
+	public boolean deviceBusy(final String label) throws Exception {
+		return getDevice(label).isBusy();
+	}
+
+	public void waitForDevice(final String label) throws Exception {
+		getDevice(label).waitUntilReady();
+	}
+
+	public void waitForConfig(final String group, final String configName) throws Exception {
+		waitForSystem();
+	}
+
+	public boolean systemBusy() throws Exception {
+		for (final Device device : devices.values()) {
+			if (device.isBusy()) return true;
+		}
+		return false;
+	}
+
+	public void waitForSystem() throws Exception {
+		for (final Device device : devices.values()) {
+			device.waitUntilReady();
+		}
+	}
+
+	public void waitForImageSynchro() throws Exception {
+		final String camera = getCameraDevice();
+		for (final Device device : devices.values()) {
+			if (!device.label.equals(camera)) device.waitUntilReady();
+		}
+	}
+
+	// shutter
+
+	public void setShutterOpen(final boolean state) throws Exception {
+		final String label = getShutterDevice();
+		if (label.isEmpty()) return;
+		final Device shutter = getDevice(label);
+		shutter.properties.put("State", state ? "1" : "0");
+		shutter.busyFor(simulation.shutterLatency);
+	}
+
+	public void setAutoShutter(final boolean state) throws Exception {
+		setProperty(CORE, "AutoShutter", state ? "1" : "0");
+	}
+
+	public boolean getAutoShutter() throws Exception {
+		return "1".equals(getDevice(CORE).properties.get("AutoShutter"));
+	}
+
+	// camera
+
+	public void setExposure(final double exposure) throws Exception {
+		setExposure(getCameraDevice(), exposure);
+	}
+
+	public void setExposure(final String label, final double exposure) throws Exception {
+		setProperty(label, EXPOSURE, exposure);
+	}
+
+	public double getExposure() throws Exception {
+		final String camera = getCameraDevice();
+		return camera.isEmpty() ? 0 : Double.parseDouble(getProperty(camera, EXPOSURE));
+	}
+
+	public void setROI(final int x, final int y, final int xSize, final int ySize) throws Exception {
+		if (xSize <= 0 || ySize <= 0 || x < 0 || y < 0 || x + xSize > simulation.width || y + ySize > simulation.height) {
+			throw new Exception("Invalid ROI: " + x + ", " + y + ", " + xSize + "x" + ySize);
+		}
+		if (isAnySequenceRunning()) {
+			throw new Exception("Cannot change the ROI while a sequence acquisition is running");
+		}
+		applyROI(x, y, xSize, ySize);
+	}
+
+	private synchronized void applyROI(final int x, final int y, final int xSize, final int ySize) {
+		width = xSize;
+		height = ySize;
+		template = render(x, y);
+		// RGB scenes are left sharp
+		blurred = simulation.depthOfField > 0 && simulation.components == 1 ? blur(template, width, height) : null;
+		updateBufferCapacity();
+	}
+
+	private void updateBufferCapacity() {
+		final long frameBytes = (long) width * height * simulation.bytesPerPixel;
+		synchronized (buffer) {
+			bufferCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bufferSizeMB * 1024 * 1024 / frameBytes));
+		}
+	}
+
+	public synchronized long getImageWidth() throws Exception {
+		return width;
+	}
+
+	public synchronized long getImageHeight() throws Exception {
+		return height;
+	}
+
+	public long getBytesPerPixel() throws Exception {
+		return simulation.bytesPerPixel;
+	}
+
+	public long getImageBitDepth() throws Exception {
+		return simulation.bitDepth;
+	}
+
+	public long getNumberOfComponents() throws Exception {
+		return simulation.components;
+	}
+
+	public long getNumberOfCameraChannels() throws Exception {
+		return simulation.cameraChannels;
+	}
+
+	public void snapImage() throws Exception {
+		final String camera = getCameraDevice();
+		if (camera.isEmpty()) {
+			throw new Exception("Camera not loaded or initialized");
+		}
+		if (isSequenceRunning(camera)) {
+			throw new Exception("Camera is busy acquiring a sequence");
+		}
+		final boolean autoShutter = getAutoShutter();
+		if (autoShutter) setShutterOpen(true);
+		pause(getExposure());
+		if (autoShutter) setShutterOpen(false);
+		final double sharpness = getSharpness();
+		synchronized (this) {
+			snapped = snapCount++;
+			snappedSharpness = sharpness;
+		}
+	}
+
+	public Object getImage() throws Exception {
+		return getImage(0);
+	}
+
+	public Object getImage(final long channel) throws Exception {
+		final long number;
+		final double sharpness;
+		synchronized (this) {
+			number = snapped;
+			sharpness = snappedSharpness;
+		}
+		if (number < 0) {
+			throw new Exception("Image buffer is empty; snap an image first");
+		}
+		if (channel < 0 || channel >= simulation.cameraChannels) {
+			throw new Exception("Invalid camera channel: " + channel);
+		}
+		pause(simulation.readoutLatency);
+		final Object pixels = newFrame(number, (int) channel);
+		if (sharpness < 1) defocus(pixels, sharpness);
+		return pixels;
+	}
+
+	// sequence acquisition
+
+	public void prepareSequenceAcquisition(final String cameraLabel) throws Exception {
+		getDevice(cameraLabel);
+	}
+
+	public void startSequenceAcquisition(final int numImages, final double intervalMs, final boolean stopOnOverflow) throws Exception {
+		startSequenceAcquisition(getCameraDevice(), numImages, intervalMs, stopOnOverflow);
+	}
+
+	public void startSequenceAcquisition(final String cameraLabel, final int numImages, final double intervalMs,
+		final boolean stopOnOverflow) throws Exception
+	{
+		startSequence(cameraLabel, numImages, intervalMs, stopOnOverflow);
+	}
+
+	public void startContinuousSequenceAcquisition(final double intervalMs) throws Exception {
+		startSequence(getCameraDevice(), Long.MAX_VALUE, intervalMs, false);
+	}
+
+	public void stopSequenceAcquisition() throws Exception {
+		for (final String label : sequences.keySet()) {
+			stopSequenceAcquisition(label);
+		}
+	}
+
+	public void stopSequenceAcquisition(final String cameraLabel) throws Exception {
+		final CameraSequence sequence = sequences.get(cameraLabel);
+		if (sequence != null) sequence.halt();
+	}
+
+	public boolean isSequenceRunning() throws Exception {
+		return isSequenceRunning(getCameraDevice());
+	}
+
+	public boolean isSequenceRunning(final String cameraLabel) throws Exception {
+		final CameraSequence sequence = sequences.get(cameraLabel);
+		return sequence != null && sequence.running;
+	}
+
+	public int getRemainingImageCount() {
+		synchronized (buffer) {
+			return buffer.size();
+		}
+	}
+
+	public int getBufferTotalCapacity() {
+		synchronized (buffer) {
+			return bufferCapacity;
+		}
+	}
+
+	public int getBufferFreeCapacity() {
+		synchronized (buffer) {
+			return bufferCapacity - buffer.size();
+		}
+	}
+
+	public boolean isBufferOverflowed() {
+		synchronized (buffer) {
+			return bufferOverflowed;
+		}
+	}
+
+	public Object getLastImage() throws Exception {
+		final Frame frame;
+		synchronized (buffer) {
+			frame = buffer.peekLast();
+		}
+		if (frame == null) {
+			throw new Exception("Circular buffer is empty");
+		}
+		return newFrame(frame.number, frame.channel);
+	}
+
+	public void setCircularBufferMemoryFootprint(final long sizeMB) throws Exception {
+		if (sizeMB < 1) {
+			throw new Exception("Invalid circular buffer size: " + sizeMB + " MB");
+		}
+		if (isAnySequenceRunning()) {
+			throw new Exception("Cannot resize the circular buffer while a sequence acquisition is running");
+		}
+		synchronized (this) {
+			bufferSizeMB = sizeMB;
+			updateBufferCapacity();
+		}
+		clearCircularBuffer();
+	}
+
+	public long getCircularBufferMemoryFootprint() {
+		synchronized (this) {
+			return bufferSizeMB;
+		}
+	}
+
+	public void clearCircularBuffer() throws Exception {
+		synchronized (buffer) {
+			buffer.clear();
+			bufferOverflowed = false;
+		}
+	}
+
+	public Object popNextImage() throws Exception {
+		final Frame frame = poll();
+		return newFrame(frame.number, frame.channel);
+	}
+
+	public Object popNextImageMD(final Metadata md) throws Exception {
+		final Frame frame = poll();
+		md.Clear();
+		md.PutTag("Camera", CORE, frame.camera);
+		md.PutTag("ImageNumber", frame.camera, Long.toString(frame.number));
+		md.PutTag("CameraChannelIndex", frame.camera, Integer.toString(frame.channel));
+		md.PutTag("ElapsedTime-ms", CORE, String.format(Locale.US, "%.3f", frame.elapsedMs));
+		return newFrame(frame.number, frame.channel);
+	}
+
+	// helpers
+
+	private void loadDefaultDevices() {
+		devices.put(CORE, newCoreDevice());
+		try {
+			loadDevice("Camera", "DemoCamera", "DCam");
+			loadDevice("Z", "DemoCamera", "DStage");
+			loadDevice("XY", "DemoCamera", "DXYStage");
+			loadDevice("Shutter", "DemoCamera", "DShutter");
+		}
+		catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Device newCoreDevice() {
+		final Device core = new Device(CORE, "", "");
+		core.properties.put("AutoShutter", "1");
+		return core;
+	}
+
+	/** Mirrors the core's assignment of a new device to a vacant role. */
+	private void assignDefaultRole(final Device device) {
+		final String adapter = device.adapter;
+		final String role;
+		if (adapter.contains("Cam")) {
+			role = "Camera";
+			device.properties.put(EXPOSURE, "10.0000");
+		}
+		else if (adapter.contains("XY")) role = "XYStage";
+		else if (adapter.contains("Stage") || adapter.contains("Focus")) role = "Focus";
+		else if (adapter.contains("Shutter")) role = "Shutter";
+		else return;
+		final Map<String, String> core = devices.get(CORE).properties;
+		if (!core.containsKey(role) || core.get(role).isEmpty()) {
+			core.put(role, device.label);
+		}
+	}
+
+	private String getRole(final String role) throws Exception {
+		final String label = getDevice(CORE).properties.get(role);
+		return label == null ? "" : label;
+	}
+
+	private static Integer stateOf(final Device device, final String stateLabel) throws Exception {
+		for (final Map.Entry<Integer, String> entry : device.stateLabels.entrySet()) {
+			if (entry.getValue().equals(stateLabel)) return entry.getKey();
+		}
+		throw new Exception("Label \"" + stateLabel + "\" not defined for device \"" + device.label + "\"");
+	}
+
+	private Device getDevice(final String label) throws Exception {
+		final Device device = devices.get(label);
+		if (device == null) {
+			throw new Exception("No device with label \"" + label + "\"");
+		}
+		return device;
+	}
+
+	private void checkSequenceLength(final long length) throws Exception {
+		if (length < 1 || length > simulation.sequenceMaxLength) {
+			throw new Exception("Invalid sequence length: " + length + " (maximum " + simulation.sequenceMaxLength + ")");
+		}
+	}
+
+	private void startSequence(final String cameraLabel, final long numImages, final double intervalMs,
+		final boolean stopOnOverflow) throws Exception
+	{
+		final Device camera = getDevice(cameraLabel);
+		if (!camera.properties.containsKey(EXPOSURE)) {
+			throw new Exception("Device " + cameraLabel + " is not a camera");
+		}
+		if (isSequenceRunning(cameraLabel)) {
+			throw new Exception("Sequence acquisition already in progress on " + cameraLabel);
+		}
+		synchronized (buffer) {
+			if (!isAnySequenceRunning()) {
+				buffer.clear();
+				bufferOverflowed = false;
+			}
+		}
+		double frameInterval = Math.max(intervalMs, Double.parseDouble(camera.properties.get(EXPOSURE)));
+		if (simulation.frameRate > 0) {
+			frameInterval = Math.max(frameInterval, 1000 / simulation.frameRate);
+		}
+		final CameraSequence sequence = new CameraSequence(cameraLabel, numImages, frameInterval, stopOnOverflow);
+		sequences.put(cameraLabel, sequence);
+		sequence.start();
+	}
+
+	private boolean isAnySequenceRunning() {
+		for (final CameraSequence sequence : sequences.values()) {
+			if (sequence.running) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Inserts the frames of one exposure into the circular buffer.
+	 *
+	 * @return whether there was room for them
+	 */
+	private boolean insert(final Frame[] frames) {
+		synchronized (buffer) {
+			if (buffer.size() + frames.length > bufferCapacity) {
+				bufferOverflowed = true;
+				return false;
+			}
+			buffer.addAll(Arrays.asList(frames));
+			return true;
+		}
+	}
+
+	private Frame poll() throws Exception {
+		synchronized (buffer) {
+			final Frame frame = buffer.poll();
+			if (frame == null) {
+				throw new Exception("Circular buffer is empty");
+			}
+			return frame;
+		}
+	}
+
+	/** Advances the running hardware sequences to the next frame. */
+	private void advanceSequences() {
+		for (final Device device : devices.values()) {
+			synchronized (device) {
+				for (final Map.Entry<String, Integer> entry : device.runningProperties.entrySet()) {
+					final String[] values = device.propertySequences.get(entry.getKey());
+					final int index = (entry.getValue() + 1) % values.length;
+					entry.setValue(index);
+					device.properties.put(entry.getKey(), values[index]);
+				}
+				if (device.stageIndex >= 0) {
+					device.stageIndex = (device.stageIndex + 1) % device.stageSequence.length;
+					device.position = device.stageSequence[device.stageIndex];
+				}
+			}
+		}
+	}
+
+	/** Renders the scene that the camera sees through the current ROI. */
+	private Object render(final int x0, final int y0) {
+		final Random random = new Random(1);
+		final int max = simulation.bitDepth >= 31 ? Integer.MAX_VALUE : (1 << simulation.bitDepth) - 1;
+		final int size = width * height;
+		final double[] values = new double[size];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				// a few blobs on a gradient, plus shot noise
+				final double u = (x + x0) / 64.0, v = (y + y0) / 64.0;
+				final double blobs = 0.5 + 0.25 * Math.sin(u * Math.PI) * Math.cos(v * Math.PI);
+				final double gradient = 0.2 * (x + x0) / simulation.width;
+				values[x + y * width] = Math.min(1, Math.max(0, blobs + gradient + 0.02 * random.nextGaussian()));
+			}
+		}
+		if (simulation.components == 4) {
+			// like MMCoreJ, as blue, green, red and alpha bytes
+			final byte[] pixels = new byte[4 * size];
+			for (int i = 0; i < size; i++) {
+				final int gray = (int) (255 * values[i]);
+				pixels[4 * i] = (byte) (gray / 2);
+				pixels[4 * i + 1] = (byte) (255 - gray);
+				pixels[4 * i + 2] = (byte) gray;
+			}
+			return pixels;
+		}
+		switch (simulation.bytesPerPixel) {
+			case 1: {
+				final byte[] pixels = new byte[size];
+				for (int i = 0; i < size; i++) pixels[i] = (byte) (Math.min(max, 255) * values[i]);
+				return pixels;
+			}
+			case 2: {
+				final short[] pixels = new short[size];
+				for (int i = 0; i < size; i++) pixels[i] = (short) (Math.min(max, 65535) * values[i]);
+				return pixels;
+			}
+			default: {
+				final float[] pixels = new float[size];
+				for (int i = 0; i < size; i++) pixels[i] = (float) (max * values[i]);
+				return pixels;
+			}
+		}
+	}
+
+	/** How sharp a frame snapped now is, between 0 (blurred) and 1 (in focus). */
+	private double getSharpness() throws Exception {
+		if (blurred == null) return 1;
+		final String focus = getFocusDevice();
+		if (focus.isEmpty()) return 1;
+		final double distance = (getPosition(focus) - simulation.focalPlane) / simulation.depthOfField;
+		return Math.exp(-distance * distance);
+	}
+
+	/** Blurs a rendered grayscale scene with a box filter. */
+	private static Object blur(final Object pixels, final int width, final int height) {
+		final int radius = 4, size = width * height;
+		final double[] values = new double[size], sums = new double[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = pixels instanceof byte[] ? ((byte[]) pixels)[i] & 0xff :
+				pixels instanceof short[] ? ((short[]) pixels)[i] & 0xffff : ((float[]) pixels)[i];
+		}
+		// separable: rows into sums, then columns back into values
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double sum = 0;
+				final int from = Math.max(0, x - radius), to = Math.min(width - 1, x + radius);
+				for (int i = from; i <= to; i++) sum += values[y * width + i];
+				sums[y * width + x] = sum / (to - from + 1);
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			final int from = Math.max(0, y - radius), to = Math.min(height - 1, y + radius);
+			for (int x = 0; x < width; x++) {
+				double sum = 0;
+				for (int i = from; i <= to; i++) sum += sums[i * width + x];
+				values[y * width + x] = sum / (to - from + 1);
+			}
+		}
+		if (pixels instanceof byte[]) {
+			final byte[] result = new byte[size];
+			for (int i = 0; i < size; i++) result[i] = (byte) Math.round(values[i]);
+			return result;
+		}
+		if (pixels instanceof short[]) {
+			final short[] result = new short[size];
+			for (int i = 0; i < size; i++) result[i] = (short) Math.round(values[i]);
+			return result;
+		}
+		final float[] result = new float[size];
+		for (int i = 0; i < size; i++) result[i] = (float) values[i];
+		return result;
+	}
+
+	/** Blends a frame towards the blurred scene, leaving the stamped pixels alone. */
+	private void defocus(final Object pixels, final double sharpness) {
+		if (pixels instanceof byte[]) {
+			final byte[] array = (byte[]) pixels, blur = (byte[]) blurred;
+			for (int i = 2; i < array.length; i++) {
+				final int b = blur[i] & 0xff;
+				array[i] = (byte) Math.round(b + sharpness * ((array[i] & 0xff) - b));
+			}
+		}
+		else if (pixels instanceof short[]) {
+			final short[] array = (short[]) pixels, blur = (short[]) blurred;
+			for (int i = 2; i < array.length; i++) {
+				final int b = blur[i] & 0xffff;
+				array[i] = (short) Math.round(b + sharpness * ((array[i] & 0xffff) - b));
+			}
+		}
+		else if (pixels instanceof float[]) {
+			final float[] array = (float[]) pixels, blur = (float[]) blurred;
+			for (int i = 2; i < array.length; i++) {
+				array[i] = (float) (blur[i] + sharpness * (array[i] - blur[i]));
+			}
+		}
+	}
+
+	/**
+	 * Creates a frame from the template, like MMCoreJ copies it out of the
+	 * circular buffer when handing it to Java, stamping the frame number and channel
+	 * into its first pixels so that frames can be told apart.
+	 */
+	private synchronized Object newFrame(final long number, final int channel) {
+		final Object pixels = copy(template);
+		if (pixels instanceof byte[]) {
+			final byte[] array = (byte[]) pixels;
+			array[0] = (byte) number;
+			if (array.length > 1) array[1] = (byte) channel;
+		}
+		else if (pixels instanceof short[]) {
+			final short[] array = (short[]) pixels;
+			array[0] = (short) number;
+			if (array.length > 1) array[1] = (short) channel;
+		}
+		else {
+			final float[] array = (float[]) pixels;
+			array[0] = number;
+			if (array.length > 1) array[1] = channel;
+		}
+		return pixels;
+	}
+
+	/** Copies pixels. */
+	private static Object copy(final Object pixels) {
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		return ((float[]) pixels).clone();
+	}
+
+	/** Waits for the given time without spinning. */
+	private static void pause(final double milliseconds) {
+		if (milliseconds <= 0) return;
+		waitUntil(System.nanoTime() + (long) (milliseconds * 1e6));
+	}
+
+	private static void waitUntil(final long deadline) {
+		final Thread thread = Thread.currentThread();
+		for (long remaining; (remaining = deadline - System.nanoTime()) > 0 && !thread.isInterrupted();) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private static class Device {
+
+		private final String label, library, adapter;
+		private final Map<String, String> properties = new ConcurrentHashMap<String, String>();
+		private final Map<String, String[]> propertySequences = new ConcurrentHashMap<String, String[]>();
+		private final Map<String, Integer> runningProperties = new ConcurrentHashMap<String, Integer>();
+		private final Map<Integer, String> stateLabels = new ConcurrentHashMap<Integer, String>();
+		private volatile String parent = "";
+		private volatile double delayMs;
+		private volatile int focusDirection;
+		/** The position of a focus stage, or the X position of an XY stage. */
+		private double position;
+		private double y;
+		private double[] stageSequence;
+		private int stageIndex = -1;
+		private volatile long busyUntil = System.nanoTime();
+
+		private Device(final String label, final String library, final String adapter) {
+			this.label = label;
+			this.library = library;
+			this.adapter = adapter;
+		}
+
+		private void busyFor(final double milliseconds) {
+			if (milliseconds > 0) {
+				busyUntil = System.nanoTime() + (long) (milliseconds * 1e6);
+			}
+		}
+
+		private boolean isBusy() {
+			return busyUntil - System.nanoTime() > 0;
+		}
+
+		private void waitUntilReady() {
+			waitUntil(busyUntil);
+		}
+	}
+
+	private static class Frame {
+
+		private final String camera;
+		private final long number;
+		private final int channel;
+		private final double elapsedMs;
+
+		private Frame(final String camera, final long number, final int channel, final double elapsedMs) {
+			this.camera = camera;
+			this.number = number;
+			this.channel = channel;
+			this.elapsedMs = elapsedMs;
+		}
+	}
+
+	/** The producer thread of one camera's sequence acquisition. */
+	private class CameraSequence extends Thread {
+
+		private final String camera;
+		private final long numImages;
+		private final long intervalNanos;
+		private final boolean stopOnOverflow;
+		private volatile boolean running = true;
+
+		private CameraSequence(final String camera, final long numImages, final double intervalMs,
+			final boolean stopOnOverflow)
+		{
+			super("Simulated camera " + camera);
+			setDaemon(true);
+			this.camera = camera;
+			this.numImages = numImages;
+			this.intervalNanos = (long) (intervalMs * 1e6);
+			this.stopOnOverflow = stopOnOverflow;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long due = System.nanoTime();
+				for (long number = 0; running && number < numImages; number++) {
+					due += intervalNanos;
+					waitUntil(due);
+					if (!running) break;
+					final double elapsedMs = (System.nanoTime() - startTime) / 1e6;
+					final Frame[] frames = new Frame[simulation.cameraChannels];
+					for (int channel = 0; channel < frames.length; channel++) {
+						frames[channel] = new Frame(camera, number, channel, elapsedMs);
+					}
+					if (!insert(frames)) {
+						if (stopOnOverflow) break;
+						// like the demo camera, start over with an empty buffer
+						synchronized (buffer) {
+							buffer.clear();
+						}
+						insert(frames);
+					}
+					advanceSequences();
+				}
+			}
+			finally {
+				running = false;
+			}
+		}
+
+		private void halt() {
+			running = false;
+			interrupt();
+			if (currentThread() == this) return;
+			try {
+				join();
+			}
+			catch (final InterruptedException e) {
+				currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package mmcorej;
+
+import java.util.Arrays;
+
+/**
+ * The simulated counterpart of MMCoreJ's vector of doubles.
+ */
+public class DoubleVector {
+
+	private double[] elements = new double[16];
+	private int size;
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void add(final double element) {
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, 2 * size);
+		}
+		elements[size++] = element;
+	}
+
+	public double get(final int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("" + index);
+		}
+		return elements[index];
+	}
+
+	public void set(final int index, final double element) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("" + index);
+		}
+		elements[index] = element;
+	}
+}
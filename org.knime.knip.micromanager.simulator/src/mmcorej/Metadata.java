@@ -0,0 +1,40 @@
+package mmcorej;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The simulated counterpart of MMCoreJ's per-image metadata.
+ */
+public class Metadata {
+
+	private final Map<String, MetadataSingleTag> tags = new LinkedHashMap<String, MetadataSingleTag>();
+
+	public void Clear() {
+		tags.clear();
+	}
+
+	public boolean HasTag(final String key) {
+		return tags.containsKey(key);
+	}
+
+	public MetadataSingleTag GetSingleTag(final String key) throws Exception {
+		final MetadataSingleTag tag = tags.get(key);
+		if (tag == null) {
+			throw new Exception("Metadata error: Undefined metadata key: " + key);
+		}
+		return tag;
+	}
+
+	public void PutTag(final String key, final String deviceLabel, final String value) {
+		tags.put(key, new MetadataSingleTag(key, deviceLabel, value));
+	}
+
+	public StrVector GetKeys() {
+		final StrVector keys = new StrVector();
+		for (final String key : tags.keySet()) {
+			keys.add(key);
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,27 @@
+package mmcorej;
+
+/**
+ * The simulated counterpart of MMCoreJ's single-valued metadata tag.
+ */
+public class MetadataSingleTag {
+
+	private final String name, device, value;
+
+	public MetadataSingleTag(final String name, final String device, final String value) {
+		this.name = name;
+		this.device = device;
+		this.value = value;
+	}
+
+	public String GetName() {
+		return name;
+	}
+
+	public String GetDevice() {
+		return device;
+	}
+
+	public String GetValue() {
+		return value;
+	}
+}
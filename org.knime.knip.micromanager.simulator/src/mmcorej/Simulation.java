@@ -0,0 +1,162 @@
+package mmcorej;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The settings of the simulated core.
+ * <p>
+ * The settings are read from a <i>simulator.properties</i> file next to the
+ * jar containing the simulator, if there is one; system properties prefixed
+ * with {@value #PREFIX} override them. The keys are:
+ * </p>
+ * <dl>
+ * <dt>width, height</dt>
+ * <dd>the frame size, in pixels (default 512x512)</dd>
+ * <dt>bytesPerPixel, components</dt>
+ * <dd>1, 2 or 4 bytes of gray, or 4 bytes of 4 RGB components (default 2, 1)</dd>
+ * <dt>bitDepth</dt>
+ * <dd>the number of significant bits per pixel (default 8 for one byte, 12 for
+ * two, 32 for four)</dd>
+ * <dt>cameraChannels</dt>
+ * <dd>the number of channels the camera reads out per exposure (default 1)</dd>
+ * <dt>frameRate</dt>
+ * <dd>the camera's maximal frame rate in frames per second, or 0 for no limit
+ * (default 100)</dd>
+ * <dt>pixelSizeUm</dt>
+ * <dd>the size of a pixel in the sample, in microns (default 1)</dd>
+ * <dt>bufferSizeMB</dt>
+ * <dd>the size of the circular buffer, in megabytes (default 256)</dd>
+ * <dt>sequenceable, sequenceMaxLength</dt>
+ * <dd>a comma-separated list of stage labels and <i>label:property</i> pairs
+ * that can be sequenced, and the maximal length of their sequences (default
+ * none, 1024)</dd>
+ * <dt>latency.property, latency.shutter, latency.readout,
+ * latency.initialize</dt>
+ * <dd>the time a device is busy after a property change, a shutter change,
+ * the time it takes to read out a snapped frame and to initialize a device, in
+ * milliseconds (default 0)</dd>
+ * <dt>focus.plane, focus.depth</dt>
+ * <dd>the focus position at which snapped frames are sharp, and the distance
+ * from it over which they blur, in microns (default 0, 0 for always sharp)</dd>
+ * <dt>latency.stageSettle, latency.stagePerUm</dt>
+ * <dd>the time a stage is busy after a move, and in addition per micron
+ * travelled (along the longer axis, for XY stages), in milliseconds (default
+ * 0)</dd>
+ * </dl>
+ */
+final class Simulation {
+
+	final static String PREFIX = "mmsim.";
+
+	final static String FILE_NAME = "simulator.properties";
+
+	final int width, height, bytesPerPixel, components, bitDepth, cameraChannels;
+	final double frameRate, bufferSizeMB, pixelSizeUm;
+	final Set<String> sequenceable;
+	final int sequenceMaxLength;
+	final double propertyLatency, shutterLatency, readoutLatency, initializeLatency;
+	final double stageSettle, stagePerUm;
+	final double focalPlane, depthOfField;
+
+	private final Properties properties;
+
+	private Simulation(final Properties properties) {
+		this.properties = properties;
+		width = getInt("width", 512);
+		height = getInt("height", 512);
+		bytesPerPixel = getInt("bytesPerPixel", 2);
+		components = getInt("components", 1);
+		bitDepth = getInt("bitDepth", bytesPerPixel == 1 ? 8 : bytesPerPixel == 2 ? 12 : 32);
+		cameraChannels = getInt("cameraChannels", 1);
+		frameRate = getDouble("frameRate", 100);
+		bufferSizeMB = getDouble("bufferSizeMB", 256);
+		pixelSizeUm = getDouble("pixelSizeUm", 1);
+		final String list = properties.getProperty("sequenceable", "").trim();
+		sequenceable = new HashSet<String>(list.isEmpty() ?
+			Arrays.<String> asList() : Arrays.asList(list.split("\\s*,\\s*")));
+		sequenceMaxLength = getInt("sequenceMaxLength", 1024);
+		propertyLatency = getDouble("latency.property", 0);
+		shutterLatency = getDouble("latency.shutter", 0);
+		readoutLatency = getDouble("latency.readout", 0);
+		initializeLatency = getDouble("latency.initialize", 0);
+		stageSettle = getDouble("latency.stageSettle", 0);
+		stagePerUm = getDouble("latency.stagePerUm", 0);
+		focalPlane = getDouble("focus.plane", 0);
+		depthOfField = getDouble("focus.depth", 0);
+
+		if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4) {
+			throw new IllegalArgumentException("Unsupported bytes per pixel: " + bytesPerPixel);
+		}
+		if (components != 1 && (components != 4 || bytesPerPixel != 4)) {
+			throw new IllegalArgumentException("Unsupported number of components: " + components);
+		}
+	}
+
+	/**
+	 * Reads the settings from the <i>simulator.properties</i> file next to
+	 * the simulator's jar and from the system properties.
+	 */
+	static Simulation load() {
+		final Properties properties = new Properties();
+		final File file = locateFile();
+		if (file != null && file.isFile()) {
+			try {
+				final InputStream in = new FileInputStream(file);
+				try {
+					properties.load(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		for (final String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith(PREFIX)) {
+				properties.setProperty(key.substring(PREFIX.length()), System.getProperty(key));
+			}
+		}
+		return new Simulation(properties);
+	}
+
+	boolean isPropertySequenceable(final String label, final String propName) {
+		return sequenceable.contains(label + ":" + propName);
+	}
+
+	boolean isStageSequenceable(final String label) {
+		return sequenceable.contains(label);
+	}
+
+	private static File locateFile() {
+		try {
+			final File location = new File(Simulation.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			return new File(location.isDirectory() ? location : location.getParentFile(), FILE_NAME);
+		}
+		catch (final URISyntaxException e) {
+			return null;
+		}
+		catch (final SecurityException e) {
+			return null;
+		}
+	}
+
+	private int getInt(final String key, final int defaultValue) {
+		final String value = properties.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	private double getDouble(final String key, final double defaultValue) {
+		final String value = properties.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+}
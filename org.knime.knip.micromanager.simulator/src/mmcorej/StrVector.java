@@ -0,0 +1,42 @@
+package mmcorej;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The simulated counterpart of MMCoreJ's vector of strings.
+ */
+public class StrVector implements Iterable<String> {
+
+	private final List<String> elements = new ArrayList<String>();
+
+	public long size() {
+		return elements.size();
+	}
+
+	public boolean isEmpty() {
+		return elements.isEmpty();
+	}
+
+	public void clear() {
+		elements.clear();
+	}
+
+	public void add(final String element) {
+		elements.add(element);
+	}
+
+	public String get(final int index) {
+		return elements.get(index);
+	}
+
+	public void set(final int index, final String element) {
+		elements.set(index, element);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return elements.iterator();
+	}
+}
@@ -0,0 +1,417 @@
+package org.knime.knip.mm;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import mmcorej.CMMCore;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+
+import org.knime.knip.mm.sim.SimulatorInstaller;
+
+/**
+ * Benchmarks the hot paths of the gateway against the simulated core.
+ * <p>
+ * Measures the cost of dispatching a call to the core (the reflective lookup
+ * that preceded the method handles, the cached {@link Reflection#invoke}, a
+ * bound method handle, the generated
+ * {@link CoreBinding}, and the gateway's hop to the hardware thread, one call
+ * at a time or pipelined), of turning a snapped frame into an {@link ImgPlus},
+ * of copying a frame with and without a {@link FramePool}, and the end-to-end
+ * throughput of a {@link SequenceAcquisition} draining into a
+ * {@link PlanarFrameSink} or a {@link FrameReduction}. Each benchmark runs a number of warm-up
+ * iterations before the measured ones, and reports the time and the bytes
+ * allocated (by all threads) per operation. The whole suite runs in several
+ * fresh JVMs (forks), so that one JVM's compilation decisions do not skew
+ * the results.
+ * </p>
+ * <p>
+ * Usage: <code>AcquisitionBenchmark [key=value...]</code>, where the settings
+ * are those of the simulated core (e.g. <code>width=2048 height=2048
+ * bytesPerPixel=2</code>), plus <code>iterations</code>, <code>frames</code>
+ * and <code>forks</code> (0 to run in this JVM).
+ * </p>
+ */
+public class AcquisitionBenchmark {
+
+	private final static int WARMUP_ITERATIONS = 5;
+
+	private final MMGateway mm;
+	private final CMMCore rawCore = new CMMCore();
+	private final int iterations, frames;
+
+	/** Keeps results alive, so that the JIT cannot eliminate their computation. */
+	private volatile Object sink;
+
+	/** A sample taken by an operation before it tears down its threads. */
+	private Map<Long, Long> checkpointAllocations;
+	private long checkpointTime;
+
+	private AcquisitionBenchmark(final MMGateway mm, final int iterations, final int frames) {
+		this.mm = mm;
+		this.iterations = iterations;
+		this.frames = frames;
+	}
+
+	public static void main(final String... args) throws Exception {
+		final Properties settings = new Properties();
+		// as fast as the consumer allows, unless configured otherwise
+		settings.setProperty("frameRate", "0");
+		for (final String arg : args) {
+			final int equals = arg.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Not a setting: " + arg);
+			}
+			settings.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		final int iterations = Integer.parseInt(settings.getProperty("iterations", "10"));
+		final int frames = Integer.parseInt(settings.getProperty("frames", "1000"));
+		final int forks = Integer.parseInt(settings.getProperty("forks", "3"));
+		settings.remove("iterations");
+		settings.remove("frames");
+		settings.remove("forks");
+
+		if (forks > 0) {
+			fork(forks, args);
+			return;
+		}
+
+		// the simulator's classes may as well be loaded from this class path, so pass the settings directly
+		for (final String key : settings.stringPropertyNames()) {
+			System.setProperty("mmsim." + key, settings.getProperty(key));
+		}
+		final File directory = createTemporaryDirectory();
+		SimulatorInstaller.install(directory, null);
+		final MMGateway mm = MMGateway.createInstance(directory);
+		mm.setExposure(0);
+		new AcquisitionBenchmark(mm, iterations, frames).run();
+	}
+
+	/**
+	 * Runs the benchmarks in fresh JVMs, one after the other.
+	 */
+	private static void fork(final int forks, final String... args) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(AcquisitionBenchmark.class.getName());
+		for (final String arg : args) {
+			if (!arg.startsWith("forks=")) command.add(arg);
+		}
+		command.add("forks=0");
+		for (int i = 1; i <= forks; i++) {
+			System.out.println(String.format("Fork %d of %d", i, forks));
+			final int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+			if (status != 0) {
+				throw new Exception("Fork " + i + " failed with status " + status);
+			}
+			System.out.println();
+		}
+	}
+
+	private void run() throws Exception {
+		System.out.println(String.format("Simulated camera: %dx%d, %d byte(s) per pixel, %d component(s)",
+			mm.getImageWidth(), mm.getImageHeight(), mm.getBytesPerPixel(), mm.getNumberOfComponents()));
+		System.out.println();
+		System.out.println(String.format("%-36s %12s %14s %14s", "Benchmark", "Operations", "ns/op", "bytes/op"));
+
+		final CoreBinding direct = BytecodeBinder.bind(CoreBinding.class, rawCore);
+		final CoreBinding confined = mm.getCore();
+		final MethodHandle handle = Reflection.bind(rawCore, "getImageWidth", long.class);
+		measure("dispatch: reflective lookup", 100000, new Operation() {
+
+			@Override
+			public void run(final int count) throws Exception {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += (Long) lookUpAndInvoke(rawCore, "getImageWidth");
+				}
+				sink = sum;
+			}
+		});
+		measure("dispatch: Reflection.invoke", 1000000, new Operation() {
+
+			@Override
+			public void run(final int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += (Long) Reflection.invoke(rawCore, "getImageWidth");
+				}
+				sink = sum;
+			}
+		});
+		measure("dispatch: bound method handle", 1000000, new Operation() {
+
+			@Override
+			public void run(final int count) throws Throwable {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += (long) handle.invokeExact();
+				}
+				sink = sum;
+			}
+		});
+		measure("dispatch: CoreBinding", 1000000, new Operation() {
+
+			@Override
+			public void run(final int count) throws Exception {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += direct.getImageWidth();
+				}
+				sink = sum;
+			}
+		});
+		measure("dispatch: hardware thread", 100000, new Operation() {
+
+			@Override
+			public void run(final int count) throws Exception {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += confined.getImageWidth();
+				}
+				sink = sum;
+			}
+		});
+		measure("dispatch: hardware thread, pipelined", 100000, new Operation() {
+
+			@Override
+			public void run(final int count) throws Exception {
+				final Callable<Long> command = new Callable<Long>() {
+
+					@Override
+					public Long call() throws Exception {
+						return confined.getImageWidth();
+					}
+				};
+				Future<Long> last = null;
+				for (int i = 0; i < count; i++) {
+					last = mm.async().submit(command);
+				}
+				sink = last.get();
+			}
+		});
+
+		measure("snap to ImgPlus", 100, new Operation() {
+
+			@Override
+			public void run(final int count) {
+				final long width = mm.getImageWidth(), height = mm.getImageHeight();
+				for (int i = 0; i < count; i++) {
+					mm.snapImage();
+					final Object pixels = mm.getImage();
+					sink = toImgPlus(PixelFormat.of(pixels).wrap(pixels, width, height));
+				}
+			}
+		});
+
+		final Object template = mm.getImage();
+		final PixelFormat format = PixelFormat.of(template);
+		final int length = Array.getLength(template);
+		measure("frame copy: new array", 1000, new Operation() {
+
+			@Override
+			public void run(final int count) {
+				for (int i = 0; i < count; i++) {
+					final Object copy = format.newArray(length);
+					System.arraycopy(template, 0, copy, 0, length);
+					sink = copy;
+				}
+			}
+		});
+		final FramePool pool = new FramePool();
+		measure("frame copy: FramePool", 1000, new Operation() {
+
+			@Override
+			public void run(final int count) {
+				for (int i = 0; i < count; i++) {
+					final PooledFrame copy = pool.copyOf(template);
+					sink = copy.getPixels();
+					copy.release();
+				}
+			}
+		});
+
+		measure("sequence to PlanarFrameSink", frames, new Operation() {
+
+			@Override
+			public void run(final int count) throws InterruptedException {
+				final PlanarFrameSink<?, ?> frames =
+					PixelFormat.of(mm).createSink(mm.getImageWidth(), mm.getImageHeight());
+				final SequenceAcquisition acquisition = new SequenceAcquisition(mm);
+				try {
+					// run until enough frames were taken, so the drain thread is still alive at the checkpoint
+					acquisition.start(Integer.MAX_VALUE, 0);
+					for (int i = 0; i < count; i++) {
+						frames.add(acquisition.take());
+					}
+					checkpoint();
+					sink = frames;
+				}
+				finally {
+					acquisition.close();
+				}
+			}
+		});
+		measure("sequence to max projection", frames, new Operation() {
+
+			@Override
+			public void run(final int count) throws InterruptedException {
+				final FrameReduction<?> projection =
+					FrameReduction.max(PixelFormat.of(mm), mm.getImageWidth(), mm.getImageHeight());
+				final SequenceAcquisition acquisition = new SequenceAcquisition(mm);
+				try {
+					acquisition.start(Integer.MAX_VALUE, 0);
+					for (int i = 0; i < count; i++) {
+						projection.add(acquisition.take());
+					}
+					checkpoint();
+					sink = projection;
+				}
+				finally {
+					acquisition.close();
+				}
+			}
+		});
+		System.out.println();
+		System.out.println(mm.getMetrics().getSummary());
+	}
+
+	private void measure(final String name, final int operations, final Operation operation) throws Exception {
+		try {
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				operation.run(operations);
+			}
+			mm.getMetrics().reset();
+			final List<Double> times = new ArrayList<Double>(), allocations = new ArrayList<Double>();
+			for (int i = 0; i < iterations; i++) {
+				checkpointAllocations = null;
+				final Map<Long, Long> allocatedBefore = allocatedBytes();
+				final long start = System.nanoTime();
+				operation.run(operations);
+				long end = System.nanoTime();
+				Map<Long, Long> allocatedAfter = allocatedBytes();
+				if (checkpointAllocations != null) {
+					end = checkpointTime;
+					allocatedAfter = checkpointAllocations;
+				}
+				final long elapsed = end - start;
+				times.add(elapsed / (double) operations);
+				if (allocatedAfter != null) {
+					long allocated = 0;
+					for (final Map.Entry<Long, Long> entry : allocatedAfter.entrySet()) {
+						final Long before = allocatedBefore.get(entry.getKey());
+						allocated += entry.getValue() - (before == null ? 0 : before);
+					}
+					allocations.add(allocated / (double) operations);
+				}
+			}
+			System.out.println(String.format("%-36s %12d %14s %14s", name, operations, format(times),
+				allocations.isEmpty() ? "n/a" : format(allocations)));
+		}
+		catch (final Throwable t) {
+			throw new Exception("Benchmark '" + name + "' failed", t);
+		}
+	}
+
+	/**
+	 * Marks the end of the measured part of an operation.
+	 */
+	private void checkpoint() {
+		checkpointTime = System.nanoTime();
+		checkpointAllocations = allocatedBytes();
+	}
+
+	/**
+	 * Invokes a method the way {@link Reflection#invoke} used to before it
+	 * cached method handles: by searching the class's public methods for a
+	 * matching name and parameter list on every call.
+	 */
+	private static Object lookUpAndInvoke(final Object object, final String methodName, final Object... parameters)
+		throws Exception
+	{
+		for (final Method method : object.getClass().getMethods()) {
+			if (!method.getName().equals(methodName)) continue;
+			final Class<?>[] types = method.getParameterTypes();
+			if (types.length != parameters.length) continue;
+			boolean matches = true;
+			for (int i = 0; matches && i < types.length; i++) {
+				matches = parameters[i] == null || box(types[i]).isInstance(parameters[i]);
+			}
+			if (matches) return method.invoke(object, parameters);
+		}
+		throw new NoSuchMethodException(methodName);
+	}
+
+	private static Class<?> box(final Class<?> type) {
+		if (type == long.class) return Long.class;
+		if (type == int.class) return Integer.class;
+		if (type == boolean.class) return Boolean.class;
+		if (type == double.class) return Double.class;
+		return type;
+	}
+
+	private static <T> ImgPlus<T> toImgPlus(final Img<T> img) {
+		return new ImgPlus<T>(img, "Snap", new AxisType[] { Axes.X, Axes.Y });
+	}
+
+	/** Formats the median and the spread of the measurements. */
+	private static String format(final List<Double> values) {
+		final List<Double> sorted = new ArrayList<Double>(values);
+		Collections.sort(sorted);
+		final double median = sorted.get(sorted.size() / 2);
+		final double spread = sorted.get(sorted.size() - 1) - sorted.get(0);
+		return String.format("%.1f +-%.0f%%", median, median == 0 ? 0 : 50 * spread / median);
+	}
+
+	/**
+	 * Samples the bytes allocated so far by each live thread. Threads that
+	 * finish between two samples are not accounted for, which is why the
+	 * sequence acquisition takes its sample while its threads are alive (see
+	 * {@link #checkpoint()}).
+	 *
+	 * @return the allocated bytes by thread ID, or null if the JVM cannot tell
+	 */
+	private static Map<Long, Long> allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+		final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+		if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) return null;
+		final long[] ids = threads.getAllThreadIds();
+		final long[] bytes = hotspot.getThreadAllocatedBytes(ids);
+		final Map<Long, Long> result = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] >= 0) result.put(ids[i], bytes[i]);
+		}
+		return result;
+	}
+
+	private static File createTemporaryDirectory() throws IOException {
+		final File file = File.createTempFile("mm-simulator", "");
+		if (!file.delete() || !file.mkdir()) {
+			throw new IOException("Could not create " + file);
+		}
+		return file;
+	}
+
+	private interface Operation {
+
+		void run(int count) throws Throwable;
+	}
+}
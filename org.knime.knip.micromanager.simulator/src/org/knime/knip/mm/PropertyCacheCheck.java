@@ -0,0 +1,66 @@
+package org.knime.knip.mm;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.knime.knip.mm.sim.SimulatorInstaller;
+
+/**
+ * Checks that the gateway's property cache follows properties that change as
+ * a side effect of other calls.
+ * <p>
+ * Sets the state of a simulated state device, moves it via its label, sets
+ * the state back, and repeats with a preset, verifying after each step that
+ * the write reached the simulated core rather than being dropped as
+ * redundant.
+ * </p>
+ * <p>
+ * Usage: <code>PropertyCacheCheck</code>; exits with status 1 if a check
+ * fails.
+ * </p>
+ */
+public class PropertyCacheCheck {
+
+	private final static String WHEEL = "Wheel";
+
+	public static void main(final String... args) throws Exception {
+		final File directory = createTemporaryDirectory();
+		SimulatorInstaller.install(directory, null);
+		final MMGateway mm = MMGateway.createInstance(directory);
+		mm.loadDevice(WHEEL, "DemoCamera", "DWheel");
+		mm.initializeDevice(WHEEL);
+		mm.getCore().defineStateLabel(WHEEL, 0, "Closed");
+		mm.getCore().defineStateLabel(WHEEL, 1, "Open");
+		mm.getCore().defineConfig("Filter", "Closed", WHEEL, "State", "0");
+
+		mm.setProperty(WHEEL, "State", 1);
+		check(mm, "1", "Open");
+		mm.setProperty(WHEEL, "Label", "Closed");
+		check(mm, "0", "Closed");
+		mm.setProperty(WHEEL, "State", 1);
+		check(mm, "1", "Open");
+		mm.setConfig("Filter", "Closed");
+		check(mm, "0", "Closed");
+		mm.setProperty(WHEEL, "State", 1);
+		check(mm, "1", "Open");
+		System.out.println("Property cache follows state labels and presets");
+	}
+
+	private static void check(final MMGateway mm, final String state, final String label) throws Exception {
+		final String actualState = mm.getCore().getProperty(WHEEL, "State");
+		final String actualLabel = mm.getCore().getProperty(WHEEL, "Label");
+		if (!state.equals(actualState) || !label.equals(actualLabel)) {
+			System.err.println("Expected state " + state + " (" + label + "), but the core is in state "
+				+ actualState + " (" + actualLabel + ")");
+			System.exit(1);
+		}
+	}
+
+	private static File createTemporaryDirectory() throws IOException {
+		final File file = File.createTempFile("mm-simulator", "");
+		if (!file.delete() || !file.mkdir()) {
+			throw new IOException("Could not create " + file);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,156 @@
+package org.knime.knip.mm.sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import mmcorej.CMMCore;
+
+/**
+ * Installs the simulated core as a fake Micro-Manager installation.
+ * <p>
+ * The classes of the <i>mmcorej</i> package are packaged into
+ * <i>plugins/Micro-Manager/MMCoreJ.jar</i> below the given directory, which
+ * can then be passed to
+ * {@link org.knime.knip.mm.MMGateway#createInstance(File)} in place of a real
+ * Micro-Manager directory. Settings of the simulation are written to a
+ * <i>simulator.properties</i> file next to the jar. The jar's manifest names
+ * the simulator as its <code>Implementation-Title</code>, so that e.g.
+ * {@link org.knime.knip.mm.CoreBindingGenerator} can tell it from a real
+ * MMCoreJ.jar.
+ * </p>
+ * <p>
+ * Usage: <code>SimulatorInstaller &lt;directory&gt; [key=value...]</code>
+ * </p>
+ */
+public class SimulatorInstaller {
+
+	private final static String PACKAGE_PATH = "mmcorej/";
+
+	private final static String JAR_PATH = "plugins/Micro-Manager/MMCoreJ.jar";
+
+	private final static String TITLE = "Micro-Manager simulator";
+
+	/**
+	 * Installs the simulated core.
+	 *
+	 * @param directory the top-level directory of the fake installation
+	 * @param settings the settings of the simulation (see the <i>mmcorej</i>
+	 *          package's Simulation class), or null for the defaults
+	 * @return the directory
+	 * @throws IOException
+	 */
+	public static File install(final File directory, final Properties settings) throws IOException {
+		final File jar = new File(directory, JAR_PATH);
+		final File parent = jar.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create " + parent);
+		}
+		final Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, TITLE);
+		final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+		try {
+			final File source = locateClasses();
+			if (source.isDirectory()) {
+				final File[] files = new File(source, PACKAGE_PATH).listFiles();
+				if (files == null) {
+					throw new IOException("No simulator classes in " + source);
+				}
+				for (final File file : files) {
+					if (!file.getName().endsWith(".class")) continue;
+					final InputStream in = new FileInputStream(file);
+					try {
+						copy(in, out, PACKAGE_PATH + file.getName());
+					}
+					finally {
+						in.close();
+					}
+				}
+			}
+			else {
+				final JarFile sourceJar = new JarFile(source);
+				try {
+					final Enumeration<JarEntry> entries = sourceJar.entries();
+					while (entries.hasMoreElements()) {
+						final JarEntry entry = entries.nextElement();
+						if (!entry.getName().startsWith(PACKAGE_PATH) || entry.isDirectory()) continue;
+						final InputStream in = sourceJar.getInputStream(entry);
+						try {
+							copy(in, out, entry.getName());
+						}
+						finally {
+							in.close();
+						}
+					}
+				}
+				finally {
+					sourceJar.close();
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		final File propertiesFile = new File(parent, "simulator.properties");
+		if (settings != null && !settings.isEmpty()) {
+			final OutputStream propertiesOut = new FileOutputStream(propertiesFile);
+			try {
+				settings.store(propertiesOut, "Settings of the simulated Micro-Manager core");
+			}
+			finally {
+				propertiesOut.close();
+			}
+		}
+		else if (propertiesFile.exists() && !propertiesFile.delete()) {
+			throw new IOException("Could not delete " + propertiesFile);
+		}
+		return directory;
+	}
+
+	public static void main(final String... args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: SimulatorInstaller <directory> [key=value...]");
+			System.exit(1);
+		}
+		final Properties settings = new Properties();
+		for (int i = 1; i < args.length; i++) {
+			final int equals = args[i].indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Not a setting: " + args[i]);
+			}
+			settings.setProperty(args[i].substring(0, equals), args[i].substring(equals + 1));
+		}
+		System.out.println("Installed the simulated core into " + install(new File(args[0]), settings));
+	}
+
+	private static File locateClasses() throws IOException {
+		try {
+			return new File(CMMCore.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		}
+		catch (final URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void copy(final InputStream in, final JarOutputStream out, final String name) throws IOException {
+		out.putNextEntry(new JarEntry(name));
+		final byte[] buffer = new byte[16384];
+		for (int count; (count = in.read(buffer)) > 0;) {
+			out.write(buffer, 0, count);
+		}
+		out.closeEntry();
+	}
+}
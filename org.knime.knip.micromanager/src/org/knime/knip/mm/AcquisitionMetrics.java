@@ -0,0 +1,250 @@
+package org.knime.knip.mm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Formatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the Micro-Manager gateway and its acquisitions.
+ * <p>
+ * Collects the latency of every gateway call (recorded by the generated
+ * {@link CoreBinding}), the frames received and dropped by sequence
+ * acquisitions together with the achieved frame rate, samples of the
+ * circular buffer's occupancy including overflow events, and the gaps left by
+ * pausing the camera. The metrics can be
+ * queried directly, via JMX (as {@value #OBJECT_NAME}), or formatted as a
+ * {@link #getSummary() summary table}.
+ * </p>
+ */
+public class AcquisitionMetrics implements AcquisitionMetricsMXBean {
+
+	/** The name under which the metrics are registered with JMX. */
+	public final static String OBJECT_NAME = "org.knime.knip.mm:type=AcquisitionMetrics";
+
+	private final ConcurrentMap<String, LatencyHistogram> calls =
+		new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+	private final AtomicLong framesReceived = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	private final AtomicLong overflowEvents = new AtomicLong();
+	private final AtomicLong cameraPauses = new AtomicLong();
+	private final AtomicLong pausedNanos = new AtomicLong();
+	private volatile long firstFrame, lastFrame;
+
+	private volatile double occupancy, maxOccupancy;
+	private double occupancySum;
+	private long samples;
+	private boolean overflowed;
+
+	/**
+	 * Gets the latency histogram of a gateway call.
+	 *
+	 * @param name the name of the call
+	 * @return the histogram
+	 */
+	public LatencyHistogram getCallLatency(final String name) {
+		LatencyHistogram histogram = calls.get(name);
+		if (histogram == null) {
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = calls.putIfAbsent(name, created);
+			if (histogram == null) histogram = created;
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the latency histograms of all gateway calls, by name
+	 */
+	public Map<String, LatencyHistogram> getCallLatencies() {
+		return calls;
+	}
+
+	/**
+	 * Counts a frame received from the circular buffer.
+	 *
+	 * @param nanos the time of arrival, as per {@link System#nanoTime()}
+	 */
+	public void frameReceived(final long nanos) {
+		if (framesReceived.getAndIncrement() == 0) {
+			firstFrame = nanos;
+		}
+		lastFrame = nanos;
+	}
+
+	/**
+	 * Counts frames that were acquired but never received.
+	 *
+	 * @param count the number of frames
+	 */
+	public void framesDropped(final long count) {
+		framesDropped.addAndGet(count);
+	}
+
+	/**
+	 * Counts a pause of the camera, which leaves a gap in the frames' timing.
+	 *
+	 * @param nanos how long the camera was paused
+	 */
+	public void cameraPaused(final long nanos) {
+		cameraPauses.incrementAndGet();
+		pausedNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records a sample of the circular buffer's state.
+	 *
+	 * @param remaining the number of frames in the buffer
+	 * @param capacity the capacity of the buffer, in frames
+	 * @param overflowed whether the buffer is overflowed
+	 */
+	public synchronized void sampleBuffer(final int remaining, final int capacity, final boolean overflowed) {
+		final double value = capacity > 0 ? remaining / (double) capacity : 0;
+		occupancy = value;
+		if (value > maxOccupancy) maxOccupancy = value;
+		occupancySum += value;
+		samples++;
+		if (overflowed && !this.overflowed) {
+			overflowEvents.incrementAndGet();
+		}
+		this.overflowed = overflowed;
+	}
+
+	@Override
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	@Override
+	public double getFramesPerSecond() {
+		final long n = framesReceived.get();
+		final long elapsed = lastFrame - firstFrame;
+		return n < 2 || elapsed <= 0 ? 0 : (n - 1) * 1e9 / elapsed;
+	}
+
+	@Override
+	public long getOverflowEvents() {
+		return overflowEvents.get();
+	}
+
+	@Override
+	public long getCameraPauses() {
+		return cameraPauses.get();
+	}
+
+	@Override
+	public double getPausedTime() {
+		return pausedNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getBufferOccupancy() {
+		return occupancy;
+	}
+
+	@Override
+	public synchronized double getMeanBufferOccupancy() {
+		return samples == 0 ? 0 : occupancySum / samples;
+	}
+
+	@Override
+	public double getMaxBufferOccupancy() {
+		return maxOccupancy;
+	}
+
+	@Override
+	public Map<String, Double> getMeanCallLatencies() {
+		final Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (final Map.Entry<String, LatencyHistogram> entry : calls.entrySet()) {
+			if (entry.getValue().getCount() > 0) {
+				result.put(entry.getKey(), entry.getValue().getMean());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String getSummary() {
+		final Formatter out = new Formatter();
+		out.format("%-24s %d%n", "Frames received:", getFramesReceived());
+		out.format("%-24s %d%n", "Frames dropped:", getFramesDropped());
+		out.format("%-24s %.1f%n", "Frames per second:", getFramesPerSecond());
+		out.format("%-24s mean %.1f%%, max %.1f%% (%d samples)%n", "Buffer occupancy:",
+			100 * getMeanBufferOccupancy(), 100 * getMaxBufferOccupancy(), samples);
+		out.format("%-24s %d%n", "Buffer overflows:", getOverflowEvents());
+		out.format("%-24s %d (%.1f ms)%n", "Camera pauses:", getCameraPauses(), getPausedTime());
+		out.format("%n%-36s %8s %10s %10s %10s %10s%n", "Call", "Count", "Mean ms", "p50 ms", "p99 ms", "Max ms");
+		for (final Map.Entry<String, LatencyHistogram> entry : calls.entrySet()) {
+			final LatencyHistogram histogram = entry.getValue();
+			if (histogram.getCount() == 0) continue;
+			out.format("%-36s %8d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), histogram.getCount(),
+				histogram.getMean(), histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax());
+		}
+		return out.toString();
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (final LatencyHistogram histogram : calls.values()) {
+			histogram.reset();
+		}
+		framesReceived.set(0);
+		framesDropped.set(0);
+		overflowEvents.set(0);
+		cameraPauses.set(0);
+		pausedNanos.set(0);
+		firstFrame = lastFrame = 0;
+		occupancy = maxOccupancy = occupancySum = 0;
+		samples = 0;
+		overflowed = false;
+	}
+
+	/**
+	 * Registers these metrics with the platform's MBean server, replacing
+	 * previously registered ones.
+	 * <p>
+	 * The first access to the MBean server is expensive; see
+	 * {@link #registerInBackground()} to keep it off the start-up path.
+	 * </p>
+	 */
+	public void register() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform's MBean server on a background
+	 * thread. A failure is reported to that thread's uncaught exception
+	 * handler; the metrics are still available directly.
+	 */
+	public void registerInBackground() {
+		final Thread thread = new Thread("Register acquisition metrics") {
+
+			@Override
+			public void run() {
+				register();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,39 @@
+package org.knime.knip.mm;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link AcquisitionMetrics}.
+ */
+public interface AcquisitionMetricsMXBean {
+
+	long getFramesReceived();
+
+	long getFramesDropped();
+
+	double getFramesPerSecond();
+
+	long getOverflowEvents();
+
+	long getCameraPauses();
+
+	/**
+	 * @return the total time the camera was paused, in milliseconds
+	 */
+	double getPausedTime();
+
+	double getBufferOccupancy();
+
+	double getMeanBufferOccupancy();
+
+	double getMaxBufferOccupancy();
+
+	/**
+	 * @return the mean latency of each gateway call, in milliseconds
+	 */
+	Map<String, Double> getMeanCallLatencies();
+
+	String getSummary();
+
+	void reset();
+}
@@ -0,0 +1,177 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * The asynchronous view of the {@link MMGateway}.
+ * <p>
+ * Every method enqueues a command for the {@link HardwareExecutor hardware
+ * thread} and returns immediately with a {@link Future} of its result, so the
+ * caller never blocks on device I/O until it actually needs a result.
+ * Commands run in the order in which they were submitted; independent
+ * commands can be pipelined by submitting them back to back and only waiting
+ * for the last one (or none). Each command runs in one piece, without other
+ * callers' calls interleaving: e.g. {@link #snap()} delivers the frame that
+ * this very snap exposed.
+ * </p>
+ * <p>
+ * Typical use:
+ * </p>
+ *
+ * <pre>
+ * final AsyncGateway async = mm.async();
+ * async.setProperties(new PropertyBatch().set(&quot;Laser&quot;, &quot;Power&quot;, 5));
+ * async.setPosition(focus, z);
+ * async.waitForDevice(focus);
+ * final Future&lt;Object[]&gt; frame = async.snap();
+ * // ... do other work while the hardware is busy ...
+ * final Object[] channels = frame.get();
+ * </pre>
+ */
+public class AsyncGateway {
+
+	private final MMGateway mm;
+	private final HardwareExecutor hardware;
+
+	AsyncGateway(final MMGateway mm, final HardwareExecutor hardware) {
+		this.mm = mm;
+		this.hardware = hardware;
+	}
+
+	/**
+	 * Submits an arbitrary command.
+	 * <p>
+	 * The command runs on the hardware thread and may call the gateway (or the
+	 * {@link MMGateway#getCore() core}) directly, as often as it needs to.
+	 * </p>
+	 *
+	 * @param command the command
+	 * @return the future result of the command
+	 */
+	public <T> Future<T> submit(final Callable<T> command) {
+		return hardware.submit(command);
+	}
+
+	public Future<Void> setProperty(final String label, final String propName, final String propValue) {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.setProperty(label, propName, propValue);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> setProperty(final String label, final String propName, final double propValue) {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.setProperty(label, propName, propValue);
+				return null;
+			}
+		});
+	}
+
+	public Future<String> getProperty(final String label, final String propName) {
+		return submit(new Callable<String>() {
+
+			@Override
+			public String call() {
+				return mm.getProperty(label, propName);
+			}
+		});
+	}
+
+	/**
+	 * Applies a batch of property writes, like
+	 * {@link MMGateway#setProperties(PropertyBatch)}.
+	 *
+	 * @param batch the property writes; later changes to the batch do not
+	 *          affect the submitted command
+	 * @return the future number of writes that were sent to the devices
+	 */
+	public Future<Integer> setProperties(final PropertyBatch batch) {
+		final PropertyBatch copy = batch.copy();
+		return submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() {
+				return mm.setProperties(copy);
+			}
+		});
+	}
+
+	public Future<Void> setExposure(final double exposure) {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.setExposure(exposure);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> setPosition(final String stageLabel, final double position) {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.setPosition(stageLabel, position);
+				return null;
+			}
+		});
+	}
+
+	public Future<Double> getPosition(final String stageLabel) {
+		return submit(new Callable<Double>() {
+
+			@Override
+			public Double call() {
+				return mm.getPosition(stageLabel);
+			}
+		});
+	}
+
+	public Future<Void> waitForDevice(final String label) {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.waitForDevice(label);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> waitForSystem() {
+		return submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				mm.waitForSystem();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Snaps an image and reads out all of its channels.
+	 *
+	 * @return the future pixel arrays, one per camera channel (see
+	 *         {@link MMGateway#getImages()})
+	 */
+	public Future<Object[]> snap() {
+		return submit(new Callable<Object[]>() {
+
+			@Override
+			public Object[] call() {
+				mm.snapImage();
+				return mm.getImages();
+			}
+		});
+	}
+}
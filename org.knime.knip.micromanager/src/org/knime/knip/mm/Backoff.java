@@ -0,0 +1,68 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A wait strategy for threads polling for frames.
+ * <p>
+ * Waiting proceeds in three phases: a few busy spins (cheap if the next frame
+ * is imminent), then a few {@link Thread#yield()}s, and finally parking. The
+ * park time follows the frame interval of the camera: it is a fraction of the
+ * current estimate, so that a thread waiting for the next frame wakes up a few
+ * times per frame instead of burning a core.
+ * </p>
+ */
+public class Backoff {
+
+	private final static int SPINS = 64;
+	private final static int YIELDS = 8;
+
+	private final static long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+	private final static long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** The number of parks per frame interval. */
+	private final static int PARKS_PER_FRAME = 4;
+
+	private volatile long parkNanos;
+
+	/**
+	 * Constructs a wait strategy.
+	 *
+	 * @param frameIntervalMs the expected frame interval in milliseconds
+	 */
+	public Backoff(final double frameIntervalMs) {
+		setFrameInterval(frameIntervalMs);
+	}
+
+	/**
+	 * Adapts the park time to a (new estimate of the) frame interval.
+	 *
+	 * @param frameIntervalMs the frame interval in milliseconds
+	 */
+	public void setFrameInterval(final double frameIntervalMs) {
+		final long nanos = (long) (frameIntervalMs * 1e6) / PARKS_PER_FRAME;
+		parkNanos = Math.max(MIN_PARK_NANOS, Math.min(MAX_PARK_NANOS, nanos));
+	}
+
+	/**
+	 * Waits a little.
+	 *
+	 * @param attempt the number of unsuccessful attempts so far
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public void idle(final int attempt) throws InterruptedException {
+		if (attempt < SPINS) {
+			return;
+		}
+		if (attempt < SPINS + YIELDS) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(this, parkNanos);
+		}
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+}
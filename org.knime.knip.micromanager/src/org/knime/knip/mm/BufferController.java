@@ -0,0 +1,206 @@
+package org.knime.knip.mm;
+
+/**
+ * Sizes Micro-Manager's circular buffer for a sequence acquisition and keeps
+ * it from overflowing while the sequence runs.
+ * <p>
+ * Before a {@link SequenceAcquisition} starts, the buffer is sized to hold
+ * the frames that pile up while the consumer is slower than the camera, plus
+ * a margin for the consumer's hiccups, but never more than the whole sequence
+ * or the configured maximum. The consumer's throughput, and the camera's frame
+ * rate when it runs as fast as it can, are measured by the acquisitions the
+ * controller is attached to, so every run sizes the buffer for the next one
+ * more accurately.
+ * </p>
+ * <p>
+ * While the sequence runs, the controller reacts to the buffer filling up:
+ * above half full, {@link #shouldShed()} tells the consumer to skip optional
+ * processing until the buffer is down to a quarter. Frames that are lost
+ * anyway are reported by {@link SequenceAcquisition#getFramesDropped()}.
+ * Optionally, the acquisition {@link #pauseWhenFull(boolean) pauses} the
+ * camera when the buffer is about to overflow, until the buffer is drained;
+ * this loses time instead of frames, and each pause leaves a gap in the frame
+ * timing that is reported by {@link AcquisitionMetrics#getCameraPauses()}.
+ * </p>
+ */
+public class BufferController {
+
+	/** The buffer occupancy above which optional processing is shed. */
+	private final static double SHED_ABOVE = 0.5;
+
+	/** The buffer occupancy below which optional processing is resumed. */
+	private final static double SHED_BELOW = 0.25;
+
+	/** The buffer occupancy above which the camera is paused. */
+	private final static double PAUSE_ABOVE = 0.9;
+
+	/** The weight of a new processing time measurement in the running estimate. */
+	private final static double SMOOTHING = 0.125;
+
+	private final static double MB = 1024 * 1024;
+
+	private final MMGateway mm;
+	private long maxMemoryMB = 4096;
+	private double marginMs = 2000;
+	private boolean pauseWhenFull;
+	private boolean measureDrainRate = true;
+	private volatile double processingMs = Double.NaN, frameIntervalMs = Double.NaN;
+	private volatile boolean shedding;
+	private long plannedFrames;
+
+	/**
+	 * Constructs a controller.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public BufferController(final MMGateway mm) {
+		this.mm = mm;
+	}
+
+	/**
+	 * Sets the largest buffer to allocate.
+	 *
+	 * @param maxMemoryMB the maximal size of the buffer, in megabytes
+	 * @return this controller
+	 */
+	public BufferController maxMemory(final long maxMemoryMB) {
+		this.maxMemoryMB = Math.max(1, maxMemoryMB);
+		return this;
+	}
+
+	/**
+	 * Sets the margin for the consumer's hiccups.
+	 *
+	 * @param marginMs how long the consumer may stall without frames being lost
+	 * @return this controller
+	 */
+	public BufferController margin(final double marginMs) {
+		this.marginMs = Math.max(0, marginMs);
+		return this;
+	}
+
+	/**
+	 * Sets the consumer's throughput, instead of measuring it.
+	 *
+	 * @param framesPerSecond the number of frames the consumer processes per
+	 *          second
+	 * @return this controller
+	 */
+	public BufferController drainRate(final double framesPerSecond) {
+		processingMs = 1000 / framesPerSecond;
+		measureDrainRate = false;
+		return this;
+	}
+
+	/**
+	 * Sets whether to pause the camera when the buffer is about to overflow;
+	 * off by default. Pausing is only possible for a single camera and a fixed
+	 * number of frames; otherwise, frames are dropped and reported. A paused
+	 * sequence is restarted for the remaining frames, so the frames before and
+	 * after the pause are not evenly spaced in time.
+	 *
+	 * @param pauseWhenFull whether to pause rather than drop frames
+	 * @return this controller
+	 */
+	public BufferController pauseWhenFull(final boolean pauseWhenFull) {
+		this.pauseWhenFull = pauseWhenFull;
+		return this;
+	}
+
+	/**
+	 * Sizes the circular buffer for a sequence.
+	 *
+	 * @param numImages the number of frames per camera, or
+	 *          {@link Integer#MAX_VALUE} for a sequence without end
+	 * @param intervalMs the interval between frames, or 0 to acquire as fast as
+	 *          possible
+	 * @param cameras the number of cameras acquired in parallel
+	 * @return the size of the buffer, in megabytes
+	 */
+	public long size(final int numImages, final double intervalMs, final int cameras) {
+		final long streams = (long) Math.max(1, cameras) * mm.getNumberOfCameraChannels();
+		final double frameBytes = (double) mm.getImageWidth() * mm.getImageHeight() * mm.getBytesPerPixel();
+		double frameIntervalMs = Math.max(intervalMs, mm.getExposure());
+		if (!(frameIntervalMs > 0)) {
+			// as fast as possible: as fast as last time
+			frameIntervalMs = this.frameIntervalMs;
+		}
+		final double total = numImages == Integer.MAX_VALUE ? Double.POSITIVE_INFINITY : numImages;
+
+		double frames;
+		if (!(frameIntervalMs > 0)) {
+			// no telling how fast the camera is
+			frames = total;
+		}
+		else {
+			frames = Math.ceil(marginMs / frameIntervalMs);
+			final double processingMs = this.processingMs;
+			if (processingMs > frameIntervalMs) {
+				// the frames the consumer falls behind by over the whole sequence
+				frames += total * (1 - frameIntervalMs / processingMs);
+			}
+			frames = Math.min(frames, total);
+		}
+		final long sizeMB = (long) Math.max(1, Math.min(maxMemoryMB, Math.ceil(frames * streams * frameBytes / MB)));
+		plannedFrames = (long) (sizeMB * MB / frameBytes);
+		if (mm.getCircularBufferMemoryFootprint() != sizeMB) {
+			mm.setCircularBufferMemoryFootprint(sizeMB);
+		}
+		shedding = false;
+		return sizeMB;
+	}
+
+	/**
+	 * @return the number of frames the buffer was last sized for
+	 */
+	public long getPlannedFrames() {
+		return plannedFrames;
+	}
+
+	/**
+	 * Tells the consumer whether to skip optional processing, such as display
+	 * or on-the-fly analysis, so that the buffer drains.
+	 *
+	 * @return whether to skip optional processing
+	 */
+	public boolean shouldShed() {
+		return shedding;
+	}
+
+	/**
+	 * @return the measured or given throughput of the consumer, in frames per
+	 *         second, or {@link Double#NaN} if unknown
+	 */
+	public double getDrainRate() {
+		return 1000 / processingMs;
+	}
+
+	/**
+	 * Records a sample of the buffer's occupancy.
+	 *
+	 * @return whether the camera should be paused
+	 */
+	boolean sample(final int remaining, final int capacity) {
+		final double occupancy = capacity > 0 ? remaining / (double) capacity : 0;
+		if (occupancy > SHED_ABOVE) shedding = true;
+		else if (occupancy < SHED_BELOW) shedding = false;
+		return pauseWhenFull && occupancy > PAUSE_ABOVE;
+	}
+
+	/**
+	 * Records the frame interval a finished sequence achieved.
+	 */
+	void acquired(final double frameIntervalMs) {
+		this.frameIntervalMs = frameIntervalMs;
+	}
+
+	/**
+	 * Records the time the consumer spent on a frame.
+	 */
+	void processed(final long nanos) {
+		if (!measureDrainRate) return;
+		final double ms = nanos / 1e6;
+		final double estimate = processingMs;
+		processingMs = Double.isNaN(estimate) ? ms : estimate + SMOOTHING * (ms - estimate);
+	}
+}
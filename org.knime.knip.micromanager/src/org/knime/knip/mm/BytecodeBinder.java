@@ -0,0 +1,969 @@
+package org.knime.knip.mm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implements an interface by generating a class that calls straight into a
+ * class loaded by a different class loader.
+ * <p>
+ * The CMMCore class lives in a {@link java.net.URLClassLoader} of its own, so
+ * we cannot compile against it. Instead of going through reflection for every
+ * call, this class writes the bytecode of an implementation of a given
+ * interface (such as {@link CoreBinding}) whose methods consist of nothing but
+ * a field access, the argument loads (plus casts where the interface uses
+ * {@link Object} for a type only the core's class loader knows) and an
+ * <i>invokevirtual</i> of the target method. The JIT treats these calls like
+ * any other direct call.
+ * </p>
+ * <p>
+ * Optionally, every call is timed into a {@link LatencyHistogram} per method
+ * name (see {@link AcquisitionMetrics}); the two {@link System#nanoTime()}
+ * calls are all that is added.
+ * </p>
+ * <p>
+ * The same technique {@link #confine(Class, Object, HardwareExecutor)
+ * confines} an implementation of an interface to a {@link HardwareExecutor}.
+ * </p>
+ * <p>
+ * The generated methods contain no branches; only the exception handlers of
+ * confined methods need a stack map frame, so that the class file writer can
+ * be kept minimal.
+ * </p>
+ */
+class BytecodeBinder {
+
+	private final static int ACC_PUBLIC = 0x0001;
+	private final static int ACC_PRIVATE = 0x0002;
+	private final static int ACC_FINAL = 0x0010;
+	private final static int ACC_SUPER = 0x0020;
+
+	private final static int CONSTANT_Utf8 = 1;
+	private final static int CONSTANT_String = 8;
+	private final static int CONSTANT_Class = 7;
+	private final static int CONSTANT_Fieldref = 9;
+	private final static int CONSTANT_Methodref = 10;
+	private final static int CONSTANT_InterfaceMethodref = 11;
+	private final static int CONSTANT_NameAndType = 12;
+
+	private final static int ALOAD_0 = 0x2a;
+	private final static int ALOAD_1 = 0x2b;
+	private final static int ALOAD_2 = 0x2c;
+	private final static int ALOAD_3 = 0x2d;
+	private final static int ASTORE = 0x3a;
+	private final static int ALOAD = 0x19;
+	private final static int AALOAD = 0x32;
+	private final static int SIPUSH = 0x11;
+	private final static int LLOAD = 0x16;
+	private final static int LSTORE = 0x37;
+	private final static int WIDE = 0xc4;
+	private final static int INVOKESTATIC = 0xb8;
+	private final static int DUP = 0x59;
+	private final static int NEW = 0xbb;
+	private final static int LDC_W = 0x13;
+	private final static int CHECKCAST = 0xc0;
+	private final static int GETFIELD = 0xb4;
+	private final static int PUTFIELD = 0xb5;
+	private final static int INVOKEVIRTUAL = 0xb6;
+	private final static int INVOKESPECIAL = 0xb7;
+	private final static int INVOKEINTERFACE = 0xb9;
+	private final static int ATHROW = 0xbf;
+	private final static int RETURN = 0xb1;
+
+	private final static int ITEM_Integer = 1;
+	private final static int ITEM_Float = 2;
+	private final static int ITEM_Double = 3;
+	private final static int ITEM_Long = 4;
+	private final static int ITEM_Object = 7;
+	private final static int FULL_FRAME = 255;
+
+	private final static String CORE_FIELD = "core";
+	private final static String GUARD_FIELD = "guard";
+	private final static String GUARD_CLASS = internalName(HardwareExecutor.class.getName());
+	private final static String WRITTEN_FIELD = "written";
+	private final static String WRITTEN_DESCRIPTOR = "Ljava/lang/Runnable;";
+	private final static String CREATE_METHOD = "create";
+	private final static String LATENCIES_FIELD = "latencies";
+	private final static String LATENCIES_DESCRIPTOR = "[L" +
+		internalName(LatencyHistogram.class.getName()) + ";";
+
+	/**
+	 * Binds an object to an interface.
+	 * <p>
+	 * Every interface method is mapped to the public method of the object's
+	 * class with the same name and matching parameter types ({@link Object} in
+	 * the interface matches any reference type). Interface methods without a
+	 * counterpart throw an {@link UnsupportedOperationException} when called,
+	 * so that an interface generated from a newer Micro-Manager can still be
+	 * bound to an older one.
+	 * </p>
+	 *
+	 * @param iface the interface to implement
+	 * @param object the object to call into
+	 * @return the implementation
+	 */
+	public static <T> T bind(final Class<T> iface, final Object object) {
+		return bind(iface, object, null);
+	}
+
+	/**
+	 * Binds an object to an interface, timing every call.
+	 *
+	 * @param iface the interface to implement
+	 * @param object the object to call into
+	 * @param metrics the metrics to record the call latencies into, or null
+	 * @return the implementation
+	 * @see #bind(Class, Object)
+	 */
+	public static <T> T bind(final Class<T> iface, final Object object, final AcquisitionMetrics metrics) {
+		final Class<?> target = object.getClass();
+		final String className = iface.getName() + (metrics == null ? "$Bound" : "$Timed");
+		final BytecodeBinder binder = new BytecodeBinder(className, iface, target, metrics != null);
+		final byte[] bytecode;
+		try {
+			bytecode = binder.generate();
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final BindingLoader loader =
+			new BindingLoader(iface.getClassLoader(), target);
+		try {
+			final Class<?> clazz = loader.define(className, bytecode);
+			if (metrics == null) {
+				return iface.cast(clazz.getConstructor(Object.class).newInstance(object));
+			}
+			// indexed like the generated methods, which index into the histograms
+			final LatencyHistogram[] latencies = new LatencyHistogram[binder.ifaceMethods.size()];
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = metrics.getCallLatency(binder.ifaceMethods.get(i).getName());
+			}
+			return iface.cast(clazz.getConstructor(Object.class, LatencyHistogram[].class)
+				.newInstance(object, latencies));
+		}
+		catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Confines an implementation of an interface to a hardware executor.
+	 * <p>
+	 * The generated class calls {@link HardwareExecutor#enter()}, the target's
+	 * method (via <i>invokeinterface</i>, without boxing the arguments) and
+	 * {@link HardwareExecutor#exit()}, also when the target throws. The calls
+	 * therefore run on the calling thread, one at a time and after the
+	 * commands queued before them, without handing the call itself to another
+	 * thread.
+	 * </p>
+	 *
+	 * @param iface the interface to implement
+	 * @param target the implementation to confine
+	 * @param executor the executor to confine it to
+	 * @return the confined implementation
+	 */
+	public static <T> T confine(final Class<T> iface, final T target, final HardwareExecutor executor) {
+		return confine(iface, target, executor, null);
+	}
+
+	/**
+	 * Confines an implementation of an interface to a hardware executor,
+	 * notifying about calls that may change the hardware's state.
+	 * <p>
+	 * Before every call of a method whose name does not start with
+	 * <code>get</code>, <code>is</code> or <code>has</code>, the generated
+	 * class runs the given hook, while holding the executor's lock. This lets
+	 * a cache of hardware state be invalidated before the state can change.
+	 * </p>
+	 *
+	 * @param iface the interface to implement
+	 * @param target the implementation to confine
+	 * @param executor the executor to confine it to
+	 * @param written the hook to run before calls that may write, or null
+	 * @return the confined implementation
+	 * @see #confine(Class, Object, HardwareExecutor)
+	 */
+	public static <T> T confine(final Class<T> iface, final T target, final HardwareExecutor executor,
+		final Runnable written)
+	{
+		final String className = iface.getName() + (written == null ? "$Confined" : "$ConfinedWrites");
+		final byte[] bytecode;
+		try {
+			bytecode = new BytecodeBinder(className, iface, iface, false).generateConfined(written != null);
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final BindingLoader loader = new BindingLoader(iface.getClassLoader(), iface);
+		try {
+			final Class<?> clazz = loader.define(className, bytecode);
+			if (written == null) {
+				return iface.cast(clazz.getConstructor(iface, HardwareExecutor.class).newInstance(target, executor));
+			}
+			return iface.cast(clazz.getConstructor(iface, HardwareExecutor.class, Runnable.class)
+				.newInstance(target, executor, written));
+		}
+		catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Binds the instance methods of a class to an interface whose methods take
+	 * the receiver as their first parameter.
+	 * <p>
+	 * This makes classes usable that, like MMCoreJ's vectors, are only known
+	 * to the core's class loader: an interface method
+	 * <code>void add(Object vector, String value)</code> calls
+	 * <code>add(String)</code> on the given vector, and an interface method
+	 * <code>Object create()</code> constructs a new instance. Methods are
+	 * matched like in {@link #bind(Class, Object)}.
+	 * </p>
+	 *
+	 * @param iface the interface to implement
+	 * @param target the class to call into
+	 * @return the implementation
+	 */
+	public static <T> T bindMembers(final Class<T> iface, final Class<?> target) {
+		final String className = iface.getName() + "$Members";
+		final byte[] bytecode;
+		try {
+			bytecode = new BytecodeBinder(className, iface, target, false).generateMembers();
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final BindingLoader loader = new BindingLoader(iface.getClassLoader(), target);
+		try {
+			return iface.cast(loader.define(className, bytecode).getConstructor().newInstance());
+		}
+		catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private final String className;
+	private final Class<?> iface;
+	private final Class<?> target;
+	private final boolean timed;
+	/** The interface's instance methods, in the order in which they are implemented. */
+	private final List<Method> ifaceMethods = new ArrayList<Method>();
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> constants = new HashMap<String, Integer>();
+	private int constantCount = 1;
+	private int codeName;
+
+	private BytecodeBinder(final String className, final Class<?> iface,
+		final Class<?> target, final boolean timed)
+	{
+		this.className = className;
+		this.iface = iface;
+		this.target = target;
+		this.timed = timed;
+		// getMethods() does not guarantee any order, so it is only called once
+		for (final Method method : iface.getMethods()) {
+			if ((method.getModifiers() & Modifier.STATIC) == 0) ifaceMethods.add(method);
+		}
+	}
+
+	private byte[] generate() throws IOException {
+		final String thisClass = internalName(className);
+		final String targetClass = internalName(target.getName());
+		final String targetDescriptor = "L" + targetClass + ";";
+		codeName = utf8("Code");
+
+		final List<byte[]> methods = new ArrayList<byte[]>();
+		methods.add(constructor(thisClass, targetClass, targetDescriptor));
+		int index = 0;
+		for (final Method method : ifaceMethods) {
+			final Method found = findTarget(method);
+			methods.add(found == null ? unsupported(method) :
+				delegate(method, found, index, thisClass, targetClass, targetDescriptor));
+			index++;
+		}
+
+		final List<String[]> fields = new ArrayList<String[]>();
+		fields.add(new String[] { CORE_FIELD, targetDescriptor });
+		if (timed) {
+			fields.add(new String[] { LATENCIES_FIELD, LATENCIES_DESCRIPTOR });
+		}
+		return classFile(thisClass, fields, methods);
+	}
+
+	private byte[] generateConfined(final boolean hooked) throws IOException {
+		final String thisClass = internalName(className);
+		final String ifaceClass = internalName(iface.getName());
+		final String ifaceDescriptor = "L" + ifaceClass + ";";
+		final String guardDescriptor = "L" + GUARD_CLASS + ";";
+		codeName = utf8("Code");
+
+		final List<byte[]> methods = new ArrayList<byte[]>();
+		methods.add(confinedConstructor(thisClass, ifaceDescriptor, guardDescriptor, hooked));
+		for (final Method method : ifaceMethods) {
+			methods.add(confined(method, thisClass, ifaceClass, ifaceDescriptor, guardDescriptor,
+				hooked && mayWrite(method)));
+		}
+
+		final List<String[]> fields = new ArrayList<String[]>();
+		fields.add(new String[] { CORE_FIELD, ifaceDescriptor });
+		fields.add(new String[] { GUARD_FIELD, guardDescriptor });
+		if (hooked) {
+			fields.add(new String[] { WRITTEN_FIELD, WRITTEN_DESCRIPTOR });
+		}
+		return classFile(thisClass, fields, methods);
+	}
+
+	private byte[] generateMembers() throws IOException {
+		final String thisClass = internalName(className);
+		final String targetClass = internalName(target.getName());
+		codeName = utf8("Code");
+
+		final List<byte[]> methods = new ArrayList<byte[]>();
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(methodConstant("java/lang/Object", "<init>", "()V"));
+		out.writeByte(RETURN);
+		out.close();
+		methods.add(method("<init>", "()V", 1, 1, code.toByteArray()));
+		for (final Method method : ifaceMethods) {
+			final Class<?>[] types = method.getParameterTypes();
+			if (method.getName().equals(CREATE_METHOD) && types.length == 0) {
+				methods.add(hasDefaultConstructor() ? creator(method, targetClass) : unsupported(method));
+				continue;
+			}
+			final Method found = types.length == 0 || types[0] != Object.class ? null :
+				findTarget(method.getName(), Arrays.copyOfRange(types, 1, types.length), method.getReturnType());
+			methods.add(found == null ? unsupported(method) : member(method, found, targetClass));
+		}
+		return classFile(thisClass, new ArrayList<String[]>(), methods);
+	}
+
+	/**
+	 * Writes the class file of an implementation of the interface.
+	 *
+	 * @param fields the name and descriptor of each private final field
+	 */
+	private byte[] classFile(final String thisClass, final List<String[]> fields,
+		final List<byte[]> methods) throws IOException
+	{
+		final int thisIndex = classConstant(thisClass);
+		final int superIndex = classConstant("java/lang/Object");
+		final int ifaceIndex = classConstant(internalName(iface.getName()));
+		final int[] fieldIndices = new int[2 * fields.size()];
+		for (int i = 0; i < fields.size(); i++) {
+			fieldIndices[2 * i] = utf8(fields.get(i)[0]);
+			fieldIndices[2 * i + 1] = utf8(fields.get(i)[1]);
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0); // minor version
+		out.writeShort(50); // Java 6
+		out.writeShort(constantCount);
+		pool.flush();
+		poolBytes.writeTo(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisIndex);
+		out.writeShort(superIndex);
+		out.writeShort(1);
+		out.writeShort(ifaceIndex);
+		// fields
+		out.writeShort(fields.size());
+		for (int i = 0; i < fields.size(); i++) {
+			out.writeShort(ACC_PRIVATE | ACC_FINAL);
+			out.writeShort(fieldIndices[2 * i]);
+			out.writeShort(fieldIndices[2 * i + 1]);
+			out.writeShort(0);
+		}
+		// methods
+		out.writeShort(methods.size());
+		for (final byte[] method : methods) {
+			out.write(method);
+		}
+		// attributes
+		out.writeShort(0);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Generates <code>return new Target();</code>.
+	 */
+	private byte[] creator(final Method method, final String targetClass) throws IOException {
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(NEW);
+		out.writeShort(classConstant(targetClass));
+		out.writeByte(DUP);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(methodConstant(targetClass, "<init>", "()V"));
+		out.writeByte(returnOpcode(method.getReturnType()));
+		out.close();
+		return method(method.getName(), descriptor(method.getReturnType(), new Class<?>[0]), 2, 1,
+			code.toByteArray());
+	}
+
+	/**
+	 * Generates <code>return ((Target) receiver).m(args);</code>.
+	 */
+	private byte[] member(final Method method, final Method found, final String targetClass) throws IOException {
+		final Class<?>[] types = method.getParameterTypes();
+		final Class<?>[] targetTypes = found.getParameterTypes();
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(ALOAD_1);
+		out.writeByte(CHECKCAST);
+		out.writeShort(classConstant(targetClass));
+		int slot = 2;
+		for (int i = 1; i < types.length; i++) {
+			writeLocal(out, loadOpcode(types[i]), slot);
+			slot += slotSize(types[i]);
+			if (types[i] != targetTypes[i - 1]) {
+				out.writeByte(CHECKCAST);
+				out.writeShort(classConstant(classConstantName(targetTypes[i - 1])));
+			}
+		}
+		out.writeByte(INVOKEVIRTUAL);
+		out.writeShort(methodConstant(targetClass, found.getName(),
+			descriptor(found.getReturnType(), targetTypes)));
+		final Class<?> returnType = method.getReturnType();
+		if (returnType != found.getReturnType() && returnType != Object.class) {
+			out.writeByte(CHECKCAST);
+			out.writeShort(classConstant(classConstantName(returnType)));
+		}
+		out.writeByte(returnOpcode(returnType));
+		out.close();
+		final int maxStack = Math.max(slot - 1, slotSize(returnType));
+		return method(method.getName(), descriptor(returnType, types), maxStack, slot, code.toByteArray());
+	}
+
+	private boolean hasDefaultConstructor() {
+		try {
+			return Modifier.isPublic(target.getConstructor().getModifiers());
+		}
+		catch (final NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private byte[] confinedConstructor(final String thisClass, final String ifaceDescriptor,
+		final String guardDescriptor, final boolean hooked) throws IOException
+	{
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(methodConstant("java/lang/Object", "<init>", "()V"));
+		out.writeByte(ALOAD_0);
+		out.writeByte(ALOAD_1);
+		out.writeByte(PUTFIELD);
+		out.writeShort(fieldConstant(thisClass, CORE_FIELD, ifaceDescriptor));
+		out.writeByte(ALOAD_0);
+		out.writeByte(ALOAD_2);
+		out.writeByte(PUTFIELD);
+		out.writeShort(fieldConstant(thisClass, GUARD_FIELD, guardDescriptor));
+		if (hooked) {
+			out.writeByte(ALOAD_0);
+			out.writeByte(ALOAD_3);
+			out.writeByte(PUTFIELD);
+			out.writeShort(fieldConstant(thisClass, WRITTEN_FIELD, WRITTEN_DESCRIPTOR));
+			out.writeByte(RETURN);
+			out.close();
+			return method("<init>", "(" + ifaceDescriptor + guardDescriptor + WRITTEN_DESCRIPTOR + ")V", 2, 4,
+				code.toByteArray());
+		}
+		out.writeByte(RETURN);
+		out.close();
+		return method("<init>", "(" + ifaceDescriptor + guardDescriptor + ")V", 2, 3, code.toByteArray());
+	}
+
+	/**
+	 * Generates <code>guard.enter(); try { return core.m(args); } finally {
+	 * guard.exit(); }</code>, with a <code>written.run();</code> before the
+	 * call if requested.
+	 */
+	private byte[] confined(final Method method, final String thisClass, final String ifaceClass,
+		final String ifaceDescriptor, final String guardDescriptor, final boolean hook) throws IOException
+	{
+		final Class<?>[] types = method.getParameterTypes();
+		final Class<?> returnType = method.getReturnType();
+		final String descriptor = descriptor(returnType, types);
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		callGuard(out, thisClass, guardDescriptor, "enter");
+		final int start = code.size();
+		if (hook) {
+			out.writeByte(ALOAD_0);
+			out.writeByte(GETFIELD);
+			out.writeShort(fieldConstant(thisClass, WRITTEN_FIELD, WRITTEN_DESCRIPTOR));
+			out.writeByte(INVOKEINTERFACE);
+			out.writeShort(interfaceMethodConstant("java/lang/Runnable", "run", "()V"));
+			out.writeByte(1);
+			out.writeByte(0);
+		}
+		out.writeByte(ALOAD_0);
+		out.writeByte(GETFIELD);
+		out.writeShort(fieldConstant(thisClass, CORE_FIELD, ifaceDescriptor));
+		int slot = 1;
+		for (final Class<?> type : types) {
+			writeLocal(out, loadOpcode(type), slot);
+			slot += slotSize(type);
+		}
+		out.writeByte(INVOKEINTERFACE);
+		out.writeShort(interfaceMethodConstant(ifaceClass, method.getName(), descriptor));
+		out.writeByte(slot);
+		out.writeByte(0);
+		final int resultSlot = slot;
+		if (returnType != Void.TYPE) {
+			writeLocal(out, storeOpcode(returnType), resultSlot);
+		}
+		final int end = code.size();
+		callGuard(out, thisClass, guardDescriptor, "exit");
+		if (returnType != Void.TYPE) {
+			writeLocal(out, loadOpcode(returnType), resultSlot);
+		}
+		out.writeByte(returnOpcode(returnType));
+
+		// the handler releases the guard and rethrows
+		final int handler = code.size();
+		final int exceptionSlot = resultSlot + slotSize(returnType);
+		writeLocal(out, ASTORE, exceptionSlot);
+		callGuard(out, thisClass, guardDescriptor, "exit");
+		writeLocal(out, ALOAD, exceptionSlot);
+		out.writeByte(ATHROW);
+		out.close();
+
+		final ByteArrayOutputStream table = new ByteArrayOutputStream();
+		final DataOutputStream exceptions = new DataOutputStream(table);
+		exceptions.writeShort(1);
+		exceptions.writeShort(start);
+		exceptions.writeShort(end);
+		exceptions.writeShort(handler);
+		exceptions.writeShort(0); // any
+		exceptions.close();
+
+		// the handler is only reached by throwing, so it needs a stack map frame
+		final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		final DataOutputStream frame = new DataOutputStream(frames);
+		frame.writeShort(1);
+		frame.writeByte(FULL_FRAME);
+		frame.writeShort(handler);
+		frame.writeShort(1 + types.length);
+		frame.writeByte(ITEM_Object);
+		frame.writeShort(classConstant(thisClass));
+		for (final Class<?> type : types) {
+			writeVerificationType(frame, type);
+		}
+		frame.writeShort(1);
+		frame.writeByte(ITEM_Object);
+		frame.writeShort(classConstant("java/lang/Throwable"));
+		frame.close();
+
+		final int maxStack = Math.max(slot, Math.max(slotSize(returnType), 1));
+		return method(method.getName(), descriptor, maxStack, exceptionSlot + 1, code.toByteArray(),
+			table.toByteArray(), frames.toByteArray());
+	}
+
+	/**
+	 * Determines whether a method may change the state of the hardware, judging
+	 * by its name.
+	 */
+	private static boolean mayWrite(final Method method) {
+		final String name = method.getName();
+		return !name.startsWith("get") && !name.startsWith("is") && !name.startsWith("has");
+	}
+
+	private void callGuard(final DataOutputStream out, final String thisClass, final String guardDescriptor,
+		final String name) throws IOException
+	{
+		out.writeByte(ALOAD_0);
+		out.writeByte(GETFIELD);
+		out.writeShort(fieldConstant(thisClass, GUARD_FIELD, guardDescriptor));
+		out.writeByte(INVOKEVIRTUAL);
+		out.writeShort(methodConstant(GUARD_CLASS, name, "()V"));
+	}
+
+	private void writeVerificationType(final DataOutputStream out, final Class<?> type) throws IOException {
+		if (type == Long.TYPE) out.writeByte(ITEM_Long);
+		else if (type == Double.TYPE) out.writeByte(ITEM_Double);
+		else if (type == Float.TYPE) out.writeByte(ITEM_Float);
+		else if (type.isPrimitive()) out.writeByte(ITEM_Integer);
+		else {
+			out.writeByte(ITEM_Object);
+			out.writeShort(classConstant(classConstantName(type)));
+		}
+	}
+
+	private byte[] constructor(final String thisClass, final String targetClass,
+		final String targetDescriptor) throws IOException
+	{
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(methodConstant("java/lang/Object", "<init>", "()V"));
+		out.writeByte(ALOAD_0);
+		out.writeByte(ALOAD_1);
+		out.writeByte(CHECKCAST);
+		out.writeShort(classConstant(targetClass));
+		out.writeByte(PUTFIELD);
+		out.writeShort(fieldConstant(thisClass, CORE_FIELD, targetDescriptor));
+		if (timed) {
+			out.writeByte(ALOAD_0);
+			out.writeByte(ALOAD_2);
+			out.writeByte(PUTFIELD);
+			out.writeShort(fieldConstant(thisClass, LATENCIES_FIELD, LATENCIES_DESCRIPTOR));
+			out.writeByte(RETURN);
+			out.close();
+			return method("<init>", "(Ljava/lang/Object;" + LATENCIES_DESCRIPTOR + ")V", 2, 3,
+				code.toByteArray());
+		}
+		out.writeByte(RETURN);
+		out.close();
+		return method("<init>", "(Ljava/lang/Object;)V", 2, 2, code.toByteArray());
+	}
+
+	private byte[] delegate(final Method method, final Method found, final int index,
+		final String thisClass, final String targetClass,
+		final String targetDescriptor) throws IOException
+	{
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		int startSlot = 1;
+		for (final Class<?> type : method.getParameterTypes()) {
+			startSlot += slotSize(type);
+		}
+		if (timed) {
+			out.writeByte(INVOKESTATIC);
+			out.writeShort(methodConstant("java/lang/System", "nanoTime", "()J"));
+			writeLocal(out, LSTORE, startSlot);
+		}
+		out.writeByte(ALOAD_0);
+		out.writeByte(GETFIELD);
+		out.writeShort(fieldConstant(thisClass, CORE_FIELD, targetDescriptor));
+		final Class<?>[] types = method.getParameterTypes();
+		final Class<?>[] targetTypes = found.getParameterTypes();
+		int slot = 1;
+		for (int i = 0; i < types.length; i++) {
+			final int size = slotSize(types[i]);
+			out.writeByte(loadOpcode(types[i]));
+			out.writeByte(slot);
+			slot += size;
+			if (types[i] != targetTypes[i]) {
+				out.writeByte(CHECKCAST);
+				out.writeShort(classConstant(classConstantName(targetTypes[i])));
+			}
+		}
+		out.writeByte(INVOKEVIRTUAL);
+		out.writeShort(methodConstant(targetClass, found.getName(),
+			descriptor(found.getReturnType(), targetTypes)));
+		final Class<?> returnType = method.getReturnType();
+		if (returnType != found.getReturnType() && returnType != Object.class) {
+			out.writeByte(CHECKCAST);
+			out.writeShort(classConstant(classConstantName(returnType)));
+		}
+		if (timed) {
+			out.writeByte(ALOAD_0);
+			out.writeByte(GETFIELD);
+			out.writeShort(fieldConstant(thisClass, LATENCIES_FIELD, LATENCIES_DESCRIPTOR));
+			out.writeByte(SIPUSH);
+			out.writeShort(index);
+			out.writeByte(AALOAD);
+			writeLocal(out, LLOAD, startSlot);
+			out.writeByte(INVOKEVIRTUAL);
+			out.writeShort(methodConstant(internalName(LatencyHistogram.class.getName()),
+				"recordSince", "(J)V"));
+		}
+		out.writeByte(returnOpcode(returnType));
+		out.close();
+		if (timed) {
+			// the result stays on the stack below the histogram and the start time
+			final int maxStack = Math.max(slot, slotSize(returnType) + 3);
+			return method(method.getName(), descriptor(returnType, types), maxStack,
+				slot + 2, code.toByteArray());
+		}
+		final int maxStack = Math.max(slot, slotSize(returnType));
+		return method(method.getName(), descriptor(returnType, types), maxStack,
+			slot, code.toByteArray());
+	}
+
+	private static void writeLocal(final DataOutputStream out, final int opcode,
+		final int slot) throws IOException
+	{
+		if (slot > 0xff) {
+			out.writeByte(WIDE);
+			out.writeByte(opcode);
+			out.writeShort(slot);
+		}
+		else {
+			out.writeByte(opcode);
+			out.writeByte(slot);
+		}
+	}
+
+	private byte[] unsupported(final Method method) throws IOException {
+		final String exception = "java/lang/UnsupportedOperationException";
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(code);
+		out.writeByte(NEW);
+		out.writeShort(classConstant(exception));
+		out.writeByte(DUP);
+		out.writeByte(LDC_W);
+		out.writeShort(stringConstant(target.getName() + " has no method " +
+			method.getName() + descriptor(method.getReturnType(), method
+				.getParameterTypes())));
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(methodConstant(exception, "<init>",
+			"(Ljava/lang/String;)V"));
+		out.writeByte(ATHROW);
+		out.close();
+		int locals = 1;
+		for (final Class<?> type : method.getParameterTypes()) {
+			locals += slotSize(type);
+		}
+		return method(method.getName(), descriptor(method.getReturnType(), method
+			.getParameterTypes()), 3, locals, code.toByteArray());
+	}
+
+	private byte[] method(final String name, final String descriptor,
+		final int maxStack, final int maxLocals, final byte[] code)
+		throws IOException
+	{
+		return method(name, descriptor, maxStack, maxLocals, code, new byte[] { 0, 0 }, null);
+	}
+
+	/**
+	 * Writes a method.
+	 *
+	 * @param exceptionTable the exception table, including its length
+	 * @param stackMap the entries of the StackMapTable attribute, including
+	 *          their number, or null
+	 */
+	private byte[] method(final String name, final String descriptor,
+		final int maxStack, final int maxLocals, final byte[] code,
+		final byte[] exceptionTable, final byte[] stackMap)
+		throws IOException
+	{
+		final int stackMapName = stackMap == null ? 0 : utf8("StackMapTable");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(utf8(name));
+		out.writeShort(utf8(descriptor));
+		out.writeShort(1);
+		out.writeShort(codeName);
+		final int attributes = stackMap == null ? 0 : 2 + 4 + stackMap.length;
+		out.writeInt(2 + 2 + 4 + code.length + exceptionTable.length + 2 + attributes);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.write(exceptionTable);
+		if (stackMap == null) {
+			out.writeShort(0); // attributes
+		}
+		else {
+			out.writeShort(1);
+			out.writeShort(stackMapName);
+			out.writeInt(stackMap.length);
+			out.write(stackMap);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private Method findTarget(final Method method) {
+		return findTarget(method.getName(), method.getParameterTypes(), method.getReturnType());
+	}
+
+	private Method findTarget(final String name, final Class<?>[] types, final Class<?> returnType) {
+		for (final Method candidate : target.getMethods()) {
+			if ((candidate.getModifiers() & Modifier.STATIC) != 0 ||
+				!candidate.getName().equals(name) ||
+				!Reflection.doTypesMatch(candidate.getParameterTypes(), types))
+			{
+				continue;
+			}
+			final Class<?> found = candidate.getReturnType();
+			if (returnType == found ||
+				(!returnType.isPrimitive() && !found.isPrimitive() &&
+					(returnType == Object.class || returnType.isAssignableFrom(found))))
+			{
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private int utf8(final String value) throws IOException {
+		final String key = CONSTANT_Utf8 + ":" + value;
+		Integer index = constants.get(key);
+		if (index == null) {
+			pool.writeByte(CONSTANT_Utf8);
+			pool.writeUTF(value);
+			constants.put(key, index = constantCount++);
+		}
+		return index;
+	}
+
+	private int reference(final int tag, final String key, final int first,
+		final int second) throws IOException
+	{
+		Integer index = constants.get(tag + ":" + key);
+		if (index == null) {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0) pool.writeShort(second);
+			constants.put(tag + ":" + key, index = constantCount++);
+		}
+		return index;
+	}
+
+	private int classConstant(final String internalName) throws IOException {
+		return reference(CONSTANT_Class, internalName, utf8(internalName), -1);
+	}
+
+	private int stringConstant(final String value) throws IOException {
+		return reference(CONSTANT_String, value, utf8(value), -1);
+	}
+
+	private int nameAndType(final String name, final String descriptor)
+		throws IOException
+	{
+		return reference(CONSTANT_NameAndType, name + ":" + descriptor,
+			utf8(name), utf8(descriptor));
+	}
+
+	private int fieldConstant(final String owner, final String name,
+		final String descriptor) throws IOException
+	{
+		return reference(CONSTANT_Fieldref, owner + "." + name + ":" + descriptor,
+			classConstant(owner), nameAndType(name, descriptor));
+	}
+
+	private int methodConstant(final String owner, final String name,
+		final String descriptor) throws IOException
+	{
+		return reference(CONSTANT_Methodref, owner + "." + name + descriptor,
+			classConstant(owner), nameAndType(name, descriptor));
+	}
+
+	private int interfaceMethodConstant(final String owner, final String name,
+		final String descriptor) throws IOException
+	{
+		return reference(CONSTANT_InterfaceMethodref, owner + "." + name + descriptor,
+			classConstant(owner), nameAndType(name, descriptor));
+	}
+
+	private static String internalName(final String className) {
+		return className.replace('.', '/');
+	}
+
+	/**
+	 * The name of a class as referenced by a CONSTANT_Class entry; array
+	 * classes are referenced by their descriptor.
+	 */
+	private static String classConstantName(final Class<?> clazz) {
+		return clazz.isArray() ? descriptor(clazz) : internalName(clazz.getName());
+	}
+
+	private static String descriptor(final Class<?> returnType,
+		final Class<?>[] parameterTypes)
+	{
+		final StringBuilder builder = new StringBuilder("(");
+		for (final Class<?> type : parameterTypes) {
+			builder.append(descriptor(type));
+		}
+		return builder.append(")").append(descriptor(returnType)).toString();
+	}
+
+	private static String descriptor(final Class<?> type) {
+		if (type == Void.TYPE) return "V";
+		if (type == Boolean.TYPE) return "Z";
+		if (type == Byte.TYPE) return "B";
+		if (type == Character.TYPE) return "C";
+		if (type == Short.TYPE) return "S";
+		if (type == Integer.TYPE) return "I";
+		if (type == Long.TYPE) return "J";
+		if (type == Float.TYPE) return "F";
+		if (type == Double.TYPE) return "D";
+		if (type.isArray()) return "[" + descriptor(type.getComponentType());
+		return "L" + internalName(type.getName()) + ";";
+	}
+
+	private static int slotSize(final Class<?> type) {
+		if (type == Void.TYPE) return 0;
+		return type == Long.TYPE || type == Double.TYPE ? 2 : 1;
+	}
+
+	private static int loadOpcode(final Class<?> type) {
+		if (type == Long.TYPE) return 0x16; // lload
+		if (type == Float.TYPE) return 0x17; // fload
+		if (type == Double.TYPE) return 0x18; // dload
+		if (type.isPrimitive()) return 0x15; // iload
+		return 0x19; // aload
+	}
+
+	private static int storeOpcode(final Class<?> type) {
+		if (type == Long.TYPE) return 0x37; // lstore
+		if (type == Float.TYPE) return 0x38; // fstore
+		if (type == Double.TYPE) return 0x39; // dstore
+		if (type.isPrimitive()) return 0x36; // istore
+		return ASTORE;
+	}
+
+	private static int returnOpcode(final Class<?> type) {
+		if (type == Void.TYPE) return RETURN;
+		if (type == Long.TYPE) return 0xad; // lreturn
+		if (type == Float.TYPE) return 0xae; // freturn
+		if (type == Double.TYPE) return 0xaf; // dreturn
+		if (type.isPrimitive()) return 0xac; // ireturn
+		return 0xb0; // areturn
+	}
+
+	/**
+	 * Defines the generated class so that it sees the interface via the
+	 * interface's class loader, and the target's classes via the target's.
+	 */
+	private static class BindingLoader extends ClassLoader {
+
+		private final ClassLoader targetLoader;
+		private final String targetPackage;
+
+		public BindingLoader(final ClassLoader interfaceLoader,
+			final Class<?> target)
+		{
+			super(interfaceLoader);
+			targetLoader = target.getClassLoader();
+			final String name = target.getName();
+			targetPackage = name.substring(0, name.lastIndexOf('.') + 1);
+		}
+
+		public Class<?> define(final String name, final byte[] bytecode) {
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+
+		@Override
+		protected Class<?> loadClass(final String name, final boolean resolve)
+			throws ClassNotFoundException
+		{
+			if (targetLoader != null && name.startsWith(targetPackage)) {
+				return targetLoader.loadClass(name);
+			}
+			return super.loadClass(name, resolve);
+		}
+	}
+}
@@ -0,0 +1,773 @@
+package org.knime.knip.mm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.AbstractCell;
+import net.imglib2.img.cell.AbstractCells;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Streams the frames of a sequence acquisition to disk, compressed.
+ * <p>
+ * Raw frames quickly fill disks, and on long runs writing them saturates the
+ * I/O. This sink compresses every frame losslessly on a pool of worker
+ * threads, so that the throughput scales with the number of cores rather than
+ * with the speed of the disk. Before deflating, each row is replaced by the
+ * differences between neighboring pixels, and the high and low bytes of
+ * 16-bit pixels are stored in separate planes: microscopy frames are smooth
+ * and rarely use all 16 bits, so this turns most of the data into runs of
+ * (nearly) zero bytes that deflate compresses quickly and well.
+ * </p>
+ * <p>
+ * The compressed frames are appended to the data file in the order in which
+ * they were added, while later frames are still being compressed; an index
+ * (the data file's name plus <i>.idx</i>) records the frame geometry, the
+ * pixel type and where each frame starts, so that frames can be read back in
+ * any order. The resulting image is a {@link CellImg} with one cell per frame,
+ * whose pixels are decompressed when they are first accessed.
+ * </p>
+ *
+ * @param <T> the pixel type of the image
+ * @param <A> the access type of the cells
+ */
+public abstract class CompressedFrameSink<T extends NativeType<T>, A extends ArrayDataAccess<A>> implements FrameSink<T> {
+
+	private final static int INDEX_MAGIC = 0x4d4d435a; // "MMCZ"
+	private final static int INDEX_VERSION = 1;
+
+	/** Deflate, after row-wise differencing and splitting into byte planes. */
+	private final static String CODEC = "delta-shuffle-deflate";
+
+	private final File file;
+	private final String pixelType;
+	private final int width, height;
+	private final int frameBytes;
+
+	private FileOutputStream out;
+	private FileChannel channel;
+	private ExecutorService compressors;
+	private int maxPending;
+	private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+	private final ConcurrentLinkedQueue<Chunk> idleChunks = new ConcurrentLinkedQueue<Chunk>();
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private int level;
+
+	/** Where the frames start, plus where the last one ends. */
+	private long[] offsets = new long[65];
+	private int count, added;
+
+	/**
+	 * Constructs a sink writing to a new data file.
+	 *
+	 * @param file the data file
+	 * @param pixelType the name of the pixel type, as recorded in the index
+	 * @param bytesPerPixel the number of bytes per pixel
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param threads the number of compressing threads
+	 * @throws IOException
+	 */
+	protected CompressedFrameSink(final File file, final String pixelType, final int bytesPerPixel,
+		final long width, final long height, final int threads) throws IOException
+	{
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+		this.file = file;
+		this.pixelType = pixelType;
+		this.width = (int) width;
+		this.height = (int) height;
+		frameBytes = bytesPerPixel * this.width * this.height;
+		level = Deflater.BEST_SPEED;
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+		// enough frames in flight to keep every thread busy while the oldest one is written
+		maxPending = 2 * threads;
+		compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "Frame compressor " + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Constructs a sink from an existing index; no frames can be added.
+	 */
+	private CompressedFrameSink(final File file, final Index index) {
+		this.file = file;
+		pixelType = index.pixelType;
+		width = index.width;
+		height = index.height;
+		frameBytes = index.frameBytes;
+		offsets = index.offsets;
+		count = added = offsets.length - 1;
+	}
+
+	/**
+	 * @return the number of pixels per frame
+	 */
+	protected int frameSize() {
+		return width * height;
+	}
+
+	/**
+	 * Allocates the pixel array of a frame.
+	 *
+	 * @return the pixel array
+	 */
+	protected abstract Object newArray();
+
+	/**
+	 * Wraps the pixel array of a frame.
+	 *
+	 * @param pixels the pixel array
+	 * @return the access
+	 */
+	protected abstract A wrap(final Object pixels);
+
+	/**
+	 * Creates the linked type of the image.
+	 *
+	 * @param img the image
+	 * @return the linked type
+	 */
+	protected abstract T createLinkedType(final CellImg<T, A, CompressedFrameSink<T, A>.FrameCell> img);
+
+	/**
+	 * Sets the compression level; the default is {@link Deflater#BEST_SPEED}.
+	 * It applies to the frames added afterwards.
+	 *
+	 * @param level the deflate level, from 1 (fastest) to 9 (smallest)
+	 */
+	public synchronized void setLevel(final int level) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	/**
+	 * Queues a frame for compression. If too many frames are queued already,
+	 * this waits until the oldest one is compressed and written.
+	 *
+	 * @param pixels the pixel array of the frame; it must not be modified
+	 *          afterwards
+	 */
+	@Override
+	public synchronized void add(final Object pixels) {
+		queue(pixels, null);
+	}
+
+	/**
+	 * Queues a pooled frame for compression; the frame is retained until it is
+	 * compressed. If too many frames are queued already, this waits until the
+	 * oldest one is compressed and written.
+	 *
+	 * @param frame the frame; the caller's reference can be released right away
+	 */
+	@Override
+	public synchronized void add(final PooledFrame frame) {
+		queue(frame.getPixels(), frame);
+	}
+
+	private void queue(final Object pixels, final PooledFrame frame) {
+		if (channel == null) {
+			throw new IllegalStateException("Sink is closed: " + file);
+		}
+		if (pixels.getClass() != (frameBytes == frameSize() ? byte[].class : short[].class)) {
+			throw new IllegalArgumentException("Unexpected pixel array: " + pixels.getClass().getSimpleName());
+		}
+		if (Array.getLength(pixels) != frameSize()) {
+			throw new IllegalArgumentException("Expected " + width + "x" + height + " pixels, got " +
+				Array.getLength(pixels));
+		}
+		final int frameLevel = level;
+		if (frame != null) frame.retain();
+		pending.add(compressors.submit(new Callable<Chunk>() {
+
+			@Override
+			public Chunk call() {
+				try {
+					return compress(pixels, frameLevel);
+				}
+				finally {
+					if (frame != null) frame.release();
+				}
+			}
+		}));
+		added++;
+		// write whatever is done, but only wait if too many frames are in flight
+		while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+			writeNext();
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return added;
+	}
+
+	/**
+	 * @return the number of bytes written to the data file so far
+	 */
+	public synchronized long getCompressedSize() {
+		return offsets[count];
+	}
+
+	/**
+	 * Reads a frame back.
+	 *
+	 * @param index the index of the frame
+	 * @return the pixel array of the frame
+	 * @throws IOException
+	 */
+	public Object readFrame(final int index) throws IOException {
+		final long start, end;
+		synchronized (this) {
+			if (index < 0 || index >= count) {
+				throw new IndexOutOfBoundsException("No frame " + index + " (of " + count + ") in " + file);
+			}
+			start = offsets[index];
+			end = offsets[index + 1];
+		}
+		final ByteBuffer compressed = ByteBuffer.allocate((int) (end - start));
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel readChannel = in.getChannel();
+			for (long position = start; compressed.hasRemaining();) {
+				final int read = readChannel.read(compressed, position);
+				if (read < 0) throw new IOException("Truncated frame " + index + " in " + file);
+				position += read;
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		final byte[] raw = new byte[frameBytes];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array());
+			for (int length = 0; length < raw.length;) {
+				final int inflated = inflater.inflate(raw, length, raw.length - length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Corrupt frame " + index + " in " + file);
+				}
+				length += inflated;
+			}
+		}
+		catch (final DataFormatException e) {
+			throw new IOException("Corrupt frame " + index + " in " + file, e);
+		}
+		finally {
+			inflater.end();
+		}
+		final Object pixels = newArray();
+		decode(raw, pixels, width);
+		return pixels;
+	}
+
+	/**
+	 * Waits for all frames to be written, and finishes the data file and its
+	 * index.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel == null) return;
+		try {
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			channel.force(false);
+			writeIndex();
+		}
+		finally {
+			for (final Future<Chunk> future : pending) {
+				future.cancel(true);
+			}
+			pending.clear();
+			compressors.shutdownNow();
+			compressors = null;
+			for (Deflater deflater; (deflater = deflaters.poll()) != null;) {
+				deflater.end();
+			}
+			idleChunks.clear();
+			channel = null;
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Finishes writing (if necessary) and wraps the frames.
+	 *
+	 * @return a width x height x frames image, one cell per frame
+	 */
+	@Override
+	public CellImg<T, A, FrameCell> toImg() {
+		try {
+			close();
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (count == 0) {
+			throw new IllegalStateException("No frames were acquired");
+		}
+		final List<FrameCell> cells = new ArrayList<FrameCell>(count);
+		for (int i = 0; i < count; i++) {
+			cells.add(new FrameCell(i));
+		}
+		final long[] dimensions = { width, height, count };
+		final int[] cellDimensions = { width, height, 1 };
+		final ListImg<FrameCell> list = new ListImg<FrameCell>(cells, 1, 1, count);
+		final AbstractCells<A, FrameCell, ListImg<FrameCell>> frames =
+			new AbstractCells<A, FrameCell, ListImg<FrameCell>>(new Fraction(), dimensions, cellDimensions) {
+
+				@Override
+				protected ListImg<FrameCell> cells() {
+					return list;
+				}
+			};
+		final CellImg<T, A, FrameCell> img =
+			new CellImg<T, A, FrameCell>(new CellImgFactory<T>(cellDimensions), frames);
+		img.setLinkedType(createLinkedType(img));
+		return img;
+	}
+
+	/**
+	 * Compresses a frame; runs on a compressing thread.
+	 */
+	private Chunk compress(final Object pixels, final int frameLevel) {
+		Chunk chunk = idleChunks.poll();
+		if (chunk == null) {
+			chunk = new Chunk(frameBytes);
+		}
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(frameLevel);
+		}
+		try {
+			encode(pixels, chunk.raw, width);
+			deflater.reset();
+			deflater.setLevel(frameLevel);
+			deflater.setInput(chunk.raw);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == chunk.compressed.length) {
+					chunk.compressed = Arrays.copyOf(chunk.compressed, 2 * length);
+				}
+				length += deflater.deflate(chunk.compressed, length, chunk.compressed.length - length);
+			}
+			chunk.length = length;
+			return chunk;
+		}
+		finally {
+			deflaters.offer(deflater);
+		}
+	}
+
+	/**
+	 * Waits for the oldest pending frame and appends it to the data file.
+	 */
+	private void writeNext() {
+		final Chunk chunk = await(pending.poll());
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(chunk.compressed, 0, chunk.length);
+			long position = offsets[count];
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			if (count + 1 == offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			}
+			offsets[++count] = position;
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			idleChunks.offer(chunk);
+		}
+	}
+
+	private static Chunk await(final Future<Chunk> future) {
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					return future.get();
+				}
+				catch (final InterruptedException e) {
+					// the frame must be written nevertheless, or the file would have a gap
+					interrupted = true;
+				}
+				catch (final ExecutionException e) {
+					throw new RuntimeException("Could not compress frame", e.getCause());
+				}
+			}
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		final DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(indexFile(file))));
+		try {
+			index.writeInt(INDEX_MAGIC);
+			index.writeInt(INDEX_VERSION);
+			index.writeUTF(pixelType);
+			index.writeUTF(CODEC);
+			index.writeInt(width);
+			index.writeInt(height);
+			index.writeInt(frameBytes);
+			index.writeInt(count);
+			for (int i = 0; i <= count; i++) {
+				index.writeLong(offsets[i]);
+			}
+		}
+		finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Replaces every pixel by its difference to its left neighbor, and
+	 * splits 16-bit pixels into a plane of high bytes and one of low bytes.
+	 */
+	private static void encode(final Object pixels, final byte[] raw, final int width) {
+		if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			final int n = shorts.length;
+			for (int row = 0; row < n; row += width) {
+				int previous = 0;
+				for (int i = row, end = row + width; i < end; i++) {
+					final int value = shorts[i];
+					final int delta = value - previous;
+					raw[i] = (byte) (delta >> 8);
+					raw[n + i] = (byte) delta;
+					previous = value;
+				}
+			}
+		}
+		else {
+			final byte[] bytes = (byte[]) pixels;
+			for (int row = 0; row < bytes.length; row += width) {
+				int previous = 0;
+				for (int i = row, end = row + width; i < end; i++) {
+					raw[i] = (byte) (bytes[i] - previous);
+					previous = bytes[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reverses {@link #encode(Object, byte[], int)}.
+	 */
+	private static void decode(final byte[] raw, final Object pixels, final int width) {
+		if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			final int n = shorts.length;
+			for (int row = 0; row < n; row += width) {
+				int previous = 0;
+				for (int i = row, end = row + width; i < end; i++) {
+					previous += (raw[i] << 8) | (raw[n + i] & 0xff);
+					shorts[i] = (short) previous;
+				}
+			}
+		}
+		else {
+			final byte[] bytes = (byte[]) pixels;
+			for (int row = 0; row < bytes.length; row += width) {
+				int previous = 0;
+				for (int i = row, end = row + width; i < end; i++) {
+					previous += raw[i];
+					bytes[i] = (byte) previous;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The buffers of one frame being compressed; they are recycled.
+	 */
+	private static class Chunk {
+
+		private final byte[] raw;
+		private byte[] compressed;
+		private int length;
+
+		private Chunk(final int frameBytes) {
+			raw = new byte[frameBytes];
+			// differenced frames usually shrink severalfold; grown when they do not
+			compressed = new byte[Math.max(64, frameBytes / 2)];
+		}
+	}
+
+	/**
+	 * A cell holding one frame; it is decompressed when first accessed.
+	 */
+	public class FrameCell extends AbstractCell<A> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+		private transient A data;
+
+		private FrameCell(final int index) {
+			super(new int[] { width, height, 1 }, new long[] { 0, 0, index });
+			this.index = index;
+		}
+
+		@Override
+		public A getData() {
+			if (data == null) {
+				try {
+					data = wrap(readFrame(index));
+				}
+				catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Opens a data file written by a sink.
+	 *
+	 * @param file the data file
+	 * @return a sink to which no more frames can be added, but whose frames
+	 *         can be read
+	 * @throws IOException
+	 */
+	public static CompressedFrameSink<?, ?> open(final File file) throws IOException {
+		final Index index = new Index(indexFile(file));
+		if (UnsignedByteType.class.getSimpleName().equals(index.pixelType)) {
+			return new UnsignedBytes(file, index);
+		}
+		if (ShortType.class.getSimpleName().equals(index.pixelType)) {
+			return new Shorts(file, index);
+		}
+		if (UnsignedShortType.class.getSimpleName().equals(index.pixelType)) {
+			return new UnsignedShorts(file, index);
+		}
+		throw new IOException("Unsupported pixel type: " + index.pixelType);
+	}
+
+	/**
+	 * Creates a sink for 8-bit frames, compressing on as many threads as there
+	 * are processors.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static CompressedFrameSink<UnsignedByteType, ByteArray> unsignedBytes(final File file, final long width,
+		final long height) throws IOException
+	{
+		return new UnsignedBytes(file, width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a sink for signed 16-bit frames, compressing on as many threads
+	 * as there are processors.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static CompressedFrameSink<ShortType, ShortArray> shorts(final File file, final long width,
+		final long height) throws IOException
+	{
+		return new Shorts(file, width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a sink for unsigned 16-bit frames, compressing on as many
+	 * threads as there are processors.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static CompressedFrameSink<UnsignedShortType, ShortArray> unsignedShorts(final File file,
+		final long width, final long height) throws IOException
+	{
+		return new UnsignedShorts(file, width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	private static File indexFile(final File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	private static class Index {
+
+		private final String pixelType;
+		private final int width, height, frameBytes;
+		private final long[] offsets;
+
+		public Index(final File file) throws IOException {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+					throw new IOException("Not a compressed frame index: " + file);
+				}
+				pixelType = in.readUTF();
+				final String codec = in.readUTF();
+				if (!CODEC.equals(codec)) {
+					throw new IOException("Unsupported codec: " + codec);
+				}
+				width = in.readInt();
+				height = in.readInt();
+				frameBytes = in.readInt();
+				offsets = new long[in.readInt() + 1];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = in.readLong();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	private static class UnsignedBytes extends CompressedFrameSink<UnsignedByteType, ByteArray> {
+
+		public UnsignedBytes(final File file, final long width, final long height, final int threads)
+			throws IOException
+		{
+			super(file, UnsignedByteType.class.getSimpleName(), 1, width, height, threads);
+		}
+
+		public UnsignedBytes(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected Object newArray() {
+			return new byte[frameSize()];
+		}
+
+		@Override
+		protected ByteArray wrap(final Object pixels) {
+			return new ByteArray((byte[]) pixels);
+		}
+
+		@Override
+		protected UnsignedByteType createLinkedType(final CellImg<UnsignedByteType, ByteArray, CompressedFrameSink<UnsignedByteType, ByteArray>.FrameCell> img) {
+			return new UnsignedByteType(img);
+		}
+	}
+
+	private static class Shorts extends CompressedFrameSink<ShortType, ShortArray> {
+
+		public Shorts(final File file, final long width, final long height, final int threads)
+			throws IOException
+		{
+			super(file, ShortType.class.getSimpleName(), 2, width, height, threads);
+		}
+
+		public Shorts(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected Object newArray() {
+			return new short[frameSize()];
+		}
+
+		@Override
+		protected ShortArray wrap(final Object pixels) {
+			return new ShortArray((short[]) pixels);
+		}
+
+		@Override
+		protected ShortType createLinkedType(final CellImg<ShortType, ShortArray, CompressedFrameSink<ShortType, ShortArray>.FrameCell> img) {
+			return new ShortType(img);
+		}
+	}
+
+	private static class UnsignedShorts extends CompressedFrameSink<UnsignedShortType, ShortArray> {
+
+		public UnsignedShorts(final File file, final long width, final long height, final int threads)
+			throws IOException
+		{
+			super(file, UnsignedShortType.class.getSimpleName(), 2, width, height, threads);
+		}
+
+		public UnsignedShorts(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected Object newArray() {
+			return new short[frameSize()];
+		}
+
+		@Override
+		protected ShortArray wrap(final Object pixels) {
+			return new ShortArray((short[]) pixels);
+		}
+
+		@Override
+		protected UnsignedShortType createLinkedType(final CellImg<UnsignedShortType, ShortArray, CompressedFrameSink<UnsignedShortType, ShortArray>.FrameCell> img) {
+			return new UnsignedShortType(img);
+		}
+	}
+}
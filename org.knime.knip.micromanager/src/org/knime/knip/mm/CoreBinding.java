@@ -0,0 +1,615 @@
+package org.knime.knip.mm;
+
+/**
+ * The API of Micro-Manager's CMMCore class, as found in one MMCoreJ.jar.
+ * <p>
+ * This interface is in the form written by {@link CoreBindingGenerator};
+ * regenerate it rather than editing it manually. It lists the 296 public
+ * methods of CMMCore in the MMCoreJ.jar of Micro-Manager 1.4 (MMCore 8), which
+ * the plugin loads from <i>lib/MMCoreJ.jar</i>; other Micro-Manager versions
+ * may have more or fewer. Core methods missing here can only be called via
+ * {@link Reflection}, and methods missing from the loaded core, e.g. most of
+ * them in the Micro-Manager simulator, throw an
+ * {@link UnsupportedOperationException} when called.
+ * </p>
+ * <p>
+ * Types that only exist in MMCoreJ.jar (<i>mmcorej.*</i>) are represented as
+ * {@link Object}. The interface is implemented at runtime by
+ * {@link BytecodeBinder}, calling directly into the loaded CMMCore class.
+ * </p>
+ */
+public interface CoreBinding {
+
+	void addGalvoPolygonVertex(final String arg0, final int arg1, final double arg2, final double arg3) throws Exception;
+
+	void clearCircularBuffer() throws Exception;
+
+	void clearROI() throws Exception;
+
+	boolean debugLogEnabled() throws Exception;
+
+	void defineConfig(final String arg0, final String arg1) throws Exception;
+
+	void defineConfig(final String arg0, final String arg1, final String arg2, final String arg3, final String arg4) throws Exception;
+
+	void defineConfigGroup(final String arg0) throws Exception;
+
+	void definePixelSizeConfig(final String arg0) throws Exception;
+
+	void definePixelSizeConfig(final String arg0, final String arg1, final String arg2, final String arg3) throws Exception;
+
+	void defineStateLabel(final String arg0, final int arg1, final String arg2) throws Exception;
+
+	void deleteConfig(final String arg0, final String arg1) throws Exception;
+
+	void deleteConfig(final String arg0, final String arg1, final String arg2, final String arg3) throws Exception;
+
+	void deleteConfigGroup(final String arg0) throws Exception;
+
+	void deleteGalvoPolygons(final String arg0) throws Exception;
+
+	void deletePixelSizeConfig(final String arg0) throws Exception;
+
+	Object detectDevice(final String arg0) throws Exception;
+
+	boolean deviceBusy(final String arg0) throws Exception;
+
+	boolean deviceTypeBusy(final Object arg0) throws Exception;
+
+	void displaySLMImage(final String arg0) throws Exception;
+
+	void enableContinuousFocus(final boolean arg0) throws Exception;
+
+	void enableDebugLog(final boolean arg0) throws Exception;
+
+	void enableStderrLog(final boolean arg0) throws Exception;
+
+	void fullFocus() throws Exception;
+
+	String getAPIVersionInfo() throws Exception;
+
+	Object getAllowedPropertyValues(final String arg0, final String arg1) throws Exception;
+
+	String getAutoFocusDevice() throws Exception;
+
+	double getAutoFocusOffset() throws Exception;
+
+	boolean getAutoShutter() throws Exception;
+
+	Object getAvailableConfigGroups() throws Exception;
+
+	Object getAvailableConfigs(final String arg0) throws Exception;
+
+	Object getAvailableDeviceDescriptions(final String arg0) throws Exception;
+
+	Object getAvailableDeviceTypes(final String arg0) throws Exception;
+
+	Object getAvailableDevices(final String arg0) throws Exception;
+
+	Object getAvailablePixelSizeConfigs() throws Exception;
+
+	int getBufferFreeCapacity() throws Exception;
+
+	int getBufferTotalCapacity() throws Exception;
+
+	long getBytesPerPixel() throws Exception;
+
+	String getCameraChannelName(final long arg0) throws Exception;
+
+	String getCameraDevice() throws Exception;
+
+	String getChannelGroup() throws Exception;
+
+	long getCircularBufferMemoryFootprint() throws Exception;
+
+	Object getConfigData(final String arg0, final String arg1) throws Exception;
+
+	Object getConfigGroupState(final String arg0) throws Exception;
+
+	Object getConfigGroupStateFromCache(final String arg0) throws Exception;
+
+	Object getConfigState(final String arg0, final String arg1) throws Exception;
+
+	String getCoreErrorText(final int arg0) throws Exception;
+
+	String getCurrentConfig(final String arg0) throws Exception;
+
+	String getCurrentConfigFromCache(final String arg0) throws Exception;
+
+	double getCurrentFocusScore() throws Exception;
+
+	String getCurrentPixelSizeConfig() throws Exception;
+
+	String getCurrentPixelSizeConfig(final boolean arg0) throws Exception;
+
+	Object getDeviceAdapterNames() throws Exception;
+
+	Object getDeviceAdapterSearchPaths() throws Exception;
+
+	double getDeviceDelayMs(final String arg0) throws Exception;
+
+	String getDeviceDescription(final String arg0) throws Exception;
+
+	String getDeviceLibrary(final String arg0) throws Exception;
+
+	String getDeviceName(final String arg0) throws Exception;
+
+	Object getDevicePropertyNames(final String arg0) throws Exception;
+
+	Object getDeviceType(final String arg0) throws Exception;
+
+	double getExposure() throws Exception;
+
+	double getExposure(final String arg0) throws Exception;
+
+	int getExposureSequenceMaxLength(final String arg0) throws Exception;
+
+	String getFocusDevice() throws Exception;
+
+	int getFocusDirection(final String arg0) throws Exception;
+
+	String getGalvoChannel(final String arg0) throws Exception;
+
+	String getGalvoDevice() throws Exception;
+
+	void getGalvoPosition(final String arg0, final double[] arg1, final double[] arg2) throws Exception;
+
+	double getGalvoXMinimum(final String arg0) throws Exception;
+
+	double getGalvoXRange(final String arg0) throws Exception;
+
+	double getGalvoYMinimum(final String arg0) throws Exception;
+
+	double getGalvoYRange(final String arg0) throws Exception;
+
+	Object getImage() throws Exception;
+
+	Object getImage(final long arg0) throws Exception;
+
+	long getImageBitDepth() throws Exception;
+
+	long getImageBufferSize() throws Exception;
+
+	long getImageHeight() throws Exception;
+
+	String getImageProcessorDevice() throws Exception;
+
+	long getImageWidth() throws Exception;
+
+	String getInstalledDeviceDescription(final String arg0, final String arg1) throws Exception;
+
+	Object getInstalledDevices(final String arg0) throws Exception;
+
+	double getLastFocusScore() throws Exception;
+
+	Object getLastImage() throws Exception;
+
+	Object getLastImageMD(final Object arg0) throws Exception;
+
+	Object getLastImageMD(final long arg0, final long arg1, final Object arg2) throws Exception;
+
+	Object getLastTaggedImage() throws Exception;
+
+	Object getLastTaggedImage(final int arg0) throws Exception;
+
+	Object getLoadedDevices() throws Exception;
+
+	Object getLoadedDevicesOfType(final Object arg0) throws Exception;
+
+	Object getLoadedPeripheralDevices(final String arg0) throws Exception;
+
+	double getMagnificationFactor() throws Exception;
+
+	Object getNBeforeLastImageMD(final long arg0, final Object arg1) throws Exception;
+
+	Object getNBeforeLastTaggedImage(final long arg0) throws Exception;
+
+	long getNumberOfCameraChannels() throws Exception;
+
+	long getNumberOfComponents() throws Exception;
+
+	int getNumberOfStates(final String arg0) throws Exception;
+
+	String getParentLabel(final String arg0) throws Exception;
+
+	Object getPixelSizeAffine() throws Exception;
+
+	Object getPixelSizeAffine(final boolean arg0) throws Exception;
+
+	Object getPixelSizeAffineByID(final String arg0) throws Exception;
+
+	Object getPixelSizeConfigData(final String arg0) throws Exception;
+
+	double getPixelSizeUm() throws Exception;
+
+	double getPixelSizeUm(final boolean arg0) throws Exception;
+
+	double getPixelSizeUmByID(final String arg0) throws Exception;
+
+	double getPosition() throws Exception;
+
+	double getPosition(final String arg0) throws Exception;
+
+	String getPrimaryLogFile() throws Exception;
+
+	String getProperty(final String arg0, final String arg1) throws Exception;
+
+	String getPropertyFromCache(final String arg0, final String arg1) throws Exception;
+
+	double getPropertyLowerLimit(final String arg0, final String arg1) throws Exception;
+
+	int getPropertySequenceMaxLength(final String arg0, final String arg1) throws Exception;
+
+	Object getPropertyType(final String arg0, final String arg1) throws Exception;
+
+	double getPropertyUpperLimit(final String arg0, final String arg1) throws Exception;
+
+	void getROI(final String arg0, final int[] arg1, final int[] arg2, final int[] arg3, final int[] arg4) throws Exception;
+
+	void getROI(final int[] arg0, final int[] arg1, final int[] arg2, final int[] arg3) throws Exception;
+
+	int getRemainingImageCount() throws Exception;
+
+	long getSLMBytesPerPixel(final String arg0) throws Exception;
+
+	String getSLMDevice() throws Exception;
+
+	double getSLMExposure(final String arg0) throws Exception;
+
+	long getSLMHeight(final String arg0) throws Exception;
+
+	long getSLMNumberOfComponents(final String arg0) throws Exception;
+
+	int getSLMSequenceMaxLength(final String arg0) throws Exception;
+
+	long getSLMWidth(final String arg0) throws Exception;
+
+	String getSerialPortAnswer(final String arg0, final String arg1) throws Exception;
+
+	String getShutterDevice() throws Exception;
+
+	boolean getShutterOpen() throws Exception;
+
+	boolean getShutterOpen(final String arg0) throws Exception;
+
+	int getStageSequenceMaxLength(final String arg0) throws Exception;
+
+	int getState(final String arg0) throws Exception;
+
+	int getStateFromLabel(final String arg0, final String arg1) throws Exception;
+
+	String getStateLabel(final String arg0) throws Exception;
+
+	Object getStateLabels(final String arg0) throws Exception;
+
+	Object getSystemState() throws Exception;
+
+	Object getSystemStateCache() throws Exception;
+
+	Object getTaggedImage() throws Exception;
+
+	Object getTaggedImage(final int arg0) throws Exception;
+
+	int getTimeoutMs() throws Exception;
+
+	String getVersionInfo() throws Exception;
+
+	double getXPosition() throws Exception;
+
+	double getXPosition(final String arg0) throws Exception;
+
+	void getXYPosition(final String arg0, final double[] arg1, final double[] arg2) throws Exception;
+
+	void getXYPosition(final double[] arg0, final double[] arg1) throws Exception;
+
+	String getXYStageDevice() throws Exception;
+
+	int getXYStageSequenceMaxLength(final String arg0) throws Exception;
+
+	double getYPosition() throws Exception;
+
+	double getYPosition(final String arg0) throws Exception;
+
+	boolean hasProperty(final String arg0, final String arg1) throws Exception;
+
+	boolean hasPropertyLimits(final String arg0, final String arg1) throws Exception;
+
+	void home(final String arg0) throws Exception;
+
+	void incrementalFocus() throws Exception;
+
+	void initializeAllDevices() throws Exception;
+
+	void initializeCircularBuffer() throws Exception;
+
+	void initializeDevice(final String arg0) throws Exception;
+
+	boolean isBufferOverflowed() throws Exception;
+
+	boolean isConfigDefined(final String arg0, final String arg1) throws Exception;
+
+	boolean isContinuousFocusDrive(final String arg0) throws Exception;
+
+	boolean isContinuousFocusEnabled() throws Exception;
+
+	boolean isContinuousFocusLocked() throws Exception;
+
+	boolean isExposureSequenceable(final String arg0) throws Exception;
+
+	boolean isGroupDefined(final String arg0) throws Exception;
+
+	boolean isPixelSizeConfigDefined(final String arg0) throws Exception;
+
+	boolean isPropertyPreInit(final String arg0, final String arg1) throws Exception;
+
+	boolean isPropertyReadOnly(final String arg0, final String arg1) throws Exception;
+
+	boolean isPropertySequenceable(final String arg0, final String arg1) throws Exception;
+
+	boolean isSequenceRunning() throws Exception;
+
+	boolean isSequenceRunning(final String arg0) throws Exception;
+
+	boolean isStageSequenceable(final String arg0) throws Exception;
+
+	boolean isXYStageSequenceable(final String arg0) throws Exception;
+
+	void loadDevice(final String arg0, final String arg1, final String arg2) throws Exception;
+
+	void loadExposureSequence(final String arg0, final Object arg1) throws Exception;
+
+	void loadGalvoPolygons(final String arg0) throws Exception;
+
+	void loadPropertySequence(final String arg0, final String arg1, final Object arg2) throws Exception;
+
+	void loadStageSequence(final String arg0, final Object arg1) throws Exception;
+
+	void loadSystemConfiguration(final String arg0) throws Exception;
+
+	void loadSystemState(final String arg0) throws Exception;
+
+	void loadXYStageSequence(final String arg0, final Object arg1, final Object arg2) throws Exception;
+
+	void logMessage(final String arg0) throws Exception;
+
+	void logMessage(final String arg0, final boolean arg1) throws Exception;
+
+	void pointGalvoAndFire(final String arg0, final double arg1, final double arg2, final double arg3) throws Exception;
+
+	Object popNextImage() throws Exception;
+
+	Object popNextImageMD(final Object arg0) throws Exception;
+
+	Object popNextImageMD(final long arg0, final long arg1, final Object arg2) throws Exception;
+
+	Object popNextTaggedImage() throws Exception;
+
+	void prepareSequenceAcquisition(final String arg0) throws Exception;
+
+	Object readFromSerialPort(final String arg0) throws Exception;
+
+	void registerCallback(final Object arg0) throws Exception;
+
+	void renameConfig(final String arg0, final String arg1, final String arg2) throws Exception;
+
+	void renameConfigGroup(final String arg0, final String arg1) throws Exception;
+
+	void renamePixelSizeConfig(final String arg0, final String arg1) throws Exception;
+
+	void reset() throws Exception;
+
+	void runGalvoPolygons(final String arg0) throws Exception;
+
+	void runGalvoSequence(final String arg0) throws Exception;
+
+	void saveSystemConfiguration(final String arg0) throws Exception;
+
+	void saveSystemState(final String arg0) throws Exception;
+
+	void setAdapterOrigin(final String arg0, final double arg1) throws Exception;
+
+	void setAdapterOrigin(final double arg0) throws Exception;
+
+	void setAdapterOriginXY(final String arg0, final double arg1, final double arg2) throws Exception;
+
+	void setAdapterOriginXY(final double arg0, final double arg1) throws Exception;
+
+	void setAutoFocusDevice(final String arg0) throws Exception;
+
+	void setAutoFocusOffset(final double arg0) throws Exception;
+
+	void setAutoShutter(final boolean arg0) throws Exception;
+
+	void setCameraDevice(final String arg0) throws Exception;
+
+	void setChannelGroup(final String arg0) throws Exception;
+
+	void setCircularBufferMemoryFootprint(final long arg0) throws Exception;
+
+	void setConfig(final String arg0, final String arg1) throws Exception;
+
+	void setDeviceAdapterSearchPaths(final Object arg0) throws Exception;
+
+	void setDeviceDelayMs(final String arg0, final double arg1) throws Exception;
+
+	void setExposure(final String arg0, final double arg1) throws Exception;
+
+	void setExposure(final double arg0) throws Exception;
+
+	void setFocusDevice(final String arg0) throws Exception;
+
+	void setFocusDirection(final String arg0, final int arg1) throws Exception;
+
+	void setGalvoDevice(final String arg0) throws Exception;
+
+	void setGalvoIlluminationState(final String arg0, final boolean arg1) throws Exception;
+
+	void setGalvoPolygonRepetitions(final String arg0, final int arg1) throws Exception;
+
+	void setGalvoPosition(final String arg0, final double arg1, final double arg2) throws Exception;
+
+	void setGalvoSpotInterval(final String arg0, final double arg1) throws Exception;
+
+	void setImageProcessorDevice(final String arg0) throws Exception;
+
+	void setOrigin() throws Exception;
+
+	void setOrigin(final String arg0) throws Exception;
+
+	void setOriginX() throws Exception;
+
+	void setOriginX(final String arg0) throws Exception;
+
+	void setOriginXY() throws Exception;
+
+	void setOriginXY(final String arg0) throws Exception;
+
+	void setOriginY() throws Exception;
+
+	void setOriginY(final String arg0) throws Exception;
+
+	void setParentLabel(final String arg0, final String arg1) throws Exception;
+
+	void setPixelSizeAffine(final String arg0, final Object arg1) throws Exception;
+
+	void setPixelSizeConfig(final String arg0) throws Exception;
+
+	void setPixelSizeUm(final String arg0, final double arg1) throws Exception;
+
+	void setPosition(final String arg0, final double arg1) throws Exception;
+
+	void setPosition(final double arg0) throws Exception;
+
+	void setPrimaryLogFile(final String arg0) throws Exception;
+
+	void setPrimaryLogFile(final String arg0, final boolean arg1) throws Exception;
+
+	void setProperty(final String arg0, final String arg1, final String arg2) throws Exception;
+
+	void setProperty(final String arg0, final String arg1, final boolean arg2) throws Exception;
+
+	void setProperty(final String arg0, final String arg1, final double arg2) throws Exception;
+
+	void setProperty(final String arg0, final String arg1, final float arg2) throws Exception;
+
+	void setProperty(final String arg0, final String arg1, final int arg2) throws Exception;
+
+	void setROI(final String arg0, final int arg1, final int arg2, final int arg3, final int arg4) throws Exception;
+
+	void setROI(final int arg0, final int arg1, final int arg2, final int arg3) throws Exception;
+
+	void setRelativePosition(final String arg0, final double arg1) throws Exception;
+
+	void setRelativePosition(final double arg0) throws Exception;
+
+	void setRelativeXYPosition(final String arg0, final double arg1, final double arg2) throws Exception;
+
+	void setRelativeXYPosition(final double arg0, final double arg1) throws Exception;
+
+	void setSLMDevice(final String arg0) throws Exception;
+
+	void setSLMExposure(final String arg0, final double arg1) throws Exception;
+
+	void setSLMImage(final String arg0, final byte[] arg1) throws Exception;
+
+	void setSLMImage(final String arg0, final int[] arg1) throws Exception;
+
+	void setSLMPixelsTo(final String arg0, final short arg1) throws Exception;
+
+	void setSLMPixelsTo(final String arg0, final short arg1, final short arg2, final short arg3) throws Exception;
+
+	void setSerialPortCommand(final String arg0, final String arg1, final String arg2) throws Exception;
+
+	void setSerialProperties(final String arg0, final String arg1, final String arg2, final String arg3, final String arg4, final String arg5, final String arg6) throws Exception;
+
+	void setShutterDevice(final String arg0) throws Exception;
+
+	void setShutterOpen(final String arg0, final boolean arg1) throws Exception;
+
+	void setShutterOpen(final boolean arg0) throws Exception;
+
+	void setState(final String arg0, final int arg1) throws Exception;
+
+	void setStateLabel(final String arg0, final String arg1) throws Exception;
+
+	void setSystemState(final Object arg0) throws Exception;
+
+	void setTimeoutMs(final int arg0) throws Exception;
+
+	void setXYPosition(final String arg0, final double arg1, final double arg2) throws Exception;
+
+	void setXYPosition(final double arg0, final double arg1) throws Exception;
+
+	void setXYStageDevice(final String arg0) throws Exception;
+
+	void snapImage() throws Exception;
+
+	void startContinuousSequenceAcquisition(final double arg0) throws Exception;
+
+	void startExposureSequence(final String arg0) throws Exception;
+
+	void startPropertySequence(final String arg0, final String arg1) throws Exception;
+
+	void startSLMSequence(final String arg0) throws Exception;
+
+	int startSecondaryLogFile(final String arg0, final boolean arg1) throws Exception;
+
+	int startSecondaryLogFile(final String arg0, final boolean arg1, final boolean arg2, final boolean arg3) throws Exception;
+
+	void startSequenceAcquisition(final String arg0, final int arg1, final double arg2, final boolean arg3) throws Exception;
+
+	void startSequenceAcquisition(final int arg0, final double arg1, final boolean arg2) throws Exception;
+
+	void startStageSequence(final String arg0) throws Exception;
+
+	void startXYStageSequence(final String arg0) throws Exception;
+
+	boolean stderrLogEnabled() throws Exception;
+
+	void stop(final String arg0) throws Exception;
+
+	void stopExposureSequence(final String arg0) throws Exception;
+
+	void stopPropertySequence(final String arg0, final String arg1) throws Exception;
+
+	void stopSLMSequence(final String arg0) throws Exception;
+
+	void stopSecondaryLogFile(final int arg0) throws Exception;
+
+	void stopSequenceAcquisition() throws Exception;
+
+	void stopSequenceAcquisition(final String arg0) throws Exception;
+
+	void stopStageSequence(final String arg0) throws Exception;
+
+	void stopXYStageSequence(final String arg0) throws Exception;
+
+	boolean supportsDeviceDetection(final String arg0) throws Exception;
+
+	boolean systemBusy() throws Exception;
+
+	void unloadAllDevices() throws Exception;
+
+	void unloadDevice(final String arg0) throws Exception;
+
+	void unloadLibrary(final String arg0) throws Exception;
+
+	void updateCoreProperties() throws Exception;
+
+	void updateSystemStateCache() throws Exception;
+
+	boolean usesDeviceDelay(final String arg0) throws Exception;
+
+	void waitForConfig(final String arg0, final String arg1) throws Exception;
+
+	void waitForDevice(final String arg0) throws Exception;
+
+	void waitForDeviceType(final Object arg0) throws Exception;
+
+	void waitForImageSynchro() throws Exception;
+
+	void waitForSystem() throws Exception;
+
+	void writeToSerialPort(final String arg0, final Object arg1) throws Exception;
+
+}
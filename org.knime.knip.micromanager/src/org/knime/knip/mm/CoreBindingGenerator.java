@@ -0,0 +1,286 @@
+package org.knime.knip.mm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Generates the source of {@link CoreBinding} from an installed MMCoreJ.jar.
+ * <p>
+ * This is a developer tool: run it whenever the targeted Micro-Manager version
+ * changes, and commit the result. Usage:
+ * </p>
+ *
+ * <pre>
+ * java org.knime.knip.mm.CoreBindingGenerator [--wrappers] [&lt;Micro-Manager directory&gt; [&lt;output file&gt;]]
+ * </pre>
+ * <p>
+ * Without an output file, the source is written to stdout. With
+ * <code>--wrappers</code>, stubs of {@link MMGateway} wrappers are written
+ * instead, for the core methods that the gateway does not wrap yet.
+ * </p>
+ */
+public class CoreBindingGenerator {
+
+	private final static String MMCOREJ_PACKAGE = "mmcorej.";
+
+	private final static int LINE_WIDTH = 80;
+
+	/**
+	 * Writes the source of the {@link CoreBinding} interface.
+	 *
+	 * @param coreClass the CMMCore class
+	 * @param out the writer to write to
+	 * @see #writeInterface(Class, String, PrintWriter)
+	 */
+	public static void writeInterface(final Class<?> coreClass, final PrintWriter out) {
+		writeInterface(coreClass, null, out);
+	}
+
+	/**
+	 * Writes the source of the {@link CoreBinding} interface.
+	 * <p>
+	 * Every public instance method of the core class is included, sorted by
+	 * name and signature. Parameter and return types from <i>mmcorej</i> are
+	 * mapped to {@link Object}; should this make two overloads
+	 * indistinguishable, only the first one is kept. The interface's
+	 * documentation names the jar it was generated from and how many methods
+	 * it has, since a simulated or older core has fewer than a current one.
+	 * </p>
+	 *
+	 * @param coreClass the CMMCore class
+	 * @param source what the core class was loaded from, e.g. the title and
+	 *          version in the manifest of its jar, or null if that is unknown
+	 * @param out the writer to write to
+	 */
+	public static void writeInterface(final Class<?> coreClass, final String source, final PrintWriter out) {
+		final List<String> declarations = new ArrayList<String>();
+		final Set<String> seen = new HashSet<String>();
+		for (final Method method : coreMethods(coreClass)) {
+			final String declaration = declaration(method);
+			if (seen.add(declaration)) declarations.add(declaration);
+		}
+
+		out.println("package " + CoreBinding.class.getPackage().getName() + ";");
+		out.println();
+		out.println("/**");
+		out.println(" * The API of Micro-Manager's CMMCore class, as found in one MMCoreJ.jar.");
+		out.println(" * <p>");
+		writeParagraph("This interface is generated by {@link CoreBindingGenerator}; do not " +
+			"edit it manually. It was generated from " +
+			(source == null ? "an MMCoreJ.jar without version information" : "the MMCoreJ.jar of the " + source) +
+			", whose CMMCore class has " + declarations.size() + " public methods; other Micro-Manager " +
+			"versions may have more or fewer. Core methods missing here can only be called via " +
+			"{@link Reflection}, and methods missing from the loaded core throw an " +
+			"{@link UnsupportedOperationException} when called.", out);
+		out.println(" * </p>");
+		out.println(" * <p>");
+		writeParagraph("Types that only exist in MMCoreJ.jar (<i>mmcorej.*</i>) are represented as " +
+			"{@link Object}. The interface is implemented at runtime by {@link BytecodeBinder}, " +
+			"calling directly into the loaded CMMCore class.", out);
+		out.println(" * </p>");
+		out.println(" */");
+		out.println("public interface " + CoreBinding.class.getSimpleName() + " {");
+		for (final String declaration : declarations) {
+			out.println();
+			out.println("\t" + declaration + " throws Exception;");
+		}
+		out.println();
+		out.println("}");
+		out.flush();
+	}
+
+	/**
+	 * Describes the jar a core class was loaded from by the title and version
+	 * in its manifest.
+	 *
+	 * @param jar the MMCoreJ.jar
+	 * @return the description, or null if the manifest has neither
+	 * @throws IOException
+	 */
+	public static String describe(final File jar) throws IOException {
+		final JarFile file = new JarFile(jar);
+		try {
+			final Manifest manifest = file.getManifest();
+			if (manifest == null) return null;
+			final Attributes attributes = manifest.getMainAttributes();
+			final String title = attributes.getValue(Attributes.Name.IMPLEMENTATION_TITLE);
+			final String version = attributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION);
+			if (title == null) return version == null ? null : "Micro-Manager " + version;
+			return version == null ? title : title + " " + version;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static void writeParagraph(final String text, final PrintWriter out) {
+		final StringBuilder line = new StringBuilder(" *");
+		// keep inline tags on one line
+		for (final String word : text.replace("{@link ", "{@link\u0000").split(" ")) {
+			if (line.length() > 2 && line.length() + 1 + word.length() > LINE_WIDTH) {
+				out.println(line);
+				line.setLength(2);
+			}
+			line.append(' ').append(word.replace('\u0000', ' '));
+		}
+		out.println(line);
+	}
+
+	/**
+	 * Renders a method of the core class as a wrapper method of
+	 * {@link MMGateway}.
+	 *
+	 * @param method the CMMCore method
+	 * @return the source of the wrapper method
+	 */
+	public static String wrapperStub(final Method method) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("\tpublic ").append(declaration(method)).append(" {\n");
+		builder.append("\t\ttry {\n\t\t\t");
+		if (method.getReturnType() != Void.TYPE) {
+			builder.append("return ");
+		}
+		builder.append("binding.").append(method.getName()).append("(");
+		final int count = method.getParameterTypes().length;
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("arg").append(i);
+		}
+		builder.append(");\n");
+		builder.append("\t\t} catch (final Exception e) {\n");
+		builder.append("\t\t\tthrow rethrow(e);\n");
+		builder.append("\t\t}\n\t}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * Writes stubs of the {@link MMGateway} wrappers that are missing for a core
+	 * class.
+	 *
+	 * @param coreClass the CMMCore class
+	 * @param out the writer to write to
+	 */
+	public static void writeMissingWrappers(final Class<?> coreClass, final PrintWriter out) {
+		final Set<String> seen = new HashSet<String>();
+		for (final Method method : coreMethods(coreClass)) {
+			if (isWrapped(method) || !seen.add(declaration(method))) continue;
+			out.println(wrapperStub(method));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Lists the methods of the core class that make up its API.
+	 *
+	 * @param coreClass the CMMCore class
+	 * @return the public instance methods, sorted by name and signature
+	 */
+	public static List<Method> coreMethods(final Class<?> coreClass) {
+		final List<Method> result = new ArrayList<Method>();
+		for (final Method method : coreClass.getMethods()) {
+			if ((method.getModifiers() & Modifier.STATIC) != 0 ||
+				method.getDeclaringClass() == Object.class ||
+				method.getName().equals("delete"))
+			{
+				continue;
+			}
+			result.add(method);
+		}
+		Collections.sort(result, new Comparator<Method>() {
+
+			@Override
+			public int compare(final Method a, final Method b) {
+				final int result = a.getName().compareTo(b.getName());
+				if (result != 0) return result;
+				return declaration(a).compareTo(declaration(b));
+			}
+		});
+		return result;
+	}
+
+	private static boolean isWrapped(final Method method) {
+		for (final Method wrapper : MMGateway.class.getMethods()) {
+			if (wrapper.getName().equals(method.getName()) &&
+				Reflection.doTypesMatch(method.getParameterTypes(), wrapper.getParameterTypes()))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String declaration(final Method method) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append(typeName(method.getReturnType())).append(" ")
+			.append(method.getName()).append("(");
+		final Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append("final ").append(typeName(parameterTypes[i]))
+				.append(" arg").append(i);
+		}
+		return builder.append(")").toString();
+	}
+
+	private static String typeName(final Class<?> type) {
+		if (type.isArray()) return typeName(type.getComponentType()) + "[]";
+		final String name = type.getName();
+		if (name.startsWith(MMCOREJ_PACKAGE)) return "Object";
+		if (name.startsWith("java.lang.") && name.lastIndexOf('.') == 9) {
+			return name.substring(10);
+		}
+		return name.replace('$', '.');
+	}
+
+	public static void main(String... args) throws IOException, ClassNotFoundException {
+		final boolean wrappers = args.length > 0 && args[0].equals("--wrappers");
+		if (wrappers) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		final File microManagerDir = args.length > 0 ? new File(args[0]) : MMGateway.discoverMicroManager();
+		if (microManagerDir == null) {
+			throw new IOException("Could not find Micro-Manager");
+		}
+		final File mmcorej = new File(microManagerDir, "plugins/Micro-Manager/MMCoreJ.jar");
+		if (!mmcorej.exists()) {
+			throw new IOException("Could not find Micro-Manager at " + mmcorej);
+		}
+		final ClassLoader loader = new URLClassLoader(new URL[] { mmcorej.toURI().toURL() });
+		// do not initialize the class: that would load the native library
+		final Class<?> coreClass = Class.forName("mmcorej.CMMCore", false, loader);
+		final PrintWriter out = args.length > 1 ?
+			new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8")) :
+			new PrintWriter(System.out);
+		if (wrappers) {
+			writeMissingWrappers(coreClass, out);
+		}
+		else {
+			writeInterface(coreClass, describe(mmcorej), out);
+		}
+		if (args.length > 1) {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.knime.knip.mm;
+
+/**
+ * The parts of MMCoreJ's vector classes that the gateway fills, e.g. to upload
+ * sequences.
+ * <p>
+ * Like {@link CoreBinding}, these interfaces are implemented at runtime by
+ * {@link BytecodeBinder}, calling directly into the classes loaded from
+ * MMCoreJ.jar; the vectors themselves are represented as {@link Object}.
+ * </p>
+ */
+public interface CoreVectors {
+
+	/**
+	 * MMCoreJ's StrVector.
+	 */
+	interface Strings {
+
+		Object create() throws Exception;
+
+		void add(final Object vector, final String value) throws Exception;
+
+	}
+
+	/**
+	 * MMCoreJ's DoubleVector.
+	 */
+	interface Doubles {
+
+		Object create() throws Exception;
+
+		void add(final Object vector, final double value) throws Exception;
+
+	}
+}
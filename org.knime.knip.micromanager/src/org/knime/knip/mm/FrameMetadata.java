@@ -0,0 +1,107 @@
+package org.knime.knip.mm;
+
+import static org.knime.knip.mm.Reflection.rethrow;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Pops frames together with their metadata.
+ * <p>
+ * Micro-Manager attaches a set of tags (camera label, timestamps, etc) to
+ * every image in its circular buffer; {@link MMGateway#popNextImage()} drops
+ * them. This class pops frames via {@link MMGateway#popNextImageMD(Object)}
+ * into one reusable <i>mmcorej.Metadata</i> instance, whose tags can then be
+ * queried until the next frame is popped, or {@link #record(MetadataTable, int)
+ * recorded} into a {@link MetadataTable}. The accessors of the metadata
+ * classes are resolved once, so that querying a tag costs a direct call.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class FrameMetadata {
+
+	/** The tag naming the camera which acquired a frame. */
+	public final static String CAMERA = "Camera";
+
+	/** The tags recorded by {@link #record(MetadataTable, int)}, besides {@link #CAMERA}. */
+	public final static String IMAGE_NUMBER = "ImageNumber", ELAPSED_TIME = "ElapsedTime-ms",
+			EXPOSURE = "Exposure-ms", X = "XPositionUm", Y = "YPositionUm", Z = "ZPositionUm", CHANNEL = "Channel";
+
+	private final MMGateway mm;
+	private final Object metadata;
+	private final MethodHandle hasTag;
+	private final MethodHandle getSingleTag;
+	private MethodHandle getValue;
+
+	/**
+	 * Constructs a metadata reader.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public FrameMetadata(final MMGateway mm) {
+		this.mm = mm;
+		metadata = mm.createMetadata();
+		hasTag = Reflection.bind(metadata, "HasTag", boolean.class, String.class);
+		getSingleTag = Reflection.bind(metadata, "GetSingleTag", Object.class, String.class);
+	}
+
+	/**
+	 * Pops the next frame off the circular buffer, together with its metadata.
+	 *
+	 * @return the pixels
+	 */
+	public Object popNextImage() {
+		return mm.popNextImageMD(metadata);
+	}
+
+	/**
+	 * Gets a tag of the most recently popped frame.
+	 *
+	 * @param key the name of the tag
+	 * @return the value, or null if the frame does not have that tag
+	 */
+	public String get(final String key) {
+		try {
+			if (!(boolean) hasTag.invokeExact(key)) return null;
+			final Object tag = (Object) getSingleTag.invokeExact(key);
+			if (getValue == null) {
+				getValue = Reflection.findVirtual(tag.getClass(), "GetValue", String.class);
+			}
+			return (String) getValue.invokeExact(tag);
+		} catch (final Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Copies the tags of the most recently popped frame into a row of a table.
+	 * Values the frame has no tags for are left alone.
+	 *
+	 * @param table the table
+	 * @param row the row
+	 */
+	public void record(final MetadataTable table, final int row) {
+		String value = get(IMAGE_NUMBER);
+		if (value != null) table.setImageNumber(row, Long.parseLong(value.trim()));
+		value = get(ELAPSED_TIME);
+		if (value != null) table.setElapsedTime(row, Double.parseDouble(value));
+		value = get(EXPOSURE);
+		if (value != null) table.setExposure(row, Double.parseDouble(value));
+		final String x = get(X), y = get(Y);
+		if (x != null && y != null) table.setXY(row, Double.parseDouble(x), Double.parseDouble(y));
+		value = get(Z);
+		if (value != null) table.setZ(row, Double.parseDouble(value));
+		value = get(CAMERA);
+		if (value != null) table.setCamera(row, value);
+		value = get(CHANNEL);
+		if (value != null) table.setChannel(row, value);
+	}
+
+	/**
+	 * @return the underlying <i>mmcorej.Metadata</i> instance
+	 */
+	public Object getMetadata() {
+		return metadata;
+	}
+}
@@ -0,0 +1,175 @@
+package org.knime.knip.mm;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles pixel buffers, so that processing frames does not allocate a new
+ * array per frame.
+ * <p>
+ * At 100 frames per second, a 4-megapixel camera produces about 800 MB of
+ * pixel arrays per second; allocating that much for every stage of the
+ * processing keeps the garbage collector busy and eventually stalls the
+ * acquisition. Stages that need a buffer {@link #borrow(PixelFormat, int)
+ * borrow} one of the right format and size instead, and the buffer comes back
+ * to the pool when the last {@link PooledFrame reference} to it is released.
+ * Buffers are kept per format and size, up to a given number each; beyond
+ * that, released buffers are left to the garbage collector.
+ * </p>
+ * <p>
+ * MMCoreJ returns every frame in a newly allocated array and offers no way to
+ * fill a given one. Such arrays can be {@link #adopt(Object) adopted}, so that
+ * they serve as buffers for the following stages once their frame has been
+ * processed.
+ * </p>
+ */
+public class FramePool {
+
+	private final static int DEFAULT_MAX_IDLE = 16;
+
+	private final int maxIdle;
+
+	/** The idle buffers, by format and size; there are only ever a few of them. */
+	private final List<Shape> shapes = new ArrayList<Shape>();
+
+	private long allocated, recycled;
+
+	/**
+	 * Constructs a pool keeping up to 16 idle buffers per format and size.
+	 */
+	public FramePool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Constructs a pool.
+	 *
+	 * @param maxIdle the maximal number of idle buffers kept per format and size
+	 */
+	public FramePool(final int maxIdle) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("Invalid number of idle buffers: " + maxIdle);
+		}
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Borrows a buffer. Its contents are undefined.
+	 *
+	 * @param format the pixel format
+	 * @param length the number of pixels
+	 * @return the buffer, with a single reference held by the caller
+	 */
+	public PooledFrame borrow(final PixelFormat format, final int length) {
+		PooledFrame frame;
+		synchronized (this) {
+			frame = shape(format, length).idle.poll();
+			if (frame != null) {
+				recycled++;
+			}
+			else {
+				allocated++;
+			}
+		}
+		if (frame == null) {
+			frame = new PooledFrame(this, format, format.newArray(length), length);
+		}
+		frame.reset();
+		return frame;
+	}
+
+	/**
+	 * Copies pixels into a borrowed buffer.
+	 *
+	 * @param pixels the pixels, e.g. as returned by {@link MMGateway#getImage()}
+	 * @return the buffer holding a copy of the pixels, with a single reference
+	 *         held by the caller
+	 */
+	public PooledFrame copyOf(final Object pixels) {
+		final int length = Array.getLength(pixels);
+		final PooledFrame frame = borrow(PixelFormat.of(pixels), length);
+		System.arraycopy(pixels, 0, frame.getPixels(), 0, length);
+		return frame;
+	}
+
+	/**
+	 * Takes over a pixel array, so that it is recycled once released.
+	 *
+	 * @param pixels the pixels, e.g. as returned by
+	 *          {@link MMGateway#popNextImage()}; they must not be referenced
+	 *          elsewhere
+	 * @return the frame wrapping the array, with a single reference held by the
+	 *         caller
+	 */
+	public PooledFrame adopt(final Object pixels) {
+		final PooledFrame frame = new PooledFrame(this, PixelFormat.of(pixels), pixels, Array.getLength(pixels));
+		frame.reset();
+		return frame;
+	}
+
+	/**
+	 * Drops all idle buffers.
+	 */
+	public synchronized void clear() {
+		shapes.clear();
+	}
+
+	/**
+	 * @return the number of idle buffers
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (final Shape shape : shapes) {
+			count += shape.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of buffers that had to be allocated
+	 */
+	public synchronized long getAllocatedCount() {
+		return allocated;
+	}
+
+	/**
+	 * @return the number of buffers that were handed out again
+	 */
+	public synchronized long getRecycledCount() {
+		return recycled;
+	}
+
+	/**
+	 * Takes back a buffer whose last reference was released.
+	 */
+	synchronized void recycle(final PooledFrame frame) {
+		final ArrayDeque<PooledFrame> idle = shape(frame.getFormat(), frame.getLength()).idle;
+		if (idle.size() < maxIdle) {
+			idle.push(frame);
+		}
+	}
+
+	private Shape shape(final PixelFormat format, final int length) {
+		for (int i = 0; i < shapes.size(); i++) {
+			final Shape shape = shapes.get(i);
+			if (shape.format == format && shape.length == length) return shape;
+		}
+		final Shape shape = new Shape(format, length);
+		shapes.add(shape);
+		return shape;
+	}
+
+	private static class Shape {
+
+		private final PixelFormat format;
+		private final int length;
+		private final ArrayDeque<PooledFrame> idle = new ArrayDeque<PooledFrame>();
+
+		private Shape(final PixelFormat format, final int length) {
+			this.format = format;
+			this.length = length;
+		}
+	}
+}
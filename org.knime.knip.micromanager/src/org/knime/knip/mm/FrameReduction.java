@@ -0,0 +1,544 @@
+package org.knime.knip.mm;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Reduces the frames of an acquisition while they arrive.
+ * <p>
+ * Often only a projection, an average or a binned version of the frames is
+ * needed. Instead of collecting every full-resolution frame, a reduction
+ * folds each frame into its result as soon as it is {@link #add(Object)
+ * added}, so that the memory needed scales with the size of the result rather
+ * than with the number of frames, and the result is ready the moment the
+ * acquisition ends. The work on each frame is split into stripes of rows that
+ * are reduced in parallel on a {@link ForkJoinPool}.
+ * </p>
+ * <p>
+ * Reductions are {@link FrameSink}s, so they can take the place of any other
+ * sink, e.g.:
+ * </p>
+ *
+ * <pre>
+ * final FrameReduction&lt;?&gt; projection = FrameReduction.max(PixelFormat.of(mm), width, height);
+ * for (Object pixels; (pixels = acquisition.take()) != null;) {
+ * 	projection.add(pixels);
+ * }
+ * final Img&lt;?&gt; img = projection.toImg();
+ * </pre>
+ * <p>
+ * Except for cropping, reductions support 8-bit and 16-bit grayscale frames.
+ * Frames must be added by one thread at a time.
+ * </p>
+ *
+ * @param <T> the pixel type of the result
+ */
+public abstract class FrameReduction<T> implements FrameSink<T> {
+
+	/** The minimal number of pixels reduced by one task. */
+	private final static int MIN_STRIPE_PIXELS = 1 << 16;
+
+	private static ForkJoinPool defaultPool;
+
+	protected final PixelFormat format;
+	protected final int width, height;
+	private final int rows, stripeRows;
+	private final ForkJoinPool pool;
+	private int count;
+
+	/**
+	 * Constructs a reduction.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param rows the number of rows of the result; each of them is reduced by
+	 *          a single task
+	 * @param pool the pool to reduce on, or null for a shared one
+	 */
+	protected FrameReduction(final PixelFormat format, final long width, final long height, final int rows,
+		final ForkJoinPool pool)
+	{
+		if (width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Frame too large: " + width + "x" + height);
+		}
+		this.format = format;
+		this.width = (int) width;
+		this.height = (int) height;
+		this.rows = rows;
+		final long pixelsPerRow = rows == 0 ? 1 : Math.max(1, width * height / rows);
+		stripeRows = (int) Math.max(1, MIN_STRIPE_PIXELS / pixelsPerRow);
+		this.pool = pool != null ? pool : getDefaultPool();
+	}
+
+	/**
+	 * Called on the adding thread before a frame is reduced.
+	 *
+	 * @param frame the index of the frame
+	 */
+	protected void beginFrame(final int frame) {
+		// nothing to prepare by default
+	}
+
+	/**
+	 * Reduces a stripe of a frame. Stripes of the same frame are reduced
+	 * concurrently.
+	 *
+	 * @param pixels the pixels of the frame
+	 * @param frame the index of the frame
+	 * @param fromRow the first row of the result to compute
+	 * @param toRow the row of the result after the last one to compute
+	 */
+	protected abstract void reduce(final Object pixels, final int frame, final int fromRow, final int toRow);
+
+	/**
+	 * Called on the adding thread after a frame was reduced.
+	 *
+	 * @param frame the index of the frame
+	 */
+	protected void endFrame(final int frame) {
+		// nothing to finish by default
+	}
+
+	/**
+	 * Reduces a frame, in parallel stripes, and waits for it to be done.
+	 *
+	 * @param pixels the pixel array of the frame; it can be reused afterwards
+	 */
+	@Override
+	public void add(final Object pixels) {
+		if (PixelFormat.of(pixels) != format) {
+			throw new IllegalArgumentException("Expected " + format + " pixels, got " + PixelFormat.of(pixels));
+		}
+		final int length = Array.getLength(pixels);
+		if (length != width * height) {
+			throw new IllegalArgumentException("Expected " + width + "x" + height + " pixels, got " + length);
+		}
+		beginFrame(count);
+		pool.invoke(new Stripe(pixels, count, 0, rows));
+		endFrame(count);
+		count++;
+	}
+
+	/**
+	 * Reduces a pooled frame, in parallel stripes, and waits for it to be done;
+	 * the frame is not retained.
+	 *
+	 * @param frame the frame
+	 */
+	@Override
+	public void add(final PooledFrame frame) {
+		add(frame.getPixels());
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Does nothing: the result is held in memory.
+	 */
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	/**
+	 * Creates a maximum intensity projection.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the reduction, whose result is a width x height image
+	 */
+	public static FrameReduction<?> max(final PixelFormat format, final long width, final long height) {
+		return new Extremum<Object>(format, width, height, true);
+	}
+
+	/**
+	 * Creates a minimum intensity projection.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the reduction, whose result is a width x height image
+	 */
+	public static FrameReduction<?> min(final PixelFormat format, final long width, final long height) {
+		return new Extremum<Object>(format, width, height, false);
+	}
+
+	/**
+	 * Creates a mean intensity projection.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the reduction, whose result is a width x height floating-point
+	 *         image
+	 */
+	public static FrameReduction<FloatType> mean(final PixelFormat format, final long width, final long height) {
+		return new Mean(format, width, height);
+	}
+
+	/**
+	 * Averages groups of consecutive frames, e.g. to reduce noise. Frames of
+	 * an incomplete last group are dropped.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param frames the number of frames per group
+	 * @return the reduction, whose result is a width x height x groups image
+	 */
+	public static FrameReduction<?> average(final PixelFormat format, final long width, final long height,
+		final int frames)
+	{
+		return new Average<Object>(format, width, height, frames);
+	}
+
+	/**
+	 * Bins every frame, averaging blocks of pixels. Rows and columns that do
+	 * not fill a complete block are dropped.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param factor the edge length of the blocks
+	 * @return the reduction, whose result is a (width / factor) x (height /
+	 *         factor) x frames image
+	 */
+	public static FrameReduction<?> bin(final PixelFormat format, final long width, final long height,
+		final int factor)
+	{
+		return new Binning<Object>(format, width, height, factor);
+	}
+
+	/**
+	 * Crops every frame to a region of interest.
+	 *
+	 * @param format the pixel format of the frames
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param x the left edge of the region
+	 * @param y the top edge of the region
+	 * @param roiWidth the width of the region
+	 * @param roiHeight the height of the region
+	 * @return the reduction, whose result is a roiWidth x roiHeight x frames
+	 *         image
+	 */
+	public static FrameReduction<?> crop(final PixelFormat format, final long width, final long height,
+		final int x, final int y, final int roiWidth, final int roiHeight)
+	{
+		return new Crop<Object>(format, width, height, x, y, roiWidth, roiHeight);
+	}
+
+	private synchronized static ForkJoinPool getDefaultPool() {
+		if (defaultPool == null) {
+			defaultPool = new ForkJoinPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Gets an unsigned pixel value of an 8-bit or 16-bit frame.
+	 */
+	private static int get(final Object pixels, final int index) {
+		if (pixels instanceof short[]) return ((short[]) pixels)[index] & 0xffff;
+		return ((byte[]) pixels)[index] & 0xff;
+	}
+
+	/**
+	 * Gets a row of unsigned pixel values of an 8-bit or 16-bit frame.
+	 */
+	private static void toUnsigned(final Object pixels, final int offset, final int[] row) {
+		if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			for (int x = 0; x < row.length; x++) {
+				row[x] = shorts[offset + x] & 0xffff;
+			}
+		}
+		else {
+			final byte[] bytes = (byte[]) pixels;
+			for (int x = 0; x < row.length; x++) {
+				row[x] = bytes[offset + x] & 0xff;
+			}
+		}
+	}
+
+	/**
+	 * Sets an unsigned pixel value of an 8-bit or 16-bit frame.
+	 */
+	private static void set(final Object pixels, final int index, final int value) {
+		if (pixels instanceof short[]) {
+			((short[]) pixels)[index] = (short) value;
+		}
+		else {
+			((byte[]) pixels)[index] = (byte) value;
+		}
+	}
+
+	private static void checkIntegral(final PixelFormat format) {
+		if (format != PixelFormat.GRAY8 && format != PixelFormat.GRAY16) {
+			throw new IllegalArgumentException("Unsupported pixel format: " + format);
+		}
+	}
+
+	/**
+	 * Reduces a range of rows, splitting it in halves until it is small enough.
+	 */
+	private class Stripe extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Object pixels;
+		private final int frame, fromRow, toRow;
+
+		private Stripe(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			this.pixels = pixels;
+			this.frame = frame;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		protected void compute() {
+			if (toRow - fromRow <= stripeRows) {
+				reduce(pixels, frame, fromRow, toRow);
+				return;
+			}
+			final int middle = (fromRow + toRow) >>> 1;
+			invokeAll(new Stripe(pixels, frame, fromRow, middle), new Stripe(pixels, frame, middle, toRow));
+		}
+	}
+
+	private static class Extremum<T> extends FrameReduction<T> {
+
+		private final boolean max;
+		private final Object result;
+
+		private Extremum(final PixelFormat format, final long width, final long height, final boolean max) {
+			super(format, width, height, (int) height, null);
+			checkIntegral(format);
+			this.max = max;
+			result = format.newArray(this.width * this.height);
+		}
+
+		@Override
+		protected void reduce(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			final int from = fromRow * width, to = toRow * width;
+			if (frame == 0) {
+				System.arraycopy(pixels, from, result, from, to - from);
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				final int value = get(pixels, i);
+				if (max ? value > get(result, i) : value < get(result, i)) {
+					set(result, i, value);
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Img<T> toImg() {
+			if (size() == 0) {
+				throw new IllegalStateException("No frames were acquired");
+			}
+			return (Img<T>) format.wrap(result, width, height);
+		}
+	}
+
+	private static class Mean extends FrameReduction<FloatType> {
+
+		private final long[] sums;
+
+		private Mean(final PixelFormat format, final long width, final long height) {
+			super(format, width, height, (int) height, null);
+			checkIntegral(format);
+			sums = new long[this.width * this.height];
+		}
+
+		@Override
+		protected void reduce(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			for (int i = fromRow * width, to = toRow * width; i < to; i++) {
+				sums[i] += get(pixels, i);
+			}
+		}
+
+		@Override
+		public Img<FloatType> toImg() {
+			if (size() == 0) {
+				throw new IllegalStateException("No frames were acquired");
+			}
+			final float[] mean = new float[sums.length];
+			for (int i = 0; i < mean.length; i++) {
+				mean[i] = sums[i] / (float) size();
+			}
+			return ArrayImgs.floats(mean, width, height);
+		}
+	}
+
+	private static class Average<T> extends FrameReduction<T> {
+
+		private final int frames;
+		private final int[] sums;
+		private final PlanarFrameSink<?, ?> result;
+		private Object plane;
+
+		private Average(final PixelFormat format, final long width, final long height, final int frames) {
+			super(format, width, height, (int) height, null);
+			checkIntegral(format);
+			// the sums of 16-bit values must not overflow
+			if (frames < 1 || frames > 32768) {
+				throw new IllegalArgumentException("Invalid number of frames to average: " + frames);
+			}
+			this.frames = frames;
+			sums = new int[this.width * this.height];
+			result = format.createSink(width, height);
+		}
+
+		@Override
+		protected void beginFrame(final int frame) {
+			if (frame % frames == frames - 1) {
+				plane = format.newArray(sums.length);
+			}
+		}
+
+		@Override
+		protected void reduce(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			final int from = fromRow * width, to = toRow * width;
+			final int index = frame % frames;
+			for (int i = from; i < to; i++) {
+				sums[i] = (index == 0 ? 0 : sums[i]) + get(pixels, i);
+			}
+			if (index == frames - 1) {
+				for (int i = from; i < to; i++) {
+					set(plane, i, (sums[i] + frames / 2) / frames);
+				}
+			}
+		}
+
+		@Override
+		protected void endFrame(final int frame) {
+			if (plane != null) {
+				result.add(plane);
+				plane = null;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Img<T> toImg() {
+			return (Img<T>) result.toImg();
+		}
+	}
+
+	private static class Binning<T> extends FrameReduction<T> {
+
+		private final int factor, binnedWidth;
+		private final PlanarFrameSink<?, ?> result;
+		private Object plane;
+
+		private Binning(final PixelFormat format, final long width, final long height, final int factor) {
+			super(format, width, height, (int) (height / Math.max(factor, 1)), null);
+			checkIntegral(format);
+			if (factor < 1 || factor > width || factor > height) {
+				throw new IllegalArgumentException("Invalid binning factor: " + factor);
+			}
+			this.factor = factor;
+			binnedWidth = this.width / factor;
+			result = format.createSink(binnedWidth, this.height / factor);
+		}
+
+		@Override
+		protected void beginFrame(final int frame) {
+			plane = format.newArray(binnedWidth * (height / factor));
+		}
+
+		@Override
+		protected void reduce(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			final int pixelsPerBin = factor * factor;
+			final int[] line = new int[width], sums = new int[binnedWidth];
+			for (int row = fromRow; row < toRow; row++) {
+				Arrays.fill(sums, 0);
+				for (int y = row * factor; y < (row + 1) * factor; y++) {
+					toUnsigned(pixels, y * width, line);
+					// one pass per offset in the bin keeps the inner loop long
+					for (int offset = 0; offset < factor; offset++) {
+						for (int column = 0, x = offset; column < binnedWidth; column++, x += factor) {
+							sums[column] += line[x];
+						}
+					}
+				}
+				for (int column = 0; column < binnedWidth; column++) {
+					set(plane, row * binnedWidth + column, (sums[column] + pixelsPerBin / 2) / pixelsPerBin);
+				}
+			}
+		}
+
+		@Override
+		protected void endFrame(final int frame) {
+			result.add(plane);
+			plane = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Img<T> toImg() {
+			return (Img<T>) result.toImg();
+		}
+	}
+
+	private static class Crop<T> extends FrameReduction<T> {
+
+		private final int x, y, roiWidth, roiHeight;
+		private final PlanarFrameSink<?, ?> result;
+		private Object plane;
+
+		private Crop(final PixelFormat format, final long width, final long height, final int x, final int y,
+			final int roiWidth, final int roiHeight)
+		{
+			super(format, width, height, roiHeight, null);
+			if (x < 0 || y < 0 || roiWidth < 1 || roiHeight < 1 || x + roiWidth > width || y + roiHeight > height) {
+				throw new IllegalArgumentException("Invalid region of interest: " + roiWidth + "x" + roiHeight +
+					"+" + x + "+" + y);
+			}
+			this.x = x;
+			this.y = y;
+			this.roiWidth = roiWidth;
+			this.roiHeight = roiHeight;
+			result = format.createSink(roiWidth, roiHeight);
+		}
+
+		@Override
+		protected void beginFrame(final int frame) {
+			plane = format.newArray(roiWidth * roiHeight);
+		}
+
+		@Override
+		protected void reduce(final Object pixels, final int frame, final int fromRow, final int toRow) {
+			for (int row = fromRow; row < toRow; row++) {
+				System.arraycopy(pixels, (y + row) * width + x, plane, row * roiWidth, roiWidth);
+			}
+		}
+
+		@Override
+		protected void endFrame(final int frame) {
+			result.add(plane);
+			plane = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Img<T> toImg() {
+			return (Img<T>) result.toImg();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer handing frames from one producer thread to
+ * one consumer thread.
+ * <p>
+ * Neither side ever blocks on a lock: {@link #offer} and {@link #poll} fail
+ * immediately when the buffer is full or empty, respectively, and the
+ * blocking variants {@link #put} and {@link #take} wait using a
+ * {@link Backoff}. A full buffer therefore pushes back on the producer, which
+ * in turn leaves the frames in Micro-Manager's circular buffer.
+ * </p>
+ *
+ * @param <T> the type of the elements
+ */
+public class FrameRingBuffer<T> {
+
+	private final AtomicReferenceArray<T> slots;
+	private final int mask;
+
+	/** The sequence number of the next element to take; written by the consumer only. */
+	private final AtomicLong head = new AtomicLong();
+	/** The sequence number of the next element to put; written by the producer only. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Constructs a ring buffer.
+	 *
+	 * @param capacity the minimal number of elements the buffer can hold; it is
+	 *          rounded up to the next power of two
+	 */
+	public FrameRingBuffer(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		final int size = Integer.highestOneBit(capacity - 1) << 1;
+		slots = new AtomicReferenceArray<T>(Math.max(1, size));
+		mask = slots.length() - 1;
+	}
+
+	/**
+	 * Adds an element, unless the buffer is full.
+	 * <p>
+	 * Must only be called by the producer thread.
+	 * </p>
+	 *
+	 * @param element the element to add
+	 * @return whether the element was added
+	 */
+	public boolean offer(final T element) {
+		if (element == null) throw new NullPointerException();
+		final long t = tail.get();
+		if (t - head.get() > mask) return false;
+		slots.lazySet((int) t & mask, element);
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Removes the oldest element, if any.
+	 * <p>
+	 * Must only be called by the consumer thread.
+	 * </p>
+	 *
+	 * @return the element, or null if the buffer is empty
+	 */
+	public T poll() {
+		final long h = head.get();
+		if (h >= tail.get()) return null;
+		final int index = (int) h & mask;
+		final T element = slots.get(index);
+		slots.lazySet(index, null);
+		head.lazySet(h + 1);
+		return element;
+	}
+
+	/**
+	 * Adds an element, waiting for space if necessary.
+	 *
+	 * @param element the element to add
+	 * @param backoff the wait strategy
+	 * @throws InterruptedException
+	 */
+	public void put(final T element, final Backoff backoff) throws InterruptedException {
+		for (int attempt = 0; !offer(element); attempt++) {
+			backoff.idle(attempt);
+		}
+	}
+
+	/**
+	 * Removes the oldest element, waiting for one if necessary.
+	 *
+	 * @param backoff the wait strategy
+	 * @return the element
+	 * @throws InterruptedException
+	 */
+	public T take(final Backoff backoff) throws InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			final T element = poll();
+			if (element != null) return element;
+			backoff.idle(attempt);
+		}
+	}
+
+	/**
+	 * @return the number of elements currently in the buffer
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return whether the buffer is currently empty
+	 */
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	/**
+	 * @return the number of elements the buffer can hold
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
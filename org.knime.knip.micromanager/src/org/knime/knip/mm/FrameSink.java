@@ -0,0 +1,43 @@
+package org.knime.knip.mm;
+
+import java.io.Closeable;
+
+import net.imglib2.img.Img;
+
+/**
+ * Collects the frames of a sequence acquisition into an image.
+ *
+ * @param <T> the pixel type of the resulting image
+ */
+public interface FrameSink<T> extends Closeable {
+
+	/**
+	 * Adds a frame.
+	 *
+	 * @param pixels the pixel array of the frame, as returned by
+	 *          {@link MMGateway#popNextImage()}
+	 */
+	void add(Object pixels);
+
+	/**
+	 * Adds a pooled frame. The sink retains the frame for as long as it needs
+	 * the pixels, so the caller can release its reference right away.
+	 *
+	 * @param frame the frame, e.g. as returned by
+	 *          {@link SequenceAcquisition#takeFrame(int, FramePool)}
+	 */
+	void add(PooledFrame frame);
+
+	/**
+	 * @return the number of frames added so far
+	 */
+	int size();
+
+	/**
+	 * Builds the image from the frames added so far.
+	 *
+	 * @return a width x height x frames image
+	 */
+	Img<T> toImg();
+
+}
@@ -0,0 +1,263 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the calls to the hardware, and runs commands on the thread that
+ * owns it.
+ * <p>
+ * CMMCore is not safe for concurrent callers. This executor guards it with a
+ * reentrant lock: synchronous calls (see {@link #confine(Class, Object)})
+ * {@link #enter() enter} the lock and run right on the calling thread, so that
+ * they cost no more than a lock acquisition. Asynchronous commands are
+ * enqueued on a lock-free queue, with a {@link Future} returned to the
+ * caller, and run one after the other on a dedicated hardware thread, in the
+ * order they were submitted. Independent commands can therefore be
+ * pipelined, i.e. submitted back to back without waiting for each other's
+ * results, and a command that consists of several core calls runs without
+ * other callers' calls interleaving. A synchronous call waits for the
+ * hardware thread to run the commands that were queued before it, so that it
+ * never overtakes them; it never runs queued commands itself.
+ * </p>
+ * <p>
+ * Commands that are submitted while holding the lock (e.g. by another
+ * command) run immediately, to avoid deadlocks.
+ * </p>
+ */
+public class HardwareExecutor extends AbstractExecutorService {
+
+	private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final Thread thread;
+	private volatile boolean sleeping;
+	private volatile boolean shutdown;
+
+	/**
+	 * Starts the hardware thread.
+	 *
+	 * @param name the name of the thread
+	 */
+	public HardwareExecutor(final String name) {
+		thread = new Thread(name) {
+
+			@Override
+			public void run() {
+				try {
+					loop();
+				}
+				finally {
+					terminated.countDown();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return whether the calling thread is the hardware thread
+	 */
+	public boolean isHardwareThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Acquires exclusive access to the hardware; every call must be paired
+	 * with a call to {@link #exit()}. The first (i.e. not nested) acquisition
+	 * waits until the hardware thread ran the commands that are still queued.
+	 */
+	public void enter() {
+		if (!queue.isEmpty() && !lock.isHeldByCurrentThread() && !isHardwareThread()) {
+			awaitQueued();
+		}
+		lock.lock();
+	}
+
+	/**
+	 * Releases the access acquired by {@link #enter()}.
+	 */
+	public void exit() {
+		lock.unlock();
+	}
+
+	/**
+	 * Runs a command on the hardware thread, or right away if the calling
+	 * thread holds the lock.
+	 * <p>
+	 * Commands submitted via {@link #submit(Callable)} and friends hand their
+	 * failures to the returned {@link Future}; a failing plain command is
+	 * reported to the uncaught exception handler of the thread that ran it,
+	 * which keeps running the remaining commands.
+	 * </p>
+	 */
+	@Override
+	public void execute(final Runnable command) {
+		if (lock.isHeldByCurrentThread()) {
+			command.run();
+			return;
+		}
+		if (shutdown) {
+			throw new RejectedExecutionException("The hardware thread was shut down");
+		}
+		queue.offer(command);
+		if (sleeping) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Runs a command with exclusive access to the hardware, on the calling
+	 * thread.
+	 *
+	 * @param command the command
+	 * @return the result of the command
+	 * @throws Exception the exception thrown by the command
+	 */
+	public <T> T call(final Callable<T> command) throws Exception {
+		enter();
+		try {
+			return command.call();
+		}
+		finally {
+			exit();
+		}
+	}
+
+	/**
+	 * Confines an object to this executor.
+	 * <p>
+	 * Every call to the returned object runs with exclusive access to the
+	 * hardware, on the calling thread. The returned object is generated by
+	 * the {@link BytecodeBinder}, so that calls are direct, without reflection
+	 * or boxing.
+	 * </p>
+	 *
+	 * @param iface the interface to implement
+	 * @param target the object to confine
+	 * @return the confined object
+	 */
+	public <T> T confine(final Class<T> iface, final T target) {
+		return BytecodeBinder.confine(iface, target, this);
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		LockSupport.unpark(thread);
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		final List<Runnable> pending = new ArrayList<Runnable>();
+		for (Runnable command; (command = queue.poll()) != null;) {
+			pending.add(command);
+		}
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	private void loop() {
+		for (;;) {
+			if (!queue.isEmpty()) {
+				lock.lock();
+				try {
+					runQueued();
+				}
+				finally {
+					lock.unlock();
+				}
+				continue;
+			}
+			if (shutdown) break;
+			sleeping = true;
+			// re-check: a command may have been enqueued before the flag was visible
+			if (queue.isEmpty() && !shutdown) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+	}
+
+	/**
+	 * Waits until the commands queued so far have run, by queuing a marker
+	 * behind them. Like acquiring the lock, this cannot be interrupted.
+	 */
+	private void awaitQueued() {
+		final CountDownLatch done = new CountDownLatch(1);
+		queue.offer(new Runnable() {
+
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		if (sleeping) {
+			LockSupport.unpark(thread);
+		}
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				if (done.await(100, TimeUnit.MILLISECONDS)) break;
+			}
+			catch (final InterruptedException e) {
+				interrupted = true;
+				continue;
+			}
+			if (isTerminated()) {
+				// the hardware thread is gone, so nobody else will run the leftovers
+				lock.lock();
+				try {
+					runQueued();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the queued commands; the lock must be held.
+	 */
+	private void runQueued() {
+		for (Runnable command; (command = queue.poll()) != null;) {
+			try {
+				command.run();
+			}
+			catch (final Throwable t) {
+				// plain commands must not stop the runner from running the others
+				final Thread current = Thread.currentThread();
+				current.getUncaughtExceptionHandler().uncaughtException(current, t);
+			}
+		}
+	}
+}
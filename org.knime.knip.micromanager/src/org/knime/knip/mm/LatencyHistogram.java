@@ -0,0 +1,103 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies.
+ * <p>
+ * Latencies are counted in buckets of powers of two nanoseconds, which keeps
+ * recording down to a handful of atomic increments while still resolving
+ * everything from sub-microsecond calls to multi-second waits within a factor
+ * of two.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	private final static int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(nanos, 0);
+		// bucket i holds [2^i, 2^(i+1)); 0 goes to the first one
+		counts.incrementAndGet(value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records the latency of an operation that started at the given time.
+	 *
+	 * @param startNanos the start time, as per {@link System#nanoTime()}
+	 */
+	public void recordSince(final long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency in milliseconds
+	 */
+	public double getMean() {
+		final long n = count.get();
+		return n == 0 ? 0 : total.get() / 1e6 / n;
+	}
+
+	/**
+	 * @return the maximal latency in milliseconds
+	 */
+	public double getMax() {
+		return max.get() / 1e6;
+	}
+
+	/**
+	 * Estimates a percentile.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, in
+	 *         milliseconds
+	 */
+	public double getPercentile(final double percentile) {
+		final long n = count.get();
+		if (n == 0) return 0;
+		final long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, max.get()) / 1e6;
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Forgets all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+}
@@ -0,0 +1,208 @@
+package org.knime.knip.mm;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A live preview, e.g. for focusing and finding samples.
+ * <p>
+ * The camera runs a continuous sequence acquisition, and a background thread
+ * keeps only the newest frame: whenever frames arrived, it fetches the last
+ * one and clears Micro-Manager's circular buffer, so stale frames are dropped
+ * rather than queued and the buffer cannot overflow however long the preview
+ * runs. The newest frame is published in a single lock-free slot, which
+ * viewers poll without allocating anything; the preview lags behind the
+ * camera by about one frame interval.
+ * </p>
+ * <p>
+ * Only the last channel of multi-channel cameras is previewed.
+ * </p>
+ * <p>
+ * Typical use:
+ * </p>
+ *
+ * <pre>
+ * final LiveView live = new LiveView(mm);
+ * live.start(0);
+ * ...
+ * // in the viewer's refresh loop
+ * final LiveView.Frame frame = live.getLatestFrame();
+ * if (frame != null &amp;&amp; frame.number != shown) {
+ * 	display(frame.pixels);
+ * 	shown = frame.number;
+ * }
+ * ...
+ * live.close();
+ * </pre>
+ */
+public class LiveView implements Closeable {
+
+	/**
+	 * A previewed frame.
+	 */
+	public static class Frame {
+
+		/** The pixels, as returned by {@link MMGateway#getLastImage()}. */
+		public final Object pixels;
+
+		/** The number of the frame, counting from 1; skipped frames are not counted. */
+		public final long number;
+
+		/** The time the frame was fetched, as per {@link System#nanoTime()}. */
+		public final long nanoTime;
+
+		private Frame(final Object pixels, final long number, final long nanoTime) {
+			this.pixels = pixels;
+			this.number = number;
+			this.nanoTime = nanoTime;
+		}
+	}
+
+	private final MMGateway mm;
+	private final AtomicReference<Frame> latest = new AtomicReference<Frame>();
+
+	private String camera;
+	private Backoff backoff;
+	private Thread thread;
+	private volatile boolean stopRequested;
+	private volatile Throwable failure;
+	private volatile long skippedFrames;
+
+	/**
+	 * Constructs a live preview.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public LiveView(final MMGateway mm) {
+		this.mm = mm;
+	}
+
+	/**
+	 * Starts the camera and the preview.
+	 *
+	 * @param intervalMs the interval between frames, or 0 to run the camera as
+	 *          fast as it can
+	 */
+	public synchronized void start(final double intervalMs) {
+		if (thread != null) {
+			throw new IllegalStateException("Live view already started");
+		}
+		camera = mm.getCameraDevice();
+		backoff = new Backoff(Math.max(intervalMs, mm.getExposure()));
+		mm.clearCircularBuffer();
+		mm.startContinuousSequenceAcquisition(intervalMs);
+		thread = new Thread("Micro-Manager live view") {
+
+			@Override
+			public void run() {
+				preview();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the newest frame.
+	 * <p>
+	 * This method never blocks and never allocates.
+	 * </p>
+	 *
+	 * @return the newest frame, or null if none arrived yet
+	 * @throws RuntimeException if the preview failed
+	 */
+	public Frame getLatestFrame() {
+		if (failure != null) {
+			throw new RuntimeException("Live view failed", failure);
+		}
+		return latest.get();
+	}
+
+	/**
+	 * @return the number of frames that arrived while a newer one was already
+	 *         waiting, and were therefore never previewed
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	/**
+	 * @return whether the preview is running
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Stops the preview and the camera, and waits for the background thread to
+	 * finish.
+	 */
+	@Override
+	public void close() {
+		final Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+			if (thread == null || stopRequested) return;
+			stopRequested = true;
+		}
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			}
+			catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		try {
+			mm.stopSequenceAcquisition(camera);
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void preview() {
+		final AcquisitionMetrics metrics = mm.getMetrics();
+		// fetching the newest frame and clearing the buffer must not be interleaved with other calls
+		final Callable<Object> fetch = new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				final int remaining = mm.getRemainingImageCount();
+				if (remaining == 0) return null;
+				final Object pixels = mm.getLastImage();
+				mm.clearCircularBuffer();
+				skippedFrames += remaining - 1;
+				return pixels;
+			}
+		};
+		try {
+			long number = 0;
+			for (int attempt = 0; !stopRequested;) {
+				final Object pixels = mm.getHardwareExecutor().call(fetch);
+				if (pixels != null) {
+					final long now = System.nanoTime();
+					latest.set(new Frame(pixels, ++number, now));
+					metrics.frameReceived(now);
+					attempt = 0;
+				}
+				else if (!mm.isSequenceRunning(camera)) {
+					throw new IllegalStateException("The camera stopped acquiring");
+				}
+				else {
+					backoff.idle(attempt++);
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			// stop previewing
+		}
+		catch (final Throwable t) {
+			failure = t;
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package org.knime.knip.mm;
 
 import static org.knime.knip.mm.Reflection.construct;
-import static org.knime.knip.mm.Reflection.invoke;
+import static org.knime.knip.mm.Reflection.rethrow;
 
 import java.io.File;
 import java.io.IOException;
@@ -10,19 +10,46 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Wraps a CMMCore class of a given Micro-Manager installation via reflection.
+ * <p>
+ * Calls to the core are serialized by a {@link HardwareExecutor}: synchronous
+ * calls run on the calling thread, one at a time, once the hardware thread ran
+ * the commands queued before them; the {@link #async() asynchronous view}
+ * enqueues commands for the hardware thread without waiting.
+ * </p>
  * 
  * @author Johannes Schindelin
  */
 public class MMGateway {
 
 	private static final String CMMCORE_CLASS_NAME = "mmcorej.CMMCore";
+	private static final String CORE_LABEL = "Core";
+	private static final String STATE = "State";
+	private static final String LABEL = "Label";
+	private final File directory;
 	private final ClassLoader loader;
 	private final Object core;
-	private final boolean suggestMissingMethods = true;
+
+	private final CoreBinding binding;
+	private final CoreBinding exposedBinding;
+	private final CoreVectors.Strings strVectors;
+	private final CoreVectors.Doubles doubleVectors;
+	private final PropertyCache properties = new PropertyCache();
+	private final AcquisitionMetrics metrics = new AcquisitionMetrics();
+	private final HardwareExecutor hardware = new HardwareExecutor("Micro-Manager hardware");
+	private final AsyncGateway async = new AsyncGateway(this, hardware);
+	private final BufferController bufferController = new BufferController(this);
 
 	private static MMGateway instance;
 
@@ -44,12 +71,20 @@ public class MMGateway {
 	/**
 	 * Initialize the Micro-Manager singleton
 	 * 
+	 * Once initialized, the singleton is returned for the same directory, so
+	 * that it can be {@link #configure(SystemConfiguration) reconfigured}
+	 * without reloading the native library.
+	 * 
 	 * @param microManagerDirectory the top-level Micro-Manager directory
 	 * @return the singleton
 	 */
 	public synchronized static MMGateway createInstance(final File microManagerDirectory) {
 		if (instance != null) {
-			throw new RuntimeException("Micro-Manager can only be configured once!");
+			if (!instance.directory.equals(microManagerDirectory.getAbsoluteFile())) {
+				throw new RuntimeException("Micro-Manager was already loaded from " + instance.directory +
+					"; switching installations requires a restart");
+			}
+			return instance;
 		}
 		try {
 			return instance = new MMGateway(microManagerDirectory);
@@ -88,33 +123,138 @@ public class MMGateway {
 		if (!mmcorej.exists()) {
 			throw new IOException("Could not find Micro-Manager at " + mmcorej);
 		}
+		directory = microManagerDirectory.getAbsoluteFile();
 		loader = new URLClassLoader(new URL[] { mmcorej.toURI().toURL() });
-		core = construct(loader, CMMCORE_CLASS_NAME);
-		verifySignatures();
-		if (suggestMissingMethods) {
-			suggestMissingMethods();
+		try {
+			// the executor guards the core from the start
+			core = hardware.call(new Callable<Object>() {
+
+				@Override
+				public Object call() {
+					return construct(loader, CMMCORE_CLASS_NAME);
+				}
+			});
+		}
+		catch (final Exception e) {
+			throw rethrow(e);
 		}
+		// verifying is only needed once per MMCoreJ.jar (and gateway version)
+		final VerificationCache verified = new VerificationCache();
+		final String key = verified.key(mmcorej);
+		if (!verified.contains(key)) {
+			verifySignatures();
+			verified.add(key);
+		}
+		try {
+			strVectors = BytecodeBinder.bindMembers(CoreVectors.Strings.class, loader.loadClass("mmcorej.StrVector"));
+			doubleVectors = BytecodeBinder.bindMembers(CoreVectors.Doubles.class,
+				loader.loadClass("mmcorej.DoubleVector"));
+		}
+		catch (final ClassNotFoundException e) {
+			throw rethrow(e);
+		}
+		final CoreBinding timed = BytecodeBinder.bind(CoreBinding.class, core, metrics);
+		binding = hardware.confine(CoreBinding.class, timed);
+		// calls past the gateway may change any property behind the cache's back
+		exposedBinding = BytecodeBinder.confine(CoreBinding.class, timed, hardware, new Runnable() {
+
+			@Override
+			public void run() {
+				properties.invalidate();
+			}
+		});
+		metrics.registerInBackground();
+	}
+
+	/**
+	 * Gets the complete CMMCore API.
+	 * <p>
+	 * Use this for the CMMCore methods that are not wrapped by the gateway.
+	 * Like the gateway's own calls, every call is serialized with all other
+	 * access to the core. Calls other than getters drop all cached property
+	 * values, since they may change properties without the gateway knowing.
+	 * </p>
+	 * 
+	 * @return the binding to the CMMCore instance
+	 */
+	public CoreBinding getCore() {
+		return exposedBinding;
+	}
+
+	/**
+	 * Gets the asynchronous view of this gateway.
+	 * 
+	 * @return the gateway whose calls return futures
+	 */
+	public AsyncGateway async() {
+		return async;
+	}
+
+	/**
+	 * Gets the executor that guards the core.
+	 * <p>
+	 * All calls to the core go through it: synchronous calls run one at a
+	 * time on their own thread, asynchronous ones are queued for the hardware
+	 * thread.
+	 * </p>
+	 * 
+	 * @return the core's executor
+	 */
+	public HardwareExecutor getHardwareExecutor() {
+		return hardware;
+	}
+
+	/**
+	 * Gets the instrumentation of this gateway: the latency of every call to
+	 * the core, and the frame and buffer statistics of acquisitions.
+	 * 
+	 * @return the metrics
+	 */
+	public AcquisitionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the shared controller of the circular buffer, which learns the
+	 * camera's and the consumers' speed from one acquisition to the next.
+	 * 
+	 * @return the controller
+	 */
+	public BufferController getBufferController() {
+		return bufferController;
 	}
 
 	private void verifySignatures() {
 		final StringBuilder builder = new StringBuilder();
 		final Class<?> coreClass = core.getClass();
+		final Map<String, List<Method>> coreMethods = new HashMap<String, List<Method>>();
+		for (final Method method : coreClass.getMethods()) {
+			List<Method> overloads = coreMethods.get(method.getName());
+			if (overloads == null) {
+				overloads = new ArrayList<Method>();
+				coreMethods.put(method.getName(), overloads);
+			}
+			overloads.add(method);
+		}
+		final Set<String> wrapped = new HashSet<String>();
+		for (final Method method : CoreBinding.class.getMethods()) {
+			wrapped.add(method.getName() + Arrays.toString(method.getParameterTypes()));
+		}
 		for (final Method method : getClass().getMethods()) {
-			if ((method.getModifiers() & Modifier.STATIC) != 0) {
+			if ((method.getModifiers() & Modifier.STATIC) != 0 ||
+				!wrapped.contains(method.getName() + Arrays.toString(method.getParameterTypes())))
+			{
 				continue;
 			}
-			try {
-				final Method found = coreClass.getMethod(method.getName(), method.getParameterTypes());
-				if (!method.getReturnType().isAssignableFrom(found.getReturnType())) {
-					builder.append(method.getName()).append("(").append(Arrays.toString(method.getParameterTypes()))
-						.append(") has incorrect return type: ").append(method.getReturnType().getName())
-						.append(" != ").append(found.getReturnType()).append("\n");
-				}
-			} catch (NoSuchMethodException e) {
-				builder.append(method.getName()).append("(").append(method.getParameterTypes())
-				.append(") not found in class ").append(coreClass.getName());
-			} catch (SecurityException e) {
-				throw new RuntimeException(e);
+			final Method found = findCoreMethod(coreMethods.get(method.getName()), method);
+			if (found == null) {
+				builder.append(method.getName()).append("(").append(Arrays.toString(method.getParameterTypes()))
+					.append(") not found in class ").append(coreClass.getName()).append("\n");
+			}
+			else if (!method.getReturnType().isAssignableFrom(found.getReturnType())) {
+				builder.append(method.getName()).append("(").append(Arrays.toString(method.getParameterTypes()))
+					.append(") has incorrect return type: ").append(method.getReturnType().getName())
+					.append(" != ").append(found.getReturnType()).append("\n");
 			}
 		}
 		if (builder.length() > 0) {
@@ -122,255 +262,1109 @@ public class MMGateway {
 		}
 	}
 
-	private void suggestMissingMethods() {
-		final Class<?> coreClass = core.getClass();
-		final Class<?> thisClass = getClass();
-		for (final Method method : coreClass.getMethods()) {
-			try {
-				thisClass.getMethod(method.getName(), method.getParameterTypes());
-				continue;
-			} catch (NoSuchMethodException e) {
-				// fall through
-			} catch (SecurityException e) {
-				throw new RuntimeException(e);
+	/**
+	 * Finds the core method a wrapper delegates to; <i>mmcorej</i> types are
+	 * passed as {@link Object} by the wrappers.
+	 */
+	private static Method findCoreMethod(final List<Method> overloads, final Method wrapper) {
+		if (overloads == null) return null;
+		for (final Method method : overloads) {
+			if (Reflection.doTypesMatch(method.getParameterTypes(), wrapper.getParameterTypes())) {
+				return method;
 			}
-			final Class<?>[] parameterTypes = method.getParameterTypes();
-			final String[] parameterNames = new String[parameterTypes.length];
-			for (int i = 0; i < parameterNames.length; i++) {
-				if (parameterTypes[i].getName().startsWith("mmcorej.")) {
-					parameterTypes[i] = Object.class;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Iterable<String> getDeviceAdapterNames() {
+		try {
+			return (Iterable<String>) binding.getDeviceAdapterNames();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Loads a system configuration file, keeping the devices that are loaded
+	 * already and unchanged.
+	 * 
+	 * @param fileName the path of the configuration file
+	 * @see #configure(SystemConfiguration)
+	 */
+	public void loadSystemConfiguration(final String fileName) {
+		try {
+			configure(SystemConfiguration.read(new File(fileName)));
+		} catch (final IOException e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Switches the core to a system configuration.
+	 * <p>
+	 * Loading and initializing devices is what makes configuring the core
+	 * slow, so devices that are loaded already are kept if the configuration
+	 * has them with the same label, adapter, pre-initialization properties and
+	 * hub, and the hub is kept, too. All other devices are unloaded, the
+	 * missing ones loaded, attached to their hubs and initialized (hubs first),
+	 * and then the configuration's remaining commands (roles, presets, pixel
+	 * sizes etc.) are run one by one, replacing the previous configuration
+	 * groups. To recover from a device error, {@link #unloadDevice(String)
+	 * unload} the device before reconfiguring, so that it is loaded anew.
+	 * </p>
+	 * <p>
+	 * If a device fails to load or initialize, the devices loaded by this call
+	 * are unloaded again, so that no uninitialized devices are left behind;
+	 * the kept ones stay loaded. If one of the remaining commands fails, all
+	 * devices stay loaded and initialized, and the commands after it are not
+	 * run.
+	 * </p>
+	 * 
+	 * @param configuration the configuration
+	 * @return the labels of the devices that were kept
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> configure(final SystemConfiguration configuration) {
+		hardware.enter();
+		try {
+			properties.invalidate();
+			if (binding.isSequenceRunning()) {
+				binding.stopSequenceAcquisition();
+			}
+			final List<String> unload = new ArrayList<String>();
+			final Set<String> kept = new LinkedHashSet<String>();
+			for (final String label : (Iterable<String>) binding.getLoadedDevices()) {
+				if (CORE_LABEL.equals(label)) continue;
+				if (isUnchanged(label, configuration.getDevice(label))) {
+					kept.add(label);
+				}
+				else {
+					unload.add(label);
 				}
-				parameterNames[i] = "arg" + i;
 			}
-
-			final StringBuilder builder = new StringBuilder();
-			String returnType = method.getReturnType().getName();
-			if (returnType.startsWith("mmcorej.")) {
-				returnType = "Object";
+			// a peripheral was initialized with its hub, so it goes with it
+			for (boolean changed = true; changed;) {
+				changed = false;
+				for (final String label : new ArrayList<String>(kept)) {
+					final String hub = configuration.getDevice(label).getParent();
+					if (hub != null && !kept.contains(hub)) {
+						kept.remove(label);
+						unload.add(0, label);
+						changed = true;
+					}
+				}
 			}
-			else {
-				returnType = returnType.substring(returnType.lastIndexOf('.') + 1);
+			for (final String label : unload) {
+				binding.unloadDevice(label);
+			}
+			for (final String group : (Iterable<String>) binding.getAvailableConfigGroups()) {
+				binding.deleteConfigGroup(group);
+			}
+
+			final List<String> loaded = new ArrayList<String>();
+			try {
+				for (final SystemConfiguration.Device device : configuration.getDevices()) {
+					if (kept.contains(device.getLabel())) continue;
+					binding.loadDevice(device.getLabel(), device.getLibrary(), device.getAdapter());
+					loaded.add(device.getLabel());
+					for (final Map.Entry<String, String> entry : device.getPreInitProperties().entrySet()) {
+						binding.setProperty(device.getLabel(), entry.getKey(), entry.getValue());
+					}
+				}
+				final Set<String> hubs = new HashSet<String>();
+				for (final SystemConfiguration.Device device : configuration.getDevices()) {
+					if (device.getParent() == null || kept.contains(device.getLabel())) continue;
+					binding.setParentLabel(device.getLabel(), device.getParent());
+					hubs.add(device.getParent());
+				}
+				for (final String label : loaded) {
+					if (hubs.contains(label)) binding.initializeDevice(label);
+				}
+				for (final String label : loaded) {
+					if (!hubs.contains(label)) binding.initializeDevice(label);
+				}
 			}
-			builder.append("\tpublic ").append(returnType).append(" ").append(method.getName()).append("(");
-			for (int i = 0; i < parameterTypes.length; i++) {
-				if (i > 0) {
-					builder.append(", ");
+			catch (final Exception e) {
+				for (final String label : loaded) {
+					try {
+						binding.unloadDevice(label);
+					}
+					catch (final Exception e2) {
+						// report the original error
+					}
 				}
-				String type = parameterTypes[i].getName();
-				type = type.substring(type.lastIndexOf('.') + 1);
-				builder.append("final ").append(type).append(" ").append(parameterNames[i]);
+				throw e;
+			}
+			runSettings(configuration.getSettings());
+			return kept;
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			properties.invalidate();
+			hardware.exit();
+		}
+	}
+
+	/**
+	 * Determines whether a loaded device matches a device of a configuration.
+	 */
+	private boolean isUnchanged(final String label, final SystemConfiguration.Device device) throws Exception {
+		if (device == null || !device.getLibrary().equals(binding.getDeviceLibrary(label)) ||
+			!device.getAdapter().equals(binding.getDeviceName(label)))
+		{
+			return false;
+		}
+		for (final Map.Entry<String, String> entry : device.getPreInitProperties().entrySet()) {
+			try {
+				if (!entry.getValue().equals(binding.getProperty(label, entry.getKey()))) return false;
+			}
+			catch (final Exception e) {
+				return false;
 			}
-			builder.append(") {\n\t\t");
-			if (method.getReturnType() != Void.TYPE) {
-				builder.append("return ");
+		}
+		if (device.getParent() != null) {
+			try {
+				return device.getParent().equals(binding.getParentLabel(label));
 			}
-			builder.append("invoke(core, \"").append(method.getName()).append("\"");
-			for (int i = 0; i < parameterTypes.length; i++) {
-				builder.append(", ").append(parameterNames[i]);
+			catch (final Exception e) {
+				return false;
 			}
-			builder.append(");\n\t}\n");
-			System.err.println(builder.toString());
 		}
+		return true;
 	}
 
-	public Iterable<String> getDeviceAdapterNames() {
-		return invoke(core, "getDeviceAdapterNames");
+	/**
+	 * Runs configuration commands one by one. Unlike loading them as a
+	 * configuration file, this leaves the devices alone if a command fails.
+	 */
+	private void runSettings(final List<String> settings) throws Exception {
+		for (final String line : settings) {
+			try {
+				runSetting(line.split(",", -1));
+			}
+			catch (final Exception e) {
+				throw new RuntimeException("Could not run configuration command \"" + line + "\"", e);
+			}
+		}
 	}
 
-	public void loadSystemConfiguration(final String fileName) {
-		invoke(core, "loadSystemConfiguration", fileName);
+	/**
+	 * Runs a configuration command, the way the core's configuration file
+	 * parser does.
+	 */
+	private void runSetting(final String[] tokens) throws Exception {
+		final String command = tokens[0];
+		if (command.equals("Property") && tokens.length == 4) {
+			binding.setProperty(tokens[1], tokens[2], tokens[3]);
+		}
+		else if (command.equals("Label") && tokens.length == 4) {
+			binding.defineStateLabel(tokens[1], Integer.parseInt(tokens[2]), tokens[3]);
+		}
+		else if (command.equals("Delay") && tokens.length == 3) {
+			binding.setDeviceDelayMs(tokens[1], Double.parseDouble(tokens[2]));
+		}
+		else if (command.equals("FocusDirection") && tokens.length == 3) {
+			binding.setFocusDirection(tokens[1], Integer.parseInt(tokens[2]));
+		}
+		else if (command.equals("ConfigGroup") && tokens.length == 3) {
+			// an empty group, or a preset without settings
+			if (tokens[2].equals("Create")) binding.defineConfigGroup(tokens[1]);
+			else binding.defineConfig(tokens[1], tokens[2]);
+		}
+		else if (command.equals("ConfigGroup") && tokens.length == 6) {
+			binding.defineConfig(tokens[1], tokens[2], tokens[3], tokens[4], tokens[5]);
+		}
+		else if (command.equals("ConfigPixelSize") && tokens.length == 5) {
+			binding.definePixelSizeConfig(tokens[1], tokens[2], tokens[3], tokens[4]);
+		}
+		else if (command.equals("PixelSize_um") && tokens.length == 3) {
+			binding.setPixelSizeUm(tokens[1], Double.parseDouble(tokens[2]));
+		}
+		else if (command.equals("PixelSizeAffine") && tokens.length == 8) {
+			final double[] affine = new double[6];
+			for (int i = 0; i < affine.length; i++) {
+				affine[i] = Double.parseDouble(tokens[i + 2]);
+			}
+			binding.setPixelSizeAffine(tokens[1], toDoubleVector(affine));
+		}
+		else if (command.equals("Equipment") || command.equals("ImageSynchro")) {
+			// obsolete; the core ignores them, too
+		}
+		else {
+			throw new IllegalArgumentException("Unknown configuration command");
+		}
 	}
 
 	public void initializeAllDevices() {
-		invoke(core, "initializeAllDevices");
+		hardware.enter();
+		try {
+			properties.invalidate();
+			binding.initializeAllDevices();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public void setShutterOpen(final boolean state) {
-		invoke(core, "setShutterOpen", state);
+		hardware.enter();
+		try {
+			properties.invalidate(binding.getShutterDevice());
+			binding.setShutterOpen(state);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public void setAutoShutter(final boolean state) {
+		hardware.enter();
+		try {
+			properties.invalidate(CORE_LABEL);
+			binding.setAutoShutter(state);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public boolean getAutoShutter() {
+		try {
+			return binding.getAutoShutter();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void loadDevice(final String label, final String library, final String adapterName) {
-		invoke(core, "loadDevice", label, library, adapterName);
+		hardware.enter();
+		try {
+			properties.invalidate(label);
+			binding.loadDevice(label, library, adapterName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public void initializeDevice(final String label) {
+		hardware.enter();
+		try {
+			properties.invalidate(label);
+			binding.initializeDevice(label);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public void unloadDevice(final String label) {
+		hardware.enter();
+		try {
+			properties.invalidate();
+			binding.unloadDevice(label);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public void unloadAllDevices() {
+		hardware.enter();
+		try {
+			properties.invalidate();
+			binding.unloadAllDevices();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public Iterable<String> getLoadedDevices() {
+		try {
+			return (Iterable<String>) binding.getLoadedDevices();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public String getDeviceLibrary(final String label) {
+		try {
+			return binding.getDeviceLibrary(label);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public String getDeviceName(final String label) {
+		try {
+			return binding.getDeviceName(label);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void snapImage() {
-		invoke(core, "snapImage");
+		try {
+			binding.snapImage();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public Object getImage() {
-		return invoke(core, "getImage");
+		try {
+			return toPixels(binding.getImage());
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public Object getImage(final long numChannel) {
-		return invoke(core, "getImage", numChannel);
+		try {
+			return toPixels(binding.getImage(numChannel));
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public long getImageWidth() {
-		return invoke(core, "getImageWidth");
+		try {
+			return binding.getImageWidth();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public long getImageHeight() {
-		return invoke(core, "getImageHeight");
+		try {
+			return binding.getImageHeight();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public long getBytesPerPixel() {
-		return invoke(core, "getBytesPerPixel");
+		try {
+			return binding.getBytesPerPixel();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public long getImageBitDepth() {
-		return invoke(core, "getImageBitDepth");
+		try {
+			return binding.getImageBitDepth();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public long getNumberOfComponents() {
-		return invoke(core, "getNumberOfComponents");
+		try {
+			return binding.getNumberOfComponents();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
+	public long getNumberOfCameraChannels() {
+		try {
+			return binding.getNumberOfCameraChannels();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Gets the pixels of all channels of the last snapped image.
+	 * <p>
+	 * Multi-channel cameras (such as the Multi Camera device) deliver one pixel
+	 * array per channel; single-channel cameras deliver one array.
+	 * </p>
+	 * 
+	 * @return the pixel arrays, one per camera channel
+	 */
+	public Object[] getImages() {
+		final int channels = (int) getNumberOfCameraChannels();
+		if (channels <= 1) {
+			return new Object[] { getImage() };
+		}
+		final Object[] result = new Object[channels];
+		for (int c = 0; c < channels; c++) {
+			result[c] = getImage(c);
+		}
+		return result;
+	}
+
+	/*
+	 * Property writes go through a cache of the last known values: writing a
+	 * property's current value again is a no-op. Every access to the cache is
+	 * made while holding the hardware, together with the core call it
+	 * reflects, so that concurrent callers cannot record stale values. Calls
+	 * that change properties as a side effect (shutters, stages, the ROI,
+	 * presets, a state device's state or label) forget the values of the
+	 * devices they affect.
+	 */
+
 	public void setProperty(final String label, final String propName, final int propValue) {
-		invoke(core, "setProperty", label, propName, propValue);
+		setProperty(label, propName, propValue, String.valueOf(propValue));
 	}
 
 	public void setProperty(final String label, final String propName, final boolean propValue) {
-		invoke(core, "setProperty", label, propName, propValue);
+		setProperty(label, propName, propValue, propValue ? "1" : "0");
 	}
 
 	public void setProperty(final String label, final String propName, final String propValue) {
-		invoke(core, "setProperty", label, propName, propValue);
+		setProperty(label, propName, propValue, propValue);
 	}
 
 	public void setProperty(final String label, final String propName, final float propValue) {
-		invoke(core, "setProperty", label, propName, propValue);
+		setProperty(label, propName, propValue, String.valueOf(propValue));
 	}
 
 	public void setProperty(final String label, final String propName, final double propValue) {
-		invoke(core, "setProperty", label, propName, propValue);
+		setProperty(label, propName, propValue, String.valueOf(propValue));
 	}
 
 	public String getProperty(final String label, final String propName) {
-		return invoke(core, "getProperty", label, propName);
+		hardware.enter();
+		try {
+			final String value = binding.getProperty(label, propName);
+			properties.put(label, propName, value);
+			return value;
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	/**
+	 * Applies a batch of property writes.
+	 * <p>
+	 * Writes that would not change a property's last known value are dropped.
+	 * After the remaining writes were issued, this method waits for each device
+	 * that was written to, rather than for the whole system.
+	 * </p>
+	 * 
+	 * @param batch the property writes
+	 * @return the number of writes that were sent to the devices
+	 */
+	public int setProperties(final PropertyBatch batch) {
+		final Set<String> touched = new LinkedHashSet<String>();
+		final int writes = writeProperties(batch, touched);
+		for (final String label : touched) {
+			waitForDevice(label);
+		}
+		return writes;
+	}
+
+	/**
+	 * Issues a batch of property writes without waiting for the devices.
+	 * <p>
+	 * Like {@link #setProperties(PropertyBatch)}, writes that would not change a
+	 * property's last known value are dropped. The caller is responsible for
+	 * waiting for the touched devices, e.g. after overlapping their settling
+	 * with other work.
+	 * </p>
+	 * 
+	 * @param batch the property writes
+	 * @param touched receives the labels of the devices that were written to
+	 * @return the number of writes that were sent to the devices
+	 */
+	public int writeProperties(final PropertyBatch batch, final Set<String> touched) {
+		int writes = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			final String label = batch.labels.get(i);
+			final Object value = batch.values.get(i);
+			final String text = value instanceof Boolean ?
+				((Boolean) value ? "1" : "0") : String.valueOf(value);
+			if (setProperty(label, batch.propNames.get(i), value, text)) {
+				touched.add(label);
+				writes++;
+			}
+		}
+		return writes;
+	}
+
+	/**
+	 * Forgets all cached property values, e.g. after devices were changed
+	 * behind this gateway's back.
+	 */
+	public void invalidateProperties() {
+		properties.invalidate();
+	}
+
+	private boolean setProperty(final String label, final String propName, final Object value, final String text) {
+		hardware.enter();
+		try {
+			if (properties.isCurrent(label, propName, text)) {
+				return false;
+			}
+			if (STATE.equals(propName) || LABEL.equals(propName)) {
+				// a state device's state and label change together
+				properties.invalidate(label);
+			}
+			if (value instanceof String) {
+				binding.setProperty(label, propName, (String) value);
+			}
+			else if (value instanceof Integer) {
+				binding.setProperty(label, propName, ((Integer) value).intValue());
+			}
+			else if (value instanceof Boolean) {
+				binding.setProperty(label, propName, ((Boolean) value).booleanValue());
+			}
+			else if (value instanceof Float) {
+				binding.setProperty(label, propName, ((Float) value).floatValue());
+			}
+			else {
+				binding.setProperty(label, propName, ((Double) value).doubleValue());
+			}
+			properties.put(label, propName, text);
+			return true;
+		} catch (final Exception e) {
+			// the device may or may not have taken the value
+			properties.put(label, propName, null);
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public void setExposure(final String label, final double dExp) {
-		invoke(core, "setExposure", label, dExp);
+		hardware.enter();
+		try {
+			properties.put(label, "Exposure", null);
+			binding.setExposure(label, dExp);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public void setExposure(final double exp) {
-		invoke(core, "setExposure", exp);
+		hardware.enter();
+		try {
+			properties.put(binding.getCameraDevice(), "Exposure", null);
+			binding.setExposure(exp);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public double getExposure() {
-		return invoke(core, "getExposure");
+		try {
+			return binding.getExposure();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getCameraDevice() {
-		return invoke(core, "getCameraDevice");
+		try {
+			return binding.getCameraDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getShutterDevice() {
-		return invoke(core, "getShutterDevice");
+		try {
+			return binding.getShutterDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getFocusDevice() {
-		return invoke(core, "getFocusDevice");
+		try {
+			return binding.getFocusDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getXYStageDevice() {
-		return invoke(core, "getXYStageDevice");
+		try {
+			return binding.getXYStageDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getAutoFocusDevice() {
-		return invoke(core, "getAutoFocusDevice");
+		try {
+			return binding.getAutoFocusDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getImageProcessorDevice() {
-		return invoke(core, "getImageProcessorDevice");
+		try {
+			return binding.getImageProcessorDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getSLMDevice() {
-		return invoke(core, "getSLMDevice");
+		try {
+			return binding.getSLMDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public String getGalvoDevice() {
-		return invoke(core, "getGalvoDevice");
+		try {
+			return binding.getGalvoDevice();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public int getRemainingImageCount() {
-		return invoke(core, "getRemainingImageCount");
+		try {
+			return binding.getRemainingImageCount();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public int getBufferTotalCapacity() {
-		return invoke(core, "getBufferTotalCapacity");
+		try {
+			return binding.getBufferTotalCapacity();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public int getBufferFreeCapacity() {
-		return invoke(core, "getBufferFreeCapacity");
+		try {
+			return binding.getBufferFreeCapacity();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public boolean isBufferOverflowed() {
-		return invoke(core, "isBufferOverflowed");
+		try {
+			return binding.isBufferOverflowed();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void setCircularBufferMemoryFootprint(final long sizeMB) {
+		try {
+			binding.setCircularBufferMemoryFootprint(sizeMB);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public long getCircularBufferMemoryFootprint() {
+		try {
+			return binding.getCircularBufferMemoryFootprint();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public Object getLastImage() {
+		try {
+			return toPixels(binding.getLastImage());
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void clearCircularBuffer() {
+		try {
+			binding.clearCircularBuffer();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public Object popNextImage() {
-		return invoke(core, "popNextImage");
+		try {
+			return toPixels(binding.popNextImage());
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public Object popNextImageMD(final Object md) {
+		try {
+			return toPixels(binding.popNextImageMD(md));
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Creates an empty <i>mmcorej.Metadata</i> instance, e.g. to pass to
+	 * {@link #popNextImageMD(Object)}.
+	 * 
+	 * @return the metadata object
+	 */
+	public Object createMetadata() {
+		return construct(loader, "mmcorej.Metadata");
 	}
 
 	public void setROI(final int x, final int y, final int xSize, final int ySize) {
-		invoke(core, "setROI", x, y, xSize, ySize);
+		hardware.enter();
+		try {
+			properties.invalidate(binding.getCameraDevice());
+			binding.setROI(x, y, xSize, ySize);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public void startSequenceAcquisition(final String cameraLabel, final int numImages, final double intervalMs, final boolean stopOnOverflow) {
-		invoke(core, "startSequenceAcquisition", cameraLabel, numImages, intervalMs, stopOnOverflow);
+		try {
+			binding.startSequenceAcquisition(cameraLabel, numImages, intervalMs, stopOnOverflow);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void startSequenceAcquisition(final int numImages, final double intervalMs, final boolean stopOnOverflow) {
-		invoke(core, "startSequenceAcquisition", numImages, intervalMs, stopOnOverflow);
+		try {
+			binding.startSequenceAcquisition(numImages, intervalMs, stopOnOverflow);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void prepareSequenceAcquisition(final String cameraLabel) {
-		invoke(core, "prepareSequenceAcquisition", cameraLabel);
+		try {
+			binding.prepareSequenceAcquisition(cameraLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void startContinuousSequenceAcquisition(final double intervalMs) {
-		invoke(core, "startContinuousSequenceAcquisition", intervalMs);
+		try {
+			binding.startContinuousSequenceAcquisition(intervalMs);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void stopSequenceAcquisition() {
-		invoke(core, "stopSequenceAcquisition");
+		try {
+			binding.stopSequenceAcquisition();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void stopSequenceAcquisition(final String stopLabel) {
-		invoke(core, "stopSequenceAcquisition", stopLabel);
+		try {
+			binding.stopSequenceAcquisition(stopLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public boolean isSequenceRunning(final String arg0) {
-		return invoke(core, "isSequenceRunning", arg0);
+		try {
+			return binding.isSequenceRunning(arg0);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public boolean isSequenceRunning() {
-		return invoke(core, "isSequenceRunning");
+		try {
+			return binding.isSequenceRunning();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public boolean deviceBusy(final String deviceName) {
-		return invoke(core, "deviceBusy", deviceName);
+		try {
+			return binding.deviceBusy(deviceName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void waitForDevice(final String deviceName) {
-		invoke(core, "waitForDevice", deviceName);
+		try {
+			binding.waitForDevice(deviceName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Applies a preset of a configuration group.
+	 * <p>
+	 * A preset may set any properties of any devices, so this forgets all
+	 * cached property values.
+	 * </p>
+	 * 
+	 * @param group the configuration group
+	 * @param configName the preset
+	 */
+	public void setConfig(final String group, final String configName) {
+		hardware.enter();
+		try {
+			properties.invalidate();
+			binding.setConfig(group, configName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
 	}
 
 	public void waitForConfig(final String group, final String configName) {
-		invoke(core, "waitForConfig", group, configName);
+		try {
+			binding.waitForConfig(group, configName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public boolean systemBusy() {
-		return invoke(core, "systemBusy");
+		try {
+			return binding.systemBusy();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void waitForSystem() {
-		invoke(core, "waitForSystem");
+		try {
+			binding.waitForSystem();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public void waitForImageSynchro() {
-		invoke(core, "waitForImageSynchro");
+		try {
+			binding.waitForImageSynchro();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void setPosition(final String stageLabel, final double position) {
+		hardware.enter();
+		try {
+			properties.invalidate(stageLabel);
+			binding.setPosition(stageLabel, position);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public double getPosition(final String stageLabel) {
+		try {
+			return binding.getPosition(stageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void setXYPosition(final String xyStageLabel, final double x, final double y) {
+		hardware.enter();
+		try {
+			properties.invalidate(xyStageLabel);
+			binding.setXYPosition(xyStageLabel, x, y);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public double getXPosition(final String xyStageLabel) {
+		try {
+			return binding.getXPosition(xyStageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public double getYPosition(final String xyStageLabel) {
+		try {
+			return binding.getYPosition(xyStageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public double getPixelSizeUm() {
+		try {
+			return binding.getPixelSizeUm();
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public boolean isPropertySequenceable(final String label, final String propName) {
+		try {
+			return binding.isPropertySequenceable(label, propName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public int getPropertySequenceMaxLength(final String label, final String propName) {
+		try {
+			return binding.getPropertySequenceMaxLength(label, propName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Uploads a sequence of values to a sequenceable property; the device steps
+	 * through them on its hardware trigger once the sequence is started.
+	 * 
+	 * @param label the device label
+	 * @param propName the property name
+	 * @param values the values
+	 */
+	public void loadPropertySequence(final String label, final String propName, final String... values) {
+		final Object vector = toStrVector(values);
+		hardware.enter();
+		try {
+			properties.put(label, propName, null);
+			binding.loadPropertySequence(label, propName, vector);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		} finally {
+			hardware.exit();
+		}
+	}
+
+	public void startPropertySequence(final String label, final String propName) {
+		try {
+			binding.startPropertySequence(label, propName);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void stopPropertySequence(final String label, final String propName) {
+		try {
+			binding.stopPropertySequence(label, propName);
+			// the sequence may have stopped at any of its values
+			properties.put(label, propName, null);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public boolean isStageSequenceable(final String stageLabel) {
+		try {
+			return binding.isStageSequenceable(stageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public int getStageSequenceMaxLength(final String stageLabel) {
+		try {
+			return binding.getStageSequenceMaxLength(stageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Uploads a sequence of positions to a sequenceable stage; the stage steps
+	 * through them on its hardware trigger once the sequence is started.
+	 * 
+	 * @param stageLabel the stage label
+	 * @param positions the positions
+	 */
+	public void loadStageSequence(final String stageLabel, final double... positions) {
+		final Object vector = toDoubleVector(positions);
+		try {
+			binding.loadStageSequence(stageLabel, vector);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Packs RGB images, which MMCoreJ delivers as <code>byte[]</code> like 8-bit
+	 * grayscale ones, into <code>int[]</code>; see {@link PixelFormat}.
+	 */
+	private Object toPixels(final Object pixels) throws Exception {
+		if (pixels instanceof byte[] && binding.getNumberOfComponents() == 4) {
+			return PixelFormat.packBGRA((byte[]) pixels);
+		}
+		return pixels;
+	}
+
+	private Object toStrVector(final String... values) {
+		try {
+			final Object vector = strVectors.create();
+			for (final String value : values) {
+				strVectors.add(vector, value);
+			}
+			return vector;
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	private Object toDoubleVector(final double... values) {
+		try {
+			final Object vector = doubleVectors.create();
+			for (final double value : values) {
+				doubleVectors.add(vector, value);
+			}
+			return vector;
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void startStageSequence(final String stageLabel) {
+		try {
+			binding.startStageSequence(stageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
+	}
+
+	public void stopStageSequence(final String stageLabel) {
+		try {
+			binding.stopStageSequence(stageLabel);
+		} catch (final Exception e) {
+			throw rethrow(e);
+		}
 	}
 
 	public static void main(final String... args) throws IOException, SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException, ClassNotFoundException, InstantiationException {
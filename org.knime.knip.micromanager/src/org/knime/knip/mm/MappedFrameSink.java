@@ -0,0 +1,670 @@
+package org.knime.knip.mm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.AbstractCell;
+import net.imglib2.img.cell.AbstractCells;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Streams the frames of a sequence acquisition to disk.
+ * <p>
+ * Frames are appended as raw pixels to a data file; a small index (the data
+ * file's name plus <i>.idx</i>) records the frame geometry, the pixel type and
+ * where each frame starts. Writing goes through a single reusable direct
+ * buffer, so that ingesting a frame allocates nothing on the Java heap. The
+ * resulting image is a {@link CellImg} with one cell per frame, backed by a
+ * (copy-on-write) memory mapping of the data file: pixels are paged in by the
+ * operating system only when accessed, and the size of an acquisition is
+ * bounded by the disk, not the heap. Frames of cameras with fewer than 16 bits
+ * per pixel can be {@link #packedUnsignedShorts(File, long, long, int)
+ * packed} to their bit depth on the way, so that fewer bytes reach the disk.
+ * </p>
+ *
+ * @param <T> the pixel type of the image
+ * @param <A> the access type of the cells
+ */
+public abstract class MappedFrameSink<T extends NativeType<T>, A> implements FrameSink<T> {
+
+	private final static int INDEX_MAGIC = 0x4d4d4653; // "MMFS"
+	private final static int INDEX_VERSION = 1;
+
+	/** The largest region a single {@link MappedByteBuffer} can cover. */
+	private final static long MAX_MAPPING = Integer.MAX_VALUE;
+
+	private final File file;
+	private final String pixelType;
+	private final int width, height;
+	private final int frameBytes;
+	private final ByteOrder order;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private final ByteBuffer frame;
+	private long[] offsets = new long[64];
+	private int count;
+
+	private int framesPerMapping;
+	private MappedByteBuffer[] mappings;
+
+	/**
+	 * Constructs a sink writing to a new data file.
+	 *
+	 * @param file the data file
+	 * @param pixelType the name of the pixel type, as recorded in the index
+	 * @param bytesPerPixel the number of bytes per pixel
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @throws IOException
+	 */
+	protected MappedFrameSink(final File file, final String pixelType,
+		final int bytesPerPixel, final long width, final long height)
+		throws IOException
+	{
+		this(file, pixelType, width, height, bytesPerPixel * (int) (width * height));
+	}
+
+	/**
+	 * Constructs a sink writing frames of a given size to a new data file.
+	 *
+	 * @param file the data file
+	 * @param pixelType the name of the pixel type, as recorded in the index
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param frameBytes the number of bytes per frame
+	 * @throws IOException
+	 */
+	protected MappedFrameSink(final File file, final String pixelType,
+		final long width, final long height, final int frameBytes)
+		throws IOException
+	{
+		this.file = file;
+		this.pixelType = pixelType;
+		this.width = (int) width;
+		this.height = (int) height;
+		this.frameBytes = frameBytes;
+		order = ByteOrder.nativeOrder();
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		frame = ByteBuffer.allocateDirect(frameBytes).order(order);
+	}
+
+	/**
+	 * Constructs a sink from an existing index; no frames can be added.
+	 */
+	private MappedFrameSink(final File file, final Index index) {
+		this.file = file;
+		pixelType = index.pixelType;
+		width = index.width;
+		height = index.height;
+		frameBytes = index.frameBytes;
+		order = index.order;
+		frame = null;
+		offsets = index.offsets;
+		count = offsets.length;
+	}
+
+	/**
+	 * Copies a frame's pixels into a buffer.
+	 *
+	 * @param pixels the pixel array
+	 * @param buffer the buffer, positioned at 0 and of the size of a frame
+	 */
+	protected abstract void write(final Object pixels, final ByteBuffer buffer);
+
+	/**
+	 * Wraps the bytes of one frame.
+	 *
+	 * @param buffer the bytes of the frame, in the index' byte order
+	 * @return the access
+	 */
+	protected abstract A access(final ByteBuffer buffer);
+
+	/**
+	 * Creates the linked type of the image.
+	 *
+	 * @param img the image
+	 * @return the linked type
+	 */
+	protected abstract T createLinkedType(final CellImg<T, A, MappedFrameSink<T, A>.FrameCell> img);
+
+	/**
+	 * Appends a frame to the data file.
+	 *
+	 * @param pixels the pixel array of the frame; it can be reused afterwards
+	 */
+	@Override
+	public void add(final Object pixels) {
+		if (channel == null) {
+			throw new IllegalStateException("Sink is closed: " + file);
+		}
+		frame.clear();
+		write(pixels, frame);
+		frame.clear();
+		final long offset = (long) count * frameBytes;
+		try {
+			for (long position = offset; frame.hasRemaining();) {
+				position += channel.write(frame, position);
+			}
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, 2 * count);
+		}
+		offsets[count++] = offset;
+	}
+
+	/**
+	 * Appends a pooled frame to the data file. The pixels are written right
+	 * away, so the frame is not retained.
+	 *
+	 * @param frame the frame
+	 */
+	@Override
+	public void add(final PooledFrame frame) {
+		add(frame.getPixels());
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Finishes writing the data file and its index.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null) return;
+		try {
+			channel.force(false);
+			writeIndex();
+		}
+		finally {
+			channel = null;
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Finishes writing (if necessary) and maps the data file.
+	 *
+	 * @return a width x height x frames image, one cell per frame
+	 */
+	@Override
+	public CellImg<T, A, FrameCell> toImg() {
+		if (count == 0) {
+			throw new IllegalStateException("No frames were acquired");
+		}
+		try {
+			close();
+			map();
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final List<FrameCell> cells = new ArrayList<FrameCell>(count);
+		for (int i = 0; i < count; i++) {
+			cells.add(new FrameCell(i));
+		}
+		final long[] dimensions = { width, height, count };
+		final int[] cellDimensions = { width, height, 1 };
+		final ListImg<FrameCell> list = new ListImg<FrameCell>(cells, 1, 1, count);
+		final AbstractCells<A, FrameCell, ListImg<FrameCell>> frames =
+			new AbstractCells<A, FrameCell, ListImg<FrameCell>>(new Fraction(), dimensions, cellDimensions) {
+
+				@Override
+				protected ListImg<FrameCell> cells() {
+					return list;
+				}
+			};
+		final CellImg<T, A, FrameCell> img =
+			new CellImg<T, A, FrameCell>(new CellImgFactory<T>(cellDimensions), frames);
+		img.setLinkedType(createLinkedType(img));
+		return img;
+	}
+
+	/**
+	 * Maps the data file; the mapping stays valid after the file is closed.
+	 * <p>
+	 * Mapping reserves address space only; the pages are read when accessed.
+	 * The mapping is private, i.e. modifying the image does not modify the
+	 * data file. If the data file is read-only, so is the image.
+	 * </p>
+	 */
+	private synchronized void map() throws IOException {
+		if (mappings != null) return;
+		framesPerMapping = (int) Math.max(1, MAX_MAPPING / frameBytes);
+		mappings = new MappedByteBuffer[(count + framesPerMapping - 1) / framesPerMapping];
+		final boolean writable = file.canWrite();
+		final MapMode mode = writable ? MapMode.PRIVATE : MapMode.READ_ONLY;
+		final RandomAccessFile in = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			final FileChannel readChannel = in.getChannel();
+			for (int i = 0; i < mappings.length; i++) {
+				final long start = offsets[i * framesPerMapping];
+				final int frames = Math.min(framesPerMapping, count - i * framesPerMapping);
+				mappings[i] = readChannel.map(mode, start, (long) frames * frameBytes);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private ByteBuffer frameBuffer(final int index) {
+		final ByteBuffer mapping = mappings[index / framesPerMapping].duplicate();
+		final int position = (int) (offsets[index] - offsets[index - index % framesPerMapping]);
+		mapping.limit(position + frameBytes).position(position);
+		return mapping.slice().order(order);
+	}
+
+	private void writeIndex() throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(indexFile(file))));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeUTF(pixelType);
+			out.writeUTF(order.toString());
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(frameBytes);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(offsets[i]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A cell holding one frame; its pixels are accessed on demand.
+	 */
+	public class FrameCell extends AbstractCell<A> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+		private transient A data;
+
+		private FrameCell(final int index) {
+			super(new int[] { width, height, 1 }, new long[] { 0, 0, index });
+			this.index = index;
+		}
+
+		@Override
+		public A getData() {
+			if (data == null) {
+				data = access(frameBuffer(index));
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Opens a data file written by a sink.
+	 *
+	 * @param file the data file
+	 * @return a sink to which no more frames can be added, but whose
+	 *         {@link #toImg()} maps the frames
+	 * @throws IOException
+	 */
+	public static MappedFrameSink<?, ?> open(final File file) throws IOException {
+		final Index index = new Index(indexFile(file));
+		if (UnsignedByteType.class.getSimpleName().equals(index.pixelType)) {
+			return new UnsignedBytes(file, index);
+		}
+		if (ShortType.class.getSimpleName().equals(index.pixelType)) {
+			return new Shorts(file, index);
+		}
+		if (UnsignedShortType.class.getSimpleName().equals(index.pixelType)) {
+			return new UnsignedShorts(file, index);
+		}
+		if (index.pixelType.startsWith(PackedUnsignedShorts.PREFIX)) {
+			return new PackedUnsignedShorts(file, index);
+		}
+		throw new IOException("Unsupported pixel type: " + index.pixelType);
+	}
+
+	/**
+	 * Creates a sink for 8-bit frames.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static MappedFrameSink<UnsignedByteType, ByteAccess> unsignedBytes(final File file, final long width, final long height) throws IOException {
+		return new UnsignedBytes(file, width, height);
+	}
+
+	/**
+	 * Creates a sink for 16-bit frames, interpreted as signed values.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static MappedFrameSink<ShortType, ShortAccess> shorts(final File file, final long width, final long height) throws IOException {
+		return new Shorts(file, width, height);
+	}
+
+	/**
+	 * Creates a sink for 16-bit frames.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 * @throws IOException
+	 */
+	public static MappedFrameSink<UnsignedShortType, ShortAccess> unsignedShorts(final File file, final long width, final long height) throws IOException {
+		return new UnsignedShorts(file, width, height);
+	}
+
+	/**
+	 * Creates a sink for 16-bit frames of a camera with a lower bit depth,
+	 * which stores the frames packed to that bit depth.
+	 *
+	 * @param file the data file
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param bits the bits per pixel, as reported by
+	 *          {@link MMGateway#getImageBitDepth()}
+	 * @return the sink
+	 * @throws IOException
+	 * @see PackedShortArray
+	 */
+	public static MappedFrameSink<UnsignedShortType, ShortAccess> packedUnsignedShorts(final File file, final long width, final long height, final int bits) throws IOException {
+		return bits >= 16 ? unsignedShorts(file, width, height) : new PackedUnsignedShorts(file, width, height, bits);
+	}
+
+	private static File indexFile(final File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	private static class Index {
+
+		private final String pixelType;
+		private final ByteOrder order;
+		private final int width, height, frameBytes;
+		private final long[] offsets;
+
+		public Index(final File file) throws IOException {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+					throw new IOException("Not a frame index: " + file);
+				}
+				pixelType = in.readUTF();
+				order = ByteOrder.BIG_ENDIAN.toString().equals(in.readUTF()) ?
+					ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+				width = in.readInt();
+				height = in.readInt();
+				frameBytes = in.readInt();
+				offsets = new long[in.readInt()];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = in.readLong();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	private static class UnsignedBytes extends MappedFrameSink<UnsignedByteType, ByteAccess> {
+
+		public UnsignedBytes(final File file, final long width, final long height) throws IOException {
+			super(file, UnsignedByteType.class.getSimpleName(), 1, width, height);
+		}
+
+		public UnsignedBytes(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected void write(final Object pixels, final ByteBuffer buffer) {
+			buffer.put((byte[]) pixels);
+		}
+
+		@Override
+		protected ByteAccess access(final ByteBuffer buffer) {
+			return new MappedByteAccess(buffer);
+		}
+
+		@Override
+		protected UnsignedByteType createLinkedType(final CellImg<UnsignedByteType, ByteAccess, MappedFrameSink<UnsignedByteType, ByteAccess>.FrameCell> img) {
+			return new UnsignedByteType(img);
+		}
+	}
+
+	private static class Shorts extends MappedFrameSink<ShortType, ShortAccess> {
+
+		private ShortBuffer view;
+
+		public Shorts(final File file, final long width, final long height) throws IOException {
+			super(file, ShortType.class.getSimpleName(), 2, width, height);
+		}
+
+		public Shorts(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected void write(final Object pixels, final ByteBuffer buffer) {
+			if (view == null) view = buffer.asShortBuffer();
+			view.clear();
+			view.put((short[]) pixels);
+		}
+
+		@Override
+		protected ShortAccess access(final ByteBuffer buffer) {
+			return new MappedShortAccess(buffer.asShortBuffer());
+		}
+
+		@Override
+		protected ShortType createLinkedType(final CellImg<ShortType, ShortAccess, MappedFrameSink<ShortType, ShortAccess>.FrameCell> img) {
+			return new ShortType(img);
+		}
+	}
+
+	private static class UnsignedShorts extends MappedFrameSink<UnsignedShortType, ShortAccess> {
+
+		private ShortBuffer view;
+
+		public UnsignedShorts(final File file, final long width, final long height) throws IOException {
+			super(file, UnsignedShortType.class.getSimpleName(), 2, width, height);
+		}
+
+		public UnsignedShorts(final File file, final Index index) {
+			super(file, index);
+		}
+
+		@Override
+		protected void write(final Object pixels, final ByteBuffer buffer) {
+			if (view == null) view = buffer.asShortBuffer();
+			view.clear();
+			view.put((short[]) pixels);
+		}
+
+		@Override
+		protected ShortAccess access(final ByteBuffer buffer) {
+			return new MappedShortAccess(buffer.asShortBuffer());
+		}
+
+		@Override
+		protected UnsignedShortType createLinkedType(final CellImg<UnsignedShortType, ShortAccess, MappedFrameSink<UnsignedShortType, ShortAccess>.FrameCell> img) {
+			return new UnsignedShortType(img);
+		}
+	}
+
+	/**
+	 * Stores 16-bit frames packed to the camera's bit depth, recorded in the
+	 * index as the suffix of the pixel type.
+	 */
+	private static class PackedUnsignedShorts extends MappedFrameSink<UnsignedShortType, ShortAccess> {
+
+		private final static String PREFIX = UnsignedShortType.class.getSimpleName() + "/";
+
+		private final int bits;
+		private long[] words;
+		private LongBuffer view;
+
+		public PackedUnsignedShorts(final File file, final long width, final long height, final int bits) throws IOException {
+			super(file, PREFIX + bits, width, height, 8 * PackedShortArray.words(bits, (int) (width * height)));
+			if (bits < 1) {
+				throw new IllegalArgumentException("Invalid bit depth: " + bits);
+			}
+			this.bits = bits;
+		}
+
+		public PackedUnsignedShorts(final File file, final Index index) throws IOException {
+			super(file, index);
+			try {
+				bits = Integer.parseInt(index.pixelType.substring(PREFIX.length()));
+			}
+			catch (final NumberFormatException e) {
+				throw new IOException("Unsupported pixel type: " + index.pixelType);
+			}
+		}
+
+		@Override
+		protected void write(final Object pixels, final ByteBuffer buffer) {
+			if (view == null) {
+				view = buffer.asLongBuffer();
+				words = new long[view.capacity()];
+			}
+			// every word is overwritten, so the scratch array needs no clearing
+			PackedShortArray.pack((short[]) pixels, bits, words);
+			view.clear();
+			view.put(words);
+		}
+
+		@Override
+		protected ShortAccess access(final ByteBuffer buffer) {
+			return new MappedPackedShortAccess(buffer.asLongBuffer(), bits);
+		}
+
+		@Override
+		protected UnsignedShortType createLinkedType(final CellImg<UnsignedShortType, ShortAccess, MappedFrameSink<UnsignedShortType, ShortAccess>.FrameCell> img) {
+			return new UnsignedShortType(img);
+		}
+	}
+
+	private static class MappedByteAccess implements ByteAccess {
+
+		private final ByteBuffer buffer;
+
+		public MappedByteAccess(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte getValue(final int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		public void setValue(final int index, final byte value) {
+			buffer.put(index, value);
+		}
+	}
+
+	private static class MappedShortAccess implements ShortAccess {
+
+		private final ShortBuffer buffer;
+
+		public MappedShortAccess(final ShortBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public short getValue(final int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		public void setValue(final int index, final short value) {
+			buffer.put(index, value);
+		}
+	}
+
+	/**
+	 * Accesses samples packed as by {@link PackedShortArray}.
+	 */
+	private static class MappedPackedShortAccess implements ShortAccess {
+
+		private final LongBuffer buffer;
+		private final int bits;
+		private final long mask;
+
+		public MappedPackedShortAccess(final LongBuffer buffer, final int bits) {
+			this.buffer = buffer;
+			this.bits = bits;
+			mask = (1L << bits) - 1;
+		}
+
+		@Override
+		public short getValue(final int index) {
+			final long bit = (long) index * bits;
+			final int word = (int) (bit >>> 6);
+			final int shift = (int) bit & 63;
+			long value = buffer.get(word) >>> shift;
+			if (shift + bits > 64) {
+				value |= buffer.get(word + 1) << (64 - shift);
+			}
+			return (short) (value & mask);
+		}
+
+		@Override
+		public void setValue(final int index, final short value) {
+			final long sample = Math.min(value & 0xffff, mask);
+			final long bit = (long) index * bits;
+			final int word = (int) (bit >>> 6);
+			final int shift = (int) bit & 63;
+			buffer.put(word, buffer.get(word) & ~(mask << shift) | sample << shift);
+			if (shift + bits > 64) {
+				buffer.put(word + 1, buffer.get(word + 1) & ~(mask >>> (64 - shift)) | sample >>> (64 - shift));
+			}
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imagej.ImgPlus;
+
+/**
+ * Per-frame metadata, stored column by column in primitive arrays.
+ * <p>
+ * Every frame is a row holding when it was received, its number and time
+ * stamp as given by the camera, the exposure and stage positions it was
+ * acquired with, and the camera and channel (i.e. the active configuration)
+ * it belongs to. Strings are stored as indices into a dictionary, so that a
+ * row costs 64 bytes no matter how long the labels are, and appending one
+ * allocates nothing most of the time.
+ * </p>
+ * <p>
+ * Rows are appended with the current <i>state</i>, i.e. the values of the
+ * last {@link #setState(double, double, double, double, String) setState()}
+ * call; the frame's own tags are then filled in by
+ * {@link FrameMetadata#record(MetadataTable, int)}. Unknown numbers are
+ * {@link Double#NaN} or -1, unknown strings null.
+ * </p>
+ * <p>
+ * Instances are not thread-safe; rows may, however, be read by another thread
+ * once it learned of them via a synchronizing hand-off, such as taking the
+ * corresponding frame from a {@link SequenceAcquisition}.
+ * </p>
+ */
+public class MetadataTable {
+
+	/** The key under which a table is attached to an image's properties. */
+	public final static String PROPERTY = "org.knime.knip.mm.metadata";
+
+	private final static int INITIAL_CAPACITY = 64;
+
+	private int size;
+	private long[] received = new long[INITIAL_CAPACITY];
+	private long[] imageNumber = new long[INITIAL_CAPACITY];
+	private double[] elapsedMs = new double[INITIAL_CAPACITY];
+	private double[] exposureMs = new double[INITIAL_CAPACITY];
+	private double[] x = new double[INITIAL_CAPACITY];
+	private double[] y = new double[INITIAL_CAPACITY];
+	private double[] z = new double[INITIAL_CAPACITY];
+	private int[] camera = new int[INITIAL_CAPACITY];
+	private int[] channel = new int[INITIAL_CAPACITY];
+
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	private double stateExposure = Double.NaN, stateX = Double.NaN, stateY = Double.NaN, stateZ = Double.NaN;
+	private int stateChannel = -1;
+
+	/**
+	 * Sets the state new rows start out with.
+	 *
+	 * @param exposureMs the exposure, in milliseconds
+	 * @param x the X position of the XY stage, in microns
+	 * @param y the Y position of the XY stage, in microns
+	 * @param z the position of the focus stage, in microns
+	 * @param channel the name of the channel, or null
+	 */
+	public void setState(final double exposureMs, final double x, final double y, final double z,
+		final String channel)
+	{
+		stateExposure = exposureMs;
+		stateX = x;
+		stateY = y;
+		stateZ = z;
+		stateChannel = encode(channel);
+	}
+
+	/**
+	 * Captures the exposure and stage positions from the core as the state.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 * @param channel the name of the channel, or null
+	 */
+	public void setState(final MMGateway mm, final String channel) {
+		final String xyStage = mm.getXYStageDevice();
+		final String focus = mm.getFocusDevice();
+		final boolean hasXY = !xyStage.isEmpty();
+		setState(mm.getExposure(), hasXY ? mm.getXPosition(xyStage) : Double.NaN,
+			hasXY ? mm.getYPosition(xyStage) : Double.NaN,
+			focus.isEmpty() ? Double.NaN : mm.getPosition(focus), channel);
+	}
+
+	/**
+	 * Appends a row with the current state.
+	 *
+	 * @param receivedNanos when the frame was received, as per
+	 *          {@link System#nanoTime()}
+	 * @return the index of the row
+	 */
+	public int append(final long receivedNanos) {
+		if (size == received.length) grow();
+		final int row = size++;
+		received[row] = receivedNanos;
+		imageNumber[row] = -1;
+		elapsedMs[row] = Double.NaN;
+		exposureMs[row] = stateExposure;
+		x[row] = stateX;
+		y[row] = stateY;
+		z[row] = stateZ;
+		camera[row] = -1;
+		channel[row] = stateChannel;
+		return row;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies a range of rows.
+	 *
+	 * @param from the first row to copy
+	 * @param to the row after the last one to copy
+	 * @return a new table holding the rows
+	 */
+	public MetadataTable copy(final int from, final int to) {
+		if (from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Invalid range: " + from + " - " + to + " of " + size);
+		}
+		final MetadataTable copy = new MetadataTable();
+		final int count = to - from, capacity = Math.max(count, 1);
+		copy.size = count;
+		copy.received = Arrays.copyOfRange(received, from, from + capacity);
+		copy.imageNumber = Arrays.copyOfRange(imageNumber, from, from + capacity);
+		copy.elapsedMs = Arrays.copyOfRange(elapsedMs, from, from + capacity);
+		copy.exposureMs = Arrays.copyOfRange(exposureMs, from, from + capacity);
+		copy.x = Arrays.copyOfRange(x, from, from + capacity);
+		copy.y = Arrays.copyOfRange(y, from, from + capacity);
+		copy.z = Arrays.copyOfRange(z, from, from + capacity);
+		copy.camera = Arrays.copyOfRange(camera, from, from + capacity);
+		copy.channel = Arrays.copyOfRange(channel, from, from + capacity);
+		copy.strings.addAll(strings);
+		copy.codes.putAll(codes);
+		return copy;
+	}
+
+	/**
+	 * Attaches this table to an image, as its {@value #PROPERTY} property.
+	 *
+	 * @param img the image
+	 */
+	public void attachTo(final ImgPlus<?> img) {
+		img.getProperties().put(PROPERTY, this);
+	}
+
+	/**
+	 * Gets the table attached to an image.
+	 *
+	 * @param img the image
+	 * @return the table, or null if none is attached
+	 */
+	public static MetadataTable of(final ImgPlus<?> img) {
+		final Object table = img.getProperties().get(PROPERTY);
+		return table instanceof MetadataTable ? (MetadataTable) table : null;
+	}
+
+	/**
+	 * @return when the frame was received, as per {@link System#nanoTime()}
+	 */
+	public long getReceived(final int row) {
+		check(row);
+		return received[row];
+	}
+
+	/**
+	 * @return the frame number given by the camera, or -1
+	 */
+	public long getImageNumber(final int row) {
+		check(row);
+		return imageNumber[row];
+	}
+
+	/**
+	 * Sets the frame number given by the camera.
+	 */
+	public void setImageNumber(final int row, final long number) {
+		check(row);
+		imageNumber[row] = number;
+	}
+
+	/**
+	 * @return the time stamp given by the camera, in milliseconds since the
+	 *         start of the sequence, or {@link Double#NaN}
+	 */
+	public double getElapsedTime(final int row) {
+		check(row);
+		return elapsedMs[row];
+	}
+
+	/**
+	 * Sets the time stamp given by the camera.
+	 */
+	public void setElapsedTime(final int row, final double milliseconds) {
+		check(row);
+		elapsedMs[row] = milliseconds;
+	}
+
+	/**
+	 * @return the exposure, in milliseconds, or {@link Double#NaN}
+	 */
+	public double getExposure(final int row) {
+		check(row);
+		return exposureMs[row];
+	}
+
+	/**
+	 * Sets the exposure, in milliseconds.
+	 */
+	public void setExposure(final int row, final double milliseconds) {
+		check(row);
+		exposureMs[row] = milliseconds;
+	}
+
+	/**
+	 * @return the X position of the XY stage, in microns, or {@link Double#NaN}
+	 */
+	public double getX(final int row) {
+		check(row);
+		return x[row];
+	}
+
+	/**
+	 * @return the Y position of the XY stage, in microns, or {@link Double#NaN}
+	 */
+	public double getY(final int row) {
+		check(row);
+		return y[row];
+	}
+
+	/**
+	 * @return the position of the focus stage, in microns, or {@link Double#NaN}
+	 */
+	public double getZ(final int row) {
+		check(row);
+		return z[row];
+	}
+
+	/**
+	 * Sets the position of the XY stage, in microns.
+	 */
+	public void setXY(final int row, final double x, final double y) {
+		check(row);
+		this.x[row] = x;
+		this.y[row] = y;
+	}
+
+	/**
+	 * Sets the position of the focus stage, in microns.
+	 */
+	public void setZ(final int row, final double z) {
+		check(row);
+		this.z[row] = z;
+	}
+
+	/**
+	 * @return the label of the camera, or null
+	 */
+	public String getCamera(final int row) {
+		check(row);
+		return decode(camera[row]);
+	}
+
+	/**
+	 * Sets the label of the camera.
+	 */
+	public void setCamera(final int row, final String label) {
+		check(row);
+		camera[row] = encode(label);
+	}
+
+	/**
+	 * @return the name of the channel, or null
+	 */
+	public String getChannel(final int row) {
+		check(row);
+		return decode(channel[row]);
+	}
+
+	/**
+	 * Sets the name of the channel.
+	 */
+	public void setChannel(final int row, final String name) {
+		check(row);
+		channel[row] = encode(name);
+	}
+
+	private void check(final int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+	}
+
+	private int encode(final String string) {
+		if (string == null) return -1;
+		Integer code = codes.get(string);
+		if (code == null) {
+			code = strings.size();
+			strings.add(string);
+			codes.put(string, code);
+		}
+		return code;
+	}
+
+	private String decode(final int code) {
+		return code < 0 ? null : strings.get(code);
+	}
+
+	private void grow() {
+		final int capacity = 2 * received.length;
+		received = Arrays.copyOf(received, capacity);
+		imageNumber = Arrays.copyOf(imageNumber, capacity);
+		elapsedMs = Arrays.copyOf(elapsedMs, capacity);
+		exposureMs = Arrays.copyOf(exposureMs, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		camera = Arrays.copyOf(camera, capacity);
+		channel = Arrays.copyOf(channel, capacity);
+	}
+}
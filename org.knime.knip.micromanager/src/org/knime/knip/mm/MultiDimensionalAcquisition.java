@@ -0,0 +1,361 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+/**
+ * Acquires a time-lapse of multi-channel Z-stacks.
+ * <p>
+ * The axes are declared up front; the acquisition then orders its steps so
+ * that slow hardware operations are kept to a minimum. Within every time
+ * point it picks whichever of "Z fastest" and "channel fastest" costs less
+ * according to the configured {@link #costs(double, double, double, double)
+ * costs}, and it visits both axes back and forth, so that the last channel
+ * (or slice) of one pass is the first of the next. The shutter is kept open
+ * for a whole time point and only closed when there is time to wait for the
+ * next one.
+ * </p>
+ * <p>
+ * Device settling is overlapped with camera readout: as soon as a frame's
+ * exposure is over, the devices are sent to the next step's settings while
+ * the frame is read out, and waited for only before the next exposure.
+ * </p>
+ */
+public class MultiDimensionalAcquisition {
+
+	/**
+	 * A channel: the device settings and exposure to acquire it with.
+	 */
+	public static class Channel {
+
+		private final String name;
+		private final double exposure;
+		private final PropertyBatch settings;
+
+		/**
+		 * Constructs a channel.
+		 *
+		 * @param name the name of the channel
+		 * @param exposure the exposure in milliseconds, or 0 to keep the current one
+		 * @param settings the property values selecting this channel
+		 */
+		public Channel(final String name, final double exposure, final PropertyBatch settings) {
+			this.name = name;
+			this.exposure = exposure;
+			this.settings = settings;
+		}
+
+		/**
+		 * @return the name of the channel
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * One step of the schedule, i.e. the frame to acquire next.
+	 */
+	public static class Step {
+
+		public final int time, channel, slice;
+
+		Step(final int time, final int channel, final int slice) {
+			this.time = time;
+			this.channel = channel;
+			this.slice = slice;
+		}
+
+		@Override
+		public String toString() {
+			return "t=" + time + ", c=" + channel + ", z=" + slice;
+		}
+	}
+
+	private final MMGateway mm;
+	private final List<Channel> channels = new ArrayList<Channel>();
+	private String focusDevice;
+	private double[] slices = new double[0];
+	private int timePoints = 1;
+	private double intervalMs;
+	private double channelSwitchMs = 50, zSettleMs = 10, zTravelMsPerUm = 1, shutterMs = 20;
+	private double focusPosition;
+
+	/**
+	 * Constructs an acquisition.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public MultiDimensionalAcquisition(final MMGateway mm) {
+		this.mm = mm;
+	}
+
+	/**
+	 * Adds a channel.
+	 *
+	 * @param channel the channel
+	 * @return this acquisition
+	 */
+	public MultiDimensionalAcquisition channel(final Channel channel) {
+		channels.add(channel);
+		return this;
+	}
+
+	/**
+	 * Sets the Z positions.
+	 *
+	 * @param focusDevice the label of the focus stage
+	 * @param positions the positions of the slices, or none to acquire at the
+	 *          current position
+	 * @return this acquisition
+	 */
+	public MultiDimensionalAcquisition slices(final String focusDevice, final double... positions) {
+		if (positions.length > 0 && focusDevice == null) {
+			throw new IllegalArgumentException("No focus device for " + positions.length + " slices");
+		}
+		this.focusDevice = focusDevice;
+		this.slices = positions;
+		return this;
+	}
+
+	/**
+	 * Sets the time points.
+	 *
+	 * @param count the number of time points, at least 1
+	 * @param intervalMs the interval between the starts of the time points
+	 * @return this acquisition
+	 */
+	public MultiDimensionalAcquisition timePoints(final int count, final double intervalMs) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Invalid number of time points: " + count);
+		}
+		this.timePoints = count;
+		this.intervalMs = intervalMs;
+		return this;
+	}
+
+	/**
+	 * Sets the estimated costs of the hardware operations, which determine the
+	 * order of the steps.
+	 *
+	 * @param channelSwitchMs the time to switch channels (filter wheels, lasers)
+	 * @param zSettleMs the time for the focus stage to settle after a move
+	 * @param zTravelMsPerUm the travel time of the focus stage per micron
+	 * @param shutterMs the time to open or close the shutter
+	 * @return this acquisition
+	 */
+	public MultiDimensionalAcquisition costs(final double channelSwitchMs, final double zSettleMs,
+		final double zTravelMsPerUm, final double shutterMs)
+	{
+		this.channelSwitchMs = channelSwitchMs;
+		this.zSettleMs = zSettleMs;
+		this.zTravelMsPerUm = zTravelMsPerUm;
+		this.shutterMs = shutterMs;
+		return this;
+	}
+
+	/**
+	 * Orders the steps of the acquisition.
+	 *
+	 * @return the steps, in acquisition order
+	 */
+	public List<Step> schedule() {
+		final List<Step> steps = new ArrayList<Step>();
+		int channel = -1;
+		double z = Double.NaN;
+		for (int t = 0; t < timePoints; t++) {
+			final List<Step> sliceFastest = sliceFastest(t, channel, z);
+			final List<Step> channelFastest = channelFastest(t, channel, z);
+			final List<Step> best = cost(sliceFastest, channel, z) <= cost(channelFastest, channel, z) ?
+				sliceFastest : channelFastest;
+			steps.addAll(best);
+			final Step last = best.get(best.size() - 1);
+			channel = last.channel;
+			z = position(last.slice);
+		}
+		return steps;
+	}
+
+	/**
+	 * Acquires all frames.
+	 *
+	 * @return the image, with X, Y, Z, Channel and Time axes
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 *           for a time point
+	 */
+	public <T extends NativeType<T>> ImgPlus<T> run() throws InterruptedException {
+		final List<Step> steps = schedule();
+		final int channelCount = getChannelCount();
+		final int sliceCount = getSliceCount();
+		final long width = mm.getImageWidth();
+		final long height = mm.getImageHeight();
+
+		PlanarFrameSink<?, ?> sink = null;
+		final Set<String> moving = new LinkedHashSet<String>();
+		final boolean autoShutter = mm.getAutoShutter();
+		mm.setAutoShutter(false);
+		boolean open = false;
+		focusPosition = Double.NaN;
+		try {
+			final long start = System.nanoTime();
+			double exposure = Double.NaN;
+			for (int i = 0; i < steps.size(); i++) {
+				final Step step = steps.get(i);
+				if (i == 0 || step.time != steps.get(i - 1).time) {
+					move(step, moving);
+					waitFor(moving);
+					final long wait = start + (long) (step.time * intervalMs * 1e6) - System.nanoTime();
+					if (open && wait > 2 * shutterMs * 1e6) {
+						mm.setShutterOpen(false);
+						open = false;
+					}
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				if (step.channel < channels.size()) {
+					final double wanted = channels.get(step.channel).exposure;
+					if (wanted > 0 && wanted != exposure) {
+						mm.setExposure(wanted);
+						exposure = wanted;
+					}
+				}
+				if (!open) {
+					mm.setShutterOpen(true);
+					open = true;
+				}
+
+				mm.snapImage();
+				// the exposure is over: move on while the camera reads out
+				if (i + 1 < steps.size() && steps.get(i + 1).time == step.time) {
+					move(steps.get(i + 1), moving);
+				}
+				final Object pixels = mm.getImage();
+				if (sink == null) {
+					sink = PixelFormat.of(pixels).createSink(width, height);
+				}
+				sink.set(step.slice + sliceCount * (step.channel + channelCount * step.time), pixels);
+				waitFor(moving);
+			}
+		}
+		finally {
+			if (open) {
+				mm.setShutterOpen(false);
+			}
+			mm.setAutoShutter(autoShutter);
+		}
+
+		@SuppressWarnings("unchecked")
+		final Img<T> img = (Img<T>) sink.toImg(sliceCount, channelCount, timePoints);
+		final ImgPlus<T> result = new ImgPlus<T>(img, "Multi-Dimensional Acquisition",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME });
+		result.setValidBits((int) mm.getImageBitDepth());
+		return result;
+	}
+
+	private int getChannelCount() {
+		return Math.max(channels.size(), 1);
+	}
+
+	private int getSliceCount() {
+		return Math.max(slices.length, 1);
+	}
+
+	private double position(final int slice) {
+		return slice < slices.length ? slices[slice] : Double.NaN;
+	}
+
+	/**
+	 * Sends the devices to a step's settings, without waiting for them.
+	 */
+	private void move(final Step step, final Set<String> moving) {
+		if (step.channel < channels.size()) {
+			mm.writeProperties(channels.get(step.channel).settings, moving);
+		}
+		if (step.slice < slices.length && slices[step.slice] != focusPosition) {
+			// setPosition() does not wait for the stage either
+			focusPosition = slices[step.slice];
+			mm.setPosition(focusDevice, focusPosition);
+			moving.add(focusDevice);
+		}
+	}
+
+	private void waitFor(final Set<String> moving) {
+		for (final String label : moving) {
+			mm.waitForDevice(label);
+		}
+		moving.clear();
+	}
+
+	private List<Integer> channelOrder(final int first) {
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int c = 0; c < getChannelCount(); c++) {
+			order.add(c);
+		}
+		if (first > 0) {
+			Collections.rotate(order, -first);
+		}
+		return order;
+	}
+
+	private List<Integer> sliceOrder(final double z) {
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int s = 0; s < getSliceCount(); s++) {
+			order.add(s);
+		}
+		if (slices.length > 1 && !Double.isNaN(z) &&
+			Math.abs(z - slices[slices.length - 1]) < Math.abs(z - slices[0]))
+		{
+			Collections.reverse(order);
+		}
+		return order;
+	}
+
+	private List<Step> sliceFastest(final int t, final int channel, final double z) {
+		final List<Step> steps = new ArrayList<Step>();
+		final List<Integer> sliceOrder = sliceOrder(z);
+		for (final int c : channelOrder(channel)) {
+			for (final int s : sliceOrder) {
+				steps.add(new Step(t, c, s));
+			}
+			Collections.reverse(sliceOrder);
+		}
+		return steps;
+	}
+
+	private List<Step> channelFastest(final int t, final int channel, final double z) {
+		final List<Step> steps = new ArrayList<Step>();
+		final List<Integer> channelOrder = channelOrder(channel);
+		for (final int s : sliceOrder(z)) {
+			for (final int c : channelOrder) {
+				steps.add(new Step(t, c, s));
+			}
+			Collections.reverse(channelOrder);
+		}
+		return steps;
+	}
+
+	private double cost(final List<Step> steps, int channel, double z) {
+		double cost = 0;
+		for (final Step step : steps) {
+			if (step.channel != channel) {
+				cost += channelSwitchMs;
+				channel = step.channel;
+			}
+			final double position = position(step.slice);
+			if (!Double.isNaN(position) && position != z) {
+				cost += zSettleMs + (Double.isNaN(z) ? 0 : Math.abs(position - z) * zTravelMsPerUm);
+				z = position;
+			}
+		}
+		return cost;
+	}
+}
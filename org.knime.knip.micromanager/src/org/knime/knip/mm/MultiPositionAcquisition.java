@@ -0,0 +1,394 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+/**
+ * Acquires one frame at each of a list of stage positions, e.g. the wells of
+ * a plate or the tiles of a mosaic.
+ * <p>
+ * The positions are visited along a short path rather than in the order they
+ * were added: the {@link #schedule() schedule} starts at the stage's current
+ * position, always goes to the nearest position not visited yet and then
+ * removes crossings from the path. Distances are measured as the larger of
+ * the X and Y travel, since both axes of an XY stage move at the same time.
+ * </p>
+ * <p>
+ * The stage move is overlapped with camera readout: as soon as a frame's
+ * exposure is over, the stage is sent to the next position while the frame is
+ * read out and handed on, and waited for only before the next exposure. For
+ * mosaics, the tiles are copied into place by a {@link TileAssembler} on a
+ * background thread.
+ * </p>
+ */
+public class MultiPositionAcquisition {
+
+	/**
+	 * A stage position.
+	 */
+	public static class Position {
+
+		public final String name;
+		public final double x, y, z;
+
+		/**
+		 * Constructs a position.
+		 *
+		 * @param name the name of the position
+		 * @param x the X position of the XY stage, in microns
+		 * @param y the Y position of the XY stage, in microns
+		 * @param z the position of the focus stage, or {@link Double#NaN} to
+		 *          leave the focus alone
+		 */
+		public Position(final String name, final double x, final double y, final double z) {
+			this.name = name;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + x + ", " + y + (Double.isNaN(z) ? ")" : ", " + z + ")");
+		}
+	}
+
+	/**
+	 * Receives the frames as they are acquired.
+	 */
+	public interface FrameHandler {
+
+		/**
+		 * Handles a frame. This is called on the acquisition thread while the
+		 * stage moves to the next position, so it should return quickly.
+		 *
+		 * @param index the index of the position, in the order the positions were
+		 *          added
+		 * @param position the position
+		 * @param pixels the pixel array of the frame
+		 */
+		void handle(int index, Position position, Object pixels);
+	}
+
+	private final MMGateway mm;
+	private final List<Position> positions = new ArrayList<Position>();
+	private String xyStage, focusDevice;
+	private SoftwareAutofocus autofocus;
+
+	/**
+	 * Constructs an acquisition using the current XY stage and focus devices.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public MultiPositionAcquisition(final MMGateway mm) {
+		this.mm = mm;
+		this.xyStage = mm.getXYStageDevice();
+		this.focusDevice = mm.getFocusDevice();
+	}
+
+	/**
+	 * Sets the stages to move.
+	 *
+	 * @param xyStage the label of the XY stage
+	 * @param focusDevice the label of the focus stage, or an empty string if
+	 *          none of the positions has a Z position
+	 * @return this acquisition
+	 */
+	public MultiPositionAcquisition stages(final String xyStage, final String focusDevice) {
+		this.xyStage = xyStage;
+		this.focusDevice = focusDevice;
+		return this;
+	}
+
+	/**
+	 * Focuses at every position before acquiring its frame. Since the
+	 * autofocus starts from the previous position's focus, this is cheap for
+	 * positions along a short path.
+	 *
+	 * @param autofocus the autofocus, or null to use the positions' Z
+	 * @return this acquisition
+	 */
+	public MultiPositionAcquisition autofocus(final SoftwareAutofocus autofocus) {
+		this.autofocus = autofocus;
+		return this;
+	}
+
+	/**
+	 * Adds a position, keeping the focus where it is.
+	 *
+	 * @param name the name of the position
+	 * @param x the X position, in microns
+	 * @param y the Y position, in microns
+	 * @return this acquisition
+	 */
+	public MultiPositionAcquisition position(final String name, final double x, final double y) {
+		return position(name, x, y, Double.NaN);
+	}
+
+	/**
+	 * Adds a position.
+	 *
+	 * @param name the name of the position
+	 * @param x the X position, in microns
+	 * @param y the Y position, in microns
+	 * @param z the focus position, or {@link Double#NaN} to keep the focus
+	 * @return this acquisition
+	 */
+	public MultiPositionAcquisition position(final String name, final double x, final double y, final double z) {
+		positions.add(new Position(name, x, y, z));
+		return this;
+	}
+
+	/**
+	 * Adds a grid of tiles, based on the current image size and pixel size. The
+	 * stage's X and Y axes are assumed to run along the image's.
+	 *
+	 * @param name the prefix for the names of the tiles
+	 * @param x the X position of the top left tile, in microns
+	 * @param y the Y position of the top left tile, in microns
+	 * @param columns the number of tiles per row
+	 * @param rows the number of rows
+	 * @param overlap the fraction of a tile's width and height to overlap with
+	 *          its neighbours, between 0 and 1
+	 * @return this acquisition
+	 */
+	public MultiPositionAcquisition tiles(final String name, final double x, final double y, final int columns,
+		final int rows, final double overlap)
+	{
+		if (overlap < 0 || overlap >= 1) {
+			throw new IllegalArgumentException("Invalid overlap: " + overlap);
+		}
+		final double pixelSize = getPixelSize();
+		final double stepX = Math.round(mm.getImageWidth() * (1 - overlap)) * pixelSize;
+		final double stepY = Math.round(mm.getImageHeight() * (1 - overlap)) * pixelSize;
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				position(name + "_" + column + "_" + row, x + column * stepX, y + row * stepY);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Orders the positions along a short path from the stage's current
+	 * position.
+	 *
+	 * @return the indices of the positions, in acquisition order
+	 */
+	public List<Integer> schedule() {
+		final int count = positions.size();
+		// path[0] is where the stage is now; it stays in place
+		final double[] x = new double[count + 1], y = new double[count + 1];
+		x[0] = mm.getXPosition(xyStage);
+		y[0] = mm.getYPosition(xyStage);
+		final int[] path = new int[count + 1];
+		final boolean[] visited = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			x[i + 1] = positions.get(i).x;
+			y[i + 1] = positions.get(i).y;
+		}
+
+		// nearest neighbour
+		for (int i = 1; i <= count; i++) {
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			for (int j = 0; j < count; j++) {
+				if (visited[j]) continue;
+				final double distance = distance(x, y, path[i - 1], j + 1);
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = j;
+				}
+			}
+			visited[best] = true;
+			path[i] = best + 1;
+		}
+
+		// 2-opt: reverse segments as long as that shortens the open path
+		for (int pass = 0; pass < 100; pass++) {
+			boolean improved = false;
+			for (int i = 1; i < count; i++) {
+				for (int j = i + 1; j <= count; j++) {
+					double delta = distance(x, y, path[i - 1], path[j]) - distance(x, y, path[i - 1], path[i]);
+					if (j < count) {
+						delta += distance(x, y, path[i], path[j + 1]) - distance(x, y, path[j], path[j + 1]);
+					}
+					if (delta < -1e-9) {
+						for (int a = i, b = j; a < b; a++, b--) {
+							final int swap = path[a];
+							path[a] = path[b];
+							path[b] = swap;
+						}
+						improved = true;
+					}
+				}
+			}
+			if (!improved) break;
+		}
+
+		final List<Integer> order = new ArrayList<Integer>(count);
+		for (int i = 1; i <= count; i++) {
+			order.add(path[i] - 1);
+		}
+		return order;
+	}
+
+	/**
+	 * Acquires one frame per position.
+	 *
+	 * @param handler receives the frames
+	 */
+	public void run(final FrameHandler handler) {
+		final List<Integer> order = schedule();
+		final Set<String> moving = new LinkedHashSet<String>();
+		double x = Double.NaN, y = Double.NaN, z = Double.NaN;
+		try {
+			for (int i = 0; i < order.size(); i++) {
+				final Position position = positions.get(order.get(i));
+				if (i == 0) {
+					move(position, moving, x, y, z);
+				}
+				x = position.x;
+				y = position.y;
+				if (!Double.isNaN(position.z)) z = position.z;
+				waitFor(moving);
+				if (autofocus != null) {
+					autofocus.focus();
+					z = Double.NaN;
+				}
+
+				mm.snapImage();
+				// the exposure is over: move on while the camera reads out
+				if (i + 1 < order.size()) {
+					move(positions.get(order.get(i + 1)), moving, x, y, z);
+				}
+				handler.handle(order.get(i), position, mm.getImage());
+			}
+		}
+		finally {
+			waitFor(moving);
+		}
+	}
+
+	/**
+	 * Acquires one frame per position.
+	 *
+	 * @return the image, with X, Y and Position axes; the positions are in the
+	 *         order they were added
+	 */
+	public <T extends NativeType<T>> ImgPlus<T> run() {
+		final PlanarFrameSink<?, ?> sink = PixelFormat.of(mm).createSink(mm.getImageWidth(), mm.getImageHeight());
+		run(new FrameHandler() {
+
+			@Override
+			public void handle(final int index, final Position position, final Object pixels) {
+				sink.set(index, pixels);
+			}
+		});
+
+		@SuppressWarnings("unchecked")
+		final Img<T> img = (Img<T>) sink.toImg(positions.size());
+		final ImgPlus<T> result = new ImgPlus<T>(img, "Multi-Position Acquisition",
+			new AxisType[] { Axes.X, Axes.Y, Axes.get("Position") });
+		result.setValidBits((int) mm.getImageBitDepth());
+		return result;
+	}
+
+	/**
+	 * Acquires one frame per position and places the frames into a mosaic
+	 * according to their stage positions.
+	 *
+	 * @return the mosaic, with X and Y axes
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 *           for the last tiles to be placed
+	 */
+	public <T extends NativeType<T>> ImgPlus<T> runMosaic() throws InterruptedException {
+		if (positions.isEmpty()) {
+			throw new IllegalStateException("No positions");
+		}
+		final int width = (int) mm.getImageWidth();
+		final int height = (int) mm.getImageHeight();
+		final double pixelSize = getPixelSize();
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (final Position position : positions) {
+			minX = Math.min(minX, position.x);
+			minY = Math.min(minY, position.y);
+			maxX = Math.max(maxX, position.x);
+			maxY = Math.max(maxY, position.y);
+		}
+		final double originX = minX, originY = minY;
+
+		final TileAssembler assembler = new TileAssembler(PixelFormat.of(mm),
+			width + Math.round((maxX - minX) / pixelSize), height + Math.round((maxY - minY) / pixelSize));
+		try {
+			run(new FrameHandler() {
+
+				@Override
+				public void handle(final int index, final Position position, final Object pixels) {
+					assembler.add(pixels, width, height, (int) Math.round((position.x - originX) / pixelSize),
+						(int) Math.round((position.y - originY) / pixelSize));
+				}
+			});
+
+			@SuppressWarnings("unchecked")
+			final Img<T> img = (Img<T>) assembler.toImg();
+			final ImgPlus<T> result = new ImgPlus<T>(img, "Mosaic", new AxisType[] { Axes.X, Axes.Y });
+			result.setValidBits((int) mm.getImageBitDepth());
+			return result;
+		}
+		finally {
+			assembler.close();
+		}
+	}
+
+	/**
+	 * @return the positions, in the order they were added
+	 */
+	public List<Position> getPositions() {
+		return Collections.unmodifiableList(positions);
+	}
+
+	private double getPixelSize() {
+		final double pixelSize = mm.getPixelSizeUm();
+		if (!(pixelSize > 0)) {
+			throw new IllegalStateException("The pixel size is not calibrated");
+		}
+		return pixelSize;
+	}
+
+	/**
+	 * Sends the stages to a position, without waiting for them.
+	 */
+	private void move(final Position position, final Set<String> moving, final double x, final double y,
+		final double z)
+	{
+		if (position.x != x || position.y != y) {
+			mm.setXYPosition(xyStage, position.x, position.y);
+			moving.add(xyStage);
+		}
+		if (!Double.isNaN(position.z) && position.z != z) {
+			mm.setPosition(focusDevice, position.z);
+			moving.add(focusDevice);
+		}
+	}
+
+	private void waitFor(final Set<String> moving) {
+		for (final String label : moving) {
+			mm.waitForDevice(label);
+		}
+		moving.clear();
+	}
+
+	private static double distance(final double[] x, final double[] y, final int a, final int b) {
+		return Math.max(Math.abs(x[a] - x[b]), Math.abs(y[a] - y[b]));
+	}
+}
@@ -0,0 +1,199 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Collects 16-bit frames of a camera with a lower bit depth, packed to that
+ * bit depth.
+ * <p>
+ * Every frame is packed into a {@link PackedShortArray} on a
+ * {@link ForkJoinPool}, in parallel with the acquisition and with the packing
+ * of other frames; only a bounded number of frames is in flight at a time. The
+ * resulting image is a {@link PlanarImg} of {@link UnsignedShortType}, one
+ * packed plane per frame, so that e.g. a 12-bit acquisition holds 25% more
+ * frames in the same memory than a {@link PlanarFrameSink}.
+ * </p>
+ * <p>
+ * Frames handed over as {@link PooledFrame}s are released as soon as they are
+ * packed, so that an acquisition {@link SequenceAcquisition#takeFrame(int,
+ * FramePool) taking} its frames from a {@link FramePool} allocates nothing but
+ * the packed planes. Frames must be added by one thread at a time.
+ * </p>
+ */
+public class PackedFrameSink implements FrameSink<UnsignedShortType> {
+
+	private static ForkJoinPool defaultPool;
+
+	private final int width, height, bits;
+	private final ForkJoinPool pool;
+	private final int maxPending;
+	private final List<PackedShortArray> planes = new ArrayList<PackedShortArray>();
+	private final ArrayDeque<ForkJoinTask<?>> pending = new ArrayDeque<ForkJoinTask<?>>();
+
+	/**
+	 * Constructs a sink packing on a shared pool.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param bits the bits per pixel, as reported by
+	 *          {@link MMGateway#getImageBitDepth()}
+	 */
+	public PackedFrameSink(final long width, final long height, final int bits) {
+		this(width, height, bits, null);
+	}
+
+	/**
+	 * Constructs a sink.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param bits the bits per pixel, as reported by
+	 *          {@link MMGateway#getImageBitDepth()}
+	 * @param pool the pool to pack on, or null for a shared one
+	 */
+	public PackedFrameSink(final long width, final long height, final int bits, final ForkJoinPool pool) {
+		if (width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Frame too large: " + width + "x" + height);
+		}
+		if (bits < 1 || bits > 16) {
+			throw new IllegalArgumentException("Invalid bit depth: " + bits);
+		}
+		this.width = (int) width;
+		this.height = (int) height;
+		this.bits = bits;
+		this.pool = pool != null ? pool : getDefaultPool();
+		// enough frames in flight to keep every thread busy
+		maxPending = 2 * this.pool.getParallelism();
+	}
+
+	/**
+	 * Queues a frame for packing. If too many frames are queued already, this
+	 * waits until the oldest one is packed.
+	 *
+	 * @param pixels the <code>short[]</code> pixel array of the frame; it must
+	 *          not be modified until {@link #toImg()} or {@link #close()}
+	 *          returns
+	 */
+	@Override
+	public void add(final Object pixels) {
+		final short[] samples = check(pixels);
+		final PackedShortArray plane = new PackedShortArray(bits, samples.length);
+		planes.add(plane);
+		submit(new Runnable() {
+
+			@Override
+			public void run() {
+				plane.pack(samples);
+			}
+		});
+	}
+
+	/**
+	 * Queues a pooled frame for packing; the frame is retained until it is
+	 * packed. If too many frames are queued already, this waits until the
+	 * oldest one is packed.
+	 *
+	 * @param frame the frame; the caller's reference can be released right away
+	 */
+	@Override
+	public void add(final PooledFrame frame) {
+		final short[] samples = check(frame.getPixels());
+		final PackedShortArray plane = new PackedShortArray(bits, samples.length);
+		planes.add(plane);
+		frame.retain();
+		submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					plane.pack(samples);
+				}
+				finally {
+					frame.release();
+				}
+			}
+		});
+	}
+
+	@Override
+	public int size() {
+		return planes.size();
+	}
+
+	/**
+	 * Waits for the queued frames and builds the image from the frames added
+	 * so far.
+	 *
+	 * @return a width x height x frames image backed by the packed frames
+	 */
+	@Override
+	public PlanarImg<UnsignedShortType, PackedShortArray> toImg() {
+		if (planes.isEmpty()) {
+			throw new IllegalStateException("No frames were acquired");
+		}
+		await();
+		final PlanarImg<UnsignedShortType, PackedShortArray> img =
+			new PlanarImg<UnsignedShortType, PackedShortArray>(new long[] { width, height, planes.size() },
+				new Fraction());
+		for (int i = 0; i < planes.size(); i++) {
+			img.setPlane(i, planes.get(i));
+		}
+		img.setLinkedType(new UnsignedShortType(img));
+		return img;
+	}
+
+	/**
+	 * Waits for the queued frames; the packed frames stay in memory.
+	 */
+	@Override
+	public void close() {
+		await();
+	}
+
+	/**
+	 * @return the bits per pixel
+	 */
+	public int getBitsPerPixel() {
+		return bits;
+	}
+
+	private short[] check(final Object pixels) {
+		if (!(pixels instanceof short[])) {
+			throw new IllegalArgumentException("Expected 16-bit pixels, got " + pixels.getClass().getSimpleName());
+		}
+		final short[] samples = (short[]) pixels;
+		if (samples.length != width * height) {
+			throw new IllegalArgumentException("Expected " + width + "x" + height +
+				" pixels, got " + samples.length);
+		}
+		return samples;
+	}
+
+	private void submit(final Runnable packing) {
+		while (pending.size() >= maxPending) {
+			pending.removeFirst().join();
+		}
+		pending.addLast(pool.submit(packing));
+	}
+
+	private void await() {
+		while (!pending.isEmpty()) {
+			pending.removeFirst().join();
+		}
+	}
+
+	private synchronized static ForkJoinPool getDefaultPool() {
+		if (defaultPool == null) {
+			defaultPool = new ForkJoinPool();
+		}
+		return defaultPool;
+	}
+}
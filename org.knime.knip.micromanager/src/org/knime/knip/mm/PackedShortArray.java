@@ -0,0 +1,210 @@
+package org.knime.knip.mm;
+
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * Unsigned samples of fewer than 16 bits, stored densely in a
+ * <code>long[]</code>.
+ * <p>
+ * Many cameras digitize 10, 12 or 14 bits per pixel, but hand them out as
+ * 16-bit <code>short[]</code> arrays. Packed to their actual bit depth, such
+ * frames take 12.5% to 37.5% less memory. As a {@link ShortAccess}, the packed
+ * samples back an {@link net.imglib2.type.numeric.integer.UnsignedShortType
+ * UnsignedShortType} image like a plain {@link
+ * net.imglib2.img.basictypeaccess.array.ShortArray ShortArray} does, only that
+ * every access extracts the sample's bits.
+ * </p>
+ * <p>
+ * Samples are stored in order, starting at the least significant bit of the
+ * first word, and may straddle two words. Whole frames are packed and unpacked
+ * by {@link #pack(short[])} and {@link #unpack(short[])}, which stream through
+ * the words without allocating anything. Samples too large for the bit depth
+ * are saturated.
+ * </p>
+ * <p>
+ * Neighboring samples share words, so writing the same array from several
+ * threads requires synchronization, even if they write different samples.
+ * </p>
+ */
+public class PackedShortArray implements ShortAccess, ArrayDataAccess<PackedShortArray> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int bits;
+	private final int length;
+	private final long mask;
+	private final long[] data;
+
+	/**
+	 * Constructs an array of zeroes.
+	 *
+	 * @param bits the bits per sample, from 1 to 16
+	 * @param length the number of samples
+	 */
+	public PackedShortArray(final int bits, final int length) {
+		this(bits, length, new long[words(bits, length)]);
+	}
+
+	/**
+	 * Constructs an array backed by the given words.
+	 *
+	 * @param bits the bits per sample, from 1 to 16
+	 * @param length the number of samples
+	 * @param data the packed samples, at least {@link #words(int, int)} long
+	 */
+	public PackedShortArray(final int bits, final int length, final long[] data) {
+		if (bits < 1 || bits > 16) {
+			throw new IllegalArgumentException("Invalid bits per sample: " + bits);
+		}
+		if (data.length < words(bits, length)) {
+			throw new IllegalArgumentException("Expected " + words(bits, length) + " words, got " + data.length);
+		}
+		this.bits = bits;
+		this.length = length;
+		this.data = data;
+		mask = (1L << bits) - 1;
+	}
+
+	/**
+	 * Computes the number of words needed to store samples.
+	 *
+	 * @param bits the bits per sample
+	 * @param length the number of samples
+	 * @return the number of words
+	 */
+	public static int words(final int bits, final int length) {
+		return (int) (((long) bits * length + 63) >>> 6);
+	}
+
+	/**
+	 * @return the bits per sample
+	 */
+	public int getBitsPerSample() {
+		return bits;
+	}
+
+	/**
+	 * @return the number of samples
+	 */
+	public int size() {
+		return length;
+	}
+
+	@Override
+	public short getValue(final int index) {
+		final long bit = (long) index * bits;
+		final int word = (int) (bit >>> 6);
+		final int shift = (int) bit & 63;
+		long value = data[word] >>> shift;
+		if (shift + bits > 64) {
+			value |= data[word + 1] << (64 - shift);
+		}
+		return (short) (value & mask);
+	}
+
+	@Override
+	public void setValue(final int index, final short value) {
+		final long sample = Math.min(value & 0xffff, mask);
+		final long bit = (long) index * bits;
+		final int word = (int) (bit >>> 6);
+		final int shift = (int) bit & 63;
+		data[word] = data[word] & ~(mask << shift) | sample << shift;
+		if (shift + bits > 64) {
+			data[word + 1] = data[word + 1] & ~(mask >>> (64 - shift)) | sample >>> (64 - shift);
+		}
+	}
+
+	/**
+	 * Packs a frame, replacing all samples.
+	 *
+	 * @param pixels the samples, as 16-bit unsigned values
+	 */
+	public void pack(final short[] pixels) {
+		if (pixels.length != length) {
+			throw new IllegalArgumentException("Expected " + length + " samples, got " + pixels.length);
+		}
+		pack(pixels, bits, data);
+	}
+
+	/**
+	 * Unpacks all samples.
+	 *
+	 * @param pixels the array to unpack into, as 16-bit unsigned values
+	 */
+	public void unpack(final short[] pixels) {
+		if (pixels.length != length) {
+			throw new IllegalArgumentException("Expected " + length + " samples, got " + pixels.length);
+		}
+		unpack(data, bits, pixels);
+	}
+
+	/**
+	 * Packs samples into words.
+	 *
+	 * @param pixels the samples, as 16-bit unsigned values
+	 * @param bits the bits per sample
+	 * @param data the words, at least {@link #words(int, int)} long
+	 */
+	static void pack(final short[] pixels, final int bits, final long[] data) {
+		final long mask = (1L << bits) - 1;
+		long word = 0;
+		int filled = 0, index = 0;
+		for (final short pixel : pixels) {
+			final long sample = Math.min(pixel & 0xffff, mask);
+			word |= sample << filled;
+			filled += bits;
+			if (filled >= 64) {
+				data[index++] = word;
+				filled -= 64;
+				// the bits that did not fit, if any
+				word = filled == 0 ? 0 : sample >>> (bits - filled);
+			}
+		}
+		if (filled > 0) {
+			data[index] = word;
+		}
+	}
+
+	/**
+	 * Unpacks samples from words.
+	 *
+	 * @param data the words
+	 * @param bits the bits per sample
+	 * @param pixels the array to unpack into, as 16-bit unsigned values
+	 */
+	static void unpack(final long[] data, final int bits, final short[] pixels) {
+		if (pixels.length == 0) return;
+		final long mask = (1L << bits) - 1;
+		int index = 0;
+		long word = data[0];
+		int available = 64;
+		for (int i = 0; i < pixels.length; i++) {
+			if (available >= bits) {
+				pixels[i] = (short) (word & mask);
+				word >>>= bits;
+				available -= bits;
+			}
+			else {
+				// the sample straddles two words
+				final long next = data[++index];
+				pixels[i] = (short) ((word | next << available) & mask);
+				word = next >>> (bits - available);
+				available += 64 - bits;
+			}
+		}
+	}
+
+	@Override
+	public PackedShortArray createArray(final int numEntities) {
+		return new PackedShortArray(bits, numEntities);
+	}
+
+	/**
+	 * @return the packed samples
+	 */
+	@Override
+	public long[] getCurrentStorageArray() {
+		return data;
+	}
+}
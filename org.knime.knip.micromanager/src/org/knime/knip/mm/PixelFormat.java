@@ -0,0 +1,232 @@
+package org.knime.knip.mm;
+
+import java.lang.reflect.Array;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * The pixel formats delivered by Micro-Manager cameras.
+ * <p>
+ * MMCoreJ hands out pixels as primitive arrays whose element type depends on
+ * the camera's bytes per pixel and number of components. Every format wraps
+ * such arrays directly into the matching imglib2 type, without copying or
+ * converting a single pixel. The only exception are RGB images, which MMCoreJ
+ * delivers as <code>byte[]</code> just like 8-bit grayscale ones; the
+ * {@link MMGateway} packs them into <code>int[]</code> (see
+ * {@link #packBGRA(byte[])}), so that the array type identifies the format.
+ * </p>
+ */
+public enum PixelFormat {
+
+	/** 8-bit grayscale, delivered as <code>byte[]</code>. */
+	GRAY8(1, 1, byte[].class) {
+
+		@Override
+		public Img<?> wrap(final Object pixels, final long... dims) {
+			return ArrayImgs.unsignedBytes((byte[]) pixels, dims);
+		}
+
+		@Override
+		public PlanarFrameSink<?, ?> createSink(final long width, final long height) {
+			return PlanarFrameSink.unsignedBytes(width, height);
+		}
+	},
+
+	/** 16-bit grayscale, delivered as (unsigned) <code>short[]</code>. */
+	GRAY16(2, 1, short[].class) {
+
+		@Override
+		public Img<?> wrap(final Object pixels, final long... dims) {
+			return ArrayImgs.unsignedShorts((short[]) pixels, dims);
+		}
+
+		@Override
+		public PlanarFrameSink<?, ?> createSink(final long width, final long height) {
+			return PlanarFrameSink.unsignedShorts(width, height);
+		}
+	},
+
+	/** 32-bit grayscale, delivered as <code>float[]</code>. */
+	GRAY32(4, 1, float[].class) {
+
+		@Override
+		public Img<?> wrap(final Object pixels, final long... dims) {
+			return ArrayImgs.floats((float[]) pixels, dims);
+		}
+
+		@Override
+		public PlanarFrameSink<?, ?> createSink(final long width, final long height) {
+			return PlanarFrameSink.floats(width, height);
+		}
+	},
+
+	/**
+	 * 32-bit RGB (8 bits per component), delivered by MMCoreJ as
+	 * <code>byte[]</code> and handed out by the gateway as packed ARGB
+	 * <code>int[]</code>.
+	 */
+	RGB32(4, 4, int[].class) {
+
+		@Override
+		public Img<?> wrap(final Object pixels, final long... dims) {
+			return ArrayImgs.argbs((int[]) pixels, dims);
+		}
+
+		@Override
+		public PlanarFrameSink<?, ?> createSink(final long width, final long height) {
+			return PlanarFrameSink.argbs(width, height);
+		}
+	};
+
+	/** The formats, so that looking one up does not clone {@link #values()}. */
+	private final static PixelFormat[] FORMATS = values();
+
+	private final int bytesPerPixel;
+	private final int components;
+	private final Class<?> arrayClass;
+
+	private PixelFormat(final int bytesPerPixel, final int components, final Class<?> arrayClass) {
+		this.bytesPerPixel = bytesPerPixel;
+		this.components = components;
+		this.arrayClass = arrayClass;
+	}
+
+	/**
+	 * Wraps a pixel array into an image.
+	 *
+	 * @param pixels the pixels, as returned by {@link MMGateway#getImage()}
+	 * @param dims the dimensions of the image
+	 * @return an image backed by the pixel array
+	 */
+	public abstract Img<?> wrap(final Object pixels, final long... dims);
+
+	/**
+	 * Creates a sink adopting pixel arrays of this format as planes.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public abstract PlanarFrameSink<?, ?> createSink(final long width, final long height);
+
+	/**
+	 * Creates a sink for frames of this format which stores 16-bit frames of a
+	 * camera with a lower bit depth {@link PackedFrameSink packed} to that bit
+	 * depth, and adopts all other frames as planes.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @param bitDepth the bits per pixel, as reported by
+	 *          {@link MMGateway#getImageBitDepth()}
+	 * @return the sink
+	 */
+	public FrameSink<?> createSink(final long width, final long height, final int bitDepth) {
+		if (this == GRAY16 && bitDepth > 0 && bitDepth < 16) {
+			return new PackedFrameSink(width, height, bitDepth);
+		}
+		return createSink(width, height);
+	}
+
+	/**
+	 * Allocates a pixel array of this format.
+	 *
+	 * @param length the number of pixels
+	 * @return the pixel array
+	 */
+	public Object newArray(final int length) {
+		return Array.newInstance(arrayClass.getComponentType(), length);
+	}
+
+	/**
+	 * @return the number of bytes per pixel
+	 */
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/**
+	 * @return the number of components per pixel
+	 */
+	public int getNumberOfComponents() {
+		return components;
+	}
+
+	/**
+	 * Packs an RGB image as delivered by MMCoreJ, i.e. blue, green, red and an
+	 * unused fourth byte per pixel, into ARGB pixels.
+	 *
+	 * @param bgra the bytes, four per pixel
+	 * @return the opaque ARGB pixels
+	 */
+	public static int[] packBGRA(final byte[] bgra) {
+		if (bgra.length % 4 != 0) {
+			throw new IllegalArgumentException("Expected 4 bytes per pixel, got " + bgra.length + " bytes");
+		}
+		final int[] pixels = new int[bgra.length / 4];
+		for (int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+			pixels[i] = 0xff000000 | (bgra[j + 2] & 0xff) << 16 | (bgra[j + 1] & 0xff) << 8 | bgra[j] & 0xff;
+		}
+		return pixels;
+	}
+
+	/**
+	 * Splits packed ARGB pixels into their red, green and blue components.
+	 *
+	 * @param argb the pixels
+	 * @return the red, green and blue planes, as unsigned bytes
+	 */
+	public static byte[][] splitRGB(final int[] argb) {
+		final byte[][] planes = new byte[3][argb.length];
+		for (int i = 0; i < argb.length; i++) {
+			planes[0][i] = (byte) (argb[i] >> 16);
+			planes[1][i] = (byte) (argb[i] >> 8);
+			planes[2][i] = (byte) argb[i];
+		}
+		return planes;
+	}
+
+	/**
+	 * Determines the pixel format of the current camera.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 * @return the pixel format
+	 */
+	public static PixelFormat of(final MMGateway mm) {
+		return of(mm.getBytesPerPixel(), mm.getNumberOfComponents());
+	}
+
+	/**
+	 * Determines a pixel format.
+	 *
+	 * @param bytesPerPixel the number of bytes per pixel
+	 * @param components the number of components per pixel
+	 * @return the pixel format
+	 */
+	public static PixelFormat of(final long bytesPerPixel, final long components) {
+		for (final PixelFormat format : FORMATS) {
+			if (format.bytesPerPixel == bytesPerPixel && format.components == components) {
+				return format;
+			}
+		}
+		throw new RuntimeException("Unsupported pixel type: " + bytesPerPixel +
+			" bytes per pixel, " + components + " component(s)");
+	}
+
+	/**
+	 * Determines the pixel format of a pixel array, as handed out by the
+	 * {@link MMGateway}.
+	 *
+	 * @param pixels the pixels
+	 * @return the pixel format
+	 */
+	public static PixelFormat of(final Object pixels) {
+		for (final PixelFormat format : FORMATS) {
+			if (format.arrayClass.isInstance(pixels)) {
+				return format;
+			}
+		}
+		throw new RuntimeException("Unsupported pixel type: " +
+			(pixels == null ? null : pixels.getClass().getSimpleName()));
+	}
+}
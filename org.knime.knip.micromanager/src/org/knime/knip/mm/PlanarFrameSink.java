@@ -0,0 +1,280 @@
+package org.knime.knip.mm;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Collects the frames of a sequence acquisition into a {@link PlanarImg}.
+ * <p>
+ * Every frame's pixel array (as returned by {@link MMGateway#popNextImage()})
+ * is adopted as-is as one plane of the image: ingesting a frame neither copies
+ * pixels nor allocates views, and memory is only held for the frames that were
+ * actually received.
+ * </p>
+ *
+ * @param <T> the pixel type of the image
+ * @param <A> the access type of the planes
+ */
+public abstract class PlanarFrameSink<T extends NativeType<T>, A extends ArrayDataAccess<A>> implements FrameSink<T> {
+
+	private final long width, height;
+	private final List<A> planes = new ArrayList<A>();
+
+	/**
+	 * Constructs a sink for frames of the given size.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 */
+	protected PlanarFrameSink(final long width, final long height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Wraps a frame's pixel array.
+	 *
+	 * @param pixels the pixels
+	 * @return the plane
+	 */
+	protected abstract A wrap(final Object pixels);
+
+	/**
+	 * Creates the linked type of the image.
+	 *
+	 * @param img the image
+	 * @return the linked type
+	 */
+	protected abstract T createLinkedType(final PlanarImg<T, A> img);
+
+	/**
+	 * Adds a frame.
+	 *
+	 * @param pixels the pixel array of the frame; it must not be modified
+	 *          afterwards
+	 */
+	@Override
+	public void add(final Object pixels) {
+		checkLength(pixels);
+		planes.add(wrap(pixels));
+	}
+
+	/**
+	 * Adds a pooled frame. Its array becomes a plane of the image, so the
+	 * frame stays retained and never returns to its pool.
+	 *
+	 * @param frame the frame; the caller's reference can be released right away
+	 */
+	@Override
+	public void add(final PooledFrame frame) {
+		add(frame.getPixels());
+		frame.retain();
+	}
+
+	/**
+	 * Sets a given plane, for frames that are not acquired in the order of the
+	 * planes.
+	 *
+	 * @param index the index of the plane
+	 * @param pixels the pixel array of the frame; it must not be modified
+	 *          afterwards
+	 */
+	public void set(final int index, final Object pixels) {
+		checkLength(pixels);
+		while (planes.size() <= index) {
+			planes.add(null);
+		}
+		planes.set(index, wrap(pixels));
+	}
+
+	@Override
+	public int size() {
+		return planes.size();
+	}
+
+	/**
+	 * Builds the image from the frames added so far.
+	 *
+	 * @return a width x height x frames image backed by the frames' arrays
+	 */
+	@Override
+	public PlanarImg<T, A> toImg() {
+		return toImg(planes.size());
+	}
+
+	/**
+	 * Builds an image whose planes span several dimensions, e.g. channels and
+	 * slices, from the frames added so far. The frames must have been added in
+	 * the order of the planes, i.e. with the first of the given dimensions
+	 * varying fastest.
+	 *
+	 * @param planeDims the dimensions beyond X and Y
+	 * @return a width x height x planeDims... image backed by the frames' arrays
+	 */
+	public PlanarImg<T, A> toImg(final long... planeDims) {
+		if (planes.isEmpty()) {
+			throw new IllegalStateException("No frames were acquired");
+		}
+		final long[] dims = new long[2 + planeDims.length];
+		dims[0] = width;
+		dims[1] = height;
+		long count = 1;
+		for (int d = 0; d < planeDims.length; d++) {
+			dims[2 + d] = planeDims[d];
+			count *= planeDims[d];
+		}
+		if (count != planes.size()) {
+			throw new IllegalArgumentException("Expected " + count + " frames, got " + planes.size());
+		}
+		final PlanarImg<T, A> img = new PlanarImg<T, A>(dims, new Fraction());
+		for (int i = 0; i < planes.size(); i++) {
+			if (planes.get(i) == null) {
+				throw new IllegalStateException("Plane " + i + " was not acquired");
+			}
+			img.setPlane(i, planes.get(i));
+		}
+		img.setLinkedType(createLinkedType(img));
+		return img;
+	}
+
+	private void checkLength(final Object pixels) {
+		final int length = Array.getLength(pixels);
+		if (length != width * height) {
+			throw new IllegalArgumentException("Expected " + width + "x" + height +
+				" pixels, got " + length);
+		}
+	}
+
+	/**
+	 * Does nothing: the frames are held in memory.
+	 */
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	/**
+	 * Creates a sink for 8-bit frames.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public static PlanarFrameSink<UnsignedByteType, ByteArray> unsignedBytes(final long width, final long height) {
+		return new PlanarFrameSink<UnsignedByteType, ByteArray>(width, height) {
+
+			@Override
+			protected ByteArray wrap(final Object pixels) {
+				return new ByteArray((byte[]) pixels);
+			}
+
+			@Override
+			protected UnsignedByteType createLinkedType(final PlanarImg<UnsignedByteType, ByteArray> img) {
+				return new UnsignedByteType(img);
+			}
+		};
+	}
+
+	/**
+	 * Creates a sink for 16-bit frames, interpreted as signed values.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public static PlanarFrameSink<ShortType, ShortArray> shorts(final long width, final long height) {
+		return new PlanarFrameSink<ShortType, ShortArray>(width, height) {
+
+			@Override
+			protected ShortArray wrap(final Object pixels) {
+				return new ShortArray((short[]) pixels);
+			}
+
+			@Override
+			protected ShortType createLinkedType(final PlanarImg<ShortType, ShortArray> img) {
+				return new ShortType(img);
+			}
+		};
+	}
+
+	/**
+	 * Creates a sink for 16-bit frames.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public static PlanarFrameSink<UnsignedShortType, ShortArray> unsignedShorts(final long width, final long height) {
+		return new PlanarFrameSink<UnsignedShortType, ShortArray>(width, height) {
+
+			@Override
+			protected ShortArray wrap(final Object pixels) {
+				return new ShortArray((short[]) pixels);
+			}
+
+			@Override
+			protected UnsignedShortType createLinkedType(final PlanarImg<UnsignedShortType, ShortArray> img) {
+				return new UnsignedShortType(img);
+			}
+		};
+	}
+
+	/**
+	 * Creates a sink for 32-bit grayscale frames.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public static PlanarFrameSink<FloatType, FloatArray> floats(final long width, final long height) {
+		return new PlanarFrameSink<FloatType, FloatArray>(width, height) {
+
+			@Override
+			protected FloatArray wrap(final Object pixels) {
+				return new FloatArray((float[]) pixels);
+			}
+
+			@Override
+			protected FloatType createLinkedType(final PlanarImg<FloatType, FloatArray> img) {
+				return new FloatType(img);
+			}
+		};
+	}
+
+	/**
+	 * Creates a sink for 32-bit RGB frames.
+	 *
+	 * @param width the frame width
+	 * @param height the frame height
+	 * @return the sink
+	 */
+	public static PlanarFrameSink<ARGBType, IntArray> argbs(final long width, final long height) {
+		return new PlanarFrameSink<ARGBType, IntArray>(width, height) {
+
+			@Override
+			protected IntArray wrap(final Object pixels) {
+				return new IntArray((int[]) pixels);
+			}
+
+			@Override
+			protected ARGBType createLinkedType(final PlanarImg<ARGBType, IntArray> img) {
+				return new ARGBType(img);
+			}
+		};
+	}
+}
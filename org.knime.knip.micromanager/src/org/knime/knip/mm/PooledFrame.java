@@ -0,0 +1,120 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted pixel buffer borrowed from a {@link FramePool}.
+ * <p>
+ * The frame starts out with one reference, held by whoever borrowed it. Every
+ * consumer that keeps the frame beyond the call that handed it over must
+ * {@link #retain()} it, and every holder {@link #release() releases} its
+ * reference when done; when the last reference is released, the buffer goes
+ * back to the pool and must no longer be touched.
+ * </p>
+ * <p>
+ * Typical use:
+ * </p>
+ *
+ * <pre>
+ * final PooledFrame frame = pool.borrow(PixelFormat.GRAY16, width * height);
+ * try {
+ * 	fill((short[]) frame.getPixels());
+ * 	consumer.accept(frame); // retains the frame if it keeps it
+ * }
+ * finally {
+ * 	frame.release();
+ * }
+ * </pre>
+ */
+public class PooledFrame {
+
+	private final FramePool pool;
+	private final PixelFormat format;
+	private final Object pixels;
+	private final int length;
+	private final AtomicInteger references = new AtomicInteger();
+
+	PooledFrame(final FramePool pool, final PixelFormat format, final Object pixels, final int length) {
+		this.pool = pool;
+		this.format = format;
+		this.pixels = pixels;
+		this.length = length;
+	}
+
+	/**
+	 * @return the pixel array
+	 * @throws IllegalStateException if the frame was already released
+	 */
+	public Object getPixels() {
+		if (references.get() <= 0) {
+			throw new IllegalStateException("Frame was released");
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return the pixel format
+	 */
+	public PixelFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the number of pixels
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of references currently held
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+
+	/**
+	 * Adds a reference.
+	 * <p>
+	 * Only a holder of a reference may add one. Once the last reference is
+	 * released, the buffer may be borrowed again right away and would then
+	 * look like a live frame, so a frame must not be picked up from a slot
+	 * that is shared with threads which may release it.
+	 * </p>
+	 *
+	 * @return this frame
+	 * @throws IllegalStateException if the frame was already released
+	 */
+	public PooledFrame retain() {
+		for (;;) {
+			final int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Frame was released");
+			}
+			if (references.compareAndSet(count, count + 1)) return this;
+		}
+	}
+
+	/**
+	 * Releases a reference, returning the buffer to the pool with the last one.
+	 *
+	 * @throws IllegalStateException if the frame was already released
+	 */
+	public void release() {
+		final int count = references.decrementAndGet();
+		if (count == 0) {
+			pool.recycle(this);
+		}
+		else if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("Frame was released too often");
+		}
+	}
+
+	/**
+	 * Hands the frame out with a single reference.
+	 */
+	void reset() {
+		references.set(1);
+	}
+}
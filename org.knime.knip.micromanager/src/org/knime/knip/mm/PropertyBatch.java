@@ -0,0 +1,63 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of property writes to be applied together by
+ * {@link MMGateway#setProperties(PropertyBatch)}.
+ * <p>
+ * Writes are applied in the order in which they were added.
+ * </p>
+ */
+public class PropertyBatch {
+
+	final List<String> labels = new ArrayList<String>();
+	final List<String> propNames = new ArrayList<String>();
+	final List<Object> values = new ArrayList<Object>();
+
+	public PropertyBatch set(final String label, final String propName, final String propValue) {
+		return add(label, propName, propValue);
+	}
+
+	public PropertyBatch set(final String label, final String propName, final int propValue) {
+		return add(label, propName, propValue);
+	}
+
+	public PropertyBatch set(final String label, final String propName, final boolean propValue) {
+		return add(label, propName, propValue);
+	}
+
+	public PropertyBatch set(final String label, final String propName, final float propValue) {
+		return add(label, propName, propValue);
+	}
+
+	public PropertyBatch set(final String label, final String propName, final double propValue) {
+		return add(label, propName, propValue);
+	}
+
+	/**
+	 * @return the number of writes in this batch
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * @return a copy of this batch, unaffected by later changes to this one
+	 */
+	PropertyBatch copy() {
+		final PropertyBatch copy = new PropertyBatch();
+		copy.labels.addAll(labels);
+		copy.propNames.addAll(propNames);
+		copy.values.addAll(values);
+		return copy;
+	}
+
+	private PropertyBatch add(final String label, final String propName, final Object propValue) {
+		labels.add(label);
+		propNames.add(propName);
+		values.add(propValue);
+		return this;
+	}
+}
@@ -0,0 +1,83 @@
+package org.knime.knip.mm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the last known value of each device property.
+ * <p>
+ * Values are recorded whenever a property is written or read through the
+ * {@link MMGateway}, so that writing a property's current value again can be
+ * skipped instead of costing a round-trip to the device. Values are compared
+ * as strings and, failing that, as numbers, since Micro-Manager reports
+ * numeric properties in its own formatting (e.g. "200.0000" for 200).
+ * </p>
+ */
+class PropertyCache {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, String>> devices =
+		new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+	/**
+	 * Determines whether a property is known to have a given value.
+	 *
+	 * @param label the device label
+	 * @param propName the property name
+	 * @param value the value
+	 * @return whether writing the value can be skipped
+	 */
+	boolean isCurrent(final String label, final String propName, final String value) {
+		final ConcurrentMap<String, String> properties = devices.get(label);
+		if (properties == null) return false;
+		final String current = properties.get(propName);
+		return current != null && isSame(current, value);
+	}
+
+	/**
+	 * Records the value of a property.
+	 *
+	 * @param label the device label
+	 * @param propName the property name
+	 * @param value the value, or null if it is unknown
+	 */
+	void put(final String label, final String propName, final String value) {
+		ConcurrentMap<String, String> properties = devices.get(label);
+		if (properties == null) {
+			if (value == null) return;
+			final ConcurrentMap<String, String> created = new ConcurrentHashMap<String, String>();
+			properties = devices.putIfAbsent(label, created);
+			if (properties == null) properties = created;
+		}
+		if (value == null) {
+			properties.remove(propName);
+		}
+		else {
+			properties.put(propName, value);
+		}
+	}
+
+	/**
+	 * Forgets the properties of one device.
+	 *
+	 * @param label the device label
+	 */
+	void invalidate(final String label) {
+		devices.remove(label);
+	}
+
+	/**
+	 * Forgets all properties.
+	 */
+	void invalidate() {
+		devices.clear();
+	}
+
+	private static boolean isSame(final String a, final String b) {
+		if (a.equals(b)) return true;
+		try {
+			return Double.parseDouble(a) == Double.parseDouble(b);
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+}
@@ -1,6 +1,12 @@
 package org.knime.knip.mm;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A set of helpers to work with classes via reflection.
@@ -9,6 +15,20 @@ import java.lang.reflect.Method;
  */
 class Reflection {
 
+	/**
+	 * Generic invokers, per class, keyed by method name and the runtime classes
+	 * of the arguments (see {@link #invoke(Object, String, Object...)}).
+	 */
+	private static final ClassValue<ConcurrentMap<Signature, MethodHandle>> invokers =
+		new HandleCache();
+
+	/**
+	 * Typed, unbound method handles, per class, keyed by method name and the
+	 * requested signature (see {@link #findVirtual}).
+	 */
+	private static final ClassValue<ConcurrentMap<Signature, MethodHandle>> handles =
+		new HandleCache();
+
 	/**
 	 * Instantiates a class loaded in the given class loader.
 	 * 
@@ -95,24 +115,163 @@ class Reflection {
 			final String methodName, final Object... parameters)
 	{
 		final Class<?> clazz = object.getClass();
+		final ConcurrentMap<Signature, MethodHandle> cache = invokers.get(clazz);
+		final Signature signature = new Signature(methodName, parameters);
+		MethodHandle invoker = cache.get(signature);
+		if (invoker == null) {
+			invoker = genericInvoker(findMethod(clazz, methodName, parameters));
+			final MethodHandle previous = cache.putIfAbsent(signature, invoker);
+			if (previous != null) invoker = previous;
+		}
 		try {
-			for (final Method method : clazz.getMethods()) {
-				if (method.getName().equals(methodName) &&
-					doParametersMatch(method.getParameterTypes(), parameters))
-				{
-					return (T) method.invoke(object, parameters);
-				}
+			return (T) (Object) invoker.invokeExact(object, parameters);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Binds a method of a given object to a typed method handle.
+	 * <p>
+	 * In contrast to {@link #invoke(Object, String, Object...)}, the method is
+	 * looked up only once, by its exact signature. The returned handle has the
+	 * receiver already bound and is adapted to the requested type, so that it
+	 * can be called via {@link MethodHandle#invokeExact} without boxing any
+	 * primitive parameter or return value. Parameter and return types that are
+	 * only known to the object's class loader (e.g. <i>mmcorej.*</i> classes)
+	 * can be requested as {@link Object}.
+	 * </p>
+	 * 
+	 * @param object the object whose method is to be bound
+	 * @param methodName the name of the method
+	 * @param returnType the return type the caller expects
+	 * @param parameterTypes the parameter types of the method, as seen by the
+	 *          caller
+	 * @return the bound method handle
+	 * @throws RuntimeException if no matching method was found
+	 */
+	public static MethodHandle bind(final Object object,
+		final String methodName, final Class<?> returnType,
+		final Class<?>... parameterTypes)
+	{
+		return findVirtual(object.getClass(), methodName, returnType,
+			parameterTypes).bindTo(object);
+	}
+
+	/**
+	 * Looks up a method of a given class as a typed method handle.
+	 * <p>
+	 * This works like {@link #bind(Object, String, Class, Class...)}, except
+	 * that the receiver is not bound: it is passed as first parameter (of type
+	 * {@link Object}). Use this for methods that are called on many different
+	 * instances of the same class.
+	 * </p>
+	 * 
+	 * @param clazz the class declaring (or inheriting) the method
+	 * @param methodName the name of the method
+	 * @param returnType the return type the caller expects
+	 * @param parameterTypes the parameter types of the method, as seen by the
+	 *          caller
+	 * @return the method handle
+	 * @throws RuntimeException if no matching method was found
+	 */
+	public static MethodHandle findVirtual(final Class<?> clazz,
+		final String methodName, final Class<?> returnType,
+		final Class<?>... parameterTypes)
+	{
+		final ConcurrentMap<Signature, MethodHandle> cache = handles.get(clazz);
+		final MethodType type = MethodType.methodType(returnType, parameterTypes);
+		final Signature signature = new Signature(methodName, type);
+		MethodHandle handle = cache.get(signature);
+		if (handle == null) {
+			final Method method = findMethod(clazz, methodName, type);
+			try {
+				handle = MethodHandles.publicLookup().unreflect(method)
+					.asType(type.insertParameterTypes(0, Object.class));
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			final MethodHandle previous = cache.putIfAbsent(signature, handle);
+			if (previous != null) handle = previous;
+		}
+		return handle;
+	}
+
+	/**
+	 * Converts an exception thrown by a method handle into an unchecked one.
+	 * 
+	 * @param t the exception
+	 * @return the exception to throw (unless an {@link Error} is rethrown
+	 *         directly)
+	 */
+	public static RuntimeException rethrow(final Throwable t) {
+		if (t instanceof RuntimeException) return (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		return new RuntimeException(t);
+	}
+
+	private static Method findMethod(final Class<?> clazz,
+		final String methodName, final Object[] parameters)
+	{
+		for (final Method method : clazz.getMethods()) {
+			if (method.getName().equals(methodName) &&
+				doParametersMatch(method.getParameterTypes(), parameters))
+			{
+				return method;
 			}
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
 		}
 		throw new RuntimeException(new NoSuchMethodException(
 				"No matching method found (looked for '" + methodName + "' in "
 						+ clazz.getName()));
 	}
 
+	private static Method findMethod(final Class<?> clazz,
+		final String methodName, final MethodType type)
+	{
+		for (final Method method : clazz.getMethods()) {
+			if (method.getName().equals(methodName) &&
+				doTypesMatch(method.getParameterTypes(), type.parameterArray()))
+			{
+				return method;
+			}
+		}
+		throw new RuntimeException(new NoSuchMethodException(
+				"No matching method found (looked for '" + methodName + type +
+						"' in " + clazz.getName()));
+	}
+
+	/**
+	 * Adapts a method to the generic (receiver, Object[])Object shape.
+	 */
+	private static MethodHandle genericInvoker(final Method method) {
+		final int count = method.getParameterTypes().length;
+		try {
+			return MethodHandles.publicLookup().unreflect(method)
+				.asType(MethodType.genericMethodType(count + 1))
+				.asSpreader(Object[].class, count);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Check whether a list of declared parameter types matches a list of
+	 * parameter types requested by a caller. Requested {@link Object}
+	 * parameters match any reference type.
+	 * 
+	 * @param types the declared parameter types
+	 * @param requested the requested parameter types
+	 * @return whether the types match
+	 */
+	static boolean doTypesMatch(Class<?>[] types, Class<?>[] requested) {
+		if (types.length != requested.length) return false;
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == requested[i]) continue;
+			if (types[i].isPrimitive() || requested[i] != Object.class) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Check whether a list of parameters matches a list of parameter types. This
 	 * is used to find matching constructors and (possibly static) methods.
@@ -129,16 +288,77 @@ class Reflection {
 			if (parameters[i] != null) {
 				Class<?> clazz = parameters[i].getClass();
 				if (types[i].isPrimitive()) {
-					if (types[i] != Long.TYPE && types[i] != Integer.TYPE &&
-						types[i] != Boolean.TYPE) throw new RuntimeException(
-						"unsupported primitive type " + clazz);
-					if (types[i] == Long.TYPE && clazz != Long.class) return false;
-					else if (types[i] == Integer.TYPE && clazz != Integer.class) return false;
-					else if (types[i] == Boolean.TYPE && clazz != Boolean.class) return false;
+					if (clazz != MethodType.methodType(types[i]).wrap().returnType()) return false;
 				}
 				else if (!types[i].isAssignableFrom(clazz)) return false;
 			}
 		return true;
 	}
 
+	private static class HandleCache extends
+		ClassValue<ConcurrentMap<Signature, MethodHandle>>
+	{
+
+		@Override
+		protected ConcurrentMap<Signature, MethodHandle> computeValue(
+			final Class<?> type)
+		{
+			return new ConcurrentHashMap<Signature, MethodHandle>();
+		}
+	}
+
+	/**
+	 * The key of a cached method handle: a method name and a list of types.
+	 */
+	private static class Signature {
+
+		private final String name;
+		private final Object[] types;
+		private final int hashCode;
+
+		public Signature(final String name, final MethodType type) {
+			this(name, withReturnType(type));
+		}
+
+		public Signature(final String name, final Object[] parameters) {
+			this(name, classesOf(parameters));
+		}
+
+		private Signature(final String name, final Class<?>[] types) {
+			this.name = name;
+			this.types = types;
+			hashCode = 31 * name.hashCode() + Arrays.hashCode(types);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Signature)) return false;
+			final Signature signature = (Signature) other;
+			return name.equals(signature.name) &&
+				Arrays.equals(types, signature.types);
+		}
+
+		private static Class<?>[] withReturnType(final MethodType type) {
+			final Class<?>[] result = new Class<?>[type.parameterCount() + 1];
+			result[0] = type.returnType();
+			for (int i = 1; i < result.length; i++) {
+				result[i] = type.parameterType(i - 1);
+			}
+			return result;
+		}
+
+		private static Class<?>[] classesOf(final Object[] parameters) {
+			final Class<?>[] result = new Class<?>[parameters.length];
+			for (int i = 0; i < result.length; i++) {
+				if (parameters[i] != null) result[i] = parameters[i].getClass();
+			}
+			return result;
+		}
+	}
+
 }
@@ -0,0 +1,526 @@
+package org.knime.knip.mm;
+
+import java.io.Closeable;
+
+/**
+ * Streams the frames of a sequence acquisition to a consumer.
+ * <p>
+ * A dedicated drain thread pops the frames off Micro-Manager's circular
+ * buffer as soon as they arrive and hands them to the consumer via a
+ * {@link FrameRingBuffer}. Both threads wait via a {@link Backoff} that is
+ * tuned to the measured frame interval, so neither of them busy-spins on the
+ * core while the camera is exposing.
+ * </p>
+ * <p>
+ * Several cameras can be acquired in parallel: they are prepared and started
+ * together, and the drain thread demultiplexes the shared circular buffer by
+ * the {@link FrameMetadata#CAMERA} tag into one stream per camera. In that
+ * case, each camera's stream must be taken by its own thread, as a camera
+ * whose stream is not consumed eventually stalls the drain thread.
+ * </p>
+ * <p>
+ * With a {@link #setBufferController(BufferController) buffer controller},
+ * the circular buffer is sized before the sequence starts, and the camera can
+ * be paused rather than overflowing the buffer; the pauses are recorded in the
+ * {@link AcquisitionMetrics}. The frames' metadata can be
+ * {@link #setRecordMetadata(boolean) recorded} along with them.
+ * </p>
+ * <p>
+ * Typical use:
+ * </p>
+ *
+ * <pre>
+ * final SequenceAcquisition acquisition = new SequenceAcquisition(mm);
+ * try {
+ * 	acquisition.start(frames, 0);
+ * 	for (Object pixels; (pixels = acquisition.take()) != null;) {
+ * 		// process the frame
+ * 	}
+ * }
+ * finally {
+ * 	acquisition.close();
+ * }
+ * </pre>
+ */
+public class SequenceAcquisition implements Closeable {
+
+	private final static int DEFAULT_CAPACITY = 64;
+
+	/** The weight of a new frame interval measurement in the running estimate. */
+	private final static double SMOOTHING = 0.125;
+
+	/** The minimal interval between two samples of the circular buffer. */
+	private final static long SAMPLE_INTERVAL_NANOS = 10000000;
+
+	private final MMGateway mm;
+	private final String[] cameras;
+	private final FrameRingBuffer<Object>[] frames;
+
+	private String camera;
+	private int numImages;
+	private double intervalMs;
+	private BufferController controller;
+	private boolean recordMetadata;
+	private MetadataTable[] tables;
+	private Backoff backoff;
+	private Thread drainThread;
+	private volatile boolean stopRequested;
+	private volatile boolean closed;
+	private volatile boolean finished;
+	private volatile Throwable failure;
+	private volatile double frameIntervalMs;
+	private volatile int unroutedFrames;
+	private volatile long framesDropped;
+	private volatile int pauses;
+	private long lastTaken, startTime;
+
+	/**
+	 * Constructs an acquisition engine with a default hand-off capacity.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public SequenceAcquisition(final MMGateway mm) {
+		this(mm, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs an acquisition engine.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 * @param capacity the number of frames that can be handed off to the
+	 *          consumer before the drain thread waits
+	 */
+	public SequenceAcquisition(final MMGateway mm, final int capacity) {
+		this(mm, capacity, new String[0]);
+	}
+
+	/**
+	 * Constructs an acquisition engine for several cameras.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 * @param capacity the number of frames per camera that can be handed off
+	 *          to the consumers before the drain thread waits
+	 * @param cameras the labels of the cameras to acquire from; if none are
+	 *          given, the default camera is used
+	 */
+	public SequenceAcquisition(final MMGateway mm, final int capacity, final String... cameras) {
+		this.mm = mm;
+		this.cameras = cameras.clone();
+		// generic arrays cannot be created; every element is set right below
+		@SuppressWarnings("unchecked")
+		final FrameRingBuffer<Object>[] frames =
+			(FrameRingBuffer<Object>[]) new FrameRingBuffer<?>[Math.max(1, cameras.length)];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new FrameRingBuffer<Object>(capacity);
+		}
+		this.frames = frames;
+	}
+
+	/**
+	 * Sets the controller sizing the circular buffer and guarding it against
+	 * overflow; it must be set before the acquisition starts.
+	 *
+	 * @param controller the controller, or null to leave the buffer alone
+	 */
+	public synchronized void setBufferController(final BufferController controller) {
+		if (drainThread != null) {
+			throw new IllegalStateException("Acquisition already started");
+		}
+		this.controller = controller;
+	}
+
+	/**
+	 * Sets whether to record the frames' metadata; it must be set before the
+	 * acquisition starts.
+	 *
+	 * @param recordMetadata whether to record the metadata
+	 * @see #getMetadata(int)
+	 */
+	public synchronized void setRecordMetadata(final boolean recordMetadata) {
+		if (drainThread != null) {
+			throw new IllegalStateException("Acquisition already started");
+		}
+		this.recordMetadata = recordMetadata;
+	}
+
+	/**
+	 * Gets the metadata of a camera's frames. Row <i>i</i> describes the
+	 * <i>i</i>-th frame of the camera; it can be read as soon as that frame was
+	 * taken.
+	 *
+	 * @param cameraIndex the index of the camera in the list passed to the
+	 *          constructor
+	 * @return the metadata, or null if it is not recorded
+	 */
+	public MetadataTable getMetadata(final int cameraIndex) {
+		return tables == null ? null : tables[cameraIndex];
+	}
+
+	/**
+	 * Starts the sequence acquisition.
+	 * <p>
+	 * If several cameras are acquired, all of them are prepared first, so that
+	 * they start as closely together as possible.
+	 * </p>
+	 *
+	 * @param numImages the number of frames to acquire (per camera)
+	 * @param intervalMs the interval between frames, or 0 to acquire as fast as
+	 *          possible
+	 */
+	public synchronized void start(final int numImages, final double intervalMs) {
+		if (drainThread != null) {
+			throw new IllegalStateException("Acquisition already started");
+		}
+		camera = mm.getCameraDevice();
+		this.numImages = numImages;
+		this.intervalMs = intervalMs;
+		if (controller != null) {
+			controller.size(numImages, intervalMs, cameras.length);
+		}
+		if (recordMetadata) {
+			tables = new MetadataTable[frames.length];
+			for (int i = 0; i < tables.length; i++) {
+				// the stages do not move during a sequence, unless sequenced
+				tables[i] = new MetadataTable();
+				tables[i].setState(mm, null);
+			}
+		}
+		frameIntervalMs = Math.max(intervalMs, mm.getExposure());
+		backoff = new Backoff(frameIntervalMs);
+		startTime = System.nanoTime();
+		if (cameras.length == 0) {
+			mm.startSequenceAcquisition(numImages, intervalMs, false);
+		}
+		else {
+			for (final String label : cameras) {
+				mm.prepareSequenceAcquisition(label);
+			}
+			for (final String label : cameras) {
+				mm.startSequenceAcquisition(label, numImages, intervalMs, false);
+			}
+		}
+		drainThread = new Thread("Micro-Manager frame drain") {
+
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+
+	/**
+	 * Gets the next frame, waiting for it if necessary.
+	 *
+	 * @return the pixels of the next frame (as returned by
+	 *         {@link MMGateway#popNextImage()}), or null if the acquisition has
+	 *         ended and all frames were taken
+	 * @throws InterruptedException
+	 */
+	public Object take() throws InterruptedException {
+		return take(0);
+	}
+
+	/**
+	 * Gets the next frame of a given camera, waiting for it if necessary.
+	 *
+	 * @param cameraIndex the index of the camera in the list passed to the
+	 *          constructor
+	 * @return the pixels of the camera's next frame, or null if the
+	 *         acquisition has ended and all of the camera's frames were taken
+	 * @throws InterruptedException
+	 */
+	public Object take(final int cameraIndex) throws InterruptedException {
+		if (controller != null && cameraIndex == 0) {
+			// the time since the last frame was taken is what the consumer needed for it
+			final long now = System.nanoTime();
+			if (lastTaken != 0) controller.processed(now - lastTaken);
+			final Object frame = poll(cameraIndex);
+			lastTaken = System.nanoTime();
+			return frame;
+		}
+		return poll(cameraIndex);
+	}
+
+	private Object poll(final int cameraIndex) throws InterruptedException {
+		final FrameRingBuffer<Object> stream = frames[cameraIndex];
+		for (int attempt = 0;; attempt++) {
+			if (closed) {
+				// only the consumer may poll, so it discards what the drain thread left behind
+				while (stream.poll() != null) {
+					// discard
+				}
+				return null;
+			}
+			// read the flag first: frames put before it was set are visible then
+			final boolean done = finished;
+			final Object frame = stream.poll();
+			if (frame != null) return frame;
+			if (done) {
+				if (failure != null) {
+					throw new RuntimeException("Acquisition failed", failure);
+				}
+				return null;
+			}
+			backoff.idle(attempt);
+		}
+	}
+
+	/**
+	 * @return the number of cameras whose frames are streamed
+	 */
+	public int getCameraCount() {
+		return frames.length;
+	}
+
+	/**
+	 * @return the number of frames that came from none of the acquired cameras
+	 *         and were therefore discarded
+	 */
+	public int getUnroutedFrames() {
+		return unroutedFrames;
+	}
+
+	/**
+	 * @return the number of requested frames that never reached a consumer,
+	 *         e.g. because the circular buffer overflowed; final once
+	 *         {@link #take()} returned null
+	 */
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	/**
+	 * @return how often the camera was paused to keep the circular buffer from
+	 *         overflowing
+	 */
+	public int getPauses() {
+		return pauses;
+	}
+
+	/**
+	 * @return the current estimate of the frame interval, in milliseconds
+	 */
+	public double getFrameInterval() {
+		return frameIntervalMs;
+	}
+
+	/**
+	 * Stops the acquisition.
+	 * <p>
+	 * Frames that were already acquired are still drained and can be taken.
+	 * </p>
+	 */
+	public synchronized void stop() {
+		if (drainThread == null || stopRequested) return;
+		stopRequested = true;
+		if (cameras.length == 0) {
+			mm.stopSequenceAcquisition();
+		}
+		else {
+			for (final String label : cameras) {
+				mm.stopSequenceAcquisition(label);
+			}
+		}
+	}
+
+	/**
+	 * Stops the acquisition, discarding pending frames, and waits for the drain
+	 * thread to finish.
+	 * <p>
+	 * The drain thread gives up handing off frames, and the consumers' next
+	 * {@link #take()} discards the frames that were handed off but not taken
+	 * yet, and returns null.
+	 * </p>
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		stop();
+		final Thread thread;
+		synchronized (this) {
+			thread = drainThread;
+		}
+		if (thread == null) return;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			}
+			catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the next frame as a pooled buffer, waiting for it if necessary.
+	 * <p>
+	 * The frame's array is {@link FramePool#adopt(Object) adopted} by the pool,
+	 * so that releasing the frame recycles it for later stages.
+	 * </p>
+	 *
+	 * @param cameraIndex the index of the camera in the list passed to the
+	 *          constructor
+	 * @param pool the pool adopting the frame
+	 * @return the camera's next frame, with a single reference held by the
+	 *         caller, or null if the acquisition has ended and all of the
+	 *         camera's frames were taken
+	 * @throws InterruptedException
+	 */
+	public PooledFrame takeFrame(final int cameraIndex, final FramePool pool) throws InterruptedException {
+		final Object pixels = take(cameraIndex);
+		return pixels == null ? null : pool.adopt(pixels);
+	}
+
+	private void drain() {
+		final MetadataTable[] tables = this.tables;
+		final FrameMetadata metadata = cameras.length > 1 || tables != null ? new FrameMetadata(mm) : null;
+		final AcquisitionMetrics metrics = mm.getMetrics();
+		// frames popped off the circular buffer, and frames handed to a consumer
+		long received = 0, delivered = 0, produced = 0, endTime = 0;
+		boolean paused = false;
+		long pauseStart = 0;
+		try {
+			final int capacity = mm.getBufferTotalCapacity();
+			// restarting a sequence only works for a single camera and a known length
+			final boolean pausable = cameras.length <= 1 && numImages < Integer.MAX_VALUE &&
+				mm.getNumberOfCameraChannels() == 1;
+			long lastFrame = System.nanoTime();
+			long lastSample = lastFrame - SAMPLE_INTERVAL_NANOS;
+			// whether the buffer ran empty since the last frame was popped
+			boolean waited = false;
+			for (int attempt = 0;;) {
+				if (closed) break;
+				final boolean running = isRunning();
+				final int remaining = mm.getRemainingImageCount();
+				final long now = System.nanoTime();
+				if (!running && !paused && endTime == 0) {
+					// the camera is done; the consumer may not be
+					endTime = now;
+					produced = received + remaining;
+				}
+				if (now - lastSample >= SAMPLE_INTERVAL_NANOS) {
+					metrics.sampleBuffer(remaining, capacity, mm.isBufferOverflowed());
+					lastSample = now;
+					if (controller != null && controller.sample(remaining, capacity) && pausable && running &&
+						!stopRequested)
+					{
+						stopSequence();
+						paused = true;
+						pauseStart = now;
+						pauses++;
+					}
+				}
+				if (remaining > 0) {
+					if (metadata == null) {
+						if (handOff(0, mm.popNextImage())) delivered++;
+					}
+					else {
+						final Object pixels = metadata.popNextImage();
+						final int index = cameras.length > 1 ? indexOf(metadata.get(FrameMetadata.CAMERA)) : 0;
+						if (index < 0) {
+							unroutedFrames++;
+						}
+						else {
+							if (tables != null) {
+								// before the hand-off, so that the consumer sees the row
+								metadata.record(tables[index], tables[index].append(now));
+							}
+							if (handOff(index, pixels)) delivered++;
+						}
+					}
+					received++;
+					metrics.frameReceived(now);
+					// frames popped from a backlog arrived earlier than they are
+					// popped, so only a frame popped right as it arrived tells the
+					// camera's pace
+					if (waited && remaining == 1) {
+						measured((now - lastFrame) / 1e6);
+					}
+					lastFrame = now;
+					waited = false;
+					attempt = 0;
+				}
+				else if (paused && !running) {
+					// starting a sequence clears the buffer, so resume only once it is drained
+					paused = false;
+					if (!stopRequested && delivered < numImages) {
+						startSequence((int) (numImages - delivered));
+					}
+					metrics.cameraPaused(System.nanoTime() - pauseStart);
+				}
+				else if (!running) {
+					break;
+				}
+				else {
+					waited = true;
+					backoff.idle(attempt++);
+				}
+			}
+		}
+		catch (final Throwable t) {
+			failure = t;
+		}
+		finally {
+			// a sequence that ran its course but fell short lost frames
+			if (!stopRequested && numImages < Integer.MAX_VALUE) {
+				framesDropped = Math.max(0, (long) numImages * frames.length - delivered);
+				metrics.framesDropped(framesDropped);
+			}
+			if (controller != null && produced > 1 && pauses == 0) {
+				controller.acquired((endTime - startTime) / 1e6 / produced * frames.length);
+			}
+			finished = true;
+		}
+	}
+
+	/**
+	 * Hands a frame to a consumer, waiting for room unless the acquisition is
+	 * closed.
+	 *
+	 * @return whether the frame was handed off
+	 */
+	private boolean handOff(final int index, final Object pixels) throws InterruptedException {
+		for (int attempt = 0; !frames[index].offer(pixels); attempt++) {
+			if (closed) return false;
+			backoff.idle(attempt);
+		}
+		return true;
+	}
+
+	private void stopSequence() {
+		if (cameras.length == 0) mm.stopSequenceAcquisition();
+		else mm.stopSequenceAcquisition(cameras[0]);
+	}
+
+	private void startSequence(final int count) {
+		if (cameras.length == 0) mm.startSequenceAcquisition(count, intervalMs, false);
+		else mm.startSequenceAcquisition(cameras[0], count, intervalMs, false);
+	}
+
+	private boolean isRunning() {
+		if (cameras.length == 0) return mm.isSequenceRunning(camera);
+		for (final String label : cameras) {
+			if (mm.isSequenceRunning(label)) return true;
+		}
+		return false;
+	}
+
+	private int indexOf(final String label) {
+		for (int i = 0; i < cameras.length; i++) {
+			if (cameras[i].equals(label)) return i;
+		}
+		return -1;
+	}
+
+	private void measured(final double intervalMs) {
+		final double estimate = frameIntervalMs + SMOOTHING * (intervalMs - frameIntervalMs);
+		frameIntervalMs = estimate;
+		backoff.setFrameInterval(estimate);
+	}
+}
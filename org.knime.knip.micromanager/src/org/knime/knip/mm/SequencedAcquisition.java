@@ -0,0 +1,361 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Acquires a sequence of frames while stepping device properties and stages
+ * from frame to frame, as hardware-triggered sequences where possible.
+ * <p>
+ * Every property or stage to step is given one value per frame. Devices that
+ * can sequence get their values uploaded and are clocked by the camera's
+ * trigger, so that the whole acquisition runs at camera speed. Devices that
+ * cannot sequence (or whose sequence memory is too small) are stepped in
+ * software instead: the acquisition is split into bursts during which every
+ * software-stepped value stays constant, and those values are set between
+ * the bursts. A value that never changes is set once, up front.
+ * </p>
+ * <p>
+ * Bursts of a single frame are snapped rather than run as a sequence. The
+ * frames of longer bursts are popped off the circular buffer by the calling
+ * thread, which thereby drains every burst, and are added to the sink in
+ * acquisition order.
+ * </p>
+ */
+public class SequencedAcquisition {
+
+	private final MMGateway mm;
+	private final List<Variable> variables = new ArrayList<Variable>();
+	private int frameCount = -1;
+	private Backoff backoff;
+
+	/**
+	 * Constructs an acquisition.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public SequencedAcquisition(final MMGateway mm) {
+		this.mm = mm;
+	}
+
+	/**
+	 * Steps a property.
+	 *
+	 * @param label the device label
+	 * @param propName the property name
+	 * @param values the value for each frame
+	 * @return this acquisition
+	 */
+	public SequencedAcquisition property(final String label, final String propName, final String... values) {
+		return add(new PropertyVariable(label, propName, values));
+	}
+
+	/**
+	 * Steps a (single-axis) stage.
+	 *
+	 * @param label the stage label
+	 * @param positions the position for each frame
+	 * @return this acquisition
+	 */
+	public SequencedAcquisition stage(final String label, final double... positions) {
+		return add(new StageVariable(label, positions));
+	}
+
+	/**
+	 * @return the number of frames to acquire
+	 */
+	public int getFrameCount() {
+		return Math.max(frameCount, 0);
+	}
+
+	/**
+	 * Acquires all frames.
+	 *
+	 * @param sink the sink receiving the frames
+	 * @return the number of bursts the acquisition was split into
+	 */
+	public int run(final FrameSink<?> sink) {
+		if (frameCount <= 0) {
+			throw new IllegalStateException("Nothing to acquire");
+		}
+
+		// decide which variables are clocked by hardware
+		final List<Variable> hardware = new ArrayList<Variable>();
+		final List<Variable> software = new ArrayList<Variable>();
+		int maxBurst = frameCount;
+		for (final Variable variable : variables) {
+			if (variable.isConstant()) {
+				software.add(variable);
+				continue;
+			}
+			final int maxLength = variable.isSequenceable() ? variable.getMaxLength() : 0;
+			if (maxLength > 1) {
+				hardware.add(variable);
+				maxBurst = Math.min(maxBurst, maxLength);
+			}
+			else {
+				software.add(variable);
+			}
+		}
+
+		backoff = new Backoff(mm.getExposure());
+		int bursts = 0;
+		for (int from = 0; from < frameCount; bursts++) {
+			int to = from + 1;
+			while (to < frameCount && to - from < maxBurst && !changes(software, to)) {
+				to++;
+			}
+			runBurst(sink, hardware, from, to);
+			from = to;
+		}
+		return bursts;
+	}
+
+	private void runBurst(final FrameSink<?> sink, final List<Variable> hardware, final int from, final int to) {
+		// move every device to the burst's first value, waiting for all of them at once
+		final PropertyBatch batch = new PropertyBatch();
+		final Set<String> moving = new LinkedHashSet<String>();
+		for (final Variable variable : variables) {
+			variable.set(batch, moving, from);
+		}
+		mm.writeProperties(batch, moving);
+		for (final String label : moving) {
+			mm.waitForDevice(label);
+		}
+
+		if (to - from == 1) {
+			// not worth setting up a sequence for
+			mm.snapImage();
+			sink.add(mm.getImage());
+			mm.getMetrics().frameReceived(System.nanoTime());
+			return;
+		}
+
+		final List<Variable> started = new ArrayList<Variable>();
+		try {
+			for (final Variable variable : hardware) {
+				variable.load(from, to);
+			}
+			for (final Variable variable : hardware) {
+				variable.start();
+				started.add(variable);
+			}
+			mm.startSequenceAcquisition(to - from, 0, false);
+			try {
+				drain(sink, from, to);
+			}
+			finally {
+				if (mm.isSequenceRunning()) {
+					mm.stopSequenceAcquisition();
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		finally {
+			for (final Variable variable : started) {
+				variable.stop();
+			}
+		}
+	}
+
+	/**
+	 * Pops the frames of a burst off the circular buffer as they arrive.
+	 */
+	private void drain(final FrameSink<?> sink, final int from, final int to) throws InterruptedException {
+		final AcquisitionMetrics metrics = mm.getMetrics();
+		for (int i = from, attempt = 0; i < to;) {
+			if (mm.getRemainingImageCount() > 0) {
+				sink.add(mm.popNextImage());
+				metrics.frameReceived(System.nanoTime());
+				i++;
+				attempt = 0;
+			}
+			else if (!mm.isSequenceRunning()) {
+				// the last frames may have arrived after the buffer was checked
+				if (mm.getRemainingImageCount() > 0) continue;
+				throw new RuntimeException("Sequence ended after " + i + " of " + frameCount + " frames");
+			}
+			else {
+				backoff.idle(attempt++);
+			}
+		}
+	}
+
+	private static boolean changes(final List<Variable> variables, final int index) {
+		for (final Variable variable : variables) {
+			if (!variable.isSame(index - 1, index)) return true;
+		}
+		return false;
+	}
+
+	private SequencedAcquisition add(final Variable variable) {
+		if (frameCount >= 0 && variable.length() != frameCount) {
+			throw new IllegalArgumentException("Expected " + frameCount + " values for " +
+				variable + ", got " + variable.length());
+		}
+		frameCount = variable.length();
+		variables.add(variable);
+		return this;
+	}
+
+	private abstract class Variable {
+
+		protected final String label;
+
+		protected Variable(final String label) {
+			this.label = label;
+		}
+
+		abstract int length();
+
+		abstract boolean isSame(int a, int b);
+
+		abstract boolean isSequenceable();
+
+		abstract int getMaxLength();
+
+		/**
+		 * Sets the value of the given frame in software, either by adding it to
+		 * the batch or by starting to move the device, which is then added to
+		 * the moving devices.
+		 */
+		abstract void set(PropertyBatch batch, Set<String> moving, int index);
+
+		abstract void load(int from, int to);
+
+		abstract void start();
+
+		abstract void stop();
+
+		boolean isConstant() {
+			for (int i = 1; i < length(); i++) {
+				if (!isSame(0, i)) return false;
+			}
+			return true;
+		}
+	}
+
+	private class PropertyVariable extends Variable {
+
+		private final String propName;
+		private final String[] values;
+
+		PropertyVariable(final String label, final String propName, final String[] values) {
+			super(label);
+			this.propName = propName;
+			this.values = values;
+		}
+
+		@Override
+		int length() {
+			return values.length;
+		}
+
+		@Override
+		boolean isSame(final int a, final int b) {
+			return values[a].equals(values[b]);
+		}
+
+		@Override
+		boolean isSequenceable() {
+			return mm.isPropertySequenceable(label, propName);
+		}
+
+		@Override
+		int getMaxLength() {
+			return mm.getPropertySequenceMaxLength(label, propName);
+		}
+
+		@Override
+		void set(final PropertyBatch batch, final Set<String> moving, final int index) {
+			batch.set(label, propName, values[index]);
+		}
+
+		@Override
+		void load(final int from, final int to) {
+			mm.loadPropertySequence(label, propName, Arrays.copyOfRange(values, from, to));
+		}
+
+		@Override
+		void start() {
+			mm.startPropertySequence(label, propName);
+		}
+
+		@Override
+		void stop() {
+			mm.stopPropertySequence(label, propName);
+		}
+
+		@Override
+		public String toString() {
+			return label + "-" + propName;
+		}
+	}
+
+	private class StageVariable extends Variable {
+
+		private final double[] positions;
+		private double current = Double.NaN;
+
+		StageVariable(final String label, final double[] positions) {
+			super(label);
+			this.positions = positions;
+		}
+
+		@Override
+		int length() {
+			return positions.length;
+		}
+
+		@Override
+		boolean isSame(final int a, final int b) {
+			return positions[a] == positions[b];
+		}
+
+		@Override
+		boolean isSequenceable() {
+			return mm.isStageSequenceable(label);
+		}
+
+		@Override
+		int getMaxLength() {
+			return mm.getStageSequenceMaxLength(label);
+		}
+
+		@Override
+		void set(final PropertyBatch batch, final Set<String> moving, final int index) {
+			if (positions[index] == current) return;
+			// setPosition() does not wait for the stage, so it moves while the properties are written
+			mm.setPosition(label, positions[index]);
+			moving.add(label);
+			current = positions[index];
+		}
+
+		@Override
+		void load(final int from, final int to) {
+			current = Double.NaN;
+			mm.loadStageSequence(label, Arrays.copyOfRange(positions, from, to));
+		}
+
+		@Override
+		void start() {
+			mm.startStageSequence(label);
+		}
+
+		@Override
+		void stop() {
+			mm.stopStageSequence(label);
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+}
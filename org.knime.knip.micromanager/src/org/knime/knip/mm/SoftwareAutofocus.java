@@ -0,0 +1,364 @@
+package org.knime.knip.mm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the focus by sweeping the focus stage and scoring the sharpness of
+ * the frames, for stands without a hardware autofocus.
+ * <p>
+ * The search is coarse to fine: each sweep covers the neighbourhood of the
+ * previous sweep's sharpest slice with smaller steps, until the steps are as
+ * small as requested; the focus is then interpolated between the best slice
+ * and its neighbours. If the sharpest slice of a sweep is at one of its ends,
+ * the sweep is repeated around it. Slices shared with a coarser sweep are not
+ * acquired again. Every search but the first starts from the previous focus
+ * with the smallest steps, since the focus usually varies little between
+ * neighbouring positions; call {@link #reset()} after large moves.
+ * </p>
+ * <p>
+ * The frames are scored on a worker pool while the stage moves to the next
+ * slice, using every {@link #subsample(int) n-th} pixel in both directions,
+ * so that a sweep takes little more than the frame times.
+ * </p>
+ */
+public class SoftwareAutofocus {
+
+	/**
+	 * A sharpness measure; larger is sharper.
+	 */
+	public enum Metric {
+		/** The variance of the intensities, divided by their mean. */
+		NORMALIZED_VARIANCE {
+
+			@Override
+			double score(final Pixels pixels, final int width, final int height, final int step) {
+				double sum = 0, sumOfSquares = 0;
+				long count = 0;
+				for (int y = 0; y < height; y += step) {
+					for (int x = 0, i = y * width; x < width; x += step, i += step) {
+						final double value = pixels.get(i);
+						sum += value;
+						sumOfSquares += value * value;
+						count++;
+					}
+				}
+				final double mean = sum / count;
+				return mean <= 0 ? 0 : (sumOfSquares / count - mean * mean) / mean;
+			}
+		},
+		/** The mean squared difference of pixels two columns apart. */
+		BRENNER {
+
+			@Override
+			double score(final Pixels pixels, final int width, final int height, final int step) {
+				double sum = 0;
+				long count = 0;
+				for (int y = 0; y < height; y += step) {
+					for (int x = 0, i = y * width; x + 2 < width; x += step, i += step) {
+						final double difference = pixels.get(i + 2) - pixels.get(i);
+						sum += difference * difference;
+						count++;
+					}
+				}
+				return count == 0 ? 0 : sum / count;
+			}
+		},
+		/** The mean squared response to a 4-neighbour Laplacian. */
+		LAPLACIAN {
+
+			@Override
+			double score(final Pixels pixels, final int width, final int height, final int step) {
+				double sum = 0;
+				long count = 0;
+				for (int y = 1; y + 1 < height; y += step) {
+					for (int x = 1, i = y * width + 1; x + 1 < width; x += step, i += step) {
+						final double laplacian = 4 * pixels.get(i) - pixels.get(i - 1) - pixels.get(i + 1) -
+							pixels.get(i - width) - pixels.get(i + width);
+						sum += laplacian * laplacian;
+						count++;
+					}
+				}
+				return count == 0 ? 0 : sum / count;
+			}
+		};
+
+		/**
+		 * Scores a frame.
+		 *
+		 * @param pixels the pixel array of the frame
+		 * @param width the width of the frame
+		 * @param height the height of the frame
+		 * @param step the distance between the sampled pixels
+		 * @return the sharpness
+		 */
+		public double score(final Object pixels, final int width, final int height, final int step) {
+			return score(new Pixels(pixels), width, height, Math.max(step, 1));
+		}
+
+		abstract double score(Pixels pixels, int width, int height, int step);
+	}
+
+	/**
+	 * Reads the intensities of any pixel format; RGB pixels are converted to
+	 * luminance.
+	 */
+	private final static class Pixels {
+
+		private final byte[] bytes;
+		private final short[] shorts;
+		private final float[] floats;
+		private final int[] ints;
+
+		private Pixels(final Object pixels) {
+			bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+			shorts = pixels instanceof short[] ? (short[]) pixels : null;
+			floats = pixels instanceof float[] ? (float[]) pixels : null;
+			ints = pixels instanceof int[] ? (int[]) pixels : null;
+			if (bytes == null && shorts == null && floats == null && ints == null) {
+				throw new IllegalArgumentException("Unsupported pixels: " + pixels);
+			}
+		}
+
+		private double get(final int index) {
+			if (shorts != null) return shorts[index] & 0xffff;
+			if (bytes != null) return bytes[index] & 0xff;
+			if (floats != null) return floats[index];
+			final int argb = ints[index];
+			return ((argb >> 16) & 0xff) + 2 * ((argb >> 8) & 0xff) + (argb & 0xff);
+		}
+	}
+
+	private static ExecutorService defaultExecutor;
+
+	private final MMGateway mm;
+	private String focusDevice;
+	private Metric metric = Metric.LAPLACIAN;
+	private double rangeUm = 50, finalStepUm = 0.5;
+	private int steps = 7, subsample = 2;
+	private ExecutorService executor;
+	private double lastFocus = Double.NaN;
+
+	/**
+	 * Constructs an autofocus moving the current focus device.
+	 *
+	 * @param mm the Micro-Manager gateway
+	 */
+	public SoftwareAutofocus(final MMGateway mm) {
+		this.mm = mm;
+		this.focusDevice = mm.getFocusDevice();
+	}
+
+	/**
+	 * Sets the focus stage to move.
+	 *
+	 * @param focusDevice the label of the focus stage
+	 * @return this autofocus
+	 */
+	public SoftwareAutofocus focusDevice(final String focusDevice) {
+		this.focusDevice = focusDevice;
+		return this;
+	}
+
+	/**
+	 * Sets the sharpness measure.
+	 *
+	 * @param metric the sharpness measure
+	 * @return this autofocus
+	 */
+	public SoftwareAutofocus metric(final Metric metric) {
+		this.metric = metric;
+		return this;
+	}
+
+	/**
+	 * Sets the extent of the search.
+	 *
+	 * @param rangeUm the range of the first sweep, centered on the current
+	 *          position
+	 * @param steps the number of slices per sweep, at least 3
+	 * @param finalStepUm the step size at which to stop refining
+	 * @return this autofocus
+	 */
+	public SoftwareAutofocus search(final double rangeUm, final int steps, final double finalStepUm) {
+		if (steps < 3 || !(rangeUm > 0) || !(finalStepUm > 0)) {
+			throw new IllegalArgumentException("Invalid search: " + rangeUm + " um, " + steps + " steps, " +
+				finalStepUm + " um");
+		}
+		this.rangeUm = rangeUm;
+		this.steps = steps;
+		this.finalStepUm = finalStepUm;
+		return this;
+	}
+
+	/**
+	 * Sets the subsampling of the frames for scoring.
+	 *
+	 * @param subsample score every n-th pixel of every n-th row
+	 * @return this autofocus
+	 */
+	public SoftwareAutofocus subsample(final int subsample) {
+		this.subsample = Math.max(subsample, 1);
+		return this;
+	}
+
+	/**
+	 * Sets the worker pool to score the frames on.
+	 *
+	 * @param executor the worker pool, or null for a shared one
+	 * @return this autofocus
+	 */
+	public SoftwareAutofocus executor(final ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Forgets the previous focus, so that the next search covers the full
+	 * range again.
+	 */
+	public void reset() {
+		lastFocus = Double.NaN;
+	}
+
+	/**
+	 * @return the focus found by the last search, or {@link Double#NaN}
+	 */
+	public double getLastFocus() {
+		return lastFocus;
+	}
+
+	/**
+	 * Searches the focus and moves the focus stage there.
+	 *
+	 * @return the focus position
+	 */
+	public double focus() {
+		final int width = (int) mm.getImageWidth();
+		final int height = (int) mm.getImageHeight();
+		final ExecutorService executor = this.executor != null ? this.executor : getDefaultExecutor();
+		// the finer sweeps share slices with the coarser ones
+		final Map<Long, Double> known = new HashMap<Long, Double>();
+
+		double center = lastFocus, step;
+		if (Double.isNaN(center)) {
+			center = mm.getPosition(focusDevice);
+			step = rangeUm / (steps - 1);
+		}
+		else {
+			step = finalStepUm;
+		}
+
+		double best;
+		double[] scores;
+		int index;
+		for (int shifts = 0;;) {
+			final double[] positions = new double[steps];
+			for (int i = 0; i < steps; i++) {
+				positions[i] = center + (i - (steps - 1) / 2.0) * step;
+			}
+			scores = sweep(positions, known, width, height, executor);
+			index = 0;
+			for (int i = 1; i < steps; i++) {
+				if (scores[i] > scores[index]) index = i;
+			}
+			best = positions[index];
+			if ((index == 0 || index == steps - 1) && shifts++ < 3) {
+				// the peak may lie beyond the sweep
+				center = best;
+				continue;
+			}
+			if (step <= finalStepUm) break;
+			center = best;
+			step = Math.max(2 * step / (steps - 1), finalStepUm);
+		}
+
+		if (index > 0 && index < steps - 1) {
+			// the vertex of the parabola through the best slice and its neighbours
+			final double left = scores[index - 1], middle = scores[index], right = scores[index + 1];
+			final double curvature = left - 2 * middle + right;
+			if (curvature < 0) {
+				best += step * Math.max(-0.5, Math.min(0.5, (left - right) / (2 * curvature)));
+			}
+		}
+		mm.setPosition(focusDevice, best);
+		mm.waitForDevice(focusDevice);
+		lastFocus = best;
+		return best;
+	}
+
+	/**
+	 * Acquires and scores one frame per position not scored yet, starting from
+	 * the end nearest to the stage.
+	 */
+	private double[] sweep(final double[] positions, final Map<Long, Double> known, final int width,
+		final int height, final ExecutorService executor)
+	{
+		final List<Double> todo = new ArrayList<Double>();
+		for (final double position : positions) {
+			if (!known.containsKey(key(position))) todo.add(position);
+		}
+		if (!todo.isEmpty()) {
+			final double z = mm.getPosition(focusDevice);
+			if (Math.abs(z - todo.get(todo.size() - 1)) < Math.abs(z - todo.get(0))) {
+				Collections.reverse(todo);
+			}
+			final List<Future<Double>> futures = new ArrayList<Future<Double>>(todo.size());
+			mm.setPosition(focusDevice, todo.get(0));
+			for (int i = 0; i < todo.size(); i++) {
+				mm.waitForDevice(focusDevice);
+				mm.snapImage();
+				// the exposure is over: move on while the frame is read out and scored
+				if (i + 1 < todo.size()) {
+					mm.setPosition(focusDevice, todo.get(i + 1));
+				}
+				final Object pixels = mm.getImage();
+				futures.add(executor.submit(new Callable<Double>() {
+
+					@Override
+					public Double call() {
+						return metric.score(pixels, width, height, subsample);
+					}
+				}));
+			}
+			try {
+				for (int i = 0; i < todo.size(); i++) {
+					known.put(key(todo.get(i)), futures.get(i).get());
+				}
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (final ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		final double[] scores = new double[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			scores[i] = known.get(key(positions[i]));
+		}
+		return scores;
+	}
+
+	/** Identifies a position up to rounding errors. */
+	private static long key(final double position) {
+		return Math.round(position * 1e4);
+	}
+
+	private synchronized static ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = new ForkJoinPool();
+		}
+		return defaultExecutor;
+	}
+}
@@ -0,0 +1,249 @@
+package org.knime.knip.mm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Micro-Manager system configuration, split into the parts that
+ * {@link MMGateway#configure(SystemConfiguration)} applies one by one.
+ * <p>
+ * A configuration file, as written by Micro-Manager's hardware configuration
+ * wizard, unloads all devices with <code>Property,Core,Initialize,0</code>,
+ * loads the devices, sets their pre-initialization properties (such as serial
+ * ports) and the hubs of peripheral devices, initializes them with
+ * <code>Property,Core,Initialize,1</code> and then runs the remaining
+ * commands: roles, delays, state labels, presets, pixel sizes and so on. This
+ * class keeps the devices with their pre-initialization properties and hubs,
+ * which decide whether a loaded device can be kept as it is, apart from the
+ * remaining commands, which are cheap to run again.
+ * </p>
+ */
+public class SystemConfiguration {
+
+	private final static String INITIALIZE = "Property,Core,Initialize,1";
+
+	private final static String UNLOAD = "Property,Core,Initialize,0";
+
+	private final Map<String, Device> devices = new LinkedHashMap<String, Device>();
+	private final List<String> settings = new ArrayList<String>();
+
+	/**
+	 * A device to load, with its pre-initialization properties.
+	 */
+	public static class Device {
+
+		private final String label, library, adapter;
+		private final Map<String, String> properties = new LinkedHashMap<String, String>();
+		private String parent;
+
+		private Device(final String label, final String library, final String adapter) {
+			this.label = label;
+			this.library = library;
+			this.adapter = adapter;
+		}
+
+		/**
+		 * @return the label of the device
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return the name of the device adapter library
+		 */
+		public String getLibrary() {
+			return library;
+		}
+
+		/**
+		 * @return the name of the device within its library
+		 */
+		public String getAdapter() {
+			return adapter;
+		}
+
+		/**
+		 * @return the properties to set before initializing the device, by name
+		 */
+		public Map<String, String> getPreInitProperties() {
+			return Collections.unmodifiableMap(properties);
+		}
+
+		/**
+		 * @return the label of the hub this device is a peripheral of, or null
+		 */
+		public String getParent() {
+			return parent;
+		}
+
+		@Override
+		public String toString() {
+			return label + " (" + library + "/" + adapter + ")";
+		}
+	}
+
+	/**
+	 * Adds a device.
+	 *
+	 * @param label the label of the device
+	 * @param library the name of the device adapter library
+	 * @param adapter the name of the device within its library
+	 * @return this configuration
+	 */
+	public SystemConfiguration device(final String label, final String library, final String adapter) {
+		if (devices.containsKey(label)) {
+			throw new IllegalArgumentException("Duplicate device label: " + label);
+		}
+		devices.put(label, new Device(label, library, adapter));
+		return this;
+	}
+
+	/**
+	 * Adds a property to set before the device is initialized.
+	 *
+	 * @param label the label of a device added before
+	 * @param name the name of the property
+	 * @param value the value
+	 * @return this configuration
+	 */
+	public SystemConfiguration preInitProperty(final String label, final String name, final String value) {
+		final Device device = devices.get(label);
+		if (device == null) {
+			throw new IllegalArgumentException("Unknown device: " + label);
+		}
+		device.properties.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Sets the hub of a peripheral device, which must be initialized before
+	 * the device.
+	 *
+	 * @param label the label of a device added before
+	 * @param hub the label of the hub device
+	 * @return this configuration
+	 */
+	public SystemConfiguration parent(final String label, final String hub) {
+		final Device device = devices.get(label);
+		if (device == null) {
+			throw new IllegalArgumentException("Unknown device: " + label);
+		}
+		device.parent = hub;
+		return this;
+	}
+
+	/**
+	 * Adds a command to run once the devices are initialized, in the syntax of
+	 * a configuration file, e.g. <code>Property,Core,Camera,Camera</code>.
+	 *
+	 * @param line the command
+	 * @return this configuration
+	 */
+	public SystemConfiguration setting(final String line) {
+		settings.add(line);
+		return this;
+	}
+
+	/**
+	 * @return the devices, in the order in which they are loaded
+	 */
+	public Collection<Device> getDevices() {
+		return Collections.unmodifiableCollection(devices.values());
+	}
+
+	/**
+	 * Gets a device.
+	 *
+	 * @param label the label of the device
+	 * @return the device, or null if the configuration does not have it
+	 */
+	public Device getDevice(final String label) {
+		return devices.get(label);
+	}
+
+	/**
+	 * @return the commands to run once the devices are initialized
+	 */
+	public List<String> getSettings() {
+		return Collections.unmodifiableList(settings);
+	}
+
+	/**
+	 * Reads a configuration file.
+	 * <p>
+	 * Property commands for loaded devices count as pre-initialization
+	 * properties up to the <code>Property,Core,Initialize,1</code> command (or
+	 * throughout, if there is none), and <code>Parent</code> commands set the
+	 * hubs of the devices. <code>Property,Core,Initialize,0</code> is skipped,
+	 * since {@link MMGateway#configure(SystemConfiguration)} unloads what it
+	 * does not keep anyway; all other commands are settings.
+	 * </p>
+	 *
+	 * @param file the configuration file
+	 * @return the configuration
+	 * @throws IOException
+	 */
+	public static SystemConfiguration read(final File file) throws IOException {
+		final SystemConfiguration configuration = new SystemConfiguration();
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			boolean initialized = false;
+			int lineNumber = 0;
+			for (String line; (line = reader.readLine()) != null;) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				final String[] tokens = line.split(",", -1);
+				if (tokens[0].equals("Device")) {
+					if (tokens.length != 4) {
+						throw new IOException("Line " + lineNumber + " of " + file + " is invalid: " + line);
+					}
+					try {
+						configuration.device(tokens[1], tokens[2], tokens[3]);
+					}
+					catch (final IllegalArgumentException e) {
+						throw new IOException("Line " + lineNumber + " of " + file + ": " + e.getMessage());
+					}
+				}
+				else if (line.equals(INITIALIZE)) {
+					initialized = true;
+				}
+				else if (line.equals(UNLOAD)) {
+					// configure() unloads the devices it does not keep
+				}
+				else if (tokens[0].equals("Parent")) {
+					if (tokens.length != 3) {
+						throw new IOException("Line " + lineNumber + " of " + file + " is invalid: " + line);
+					}
+					try {
+						configuration.parent(tokens[1], tokens[2]);
+					}
+					catch (final IllegalArgumentException e) {
+						throw new IOException("Line " + lineNumber + " of " + file + ": " + e.getMessage());
+					}
+				}
+				else if (!initialized && tokens[0].equals("Property") && tokens.length == 4 &&
+					configuration.devices.containsKey(tokens[1]))
+				{
+					configuration.preInitProperty(tokens[1], tokens[2], tokens[3]);
+				}
+				else {
+					configuration.setting(line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return configuration;
+	}
+}
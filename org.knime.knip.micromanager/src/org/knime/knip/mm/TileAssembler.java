@@ -0,0 +1,129 @@
+package org.knime.knip.mm;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.imglib2.img.Img;
+
+/**
+ * Assembles tiles into a mosaic on a background thread.
+ * <p>
+ * Tiles are {@link #add(Object, int, int, int, int) added} as they are
+ * acquired and copied into the mosaic by a dedicated thread, so the
+ * acquisition can move on to the next tile right away. Tiles are placed at
+ * their nominal pixel offsets, without registration; where tiles overlap, the
+ * tile added last wins.
+ * </p>
+ */
+public class TileAssembler implements Closeable {
+
+	private final PixelFormat format;
+	private final int width, height;
+	private final Object mosaic;
+	private final ExecutorService worker;
+	private volatile Throwable failure;
+
+	/**
+	 * Constructs an assembler.
+	 *
+	 * @param format the pixel format of the tiles
+	 * @param width the width of the mosaic
+	 * @param height the height of the mosaic
+	 */
+	public TileAssembler(final PixelFormat format, final long width, final long height) {
+		if (width < 1 || height < 1 || width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid mosaic size: " + width + "x" + height);
+		}
+		this.format = format;
+		this.width = (int) width;
+		this.height = (int) height;
+		mosaic = format.newArray(this.width * this.height);
+		worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "Tile assembler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues a tile to be copied into the mosaic. Parts of the tile outside of
+	 * the mosaic are clipped.
+	 *
+	 * @param pixels the pixel array of the tile; it must not be modified
+	 *          afterwards
+	 * @param tileWidth the width of the tile
+	 * @param tileHeight the height of the tile
+	 * @param x the column of the mosaic where the tile's left edge goes
+	 * @param y the row of the mosaic where the tile's top edge goes
+	 */
+	public void add(final Object pixels, final int tileWidth, final int tileHeight, final int x, final int y) {
+		if (PixelFormat.of(pixels) != format) {
+			throw new IllegalArgumentException("Expected " + format + " pixels, got " + PixelFormat.of(pixels));
+		}
+		if (failure != null) {
+			throw new RuntimeException("Tile assembly failed", failure);
+		}
+		worker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					copy(pixels, tileWidth, tileHeight, x, y);
+				}
+				catch (final Throwable t) {
+					failure = t;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for all queued tiles to be copied.
+	 *
+	 * @return the mosaic, backed by the assembler's pixel array
+	 * @throws InterruptedException
+	 */
+	public Img<?> toImg() throws InterruptedException {
+		try {
+			// the worker runs the tiles in order, so this waits for all of them
+			worker.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					return null;
+				}
+			}).get();
+		}
+		catch (final ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if (failure != null) {
+			throw new RuntimeException("Tile assembly failed", failure);
+		}
+		return format.wrap(mosaic, width, height);
+	}
+
+	/**
+	 * Stops the background thread; queued tiles are discarded.
+	 */
+	@Override
+	public void close() {
+		worker.shutdownNow();
+	}
+
+	private void copy(final Object pixels, final int tileWidth, final int tileHeight, final int x, final int y) {
+		final int left = Math.max(x, 0), right = Math.min(x + tileWidth, width);
+		if (left >= right) return;
+		for (int row = Math.max(y, 0), bottom = Math.min(y + tileHeight, height); row < bottom; row++) {
+			System.arraycopy(pixels, (row - y) * tileWidth + left - x, mosaic, row * width + left, right - left);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.knime.knip.mm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers which MMCoreJ.jar files were found to be compatible with the
+ * {@link MMGateway}.
+ * <p>
+ * Verifying the gateway's wrappers against a core class reflects over both
+ * classes, which slows down every start-up. Since the outcome only depends on
+ * the jar, the gateway and the {@link CoreBinding} it is bound through, it is
+ * recorded under a key made of the hashes of all three, and verification is
+ * skipped when the key is known. The
+ * cache is an optimization only: if it cannot be read or written, the
+ * verification simply runs again.
+ * </p>
+ */
+class VerificationCache {
+
+	private final static String DEFAULT_LOCATION = ".knip-micromanager/verified-cores.txt";
+
+	private final File file;
+
+	/**
+	 * Constructs a cache in the default location in the user's home directory.
+	 */
+	VerificationCache() {
+		this(new File(System.getProperty("user.home"), DEFAULT_LOCATION));
+	}
+
+	/**
+	 * @param file the file holding the keys of the verified jars
+	 */
+	VerificationCache(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Computes the key of a jar.
+	 *
+	 * @param jar the MMCoreJ.jar
+	 * @return the key, or null if it could not be computed
+	 */
+	String key(final File jar) {
+		try {
+			final InputStream in = new FileInputStream(jar);
+			final String jarHash;
+			try {
+				jarHash = hash(in);
+			}
+			finally {
+				in.close();
+			}
+			// the gateway's wrappers and the binding's methods are part of the outcome, too
+			final String gatewayHash = hash(MMGateway.class), bindingHash = hash(CoreBinding.class);
+			if (gatewayHash == null || bindingHash == null) return null;
+			return jarHash + " " + jar.length() + " " + gatewayHash + " " + bindingHash;
+		}
+		catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Hashes the bytecode of a class.
+	 *
+	 * @return the hash, or null if the class file cannot be found
+	 */
+	private static String hash(final Class<?> clazz) throws IOException {
+		final InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class");
+		if (in == null) return null;
+		try {
+			return hash(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param key the key of a jar, as per {@link #key(File)}
+	 * @return whether the jar was verified before
+	 */
+	synchronized boolean contains(final String key) {
+		if (key == null || !file.isFile()) return false;
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				for (String line; (line = reader.readLine()) != null;) {
+					if (line.equals(key)) return true;
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final IOException e) {
+			// treat as unverified
+		}
+		return false;
+	}
+
+	/**
+	 * Records that a jar was verified.
+	 *
+	 * @param key the key of the jar, as per {@link #key(File)}
+	 */
+	synchronized void add(final String key) {
+		if (key == null) return;
+		final File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) return;
+		try {
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			try {
+				writer.write(key + "\n");
+			}
+			finally {
+				writer.close();
+			}
+		}
+		catch (final IOException e) {
+			// the next start-up verifies again
+		}
+	}
+
+	/**
+	 * Hashes a stream. A CRC is good enough to tell versions apart, and unlike
+	 * a cryptographic digest it does not initialize the security providers,
+	 * which would cost more start-up time than it saves.
+	 */
+	private static String hash(final InputStream in) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[65536];
+		for (int count; (count = in.read(buffer)) > 0;) {
+			crc.update(buffer, 0, count);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+}
@@ -3,6 +3,7 @@ package org.knime.knip.mm.loops;
 import java.io.File;
 
 import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.SystemConfiguration;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -38,14 +39,15 @@ public class MMConfiguration implements Command {
 
 	@Override
 	public void run() {
+		// reconfiguring keeps the core, and the devices that did not change
 		final MMGateway mm = MMGateway.createInstance(microManagerDirectory);
 		if (systemConfiguration != null && systemConfiguration.isFile()) {
 			mm.loadSystemConfiguration(systemConfiguration.getAbsolutePath());
 		}
 		else {
-			mm.loadDevice("Camera", "DemoCamera", "DCam");
+			mm.configure(new SystemConfiguration().device("Camera", "DemoCamera", "DCam")
+				.setting("Property,Core,Camera,Camera"));
 		}
-		mm.initializeAllDevices();
 
 		message = SUCCESS;
 	}
@@ -1,21 +1,25 @@
 package org.knime.knip.mm.loops;
 
+import java.io.File;
+
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.ImgView;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ShortType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
+import org.knime.knip.mm.CompressedFrameSink;
+import org.knime.knip.mm.FramePool;
+import org.knime.knip.mm.FrameSink;
 import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.MappedFrameSink;
+import org.knime.knip.mm.PlanarFrameSink;
+import org.knime.knip.mm.PooledFrame;
+import org.knime.knip.mm.PropertyBatch;
+import org.knime.knip.mm.SequenceAcquisition;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -51,65 +55,79 @@ public class MMDoSomethingPlugin<T extends RealType<T>> implements Command {
 	@Parameter(type = ItemIO.INPUT, label = "Laser Power")
 	private double lp = 50;
 
+	@Parameter(type = ItemIO.INPUT, label = "Stream to disk (Path + .raw)")
+	private boolean toDisk = false;
+
+	@Parameter(type = ItemIO.INPUT, label = "Compress on disk (Path + .mmz)")
+	private boolean compress = false;
+
+	@Parameter
+	private LogService log;
+
 	@Override
 	public void run() {
 
 		final MMGateway core = MMGateway.getInstance();
+		core.getMetrics().reset();
 
 		try {
 			core.setExposure(10);
-			core.waitForSystem();
-			core.setProperty("Omicron-488nm", "Laser Operation Select", "On");
-			core.setProperty("Omicron-488nm", "Laser Power Set-point Select [mW]", 200);
+			core.setProperties(new PropertyBatch()
+				.set("Omicron-488nm", "Laser Operation Select", "On")
+				.set("Omicron-488nm", "Laser Power Set-point Select [mW]", 200));
 			// na dann mal los : - )
 			core.setROI(0, 0, xRes, yRes);
-			core.startSequenceAcquisition(frames, 0, false);
 			int i = 0;
 
-			// create image with some metadata :-)))
-			outImg = new ImgPlus<ShortType>(
-					ArrayImgs.shorts(xRes, yRes, frames), "Manuels Img",
-					new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
-
-			int frame = 0;
-			while (core.getRemainingImageCount() > 0
-					|| core.isSequenceRunning(core.getCameraDevice()) || false) {
-				if (core.getRemainingImageCount() > 0) {
-					final short[] img = (short[]) core.popNextImage();
-					// do whatever you want with the image
-					
-					// access plane by plane. Interval
-					IntervalView<ShortType> interval = Views.interval(outImg,
-							new FinalInterval(new long[] { 0, 0, frame },
-									new long[] { xRes-1, yRes-1, frame }));
-
-					// wieder als bild verpacken und schon haben wir ein
-					// zweidimensionales ding. sweet oder? ;-)
-					Img<ShortType> plane = new ImgView<>(interval, null);
-
-					// cursor als pixelzugriff
-					Cursor<ShortType> cursor = plane.cursor();
-
-					int k = 0;
-					while (cursor.hasNext()) {
-						cursor.fwd();
-						cursor.get().set(img[k++]);
+			final FrameSink<ShortType> sink = !toDisk ? PlanarFrameSink.shorts(xRes, yRes) :
+					compress ? CompressedFrameSink.shorts(new File(prePath + ".mmz"), xRes, yRes) :
+					MappedFrameSink.shorts(new File(prePath + ".raw"), xRes, yRes);
+			try {
+				final SequenceAcquisition acquisition = new SequenceAcquisition(core);
+				acquisition.setBufferController(core.getBufferController());
+				final FramePool pool = new FramePool();
+				acquisition.start(frames, 0);
+				try {
+					for (PooledFrame frame; sink.size() < frames && (frame = acquisition.takeFrame(0, pool)) != null;) {
+						// do whatever you want with the image
+						try {
+							sink.add(frame);
+						}
+						finally {
+							frame.release();
+						}
+
+						// i = i + 1;
+						// final ImagePlus imp = new ImagePlus(prePath + i + ".tif",
+						// ip);
+						// final FileSaver fs = new FileSaver(imp);
+						// fs.saveAsTiff(prePath + i + ".tif");
 					}
-
-					// i = i + 1;
-					// final ImagePlus imp = new ImagePlus(prePath + i + ".tif",
-					// ip);
-					// final FileSaver fs = new FileSaver(imp);
-					// fs.saveAsTiff(prePath + i + ".tif");
-					 frame++;
+				} finally {
+					acquisition.close();
+				}
+				if (acquisition.getFramesDropped() > 0) {
+					log.warn(acquisition.getFramesDropped() + " of " + frames +
+						" frames were lost because the circular buffer overflowed");
 				}
+				if (acquisition.getPauses() > 0) {
+					log.warn("The camera was paused " + acquisition.getPauses() +
+						" time(s) to keep the circular buffer from overflowing");
+				}
+
+				// create image with some metadata :-)))
+				outImg = new ImgPlus<ShortType>(sink.toImg(), "Manuels Img",
+						new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+			} finally {
+				sink.close();
 			}
 
-			core.stopSequenceAcquisition();
 			core.setProperty("Omicron-488nm", "Laser Power Set-point Select [mW]", 0);
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			log.info("Acquisition metrics:\n" + core.getMetrics().getSummary());
 		}
 
 	}
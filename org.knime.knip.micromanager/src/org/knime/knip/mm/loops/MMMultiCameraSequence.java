@@ -0,0 +1,141 @@
+package org.knime.knip.mm.loops;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+import org.knime.knip.mm.FramePool;
+import org.knime.knip.mm.FrameSink;
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.PixelFormat;
+import org.knime.knip.mm.PooledFrame;
+import org.knime.knip.mm.SequenceAcquisition;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Multi-Camera Sequence with Micro-Manager")},
+		description = "Acquires a sequence with two cameras in parallel",
+		headless = true,
+		type = Command.class)
+public class MMMultiCameraSequence<T extends NativeType<T>> implements Command {
+
+	@Parameter(type = ItemIO.INPUT, label = "Camera 1")
+	private String camera1 = "Camera-1";
+
+	@Parameter(type = ItemIO.INPUT, label = "Camera 2")
+	private String camera2 = "Camera-2";
+
+	@Parameter(type = ItemIO.INPUT, label = "Frames")
+	private int frames = 100;
+
+	@Parameter(type = ItemIO.INPUT, label = "Interval (ms)")
+	private double intervalMs = 0;
+
+	@Parameter(type = ItemIO.INPUT, label = "Pack pixels to the bit depth")
+	private boolean pack = true;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Image (Camera 1)")
+	private ImgPlus<T> outImg1;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Image (Camera 2)")
+	private ImgPlus<T> outImg2;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		try {
+			final String[] cameras = { camera1, camera2 };
+			final long width = mm.getImageWidth();
+			final long height = mm.getImageHeight();
+			final int bitDepth = pack ? (int) mm.getImageBitDepth() : 0;
+
+			final SequenceAcquisition acquisition = new SequenceAcquisition(mm, 64, cameras);
+			final FramePool pool = new FramePool();
+			final ExecutorService consumers = Executors.newFixedThreadPool(cameras.length);
+			try {
+				acquisition.start(frames, intervalMs);
+				// each camera's stream needs its own consumer
+				final List<Future<Img<T>>> images = new ArrayList<Future<Img<T>>>();
+				for (int i = 0; i < cameras.length; i++) {
+					final int index = i;
+					images.add(consumers.submit(new Callable<Img<T>>() {
+
+						@Override
+						public Img<T> call() throws Exception {
+							return consume(acquisition, pool, index, width, height, bitDepth);
+						}
+					}));
+				}
+				outImg1 = new ImgPlus<T>(images.get(0).get(), camera1,
+						new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+				outImg2 = new ImgPlus<T>(images.get(1).get(), camera2,
+						new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (final ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			finally {
+				acquisition.close();
+				consumers.shutdownNow();
+			}
+		} finally {
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+
+	private Img<T> consume(final SequenceAcquisition acquisition, final FramePool pool, final int index,
+		final long width, final long height, final int bitDepth) throws Exception
+	{
+		FrameSink<T> sink = null;
+		try {
+			for (PooledFrame frame; (frame = acquisition.takeFrame(index, pool)) != null;) {
+				try {
+					if (sink == null) {
+						sink = createSink(frame.getPixels(), width, height, bitDepth);
+					}
+					sink.add(frame);
+				}
+				finally {
+					frame.release();
+				}
+			}
+			if (sink == null) {
+				throw new IllegalStateException("No frames were acquired by " + acquisition);
+			}
+			return sink.toImg();
+		}
+		finally {
+			if (sink != null) {
+				sink.close();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private FrameSink<T> createSink(final Object pixels, final long width, final long height, final int bitDepth) {
+		return (FrameSink<T>) PixelFormat.of(pixels).createSink(width, height, bitDepth);
+	}
+}
@@ -0,0 +1,91 @@
+package org.knime.knip.mm.loops;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.MultiDimensionalAcquisition;
+import org.knime.knip.mm.MultiDimensionalAcquisition.Channel;
+import org.knime.knip.mm.PropertyBatch;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Multi-Dimensional Acquisition with Micro-Manager")},
+		description = "Acquires a time-lapse of multi-channel Z-stacks",
+		headless = true,
+		type = Command.class)
+public class MMMultiDimensionalAcquisition<T extends NativeType<T>> implements Command {
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel device")
+	private String channelDevice = "Omicron-488nm";
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel property")
+	private String channelProperty = "Laser Power Set-point Select [mW]";
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel values (comma-separated, empty for none)", required = false)
+	private String channelValues = "";
+
+	@Parameter(type = ItemIO.INPUT, label = "Exposure (ms, 0 to keep)")
+	private double exposure = 0;
+
+	@Parameter(type = ItemIO.INPUT, label = "Slices")
+	private int slices = 1;
+
+	@Parameter(type = ItemIO.INPUT, label = "Z-step (um)")
+	private double zStep = 1;
+
+	@Parameter(type = ItemIO.INPUT, label = "Time points")
+	private int timePoints = 1;
+
+	@Parameter(type = ItemIO.INPUT, label = "Interval (ms)")
+	private double intervalMs = 0;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Image")
+	private ImgPlus<T> outImg;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		try {
+			final MultiDimensionalAcquisition acquisition = new MultiDimensionalAcquisition(mm);
+			if (channelValues != null && !channelValues.trim().isEmpty()) {
+				for (final String value : channelValues.trim().split("\\s*,\\s*")) {
+					acquisition.channel(new Channel(value, exposure,
+							new PropertyBatch().set(channelDevice, channelProperty, value)));
+				}
+			}
+			final String focus = mm.getFocusDevice();
+			final double center = mm.getPosition(focus);
+			if (slices > 1) {
+				final double[] positions = new double[slices];
+				for (int s = 0; s < slices; s++) {
+					positions[s] = center + (s - (slices - 1) / 2.0) * zStep;
+				}
+				acquisition.slices(focus, positions);
+			}
+			acquisition.timePoints(timePoints, intervalMs);
+
+			try {
+				outImg = acquisition.run();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} finally {
+				if (slices > 1) {
+					mm.setPosition(focus, center);
+				}
+			}
+		} finally {
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.knime.knip.mm.loops;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+import org.knime.knip.mm.FrameReduction;
+import org.knime.knip.mm.FramePool;
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.PixelFormat;
+import org.knime.knip.mm.PooledFrame;
+import org.knime.knip.mm.SequenceAcquisition;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Reduced Sequence with Micro-Manager")},
+		description = "Acquires a sequence, reducing the frames while they arrive instead of storing all of them",
+		headless = true,
+		type = Command.class)
+public class MMReducedSequence<T extends NativeType<T>> implements Command {
+
+	private final static String MAX = "Maximum projection", MIN = "Minimum projection",
+			MEAN = "Mean projection", AVERAGE = "Frame averaging", BIN = "Binning", CROP = "Crop";
+
+	@Parameter(type = ItemIO.INPUT, label = "Frames")
+	private int frames = 100;
+
+	@Parameter(type = ItemIO.INPUT, label = "Interval (ms)")
+	private double intervalMs = 0;
+
+	@Parameter(type = ItemIO.INPUT, label = "Reduction",
+			choices = { MAX, MIN, MEAN, AVERAGE, BIN, CROP })
+	private String reduction = MAX;
+
+	@Parameter(type = ItemIO.INPUT, label = "Frames to average / binning factor")
+	private int factor = 2;
+
+	@Parameter(type = ItemIO.INPUT, label = "Crop X")
+	private int roiX = 0;
+
+	@Parameter(type = ItemIO.INPUT, label = "Crop Y")
+	private int roiY = 0;
+
+	@Parameter(type = ItemIO.INPUT, label = "Crop width")
+	private int roiWidth = 256;
+
+	@Parameter(type = ItemIO.INPUT, label = "Crop height")
+	private int roiHeight = 256;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Image")
+	private ImgPlus<T> outImg;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		try {
+			final PixelFormat format = PixelFormat.of(mm);
+			final long width = mm.getImageWidth();
+			final long height = mm.getImageHeight();
+			final FrameReduction<?> sink = createReduction(format, width, height);
+
+			final SequenceAcquisition acquisition = new SequenceAcquisition(mm);
+			acquisition.setBufferController(mm.getBufferController());
+			final FramePool pool = new FramePool();
+			try {
+				acquisition.start(frames, intervalMs);
+				// every frame is reduced right away, so its array can be recycled
+				for (PooledFrame frame; (frame = acquisition.takeFrame(0, pool)) != null;) {
+					try {
+						sink.add(frame);
+					}
+					finally {
+						frame.release();
+					}
+				}
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			finally {
+				acquisition.close();
+			}
+			if (acquisition.getFramesDropped() > 0) {
+				log.warn(acquisition.getFramesDropped() + " of " + frames +
+					" frames were lost because the circular buffer overflowed");
+			}
+
+			@SuppressWarnings("unchecked")
+			final Img<T> img = (Img<T>) sink.toImg();
+			// projections collapse the time axis
+			final boolean projection = MAX.equals(reduction) || MIN.equals(reduction) || MEAN.equals(reduction);
+			outImg = new ImgPlus<T>(img, reduction, projection ?
+					new AxisType[] { Axes.X, Axes.Y } : new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+			if (!MEAN.equals(reduction)) {
+				outImg.setValidBits((int) mm.getImageBitDepth());
+			}
+		} finally {
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+
+	private FrameReduction<?> createReduction(final PixelFormat format, final long width, final long height) {
+		if (MAX.equals(reduction)) return FrameReduction.max(format, width, height);
+		if (MIN.equals(reduction)) return FrameReduction.min(format, width, height);
+		if (MEAN.equals(reduction)) return FrameReduction.mean(format, width, height);
+		if (AVERAGE.equals(reduction)) return FrameReduction.average(format, width, height, factor);
+		if (BIN.equals(reduction)) return FrameReduction.bin(format, width, height, factor);
+		if (CROP.equals(reduction)) {
+			return FrameReduction.crop(format, width, height, roiX, roiY, roiWidth, roiHeight);
+		}
+		throw new IllegalArgumentException("Unknown reduction: " + reduction);
+	}
+}
@@ -0,0 +1,93 @@
+package org.knime.knip.mm.loops;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.PixelFormat;
+import org.knime.knip.mm.PlanarFrameSink;
+import org.knime.knip.mm.SequencedAcquisition;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Sequenced Z-Stack with Micro-Manager")},
+		description = "Acquires a multi-channel Z-stack, with the camera clocking channel and focus changes where the hardware allows",
+		headless = true,
+		type = Command.class)
+public class MMSequencedStack<T extends NativeType<T>> implements Command {
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel device")
+	private String channelDevice = "Omicron-488nm";
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel property")
+	private String channelProperty = "Laser Power Set-point Select [mW]";
+
+	@Parameter(type = ItemIO.INPUT, label = "Channel values (comma-separated, empty for none)", required = false)
+	private String channelValues = "";
+
+	@Parameter(type = ItemIO.INPUT, label = "Slices")
+	private int slices = 1;
+
+	@Parameter(type = ItemIO.INPUT, label = "Z-step (um)")
+	private double zStep = 1;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Image")
+	private ImgPlus<T> outImg;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		try {
+			final String[] channels = channelValues == null || channelValues.trim().isEmpty() ?
+					new String[0] : channelValues.trim().split("\\s*,\\s*");
+			final int channelCount = Math.max(channels.length, 1);
+			final int frames = channelCount * slices;
+
+			// channels vary fastest, so that each slice is visited once
+			final SequencedAcquisition acquisition = new SequencedAcquisition(mm);
+			if (channels.length > 0) {
+				final String[] values = new String[frames];
+				for (int i = 0; i < frames; i++) {
+					values[i] = channels[i % channelCount];
+				}
+				acquisition.property(channelDevice, channelProperty, values);
+			}
+			final String focus = mm.getFocusDevice();
+			final double center = mm.getPosition(focus);
+			final double[] positions = new double[frames];
+			for (int i = 0; i < frames; i++) {
+				positions[i] = center + (i / channelCount - (slices - 1) / 2.0) * zStep;
+			}
+			acquisition.stage(focus, positions);
+
+			final PlanarFrameSink<?, ?> sink =
+					PixelFormat.of(mm).createSink(mm.getImageWidth(), mm.getImageHeight());
+			try {
+				acquisition.run(sink);
+			} finally {
+				// return to where we started
+				mm.setPosition(focus, center);
+			}
+
+			@SuppressWarnings("unchecked")
+			final Img<T> img = (Img<T>) sink.toImg(channelCount, slices);
+			outImg = new ImgPlus<T>(img, "Sequenced Z-Stack",
+					new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z });
+			outImg.setValidBits((int) mm.getImageBitDepth());
+		} finally {
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+}
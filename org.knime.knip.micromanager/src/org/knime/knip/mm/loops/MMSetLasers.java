@@ -3,6 +3,7 @@ package org.knime.knip.mm.loops;
 import net.imglib2.type.numeric.RealType;
 
 import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.PropertyBatch;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -65,19 +66,20 @@ public class MMSetLasers<T extends RealType<T>> implements Command {
 		final MMGateway core = MMGateway.getInstance();
 
 		try {
-			core.waitForSystem();
-			//405nm:
-			core.setProperty("Omicron-405nm", "Laser Operation Select", choice405);
-			core.setProperty("Omicron-405nm", "Laser Power Set-point Select [mW]", P405);
-			//488nm:
-			core.setProperty("Omicron-488nm", "Laser Operation Select", choice488);
-			core.setProperty("Omicron-488nm", "Laser Power Set-point Select [mW]", P488);
-			//515nm:
-			core.setProperty("Cobolt-515nm", "Laser", choice515);
-			core.setProperty("Cobolt-515nm", "PowerSetpoint", P515);
-			//647nm:
-			core.setProperty("Omicron-647nm", "Laser Operation Select", choice647);
-			core.setProperty("Omicron-647nm", "Laser Power Set-point Select [mW]", P647);
+			// only the settings that changed since the last run are sent
+			core.setProperties(new PropertyBatch()
+				//405nm:
+				.set("Omicron-405nm", "Laser Operation Select", choice405)
+				.set("Omicron-405nm", "Laser Power Set-point Select [mW]", P405)
+				//488nm:
+				.set("Omicron-488nm", "Laser Operation Select", choice488)
+				.set("Omicron-488nm", "Laser Power Set-point Select [mW]", P488)
+				//515nm:
+				.set("Cobolt-515nm", "Laser", choice515)
+				.set("Cobolt-515nm", "PowerSetpoint", P515)
+				//647nm:
+				.set("Omicron-647nm", "Laser Operation Select", choice647)
+				.set("Omicron-647nm", "Laser Power Set-point Select [mW]", P647));
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
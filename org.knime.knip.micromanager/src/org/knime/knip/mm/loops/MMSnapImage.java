@@ -1,12 +1,15 @@
 package org.knime.knip.mm.loops;
 
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.ShortType;
 
 import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.MetadataTable;
+import org.knime.knip.mm.PixelFormat;
+import org.knime.knip.mm.PlanarFrameSink;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.plugin.Menu;
@@ -32,23 +35,53 @@ public class MMSnapImage<T extends RealType<T>> implements Command {
 	public void run() {
 		final MMGateway mm = MMGateway.getInstance();
 
+		final MetadataTable metadata = new MetadataTable();
+		metadata.setState(mm, null);
 		mm.snapImage();
+		final long received = System.nanoTime();
 		final long width = mm.getImageWidth();
 		final long height = mm.getImageHeight();
-		final long[] dims = new long[] { width, height };
-		final Object pixels = mm.getImage();
+		final Object[] channels = mm.getImages();
+		final PixelFormat format = PixelFormat.of(channels[0]);
 		final Img<T> img;
-		// TODO: support multi-channel images
-		if (pixels instanceof byte[]) {
-			img = (Img<T>) ArrayImgs.bytes((byte[]) pixels, dims);
+		final AxisType[] axes;
+		if (format == PixelFormat.RGB32) {
+			// image cells hold real-valued pixels, so the components become channels
+			final PlanarFrameSink<?, ?> sink = PlanarFrameSink.unsignedBytes(width, height);
+			for (final Object pixels : channels) {
+				for (final byte[] plane : PixelFormat.splitRGB((int[]) pixels)) {
+					sink.add(plane);
+				}
+			}
+			img = typed(sink.toImg());
+			axes = new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL };
 		}
-		else if (pixels instanceof short[]) {
-			img = (Img<T>) ArrayImgs.bytes((byte[]) pixels, dims);
+		else if (channels.length == 1) {
+			img = typed(format.wrap(channels[0], width, height));
+			axes = new AxisType[] { Axes.X, Axes.Y };
 		}
 		else {
-			throw new RuntimeException("Unsupported pixel type!");
+			final PlanarFrameSink<?, ?> sink = format.createSink(width, height);
+			for (final Object pixels : channels) {
+				sink.add(pixels);
+			}
+			img = typed(sink.toImg());
+			axes = new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL };
 		}
-		// TODO: provide all available metadata
-		outImg = new ImgPlus<T>(img);
+		outImg = new ImgPlus<T>(img, "Snap", axes);
+		outImg.setValidBits((int) mm.getImageBitDepth());
+		final String camera = mm.getCameraDevice();
+		for (int i = 0; i < channels.length; i++) {
+			metadata.setCamera(metadata.append(received), camera);
+		}
+		metadata.attachTo(outImg);
+	}
+
+	/**
+	 * The pixel type is decided by the camera at run time.
+	 */
+	@SuppressWarnings("unchecked")
+	private Img<T> typed(final Img<?> img) {
+		return (Img<T>) img;
 	}
 }
\ No newline at end of file
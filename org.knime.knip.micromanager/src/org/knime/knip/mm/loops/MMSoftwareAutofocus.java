@@ -0,0 +1,60 @@
+package org.knime.knip.mm.loops;
+
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.SoftwareAutofocus;
+import org.knime.knip.mm.SoftwareAutofocus.Metric;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Software Autofocus with Micro-Manager")},
+		description = "Focuses by sweeping the focus stage and scoring the sharpness of the frames",
+		headless = true,
+		type = Command.class)
+public class MMSoftwareAutofocus implements Command {
+
+	private final static String NORMALIZED_VARIANCE = "Normalized variance", BRENNER = "Brenner",
+			LAPLACIAN = "Laplacian";
+
+	@Parameter(type = ItemIO.INPUT, label = "Search range (um)")
+	private double rangeUm = 50;
+
+	@Parameter(type = ItemIO.INPUT, label = "Slices per sweep")
+	private int steps = 7;
+
+	@Parameter(type = ItemIO.INPUT, label = "Final step (um)")
+	private double finalStepUm = 0.5;
+
+	@Parameter(type = ItemIO.INPUT, label = "Sharpness",
+			choices = { LAPLACIAN, BRENNER, NORMALIZED_VARIANCE })
+	private String metric = LAPLACIAN;
+
+	@Parameter(type = ItemIO.INPUT, label = "Subsampling")
+	private int subsample = 2;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Focus (um)")
+	private double focus;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		try {
+			focus = new SoftwareAutofocus(mm)
+				.metric(BRENNER.equals(metric) ? Metric.BRENNER :
+					NORMALIZED_VARIANCE.equals(metric) ? Metric.NORMALIZED_VARIANCE : Metric.LAPLACIAN)
+				.search(rangeUm, steps, finalStepUm)
+				.subsample(subsample)
+				.focus();
+		} finally {
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+}
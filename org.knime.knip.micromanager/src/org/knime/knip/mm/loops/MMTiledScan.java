@@ -0,0 +1,61 @@
+package org.knime.knip.mm.loops;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.MultiPositionAcquisition;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+@Plugin(menu = {@Menu(label = "Micro-Manager"),
+				@Menu(label = "Tiled Scan with Micro-Manager")},
+		description = "Acquires a grid of tiles around the current stage position and assembles them into a mosaic",
+		headless = true,
+		type = Command.class)
+public class MMTiledScan<T extends NativeType<T>> implements Command {
+
+	@Parameter(type = ItemIO.INPUT, label = "Columns")
+	private int columns = 3;
+
+	@Parameter(type = ItemIO.INPUT, label = "Rows")
+	private int rows = 3;
+
+	@Parameter(type = ItemIO.INPUT, label = "Overlap (%)", min = "0", max = "99")
+	private double overlapPercent = 10;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "Mosaic")
+	private ImgPlus<T> outImg;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		final MMGateway mm = MMGateway.getInstance();
+		mm.getMetrics().reset();
+		final String xyStage = mm.getXYStageDevice();
+		final double x = mm.getXPosition(xyStage);
+		final double y = mm.getYPosition(xyStage);
+		try {
+			final double overlap = overlapPercent / 100;
+			final double pixelSize = mm.getPixelSizeUm();
+			// center the grid on the current position
+			final double stepX = Math.round(mm.getImageWidth() * (1 - overlap)) * pixelSize;
+			final double stepY = Math.round(mm.getImageHeight() * (1 - overlap)) * pixelSize;
+			final MultiPositionAcquisition acquisition = new MultiPositionAcquisition(mm).tiles("Tile",
+				x - (columns - 1) * stepX / 2, y - (rows - 1) * stepY / 2, columns, rows, overlap);
+			outImg = acquisition.runMosaic();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			mm.setXYPosition(xyStage, x, y);
+			log.info("Acquisition metrics:\n" + mm.getMetrics().getSummary());
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.knime.knip.mm.nodes;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+
+/**
+ * The dialog of the {@link MMSequenceAcquisitionNodeModel sequence acquisition
+ * node}.
+ */
+class MMSequenceAcquisitionNodeDialog extends DefaultNodeSettingsPane {
+
+	MMSequenceAcquisitionNodeDialog() {
+		addDialogComponent(new DialogComponentNumber(MMSequenceAcquisitionNodeModel.createFramesModel(),
+			"Frames", 10));
+		addDialogComponent(new DialogComponentNumber(MMSequenceAcquisitionNodeModel.createIntervalModel(),
+			"Interval (ms, 0 for as fast as possible)", 10));
+		addDialogComponent(new DialogComponentNumber(MMSequenceAcquisitionNodeModel.createChunkSizeModel(),
+			"Frames per row", 1));
+	}
+}
@@ -0,0 +1,39 @@
+package org.knime.knip.mm.nodes;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * The factory of the {@link MMSequenceAcquisitionNodeModel sequence
+ * acquisition node}.
+ */
+public class MMSequenceAcquisitionNodeFactory extends NodeFactory<MMSequenceAcquisitionNodeModel> {
+
+	@Override
+	public MMSequenceAcquisitionNodeModel createNodeModel() {
+		return new MMSequenceAcquisitionNodeModel();
+	}
+
+	@Override
+	protected int getNrNodeViews() {
+		return 0;
+	}
+
+	@Override
+	public NodeView<MMSequenceAcquisitionNodeModel> createNodeView(final int viewIndex,
+		final MMSequenceAcquisitionNodeModel nodeModel)
+	{
+		return null;
+	}
+
+	@Override
+	protected boolean hasDialog() {
+		return true;
+	}
+
+	@Override
+	protected NodeDialogPane createNodeDialogPane() {
+		return new MMSequenceAcquisitionNodeDialog();
+	}
+}
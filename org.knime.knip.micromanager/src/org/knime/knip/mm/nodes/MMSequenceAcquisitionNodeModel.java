@@ -0,0 +1,294 @@
+package org.knime.knip.mm.nodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.collection.CollectionCellFactory;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.knip.base.data.img.ImgPlusCell;
+import org.knime.knip.base.data.img.ImgPlusCellFactory;
+import org.knime.knip.mm.FramePool;
+import org.knime.knip.mm.MMGateway;
+import org.knime.knip.mm.MetadataTable;
+import org.knime.knip.mm.PixelFormat;
+import org.knime.knip.mm.PlanarFrameSink;
+import org.knime.knip.mm.PooledFrame;
+import org.knime.knip.mm.SequenceAcquisition;
+
+/**
+ * Acquires a sequence of frames with the default camera.
+ * <p>
+ * Every frame, or every chunk of a configurable number of frames, becomes one
+ * row, holding the frames as an X/Y/Time image together with their frame
+ * number, time stamp and camera, and the per-frame metadata as lists; the
+ * metadata is also attached to the image, see {@link MetadataTable}. When run by KNIME's streaming executor, each
+ * row is pushed downstream as soon as its frames were acquired, so that
+ * processing overlaps with the acquisition and the sequence need not fit into
+ * memory as a whole.
+ * </p>
+ */
+public class MMSequenceAcquisitionNodeModel extends NodeModel {
+
+	private final static NodeLogger LOGGER = NodeLogger.getLogger(MMSequenceAcquisitionNodeModel.class);
+
+	/** The per-frame metadata columns, in the order of {@link #createListCell(MetadataTable, int)}. */
+	private final static String[] METADATA_COLUMNS =
+		{ "Frame time stamps [ms]", "Exposure [ms]", "X [um]", "Y [um]", "Z [um]" };
+
+	private final SettingsModelIntegerBounded frames = createFramesModel();
+	private final SettingsModelDoubleBounded interval = createIntervalModel();
+	private final SettingsModelIntegerBounded chunkSize = createChunkSizeModel();
+
+	static SettingsModelIntegerBounded createFramesModel() {
+		return new SettingsModelIntegerBounded("frames", 100, 1, Integer.MAX_VALUE);
+	}
+
+	static SettingsModelDoubleBounded createIntervalModel() {
+		return new SettingsModelDoubleBounded("intervalMs", 0, 0, Double.MAX_VALUE);
+	}
+
+	static SettingsModelIntegerBounded createChunkSizeModel() {
+		return new SettingsModelIntegerBounded("chunkSize", 1, 1, Integer.MAX_VALUE);
+	}
+
+	MMSequenceAcquisitionNodeModel() {
+		super(0, 1);
+	}
+
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+		return new DataTableSpec[] { createSpec() };
+	}
+
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+		throws Exception
+	{
+		final BufferedDataTableRowOutput output =
+			new BufferedDataTableRowOutput(exec.createDataContainer(createSpec()));
+		acquire(output, exec);
+		return new BufferedDataTable[] { output.getDataTable() };
+	}
+
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		// the rows come from a single camera, in order
+		return new OutputPortRole[] { OutputPortRole.NONDISTRIBUTED };
+	}
+
+	@Override
+	public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo,
+		final PortObjectSpec[] inSpecs) throws InvalidSettingsException
+	{
+		return new StreamableOperator() {
+
+			@Override
+			public void runFinal(final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+				throws Exception
+			{
+				acquire((RowOutput) outputs[0], exec);
+			}
+		};
+	}
+
+	/**
+	 * Acquires the sequence, pushing each chunk of frames as soon as it is
+	 * complete.
+	 *
+	 * @param output where to push the rows; it is closed when all rows were
+	 *          pushed
+	 * @param exec the execution context
+	 */
+	private void acquire(final RowOutput output, final ExecutionContext exec) throws Exception {
+		final MMGateway mm = MMGateway.getInstance();
+		final PixelFormat format = PixelFormat.of(mm);
+		if (format == PixelFormat.RGB32) {
+			throw new IllegalStateException("RGB cameras are not supported yet");
+		}
+		final long width = mm.getImageWidth(), height = mm.getImageHeight();
+		final int bitDepth = (int) mm.getImageBitDepth();
+		final String camera = mm.getCameraDevice();
+		final int numImages = frames.getIntValue();
+		final int chunk = chunkSize.getIntValue();
+		final ImgPlusCellFactory cellFactory = new ImgPlusCellFactory(exec);
+
+		// the metrics summarize this run only
+		mm.getMetrics().reset();
+		final SequenceAcquisition acquisition = new SequenceAcquisition(mm);
+		acquisition.setBufferController(mm.getBufferController());
+		acquisition.setRecordMetadata(true);
+		final FramePool pool = new FramePool();
+		try {
+			acquisition.start(numImages, interval.getDoubleValue());
+			final long start = System.nanoTime();
+			int taken = 0;
+			for (;;) {
+				final int first = taken;
+				double elapsedMs = 0;
+				PlanarFrameSink<?, ?> sink = null;
+				for (PooledFrame frame; taken - first < chunk && (frame = acquisition.takeFrame(0, pool)) != null; taken++) {
+					try {
+						if (sink == null) {
+							elapsedMs = (System.nanoTime() - start) / 1e6;
+							sink = format.createSink(width, height);
+						}
+						sink.add(frame);
+					}
+					finally {
+						frame.release();
+					}
+				}
+				if (sink == null) break;
+
+				final MetadataTable metadata = acquisition.getMetadata(0).copy(first, taken);
+				final DataCell image = createCell(cellFactory, sink.toImg(), camera + " #" + first, bitDepth, metadata);
+				final List<DataCell> cells = new ArrayList<DataCell>();
+				cells.add(image);
+				cells.add(new IntCell(first));
+				cells.add(new IntCell(taken - first));
+				cells.add(new DoubleCell(elapsedMs));
+				cells.add(new StringCell(camera));
+				for (int column = 0; column < METADATA_COLUMNS.length; column++) {
+					cells.add(createListCell(metadata, column));
+				}
+				output.push(new DefaultRow(new RowKey("Frame " + first), cells.toArray(new DataCell[cells.size()])));
+
+				exec.checkCanceled();
+				exec.setProgress(taken / (double) numImages, "Acquired " + taken + " of " + numImages + " frames");
+				if (taken - first < chunk) break;
+			}
+			if (acquisition.getFramesDropped() > 0) {
+				setWarningMessage(acquisition.getFramesDropped() +
+					" frames were lost because the circular buffer overflowed");
+			}
+			else if (taken < numImages) {
+				setWarningMessage("Only " + taken + " of " + numImages + " frames were acquired");
+			}
+		}
+		finally {
+			acquisition.close();
+			output.close();
+			LOGGER.info("Acquisition metrics of " + camera + ":\n" + mm.getMetrics().getSummary());
+		}
+	}
+
+	/**
+	 * Wraps a chunk of frames into an image cell; the frames are the time axis.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends RealType<T>> DataCell createCell(final ImgPlusCellFactory factory, final Img<?> img,
+		final String name, final int bitDepth, final MetadataTable metadata) throws IOException
+	{
+		final ImgPlus<T> imgPlus = new ImgPlus<T>((Img<T>) img, name, new AxisType[] { Axes.X, Axes.Y, Axes.TIME });
+		imgPlus.setValidBits(bitDepth);
+		metadata.attachTo(imgPlus);
+		return factory.createCell(imgPlus);
+	}
+
+	/**
+	 * Lists one metadata column of a chunk's frames; unknown values are NaN.
+	 */
+	private static DataCell createListCell(final MetadataTable metadata, final int column) {
+		final List<DoubleCell> values = new ArrayList<DoubleCell>(metadata.size());
+		for (int row = 0; row < metadata.size(); row++) {
+			final double value;
+			switch (column) {
+				case 0: value = metadata.getElapsedTime(row); break;
+				case 1: value = metadata.getExposure(row); break;
+				case 2: value = metadata.getX(row); break;
+				case 3: value = metadata.getY(row); break;
+				default: value = metadata.getZ(row); break;
+			}
+			values.add(new DoubleCell(value));
+		}
+		return CollectionCellFactory.createListCell(values);
+	}
+
+	private static DataTableSpec createSpec() {
+		final List<DataColumnSpec> columns = new ArrayList<DataColumnSpec>();
+		columns.add(new DataColumnSpecCreator("Image", ImgPlusCell.TYPE).createSpec());
+		columns.add(new DataColumnSpecCreator("First frame", IntCell.TYPE).createSpec());
+		columns.add(new DataColumnSpecCreator("Frames", IntCell.TYPE).createSpec());
+		columns.add(new DataColumnSpecCreator("Elapsed time [ms]", DoubleCell.TYPE).createSpec());
+		columns.add(new DataColumnSpecCreator("Camera", StringCell.TYPE).createSpec());
+		for (final String name : METADATA_COLUMNS) {
+			columns.add(new DataColumnSpecCreator(name, CollectionCellFactory.getListType(DoubleCell.TYPE)).createSpec());
+		}
+		return new DataTableSpec(columns.toArray(new DataColumnSpec[columns.size()]));
+	}
+
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+		frames.saveSettingsTo(settings);
+		interval.saveSettingsTo(settings);
+		chunkSize.saveSettingsTo(settings);
+	}
+
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+		frames.validateSettings(settings);
+		interval.validateSettings(settings);
+		chunkSize.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+		frames.loadSettingsFrom(settings);
+		interval.loadSettingsFrom(settings);
+		chunkSize.loadSettingsFrom(settings);
+	}
+
+	@Override
+	protected void reset() {
+		// nothing to reset
+	}
+
+	@Override
+	protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec)
+		throws IOException, CanceledExecutionException
+	{
+		// no internals
+	}
+
+	@Override
+	protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec)
+		throws IOException, CanceledExecutionException
+	{
+		// no internals
+	}
+}